@@ -2,13 +2,13 @@ package analysis;
 
 import ir.temp.Color;
 import ir.temp.Temp;
-
-import java.util.Map;
+import ir.temp.TempMap;
 
 import util.DefaultIndentable;
 import util.IndentingWriter;
 import util.List;
 
+import analysis.util.graph.BitMatrixGraph;
 import analysis.util.graph.Graph;
 import analysis.util.graph.Node;
 
@@ -35,6 +35,19 @@ abstract public class InterferenceGraph extends Graph<Temp> {
 
     abstract public List<Move> moves();
 
+    /**
+     * The same graph as a {@link BitMatrixGraph}, whose nodes are the keys of
+     * the nodes of this graph. An allocator may remove and restore nodes in
+     * it while simplifying, or add the edges of nodes it coalesces, which
+     * leaves this graph as it is.
+     */
+    abstract public BitMatrixGraph matrix();
+
+    /**
+     * @return the node with a key.
+     */
+    abstract public Node<Temp> node(int key);
+
     public String name = "Unknown";
 
     /**
@@ -49,6 +62,14 @@ abstract public class InterferenceGraph extends Graph<Temp> {
         return 1;
     }
 
+    /**
+     * @return a color to paint the Temp with if it is spilled, when there is
+     * a cheaper way to get its value back than a spill slot, or null.
+     */
+    public Color spillColor(Node<Temp> node) {
+        return null;
+    }
+
     @Override
     protected Node<Temp> makeNode(Temp content) {
         // Create nodes that print nicer.
@@ -60,6 +81,6 @@ abstract public class InterferenceGraph extends Graph<Temp> {
         };
     }
 
-    abstract public String dotString(int K, Map<Temp, Color> xcolorMap);
+    abstract public String dotString(int K, TempMap<Color> xcolorMap);
 
 }
@@ -5,7 +5,10 @@ import codegen.AssemData;
 import codegen.AssemFragment;
 import codegen.AssemProc;
 import codegen.Assembly;
+import analysis.implementation.CoalescingRegAlloc;
+import analysis.implementation.LinearScanRegAlloc;
 import analysis.implementation.SpillingRegAlloc;
+import ir.temp.CompilationContext;
 
 /**
  * The analysis culminates in register allocation. That is essentially
@@ -37,8 +40,57 @@ import analysis.implementation.SpillingRegAlloc;
  */
 public abstract class RegAlloc extends DefaultIndentable {
 
+    /**
+     * The register allocators there are.
+     */
+    public enum Allocator {
+        /**
+         * {@link analysis.implementation.SimpleRegAlloc}, which doesn't
+         * coalesce, by way of {@link SpillingRegAlloc}.
+         */
+        SIMPLE,
+        /**
+         * {@link CoalescingRegAlloc}, which coalesces moves.
+         */
+        COALESCING,
+        /**
+         * {@link LinearScanRegAlloc}, which is quicker but makes worse code.
+         */
+        LINEAR_SCAN
+    }
+
+    public static final Allocator DEFAULT = Allocator.COALESCING;
+
+    /**
+     * Allocate the registers of a procedure with the default allocator.
+     */
     public static RegAlloc doit(AssemProc proc) {
-        return new SpillingRegAlloc(proc);
+        return doit(proc, DEFAULT);
+    }
+
+    /**
+     * Allocate the registers of a procedure, making the Temps this needs in
+     * the procedure's {@link CompilationContext}.
+     */
+    public static RegAlloc doit(AssemProc proc, Allocator allocator) {
+        return proc.getContext().run(() -> allocate(proc, allocator));
+    }
+
+    private static RegAlloc allocate(AssemProc proc, Allocator allocator) {
+        switch (allocator) {
+            case SIMPLE:
+                return new SpillingRegAlloc(proc);
+            case COALESCING:
+                return new CoalescingRegAlloc(proc);
+            case LINEAR_SCAN:
+                return new LinearScanRegAlloc(proc);
+            default:
+                throw new Error("Unknown register allocator " + allocator);
+        }
+    }
+
+    public static void doit(Assembly assembly) {
+        doit(assembly, DEFAULT);
     }
 
     /**
@@ -50,11 +102,12 @@ public abstract class RegAlloc extends DefaultIndentable {
      * "fictional" Temp's.
      *
      * @param assembly
+     * @param allocator
      */
-    public static void doit(Assembly assembly) {
+    public static void doit(Assembly assembly, Allocator allocator) {
         for (AssemFragment frag : assembly) {
             if (frag instanceof AssemProc)
-                doit((AssemProc) frag);
+                doit((AssemProc) frag, allocator);
             else if (frag instanceof AssemData)
                 ; // Ignore it
             else
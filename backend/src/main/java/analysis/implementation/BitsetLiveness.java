@@ -0,0 +1,364 @@
+package analysis.implementation;
+
+import ir.temp.Temp;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import util.List;
+
+import analysis.FlowGraph;
+import analysis.Liveness;
+import analysis.util.graph.Node;
+
+/**
+ * Liveness analysis on bit sets, which does the same as {@link LivenessImplementation}
+ * without its network of {@link analysis.util.ActiveSet}s, whose lists make
+ * it quadratic, and whose notifications recurse as deep as the flow graph is
+ * long.
+ * <p>
+ * The Temps of the flow graph are numbered densely, so that a set of them is
+ * an array of words with a bit for each. The nodes are grouped into basic
+ * blocks, which are summarized by the Temps they use before defining them
+ * and the Temps they define. The equations for the blocks are solved with a
+ * worklist, starting in postorder of the flow graph (which is reverse
+ * postorder of the reversed graph) so that most blocks are done after their
+ * successors. Only when the live Temps of a node are asked for is its block
+ * gone through node by node.
+ * <p>
+ * The sets of the blocks take a bit for each block and Temp, which is fine
+ * for procedures, but something to keep in mind for very large ones.
+ */
+public class BitsetLiveness<N> extends Liveness<N> {
+
+    /**
+     * The Temps by their number, and the number of each by its id.
+     */
+    private Temp[] temps = new Temp[16];
+    private int[] numbers = new int[16];
+    private int tempCount;
+
+    /**
+     * Words in a set of Temps.
+     */
+    private final int words;
+
+    /**
+     * The nodes of each block, and the block of each node by its key.
+     */
+    private final Node<N>[][] blocks;
+    private final int[] blockOf;
+
+    private final int[][] succs;
+    private final int[][] preds;
+
+    /**
+     * The Temps each block uses before defining them, those it defines,
+     * and those live on entry to and exit from it.
+     */
+    private final long[][] gen, kill, in, out;
+
+    /**
+     * The live Temps of each node by its key, once its block is gone through.
+     */
+    private final List<Temp>[] nodeIn, nodeOut;
+
+    @SuppressWarnings("unchecked")
+    public BitsetLiveness(FlowGraph<N> graph) {
+        super(graph);
+        Arrays.fill(numbers, -1);
+        int keys = 0;
+        for (Node<N> node : g.nodes()) {
+            keys = Math.max(keys, node.getKey() + 1);
+            for (Temp t : g.def(node))
+                number(t);
+            for (Temp t : g.use(node))
+                number(t);
+        }
+        words = (tempCount + 63) >> 6;
+        blockOf = new int[keys];
+        nodeIn = new List[keys];
+        nodeOut = new List[keys];
+        blocks = findBlocks();
+        int n = blocks.length;
+        succs = new int[n][];
+        preds = new int[n][];
+        gen = new long[n][];
+        kill = new long[n][];
+        in = new long[n][];
+        out = new long[n][];
+        for (int b = 0; b < n; b++) {
+            Node<N>[] block = blocks[b];
+            succs[b] = blocksOf(block[block.length - 1].succ());
+            preds[b] = blocksOf(block[0].pred());
+            summarize(b);
+            in[b] = new long[words];
+            out[b] = new long[words];
+        }
+        solve();
+    }
+
+    private void number(Temp t) {
+        int id = t.getId();
+        if (id >= numbers.length) {
+            int length = numbers.length;
+            numbers = Arrays.copyOf(numbers, Math.max(id + 1, length * 2));
+            Arrays.fill(numbers, length, numbers.length, -1);
+        }
+        if (numbers[id] < 0) {
+            if (tempCount == temps.length)
+                temps = Arrays.copyOf(temps, tempCount * 2);
+            temps[tempCount] = t;
+            numbers[id] = tempCount++;
+        }
+    }
+
+    /**
+     * A node starts a block unless it only comes from one node, which only
+     * goes to it. The first node always starts one, and so does any node
+     * left over in a loop that no other block leads into.
+     */
+    private boolean isLeader(Node<N> node, boolean first) {
+        if (first || node.inDegree() != 1)
+            return true;
+        Node<N> pred = node.pred().head();
+        return pred == node || pred.outDegree() != 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<N>[][] findBlocks() {
+        Arrays.fill(blockOf, -1);
+        java.util.List<Node<N>[]> found = new java.util.ArrayList<Node<N>[]>();
+        java.util.List<Node<N>> block = new java.util.ArrayList<Node<N>>();
+        boolean first = true;
+        for (int pass = 0; pass < 2; pass++) {
+            for (Node<N> leader : g.nodes()) {
+                boolean starts = pass == 1 || isLeader(leader, first);
+                first = false;
+                if (!starts || blockOf[leader.getKey()] >= 0)
+                    continue;
+                Node<N> node = leader;
+                while (true) {
+                    blockOf[node.getKey()] = found.size();
+                    block.add(node);
+                    if (node.outDegree() != 1)
+                        break;
+                    Node<N> next = node.succ().head();
+                    if (blockOf[next.getKey()] >= 0 || isLeader(next, false))
+                        break;
+                    node = next;
+                }
+                found.add(block.toArray(new Node[block.size()]));
+                block.clear();
+            }
+        }
+        return found.toArray(new Node[found.size()][]);
+    }
+
+    private int[] blocksOf(List<Node<N>> nodes) {
+        int[] result = new int[nodes.size()];
+        int i = 0;
+        for (Node<N> node : nodes)
+            result[i++] = blockOf[node.getKey()];
+        return result;
+    }
+
+    private void summarize(int b) {
+        long[] uses = new long[words], defs = new long[words];
+        Node<N>[] block = blocks[b];
+        for (int i = block.length - 1; i >= 0; i--) {
+            for (Temp t : g.def(block[i])) {
+                int k = numbers[t.getId()];
+                uses[k >> 6] &= ~(1L << k);
+                defs[k >> 6] |= 1L << k;
+            }
+            for (Temp t : g.use(block[i])) {
+                int k = numbers[t.getId()];
+                uses[k >> 6] |= 1L << k;
+            }
+        }
+        gen[b] = uses;
+        kill[b] = defs;
+    }
+
+    /**
+     * @return the blocks in postorder, any that can't be reached from the
+     * first one last.
+     */
+    private int[] postorder() {
+        int n = blocks.length;
+        int[] order = new int[n];
+        int done = 0;
+        boolean[] seen = new boolean[n];
+        int[] stack = new int[n], next = new int[n];
+        for (int root = 0; root < n; root++) {
+            if (seen[root])
+                continue;
+            int top = 0;
+            stack[top++] = root;
+            seen[root] = true;
+            while (top > 0) {
+                int b = stack[top - 1];
+                if (next[b] < succs[b].length) {
+                    int s = succs[b][next[b]++];
+                    if (!seen[s]) {
+                        seen[s] = true;
+                        stack[top++] = s;
+                    }
+                } else {
+                    order[done++] = b;
+                    top--;
+                }
+            }
+        }
+        return order;
+    }
+
+    private void solve() {
+        int n = blocks.length;
+        // A queue of the blocks whose in set may be out of date
+        int[] queue = new int[n + 1];
+        boolean[] queued = new boolean[n];
+        int head = 0, tail = 0;
+        for (int b : postorder()) {
+            queue[tail++] = b;
+            queued[b] = true;
+        }
+        long[] live = new long[words];
+        while (head != tail) {
+            int b = queue[head];
+            head = head == n ? 0 : head + 1;
+            queued[b] = false;
+            long[] o = out[b];
+            for (int s : succs[b]) {
+                long[] succIn = in[s];
+                for (int w = 0; w < words; w++)
+                    o[w] |= succIn[w];
+            }
+            long[] uses = gen[b], defs = kill[b], i = in[b];
+            boolean changed = false;
+            for (int w = 0; w < words; w++) {
+                live[w] = uses[w] | (o[w] & ~defs[w]);
+                changed |= live[w] != i[w];
+            }
+            if (!changed)
+                continue;
+            System.arraycopy(live, 0, i, 0, words);
+            for (int p : preds[b]) {
+                if (!queued[p]) {
+                    queued[p] = true;
+                    queue[tail] = p;
+                    tail = tail == n ? 0 : tail + 1;
+                }
+            }
+        }
+    }
+
+    private List<Temp> elements(long[] set) {
+        List<Temp> l = List.empty();
+        for (int w = 0; w < words; w++) {
+            for (long bits = set[w]; bits != 0; bits &= bits - 1)
+                l.add(temps[(w << 6) + Long.numberOfTrailingZeros(bits)]);
+        }
+        return l;
+    }
+
+    /**
+     * Work out the live Temps out of each node in a block, from the end back,
+     * and those live into them too if asked, which only dotString does.
+     */
+    private void expand(int b, boolean andIn) {
+        long[] live = out[b].clone();
+        Node<N>[] block = blocks[b];
+        for (int i = block.length - 1; i >= 0; i--) {
+            int key = block[i].getKey();
+            if (nodeOut[key] == null)
+                nodeOut[key] = elements(live);
+            for (Temp t : g.def(block[i])) {
+                int k = numbers[t.getId()];
+                live[k >> 6] &= ~(1L << k);
+            }
+            for (Temp t : g.use(block[i])) {
+                int k = numbers[t.getId()];
+                live[k >> 6] |= 1L << k;
+            }
+            if (andIn)
+                nodeIn[key] = elements(live);
+        }
+    }
+
+    @Override
+    public List<Temp> liveOut(Node<N> node) {
+        int key = node.getKey();
+        if (nodeOut[key] == null)
+            expand(blockOf[key], false);
+        return nodeOut[key];
+    }
+
+    private List<Temp> liveIn(Node<N> node) {
+        int key = node.getKey();
+        if (nodeIn[key] == null)
+            expand(blockOf[key], true);
+        return nodeIn[key];
+    }
+
+    private String shortList(List<Temp> l) {
+        java.util.List<String> reall = new java.util.ArrayList<String>();
+        for (Temp t : l) {
+            reall.add(t.toString());
+        }
+        Collections.sort(reall);
+        StringBuffer sb = new StringBuffer();
+        sb.append(reall);
+        return sb.toString();
+    }
+
+    private String dotLabel(Node<N> n) {
+        StringBuffer sb = new StringBuffer();
+        sb.append(shortList(liveIn(n)));
+        sb.append("\\n");
+        sb.append(n);
+        sb.append(": ");
+        sb.append(n.wrappee());
+        sb.append("\\n");
+        sb.append(shortList(liveOut(n)));
+        return sb.toString();
+    }
+
+    private double fontSize() {
+        return (Math.max(30, Math.sqrt(Math.sqrt(g.nodes().size() + 1)) * g.nodes().size() * 1.2));
+    }
+
+    private double lineWidth() {
+        return (Math.max(3.0, Math.sqrt(g.nodes().size() + 1) * 1.4));
+    }
+
+    private double arrowSize() {
+        return Math.max(2.0, Math.sqrt(Math.sqrt(g.nodes().size() + 1)));
+    }
+
+    @Override
+    public String dotString(String name) {
+        StringBuffer out = new StringBuffer();
+        out.append("digraph \"Flow graph\" {\n");
+        out.append("labelloc=\"t\";\n");
+        out.append("fontsize=" + fontSize() + ";\n");
+        out.append("label=\"" + name + "\";\n");
+
+        out.append("  graph [size=\"6.5, 9\", ratio=fill];\n");
+        for (Node<N> n : g.nodes()) {
+            out.append("  \"" + dotLabel(n) + "\" [fontsize=" + fontSize());
+            out.append(", style=\"setlinewidth(" + lineWidth() + ")\", color=" + (g.isMove(n) ? "green" : "blue"));
+            out.append("]\n");
+        }
+        for (Node<N> n : g.nodes()) {
+            for (Node<N> o : n.succ()) {
+                out.append("  \"" + dotLabel(n) + "\" -> \"" + dotLabel(o) + "\" [arrowhead = normal, arrowsize=" + arrowSize() + ", style=\"setlinewidth(" + lineWidth() + ")\"];\n");
+            }
+        }
+
+        out.append("}\n");
+        return out.toString();
+    }
+
+}
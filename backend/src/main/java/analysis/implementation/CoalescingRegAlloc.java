@@ -0,0 +1,633 @@
+package analysis.implementation;
+
+import ir.frame.Frame;
+import ir.temp.Color;
+import ir.temp.Temp;
+import ir.temp.TempMap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import util.IndentingWriter;
+import util.List;
+
+import codegen.AssemProc;
+import codegen.assem.A_MOVE;
+import codegen.assem.Instr;
+
+import analysis.FlowGraph;
+import analysis.InterferenceGraph;
+import analysis.InterferenceGraph.Move;
+import analysis.RegAlloc;
+import analysis.util.graph.BitMatrixGraph;
+
+/**
+ * Register allocation by iterated register coalescing, after George and
+ * Appel, as in chapter 11 of the book.
+ * <p>
+ * Unlike {@link SimpleRegAlloc}, it gives the two Temps of a move the same
+ * register when that can't make the graph harder to color: by the Briggs
+ * test when both are Temps, and by the George test when one is a register.
+ * Simplifying and coalescing take turns, and only when neither can go on is
+ * a move given up on (frozen), or else a node picked as a potential spill.
+ * When the nodes are colored, a node gets the color of the other end of one
+ * of its moves if it can. The moves whose Temps end up in the same register
+ * stay in the procedure body, but {@link A_MOVE} leaves them out of the
+ * assembly code.
+ * <p>
+ * Actual spills are rewritten by the {@link Rewriter} and the procedure
+ * allocated again, as {@link SpillingRegAlloc} does. The Temps made for the
+ * spill code are only ever picked as spills when there is nothing else.
+ * <p>
+ * The nodes are the keys of the interference graph's {@link BitMatrixGraph},
+ * to which the edges of coalesced nodes are added. The sets of nodes and
+ * moves in the book are the states of the nodes and moves, and the worklists
+ * are stacks which may hold nodes that have since left them; those are
+ * skipped when they come up.
+ */
+public class CoalescingRegAlloc extends RegAlloc {
+
+    // The states of nodes
+    private static final byte INITIAL = 0;
+    private static final byte PRECOLORED = 1;
+    private static final byte SIMPLIFY = 2;
+    private static final byte FREEZE = 3;
+    private static final byte SPILL = 4;
+    private static final byte SELECT = 5;
+    private static final byte COALESCED = 6;
+    private static final byte COLORED = 7;
+    private static final byte SPILLED = 8;
+
+    // The states of moves
+    private static final byte MOVE_WORKLIST = 0;
+    private static final byte MOVE_ACTIVE = 1;
+    private static final byte MOVE_COALESCED = 2;
+    private static final byte MOVE_CONSTRAINED = 3;
+    private static final byte MOVE_FROZEN = 4;
+
+    /**
+     * The degree of the registers, which is never low.
+     */
+    private static final int INFINITE = Integer.MAX_VALUE / 2;
+
+    private final AssemProc proc;
+    private final Frame frame;
+    private final Color[] colors;
+    private final int k;
+
+    /**
+     * The Temps made for spill code so far, by id.
+     */
+    private final BitSet spillTemps = new BitSet();
+
+    /**
+     * Records each round, for the trace.
+     */
+    private List<Round> rounds = List.empty();
+
+    public CoalescingRegAlloc(AssemProc proc) {
+        this.proc = proc;
+        this.frame = proc.getFrame();
+        List<Temp> registers = frame.registers();
+        colors = new Color[registers.size()];
+        int i = 0;
+        for (Temp reg : registers)
+            colors[i++] = reg.getColor();
+        k = colors.length;
+
+        while (true) {
+            Round round = new Round(rounds.size() + 1);
+            rounds.add(round);
+            if (round.spilled.isEmpty()) {
+                round.paint();
+                break;
+            }
+            if (round.onlySpillTemps())
+                throw new Error("Only the Temps of spill code are left to spill in " + proc.getLabel()
+                        + ": " + round.spilled);
+            int first = Temp.count();
+            proc.setAsm(new Rewriter(proc).rewrite(round.spilled, round.spillColors));
+            spillTemps.set(first, Temp.count());
+        }
+    }
+
+    /**
+     * A stack or list of ints.
+     */
+    private static class IntList {
+        private int[] elements = new int[4];
+        private int size;
+
+        void add(int e) {
+            if (size == elements.length)
+                elements = Arrays.copyOf(elements, size * 2);
+            elements[size++] = e;
+        }
+
+        int removeLast() {
+            return elements[--size];
+        }
+
+        int get(int i) {
+            return elements[i];
+        }
+
+        void set(int i, int e) {
+            elements[i] = e;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void truncate(int size) {
+            this.size = size;
+        }
+
+        void addAll(IntList other) {
+            for (int i = 0; i < other.size; i++)
+                add(other.elements[i]);
+        }
+    }
+
+    /**
+     * One go at coloring the procedure body as it is.
+     */
+    private class Round {
+        private final int number;
+        private final List<Instr> body;
+        private final InterferenceGraph ig;
+        private final BitMatrixGraph matrix;
+
+        private final byte[] state;
+        private final int[] degree;
+        private final int[] alias;
+        /**
+         * The index of the color of each node in {@link #colors}, or -1.
+         */
+        private final int[] color;
+        private final IntList[] moveList;
+
+        private final int[] moveDst;
+        private final int[] moveSrc;
+        private final byte[] moveState;
+
+        private final IntList simplifyWorklist = new IntList();
+        private final IntList freezeWorklist = new IntList();
+        private final IntList spillWorklist = new IntList();
+        private final IntList worklistMoves = new IntList();
+        private final IntList selectStack = new IntList();
+
+        /**
+         * For going through sets of nodes without doubles.
+         */
+        private final int[] mark;
+        private int stamp;
+
+        private int coalesced, constrained, frozen;
+
+        private final List<Temp> spilled = List.empty();
+        private final TempMap<Color> spillColors = new TempMap<Color>();
+
+        Round(int number) {
+            this.number = number;
+            body = proc.getBody();
+            ig = FlowGraph.build(body).getInterferenceGraph();
+            ig.name = proc.getLabel().toString() + " round " + number;
+            matrix = ig.matrix();
+
+            int n = matrix.size();
+            state = new byte[n];
+            degree = new int[n];
+            alias = new int[n];
+            color = new int[n];
+            moveList = new IntList[n];
+            mark = new int[n];
+            for (int i = 0; i < n; i++) {
+                alias[i] = i;
+                moveList[i] = new IntList();
+                Color precolored = temp(i).getColor();
+                if (precolored == null) {
+                    color[i] = -1;
+                    degree[i] = matrix.degree(i);
+                } else {
+                    state[i] = PRECOLORED;
+                    color[i] = indexOf(precolored);
+                    degree[i] = INFINITE;
+                }
+            }
+
+            List<Move> moves = ig.moves();
+            moveDst = new int[moves.size()];
+            moveSrc = new int[moves.size()];
+            moveState = new byte[moves.size()];
+            int m = 0;
+            for (Move move : moves) {
+                moveDst[m] = move.dst.getKey();
+                moveSrc[m] = move.src.getKey();
+                moveState[m] = MOVE_WORKLIST;
+                worklistMoves.add(m);
+                moveList[moveDst[m]].add(m);
+                if (moveSrc[m] != moveDst[m])
+                    moveList[moveSrc[m]].add(m);
+                m++;
+            }
+
+            makeWorklist();
+            while (true) {
+                if (!simplifyWorklist.isEmpty())
+                    simplify();
+                else if (!worklistMoves.isEmpty())
+                    coalesce();
+                else if (!freezeWorklist.isEmpty())
+                    freeze();
+                else if (!spillWorklist.isEmpty())
+                    selectSpill();
+                else
+                    break;
+            }
+            assignColors();
+        }
+
+        private Temp temp(int node) {
+            return ig.node(node).wrappee();
+        }
+
+        private int indexOf(Color c) {
+            for (int i = 0; i < colors.length; i++)
+                if (colors[i].equals(c))
+                    return i;
+            throw new Error("Register " + c + " isn't one of the frame's registers");
+        }
+
+        private void makeWorklist() {
+            for (int i = 0; i < state.length; i++) {
+                if (state[i] != INITIAL)
+                    continue;
+                if (degree[i] >= k)
+                    toSpill(i);
+                else if (moveRelated(i))
+                    toFreeze(i);
+                else
+                    toSimplify(i);
+            }
+        }
+
+        private void toSimplify(int node) {
+            state[node] = SIMPLIFY;
+            simplifyWorklist.add(node);
+        }
+
+        private void toFreeze(int node) {
+            state[node] = FREEZE;
+            freezeWorklist.add(node);
+        }
+
+        private void toSpill(int node) {
+            state[node] = SPILL;
+            spillWorklist.add(node);
+        }
+
+        /**
+         * Whether a node adjacent to another in the matrix still is in the
+         * graph being simplified.
+         */
+        private boolean isAdjacent(int node) {
+            return state[node] != SELECT && state[node] != COALESCED;
+        }
+
+        private boolean isMovePending(int m) {
+            return moveState[m] == MOVE_ACTIVE || moveState[m] == MOVE_WORKLIST;
+        }
+
+        private boolean moveRelated(int node) {
+            IntList moves = moveList[node];
+            for (int i = 0; i < moves.size(); i++)
+                if (isMovePending(moves.get(i)))
+                    return true;
+            return false;
+        }
+
+        private void addEdge(int u, int v) {
+            if (matrix.addEdge(u, v)) {
+                if (state[u] != PRECOLORED)
+                    degree[u]++;
+                if (state[v] != PRECOLORED)
+                    degree[v]++;
+            }
+        }
+
+        private void simplify() {
+            int node = simplifyWorklist.removeLast();
+            state[node] = SELECT;
+            selectStack.add(node);
+            int[] adjacent = matrix.adjacent(node);
+            for (int i = matrix.adjacentCount(node) - 1; i >= 0; i--)
+                if (isAdjacent(adjacent[i]))
+                    decrementDegree(adjacent[i]);
+        }
+
+        private void decrementDegree(int node) {
+            if (state[node] == PRECOLORED)
+                return;
+            int d = degree[node]--;
+            if (d == k && state[node] == SPILL) {
+                enableMoves(node);
+                int[] adjacent = matrix.adjacent(node);
+                for (int i = matrix.adjacentCount(node) - 1; i >= 0; i--)
+                    if (isAdjacent(adjacent[i]))
+                        enableMoves(adjacent[i]);
+                if (moveRelated(node))
+                    toFreeze(node);
+                else
+                    toSimplify(node);
+            }
+        }
+
+        private void enableMoves(int node) {
+            IntList moves = moveList[node];
+            for (int i = 0; i < moves.size(); i++) {
+                int m = moves.get(i);
+                if (moveState[m] == MOVE_ACTIVE) {
+                    moveState[m] = MOVE_WORKLIST;
+                    worklistMoves.add(m);
+                }
+            }
+        }
+
+        private int getAlias(int node) {
+            while (state[node] == COALESCED)
+                node = alias[node];
+            return node;
+        }
+
+        private void addWorkList(int node) {
+            if (state[node] == FREEZE && degree[node] < k && !moveRelated(node))
+                toSimplify(node);
+        }
+
+        private void coalesce() {
+            int m = worklistMoves.removeLast();
+            if (moveState[m] != MOVE_WORKLIST)
+                return;
+            int x = getAlias(moveDst[m]);
+            int y = getAlias(moveSrc[m]);
+            int u = x, v = y;
+            if (state[y] == PRECOLORED) {
+                u = y;
+                v = x;
+            }
+            if (u == v) {
+                moveState[m] = MOVE_COALESCED;
+                coalesced++;
+                addWorkList(u);
+            } else if (state[v] == PRECOLORED || matrix.hasEdge(u, v)) {
+                moveState[m] = MOVE_CONSTRAINED;
+                constrained++;
+                addWorkList(u);
+                addWorkList(v);
+            } else if (state[u] == PRECOLORED ? george(u, v) : briggs(u, v)) {
+                moveState[m] = MOVE_COALESCED;
+                coalesced++;
+                combine(u, v);
+                addWorkList(u);
+            } else {
+                moveState[m] = MOVE_ACTIVE;
+            }
+        }
+
+        /**
+         * Whether every neighbour of v is of low degree, or already
+         * adjacent to the register u.
+         */
+        private boolean george(int u, int v) {
+            int[] adjacent = matrix.adjacent(v);
+            for (int i = matrix.adjacentCount(v) - 1; i >= 0; i--) {
+                int t = adjacent[i];
+                if (isAdjacent(t) && degree[t] >= k && state[t] != PRECOLORED && !matrix.hasEdge(t, u))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Whether u and v together have fewer than k neighbours of
+         * significant degree.
+         */
+        private boolean briggs(int u, int v) {
+            stamp++;
+            int significant = countSignificant(u) + countSignificant(v);
+            return significant < k;
+        }
+
+        private int countSignificant(int node) {
+            int count = 0;
+            int[] adjacent = matrix.adjacent(node);
+            for (int i = matrix.adjacentCount(node) - 1; i >= 0; i--) {
+                int t = adjacent[i];
+                if (isAdjacent(t) && mark[t] != stamp) {
+                    mark[t] = stamp;
+                    if (degree[t] >= k)
+                        count++;
+                }
+            }
+            return count;
+        }
+
+        private void combine(int u, int v) {
+            state[v] = COALESCED;
+            alias[v] = u;
+            moveList[u].addAll(moveList[v]);
+            enableMoves(v);
+            int[] adjacent = matrix.adjacent(v);
+            for (int i = matrix.adjacentCount(v) - 1; i >= 0; i--) {
+                int t = adjacent[i];
+                if (isAdjacent(t)) {
+                    addEdge(t, u);
+                    decrementDegree(t);
+                }
+            }
+            if (degree[u] >= k && state[u] == FREEZE)
+                toSpill(u);
+        }
+
+        private void freeze() {
+            int node = freezeWorklist.removeLast();
+            if (state[node] != FREEZE)
+                return;
+            toSimplify(node);
+            freezeMoves(node);
+        }
+
+        private void freezeMoves(int u) {
+            IntList moves = moveList[u];
+            for (int i = 0; i < moves.size(); i++) {
+                int m = moves.get(i);
+                if (!isMovePending(m))
+                    continue;
+                int v = getAlias(moveSrc[m]) == u ? getAlias(moveDst[m]) : getAlias(moveSrc[m]);
+                moveState[m] = MOVE_FROZEN;
+                frozen++;
+                addWorkList(v);
+            }
+        }
+
+        /**
+         * Pick the potential spill with the lowest spill cost for its
+         * degree, other than the Temps of spill code if there is any. The
+         * nodes that have left the spill worklist are dropped from it on the
+         * way.
+         */
+        private void selectSpill() {
+            stamp++;
+            int best = -1;
+            boolean bestIsSpillTemp = false;
+            double bestCost = 0;
+            int kept = 0;
+            for (int i = 0; i < spillWorklist.size(); i++) {
+                int node = spillWorklist.get(i);
+                if (state[node] != SPILL || mark[node] == stamp)
+                    continue;
+                mark[node] = stamp;
+                spillWorklist.set(kept, node);
+                boolean isSpillTemp = spillTemps.get(temp(node).getId());
+                double cost = ig.spillCost(ig.node(node)) / degree[node];
+                if (best < 0 || (bestIsSpillTemp && !isSpillTemp)
+                        || (bestIsSpillTemp == isSpillTemp && cost < bestCost)) {
+                    best = kept;
+                    bestIsSpillTemp = isSpillTemp;
+                    bestCost = cost;
+                }
+                kept++;
+            }
+            if (best < 0) {
+                spillWorklist.truncate(0);
+                return;
+            }
+            int node = spillWorklist.get(best);
+            spillWorklist.set(best, spillWorklist.get(kept - 1));
+            spillWorklist.truncate(kept - 1);
+            toSimplify(node);
+            freezeMoves(node);
+        }
+
+        private void assignColors() {
+            boolean[] taken = new boolean[k];
+            while (!selectStack.isEmpty()) {
+                int node = selectStack.removeLast();
+                Arrays.fill(taken, false);
+                int[] adjacent = matrix.adjacent(node);
+                for (int i = matrix.adjacentCount(node) - 1; i >= 0; i--) {
+                    int t = getAlias(adjacent[i]);
+                    if (state[t] == COLORED || state[t] == PRECOLORED)
+                        taken[color[t]] = true;
+                }
+                int c = pickColor(node, taken);
+                if (c < 0) {
+                    state[node] = SPILLED;
+                    spilled.add(temp(node));
+                } else {
+                    state[node] = COLORED;
+                    color[node] = c;
+                }
+            }
+            for (int i = 0; i < state.length; i++)
+                if (state[i] == COALESCED)
+                    color[i] = color[getAlias(i)];
+            assignSpillSlots();
+        }
+
+        /**
+         * The color of the other end of one of the node's moves if that is
+         * free, or else the first free one.
+         */
+        private int pickColor(int node, boolean[] taken) {
+            IntList moves = moveList[node];
+            for (int i = 0; i < moves.size(); i++) {
+                int m = moves.get(i);
+                int other = getAlias(moveDst[m]) == node ? getAlias(moveSrc[m]) : getAlias(moveDst[m]);
+                if ((state[other] == COLORED || state[other] == PRECOLORED) && !taken[color[other]])
+                    return color[other];
+            }
+            for (int c = 0; c < k; c++)
+                if (!taken[c])
+                    return c;
+            return -1;
+        }
+
+        /**
+         * Give the spilled Temps slots in the frame, sharing a slot between
+         * Temps that don't interfere, except for the constants, which are
+         * loaded again where they are used.
+         */
+        private void assignSpillSlots() {
+            List<SpillColor> slots = List.empty();
+            for (Temp t : spilled) {
+                Color constant = ig.spillColor(ig.nodeFor(t));
+                if (constant != null) {
+                    spillColors.put(t, constant);
+                    continue;
+                }
+                int node = ig.nodeFor(t).getKey();
+                SpillColor slot = null;
+                for (SpillColor s : slots) {
+                    boolean free = true;
+                    for (Temp other : spilled) {
+                        if (spillColors.get(other) == s && matrix.hasEdge(node, ig.nodeFor(other).getKey())) {
+                            free = false;
+                            break;
+                        }
+                    }
+                    if (free) {
+                        slot = s;
+                        break;
+                    }
+                }
+                if (slot == null) {
+                    slot = new SpillColor(frame);
+                    slots.add(slot);
+                }
+                spillColors.put(t, slot);
+            }
+        }
+
+        boolean onlySpillTemps() {
+            for (Temp t : spilled)
+                if (!spillTemps.get(t.getId()))
+                    return false;
+            return true;
+        }
+
+        void paint() {
+            for (int i = 0; i < state.length; i++)
+                if (state[i] != PRECOLORED)
+                    temp(i).paint(colors[color[i]]);
+        }
+
+        void dump(IndentingWriter out) {
+            out.println(proc.getLabel() + " round " + number + ":");
+            out.indent();
+            for (Instr instr : body)
+                out.println(instr);
+            out.outdent();
+            out.println("Coalesced " + coalesced + " moves, constrained " + constrained + ", frozen " + frozen);
+            out.print("Spilled");
+            out.println(spilled);
+        }
+    }
+
+    @Override
+    public void dump(IndentingWriter out) {
+        for (Round round : rounds)
+            round.dump(out);
+    }
+
+    @Override
+    public String getTrace() {
+        return toString();
+    }
+}
@@ -0,0 +1,62 @@
+package analysis.implementation;
+
+import ir.temp.Color;
+import ir.temp.Temp;
+
+import codegen.assem.A_CONST;
+import codegen.assem.Instr;
+
+/**
+ * A Color to paint spilled Temps with that only ever hold one constant, or
+ * the address of one label. Rather than keeping such a Temp in a spill slot,
+ * the {@link Rewriter} leaves out the instructions that define it and
+ * computes it again wherever it is used, which takes an instruction but no
+ * memory, and no room in the frame.
+ */
+public class ConstantColor extends Color {
+
+    /**
+     * An instruction that loads the value.
+     */
+    private final A_CONST def;
+
+    private ConstantColor(A_CONST def) {
+        this.def = def;
+    }
+
+    /**
+     * @return a color for the Temp an instruction defines, if the instruction
+     * loads a constant or the address of a label into it and does nothing
+     * else, or null.
+     */
+    public static ConstantColor of(Instr instr) {
+        if (!(instr instanceof A_CONST))
+            return null;
+        return new ConstantColor((A_CONST) instr);
+    }
+
+    /**
+     * @return an instruction that computes the value into t. Loaded again
+     * just before an instruction, it mustn't touch the flags.
+     */
+    public Instr load(Temp t) {
+        return def.reload(t);
+    }
+
+    /**
+     * @return whether the other color loads the same value.
+     */
+    boolean sameAs(ConstantColor other) {
+        return def.sameValue(other.def);
+    }
+
+    @Override
+    public String toString() {
+        return def.operand();
+    }
+
+    @Override
+    public boolean isRegister() {
+        return false;
+    }
+}
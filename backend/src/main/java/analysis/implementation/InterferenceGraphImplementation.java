@@ -13,32 +13,38 @@ import util.IndentingWriter;
 import util.List;
 import ir.temp.Color;
 import ir.temp.Temp;
+import ir.temp.TempMap;
 import analysis.FlowGraph;
 import analysis.InterferenceGraph;
+import analysis.Liveness;
+import analysis.util.graph.BitMatrixGraph;
 import analysis.util.graph.Node;
 
 public class InterferenceGraphImplementation<N> extends InterferenceGraph {
 
     private FlowGraph<N> fg;
-    private LivenessImplementation<N> liveness;
+    private Liveness<N> liveness;
     private List<Move> moves = List.empty();
-
+    private BitMatrixGraph matrix;
+    private Node<Temp>[] byKey;
+    private SpillCosts<N> costs;
 
     public InterferenceGraphImplementation(FlowGraph<N> fg) {
         this.fg = fg;
-        this.liveness = new LivenessImplementation<N>(fg);
+        this.liveness = new BitsetLiveness<N>(fg);
 
         initNodes();
+        costs = new SpillCosts<N>(fg);
         handleEdges();
     }
 
     private void initNodes(){
         for (Node<N> node : fg.nodes()) {
             for (Temp def : fg.def(node)) {
-                Node<Temp> n = nodeFor(def);
+                nodeFor(def);
             }
             for (Temp use : fg.use(node)) {
-                Node<Temp> n = nodeFor(use);
+                nodeFor(use);
             }
 
             if(node.wrappee() instanceof A_MOVE){
@@ -54,50 +60,65 @@ public class InterferenceGraphImplementation<N> extends InterferenceGraph {
 
     }
 
-
-
+    /**
+     * Add the edges to the matrix, where it takes no time to see whether
+     * they are already there, and only then link up the nodes, each edge
+     * just once in each direction.
+     */
+    @SuppressWarnings("unchecked")
     private void handleEdges(){
+        byKey = new Node[nodecount];
+        for (Node<Temp> node : nodes())
+            byKey[node.getKey()] = node;
+        matrix = new BitMatrixGraph(nodecount);
 
         for (Node<N> node : fg.nodes()) {
             if(!(node.wrappee() instanceof A_MOVE)){
                 for (Temp def : fg.def(node)) {
-                    Node<Temp> d = nodeMap.get(def);
+                    int d = nodeMap.get(def).getKey();
 
                     for (Temp t : liveness.liveOut(node)) {
-                        Node<Temp>live = nodeMap.get(t);
-                        if(!live.equals(d)){
-                            addEdge(d, live);
-                            addEdge(live, d);
-
-                        }
+                        matrix.addEdge(d, nodeMap.get(t).getKey());
                     }
                 }
             }else{
-
-
-                Node<Temp> s = nodeMap.get(((A_MOVE) node.wrappee()).src);
-                Node<Temp> d = nodeMap.get(((A_MOVE) node.wrappee()).dst);
+                int s = nodeMap.get(((A_MOVE) node.wrappee()).src).getKey();
+                int d = nodeMap.get(((A_MOVE) node.wrappee()).dst).getKey();
 
                 for (Temp t : liveness.liveOut(node)) {
-                    Node<Temp>live = nodeMap.get(t);
-                    if(!(live.equals(d))&& !(live.equals(s))){
-                        addEdge(d, live);
-                        addEdge(live, d);
-
-                    }
-
+                    int live = nodeMap.get(t).getKey();
+                    if (live != s)
+                        matrix.addEdge(d, live);
                 }
             }
         }
-    }
-
-
-
 
+        for (int i = 0; i < nodecount; i++) {
+            int[] adjacent = matrix.adjacent(i);
+            for (int j = matrix.adjacentCount(i) - 1; j >= 0; j--)
+                addNewEdge(byKey[i], byKey[adjacent[j]]);
+        }
+    }
 
+    @Override
+    public BitMatrixGraph matrix() {
+        return matrix;
+    }
 
+    @Override
+    public Node<Temp> node(int key) {
+        return byKey[key];
+    }
 
+    @Override
+    public double spillCost(Node<Temp> node) {
+        return costs.cost(node.wrappee());
+    }
 
+    @Override
+    public Color spillColor(Node<Temp> node) {
+        return costs.constant(node.wrappee());
+    }
 
     @Override
     public List<Move> moves() {
@@ -117,7 +138,7 @@ public class InterferenceGraphImplementation<N> extends InterferenceGraph {
     }
 
 
-    private Color colorOf(Temp t, Map<Temp, Color> xcolorMap) {
+    private Color colorOf(Temp t, TempMap<Color> xcolorMap) {
         Color c = null;
         if (xcolorMap != null) c = xcolorMap.get(t);
         if (c == null)
@@ -135,7 +156,7 @@ public class InterferenceGraphImplementation<N> extends InterferenceGraph {
     }
 
     @Override
-    public String dotString(int K, Map<Temp, Color> xcolorMap) {
+    public String dotString(int K, TempMap<Color> xcolorMap) {
         Map<String, String> colorMap = new HashMap<String, String>();
         colorMap.put("%rax", "gray");
         colorMap.put("%rbx", "hotpink");
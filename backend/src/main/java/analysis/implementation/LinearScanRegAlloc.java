@@ -0,0 +1,1015 @@
+package analysis.implementation;
+
+import ir.frame.Frame;
+import ir.temp.Color;
+import ir.temp.Temp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import util.IndentingWriter;
+import util.List;
+
+import codegen.AssemProc;
+import codegen.assem.A_CONST;
+import codegen.assem.A_MOVE;
+import codegen.assem.Instr;
+
+import analysis.FlowGraph;
+import analysis.Liveness;
+import analysis.RegAlloc;
+import analysis.util.graph.Node;
+
+/**
+ * Register allocation by linear scan (Poletto and Sarkar, with the interval
+ * splitting of Wimmer and Mössenböck), which is much quicker than coloring a
+ * graph, since it builds no interference graph and goes over the body once,
+ * but makes worse code.
+ * <p>
+ * Each instruction of the procedure body, in the order it is in, has two
+ * positions: where it reads its operands and where it writes its results.
+ * The live interval of a Temp is made of the ranges of positions it is live
+ * at, with holes where it isn't, like between the uses of one value and the
+ * definition of the next. The registers have intervals of their own, of the
+ * positions they are live at, so that a Temp can't have a register that an
+ * instruction within its interval needs, like those a call overwrites.
+ * <p>
+ * The intervals are handed registers in the order they start. The intervals
+ * that have a register are kept in two lists sorted by where they end: those
+ * that are live at the position the scan is at, and those that have a hole
+ * there. A register is free for a new interval until the first position the
+ * new interval shares with the intervals of the register, found by walking
+ * their ranges side by side. An interval takes the register of the other end
+ * of a move if that is free for all of it, so that the move goes away, and
+ * otherwise the one free for longest. If that is only free for the start of
+ * the interval, the interval is split there, and the rest waits for a
+ * register of its own, unless taking a register from intervals that aren't
+ * used for longer, or are only used outside the loops the split would be in,
+ * keeps it in a register further.
+ * <p>
+ * When there is no register free, the interval, or the one with the register
+ * that is used again furthest on, is split: it keeps its register up to
+ * here, or up to a place before here in fewer loops if it isn't used in
+ * between, is in memory from there until just before it is next used, and
+ * waits for a register again from there up to its last use. An interval is only ever in
+ * memory where it isn't used, and allocation is done when the scan is.
+ * <p>
+ * The pieces of a split Temp are then given Temps of their own. A Temp that
+ * is ever loaded from memory gets a slot in the frame, shared with Temps
+ * whose intervals don't overlap, and is stored there after each instruction
+ * that defines it, so the slot holds its value wherever it is live. A piece
+ * that starts in a register is loaded from the slot, or moved from the
+ * register of the piece before it, and so is a piece that a jump comes into
+ * from where the Temp is somewhere else. Constants take no slot: they are
+ * computed again instead, and left out where they are defined in memory.
+ */
+public class LinearScanRegAlloc extends RegAlloc {
+
+    /**
+     * Stands for a position that never comes, where there is no next use, or
+     * nowhere two intervals meet.
+     */
+    private static final int NEVER = Integer.MAX_VALUE;
+
+    private final AssemProc proc;
+    private final Frame frame;
+    private final Color[] colors;
+    private final int k;
+
+    /**
+     * The body as it was before allocation, for the trace, and its
+     * instructions by number.
+     */
+    private final List<Instr> body;
+    private final Instr[] instrs;
+
+    private final SpillCosts<Instr> costs;
+
+    /**
+     * The instruction least deep in loops, the last of those, among each
+     * 2^j instructions from each instruction on, for j from 0.
+     */
+    private int[][] shallowest;
+    private int[] depth;
+
+    /**
+     * The Temps that aren't registers, by their number here, and the
+     * number of each by its id.
+     */
+    private Temp[] temps = new Temp[16];
+    private final int[] numbers;
+    private int count;
+
+    /**
+     * The interval of each Temp, which becomes the first of its pieces if it
+     * is split, and the pieces of each in order once the scan is done.
+     */
+    private Interval[] intervals = new Interval[16];
+    private Interval[][] pieces;
+
+    /**
+     * The other end of a move of each Temp, by number for a Temp, or
+     * -2 - color index for a register, or -1.
+     */
+    private int[] hint = new int[16];
+
+    /**
+     * The positions each register itself is live at, by index in
+     * {@link #colors}.
+     */
+    private final Interval[] fixed;
+
+    /**
+     * Where each Temp is kept when it isn't in a register: a
+     * {@link SpillColor} or a {@link ConstantColor}, or null if it never
+     * needs to be loaded from there.
+     */
+    private Color[] slots;
+
+    private PriorityQueue<Interval> unhandled;
+    private final ArrayList<Interval> active = new ArrayList<Interval>();
+    private final ArrayList<Interval> inactive = new ArrayList<Interval>();
+
+    /**
+     * The first position each register is taken at, and the first position
+     * it is used at, for the interval being allocated.
+     */
+    private final int[] freeUntil;
+    private final int[] nextUse;
+
+    /**
+     * The loads and moves into the pieces of split Temps, sorted by where
+     * they go: before the instruction whose reading position the key is, or
+     * after the one whose writing position it is.
+     */
+    private long[] loadKeys = new long[16];
+    private Interval[] loadInto = new Interval[16];
+    private Interval[] loadFrom = new Interval[16];
+    private int loads;
+
+    public LinearScanRegAlloc(AssemProc proc) {
+        this.proc = proc;
+        this.frame = proc.getFrame();
+        List<Temp> registers = frame.registers();
+        colors = new Color[registers.size()];
+        int i = 0;
+        for (Temp reg : registers)
+            colors[i++] = reg.getColor();
+        k = colors.length;
+        fixed = new Interval[k];
+        for (int r = 0; r < k; r++)
+            fixed[r] = new Interval(-1);
+        freeUntil = new int[k];
+        nextUse = new int[k];
+
+        body = proc.getBody();
+        FlowGraph<Instr> fg = FlowGraph.build(body);
+        Liveness<Instr> liveness = new BitsetLiveness<Instr>(fg);
+        costs = new SpillCosts<Instr>(fg);
+        numbers = new int[Temp.count()];
+        Arrays.fill(numbers, -1);
+        instrs = new Instr[fg.nodes().size()];
+        depths(fg);
+
+        int in = 0;
+        for (Node<Instr> node : fg.nodes()) {
+            instrs[in / 2] = node.wrappee();
+            int out = in + 1;
+            List<Temp> def = fg.def(node);
+            List<Temp> liveOut = liveness.liveOut(node);
+            // The positions of each Temp must come in order
+            for (Temp t : fg.use(node))
+                use(t, in);
+            for (Temp t : liveOut)
+                if (!def.contains(t))
+                    occupy(t, in);
+            for (Temp t : liveOut)
+                occupy(t, out);
+            for (Temp t : def) {
+                // A constant can be defined in memory, by leaving it out
+                if (costs.constant(t) == null)
+                    use(t, out);
+                else
+                    occupy(t, out);
+            }
+            if (fg.isMove(node)) {
+                A_MOVE move = (A_MOVE) node.wrappee();
+                link(move.dst, move.src);
+                link(move.src, move.dst);
+            }
+            in += 2;
+        }
+
+        scan();
+        rewrite(fg, liveness);
+    }
+
+    private void depths(FlowGraph<Instr> fg) {
+        LoopNesting<Instr> loops = new LoopNesting<Instr>(fg);
+        int n = instrs.length;
+        depth = new int[n];
+        int levels = 1;
+        while (1 << levels <= n)
+            levels++;
+        shallowest = new int[levels][];
+        shallowest[0] = new int[n];
+        for (Node<Instr> node : fg.nodes()) {
+            depth[node.getKey()] = loops.depth(node);
+            shallowest[0][node.getKey()] = node.getKey();
+        }
+        for (int j = 1; j < levels; j++) {
+            int half = 1 << (j - 1);
+            shallowest[j] = new int[n - (1 << j) + 1];
+            for (int i = 0; i < shallowest[j].length; i++)
+                shallowest[j][i] = shallower(shallowest[j - 1][i], shallowest[j - 1][i + half]);
+        }
+    }
+
+    private int shallower(int a, int b) {
+        return depth[b] <= depth[a] ? b : a;
+    }
+
+    /**
+     * @return the last instruction least deep in loops from one to another.
+     */
+    private int shallowest(int from, int to) {
+        int j = 31 - Integer.numberOfLeadingZeros(to - from + 1);
+        return shallower(shallowest[j][from], shallowest[j][to - (1 << j) + 1]);
+    }
+
+    private int indexOf(Color c) {
+        for (int i = 0; i < colors.length; i++)
+            if (colors[i].equals(c))
+                return i;
+        throw new Error("Register " + c + " isn't one of the frame's registers");
+    }
+
+    /**
+     * The live interval of a Temp, or a piece of one, or the positions a
+     * register is live at.
+     */
+    private static class Interval {
+        /**
+         * The number of the Temp, or -1 for a register.
+         */
+        final int temp;
+
+        /**
+         * The ranges of positions, as pairs of first and last positions, in
+         * order.
+         */
+        int[] ranges = new int[4];
+        int rangeLength;
+        /**
+         * The positions the Temp must be in a register at, in order.
+         */
+        int[] uses = new int[2];
+        int useCount;
+        /**
+         * The index of the register among the frame's registers, or -1 if
+         * the interval is in memory.
+         */
+        int register = -1;
+        /**
+         * The first range that doesn't end before where the scan is.
+         */
+        int cursor;
+        /**
+         * The next piece of the same Temp.
+         */
+        Interval next;
+        /**
+         * The Temp the piece is rewritten to, if it is in a register.
+         */
+        Temp piece;
+
+        Interval(int temp) {
+            this.temp = temp;
+        }
+
+        int start() {
+            return ranges[0];
+        }
+
+        int end() {
+            return ranges[rangeLength - 1];
+        }
+
+        void occupy(int position) {
+            int n = rangeLength;
+            if (n > 0 && ranges[n - 1] >= position - 1) {
+                ranges[n - 1] = Math.max(ranges[n - 1], position);
+                return;
+            }
+            if (n == ranges.length)
+                ranges = Arrays.copyOf(ranges, n * 2);
+            ranges[n] = position;
+            ranges[n + 1] = position;
+            rangeLength = n + 2;
+        }
+
+        void use(int position) {
+            occupy(position);
+            if (useCount > 0 && uses[useCount - 1] == position)
+                return;
+            if (useCount == uses.length)
+                uses = Arrays.copyOf(uses, useCount * 2);
+            uses[useCount++] = position;
+        }
+
+        /**
+         * @return whether the interval is live at a position, which must not
+         * be before any asked about already.
+         */
+        boolean covers(int position) {
+            while (cursor < rangeLength && ranges[cursor + 1] < position)
+                cursor += 2;
+            return cursor < rangeLength && ranges[cursor] <= position;
+        }
+
+        /**
+         * @return whether the interval is live at any position.
+         */
+        boolean contains(int position) {
+            int lo = 0, hi = rangeLength / 2;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ranges[2 * mid + 1] < position)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo < rangeLength / 2 && ranges[2 * lo] <= position;
+        }
+
+        /**
+         * @return the first position from where the scan is on at which
+         * both intervals are live, or {@link #NEVER}.
+         */
+        int intersection(Interval other) {
+            int i = cursor, j = other.cursor;
+            while (i < rangeLength && j < other.rangeLength) {
+                int from = Math.max(ranges[i], other.ranges[j]);
+                if (from <= Math.min(ranges[i + 1], other.ranges[j + 1]))
+                    return from;
+                if (ranges[i + 1] < other.ranges[j + 1])
+                    i += 2;
+                else
+                    j += 2;
+            }
+            return NEVER;
+        }
+
+        /**
+         * @return the last position before a position that the Temp must be
+         * in a register at, or -1.
+         */
+        int lastUse(int position) {
+            int lo = 0, hi = useCount;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (uses[mid] < position)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo > 0 ? uses[lo - 1] : -1;
+        }
+
+        /**
+         * @return the first position from a position on that the Temp must
+         * be in a register at, or {@link #NEVER}.
+         */
+        int nextUse(int position) {
+            int lo = 0, hi = useCount;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (uses[mid] < position)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo < useCount ? uses[lo] : NEVER;
+        }
+
+        /**
+         * Split off the positions from one after the start on, which must
+         * not be after the end.
+         *
+         * @return the new piece, which comes next.
+         */
+        Interval split(int position) {
+            int i = 0;
+            while (ranges[i + 1] < position)
+                i += 2;
+            Interval rest = new Interval(temp);
+            rest.ranges = Arrays.copyOfRange(ranges, i, rangeLength);
+            rest.rangeLength = rangeLength - i;
+            if (ranges[i] < position) {
+                rest.ranges[0] = position;
+                ranges[i + 1] = position - 1;
+                rangeLength = i + 2;
+            } else {
+                rangeLength = i;
+            }
+            int u = 0;
+            while (u < useCount && uses[u] < position)
+                u++;
+            rest.uses = Arrays.copyOfRange(uses, u, useCount);
+            rest.useCount = useCount - u;
+            useCount = u;
+            cursor = Math.min(cursor, rangeLength);
+            rest.next = next;
+            next = rest;
+            return rest;
+        }
+    }
+
+    private int number(Temp t) {
+        int id = t.getId();
+        if (numbers[id] < 0) {
+            if (count == temps.length) {
+                int length = count * 2;
+                temps = Arrays.copyOf(temps, length);
+                intervals = Arrays.copyOf(intervals, length);
+                hint = Arrays.copyOf(hint, length);
+            }
+            temps[count] = t;
+            intervals[count] = new Interval(count);
+            hint[count] = -1;
+            numbers[id] = count++;
+        }
+        return numbers[id];
+    }
+
+    private Interval interval(Temp t) {
+        Color c = t.getColor();
+        if (c != null)
+            return fixed[indexOf(c)];
+        int x = number(t);
+        return intervals[x];
+    }
+
+    private void occupy(Temp t, int position) {
+        interval(t).occupy(position);
+    }
+
+    private void use(Temp t, int position) {
+        if (t.getColor() != null)
+            occupy(t, position);
+        else
+            interval(t).use(position);
+    }
+
+    private void link(Temp t, Temp other) {
+        if (t.getColor() != null || t == other)
+            return;
+        int x = number(t);
+        if (hint[x] == -1)
+            hint[x] = other.getColor() != null ? -2 - indexOf(other.getColor()) : number(other);
+    }
+
+    /**
+     * @return the register of the other end of a move, where the piece
+     * starts, or -1.
+     */
+    private int hintRegister(Interval current) {
+        int h = hint[current.temp];
+        if (h < -1)
+            return -2 - h;
+        if (h < 0)
+            return -1;
+        int position = current.start();
+        for (Interval p = intervals[h]; p != null && p.start() <= position; p = p.next)
+            if (p.end() >= position - 1 && p.register >= 0)
+                return p.register;
+        return -1;
+    }
+
+    private void scan() {
+        unhandled = new PriorityQueue<Interval>(Math.max(1, count), (a, b) ->
+                a.start() != b.start() ? Integer.compare(a.start(), b.start()) : Integer.compare(a.temp, b.temp));
+        for (int x = 0; x < count; x++)
+            unhandled.add(intervals[x]);
+        while (!unhandled.isEmpty()) {
+            Interval current = unhandled.poll();
+            int position = current.start();
+            expire(active, position);
+            expire(inactive, position);
+            for (int i = 0; i < inactive.size(); ) {
+                Interval it = inactive.get(i);
+                if (it.covers(position)) {
+                    inactive.remove(i);
+                    insert(active, it);
+                } else {
+                    i++;
+                }
+            }
+            for (int i = 0; i < active.size(); ) {
+                Interval it = active.get(i);
+                if (!it.covers(position)) {
+                    active.remove(i);
+                    insert(inactive, it);
+                } else {
+                    i++;
+                }
+            }
+            for (Interval f : fixed)
+                f.covers(position);
+            if (!allocateFree(current))
+                allocateBlocked(current);
+            if (current.register >= 0)
+                insert(active, current);
+        }
+    }
+
+    /**
+     * Leave out the intervals that end before a position, which come first.
+     */
+    private static void expire(ArrayList<Interval> intervals, int position) {
+        int n = 0;
+        while (n < intervals.size() && intervals.get(n).end() < position)
+            n++;
+        intervals.subList(0, n).clear();
+    }
+
+    /**
+     * Add an interval where it goes by where it ends.
+     */
+    private static void insert(ArrayList<Interval> intervals, Interval it) {
+        int lo = 0, hi = intervals.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (intervals.get(mid).end() <= it.end())
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        intervals.add(lo, it);
+    }
+
+    /**
+     * Give an interval the register of the other end of a move if that is
+     * free for all of it, or else the one free for longest, splitting it
+     * where that is taken.
+     *
+     * @return whether there was a register free where it starts.
+     */
+    private boolean allocateFree(Interval current) {
+        for (int r = 0; r < k; r++)
+            freeUntil[r] = fixed[r].intersection(current);
+        for (Interval it : active)
+            freeUntil[it.register] = 0;
+        for (Interval it : inactive)
+            freeUntil[it.register] = Math.min(freeUntil[it.register], it.intersection(current));
+        int r = hintRegister(current);
+        if (r < 0 || freeUntil[r] <= current.end()) {
+            r = 0;
+            for (int s = 1; s < k; s++)
+                if (freeUntil[s] > freeUntil[r])
+                    r = s;
+        }
+        if (freeUntil[r] <= current.end()) {
+            // Keep the register until the instruction that takes it, unless
+            // another one can be had for longer by taking it from intervals
+            // that aren't used until then, or only outside the loops it
+            // would be taken in
+            int until = freeUntil[r];
+            int split = until & ~1;
+            if (split <= current.start())
+                return false;
+            furthest(current);
+            int taken = -1;
+            for (int s = 0; s < k; s++)
+                if (freeUntil[s] > until && (nextUse[s] > until
+                        || nextUse[s] > current.start() && depth[nextUse[s] / 2] < depth[until / 2])
+                        && (taken < 0 || nextUse[s] > nextUse[taken]))
+                    taken = s;
+            if (taken >= 0) {
+                take(current, taken);
+                return true;
+            }
+            unhandled.add(current.split(split));
+        }
+        current.register = r;
+        return true;
+    }
+
+    /**
+     * Find where each register is next used by the intervals that have it,
+     * and where the register itself is live, from the start of an interval.
+     *
+     * @return the register used again furthest on.
+     */
+    private int furthest(Interval current) {
+        int position = current.start();
+        for (int r = 0; r < k; r++)
+            nextUse[r] = freeUntil[r] = fixed[r].intersection(current);
+        for (Interval it : active)
+            nextUse[it.register] = Math.min(nextUse[it.register], it.nextUse(position));
+        for (Interval it : inactive)
+            if (it.intersection(current) != NEVER)
+                nextUse[it.register] = Math.min(nextUse[it.register], it.nextUse(position));
+        int r = 0;
+        for (int s = 1; s < k; s++)
+            if (nextUse[s] > nextUse[r])
+                r = s;
+        return r;
+    }
+
+    /**
+     * Make room for an interval where no register is free, in the register
+     * whose intervals are used again furthest on, unless the interval itself
+     * is used later than that, in which case it waits in memory.
+     */
+    private void allocateBlocked(Interval current) {
+        int position = current.start();
+        int r = furthest(current);
+        int firstUse = current.nextUse(position);
+        if (firstUse > nextUse[r]) {
+            if (firstUse == NEVER)
+                return;
+            if ((firstUse & ~1) <= position)
+                throw new Error("Can't split " + temps[current.temp] + " at " + firstUse + " in " + proc.getLabel());
+            unhandled.add(current.split(firstUse & ~1));
+            return;
+        }
+        if (nextUse[r] <= position)
+            throw new Error("No register for " + temps[current.temp] + " in " + proc.getLabel());
+        take(current, r);
+    }
+
+    /**
+     * Give an interval a register, up to where the register itself is live,
+     * and split the intervals that have it, keeping them in memory from here
+     * until they are used again.
+     */
+    private void take(Interval current, int r) {
+        int position = current.start();
+        current.register = r;
+        int blocked = freeUntil[r];
+        if (blocked <= current.end()) {
+            // The register itself is live later on
+            if ((blocked & ~1) > position)
+                unhandled.add(current.split(blocked & ~1));
+            else
+                spillFrom(current, blocked);
+        }
+        for (int i = 0; i < active.size(); i++) {
+            Interval it = active.get(i);
+            if (it.register == r) {
+                active.remove(i);
+                spillFrom(it, position);
+                break;
+            }
+        }
+        for (int i = inactive.size() - 1; i >= 0; i--) {
+            Interval it = inactive.get(i);
+            if (it.register == r && it.intersection(current) != NEVER) {
+                inactive.remove(i);
+                spillFrom(it, position);
+            }
+        }
+    }
+
+    /**
+     * Take the register of an interval away from a position on, where it
+     * isn't used, and keep the rest in memory until just before it is used
+     * again.
+     */
+    private void spillFrom(Interval it, int position) {
+        // Out of as many loops as it can be without going back past a use,
+        // so that it isn't loaded again each time round them
+        int from = Math.max(it.lastUse(position) + 2 & ~1, it.start() + 1 & ~1);
+        if (from < position) {
+            int i = shallowest(from / 2, (position - 1) / 2);
+            if (depth[i] < depth[position / 2])
+                position = 2 * i;
+        }
+        Interval rest = position > it.start() ? it.split(position) : it;
+        rest.register = -1;
+        int use = rest.nextUse(rest.start());
+        if (use == NEVER)
+            return;
+        if ((use & ~1) > rest.start()) {
+            rest = rest.split(use & ~1);
+        } else if (rest != it && it.end() == rest.start() - 1 && (rest.start() & 1) == 1) {
+            // It would have to be loaded in the middle of an instruction
+            throw new Error("Can't split " + temps[it.temp] + " at " + position + " in " + proc.getLabel());
+        }
+        // Once loaded, it is in a register up to its last use, and can stay
+        // in memory after that
+        int last = rest.lastUse(NEVER) + 2 & ~1;
+        if (last <= rest.end())
+            rest.split(last);
+        unhandled.add(rest);
+    }
+
+    /**
+     * @return the piece of a Temp that spans a position, or null.
+     */
+    private Interval pieceAt(int x, int position) {
+        Interval[] p = pieces[x];
+        int lo = 0, hi = p.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (p[mid].end() < position)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo < p.length && p[lo].start() <= position ? p[lo] : null;
+    }
+
+    /**
+     * @return the number of a Temp whose pieces aren't all in one
+     * register, or -1.
+     */
+    private int split(Temp t) {
+        int id = t.getId();
+        int x = id < numbers.length ? numbers[id] : -1;
+        if (x < 0)
+            return -1;
+        Interval[] p = pieces[x];
+        return p.length > 1 || p[0].register < 0 ? x : -1;
+    }
+
+    /**
+     * @return whether a Temp is in a register at the end of an instruction.
+     */
+    private boolean in(int x, int register, Node<Instr> node) {
+        Interval p = pieceAt(x, 2 * node.getKey() + 1);
+        return p != null && p.register == register;
+    }
+
+    private void load(int key, Interval into, Interval from) {
+        if (loads == loadKeys.length) {
+            int length = loads * 2;
+            loadKeys = Arrays.copyOf(loadKeys, length);
+            loadInto = Arrays.copyOf(loadInto, length);
+            loadFrom = Arrays.copyOf(loadFrom, length);
+        }
+        // Moves come before loads, which may overwrite what they move
+        loadKeys[loads] = ((long) key << 32) | (from == null ? 1L << 31 : 0) | loads;
+        loadInto[loads] = into;
+        loadFrom[loads] = from;
+        loads++;
+    }
+
+    /**
+     * Give the pieces of the split Temps Temps of their own, and load them
+     * where they start in a register, and where jumps come into them.
+     */
+    private void rewrite(FlowGraph<Instr> fg, Liveness<Instr> liveness) {
+        pieces = new Interval[count][];
+        for (int x = 0; x < count; x++) {
+            int n = 0;
+            for (Interval p = intervals[x]; p != null; p = p.next)
+                n++;
+            pieces[x] = new Interval[n];
+            n = 0;
+            for (Interval p = intervals[x]; p != null; p = p.next)
+                pieces[x][n++] = p;
+        }
+
+        boolean[] entry = new boolean[instrs.length];
+        for (Node<Instr> node : fg.nodes()) {
+            int i = node.getKey();
+            for (Node<Instr> pred : node.pred())
+                if (pred.getKey() != i - 1)
+                    entry[i] = true;
+        }
+        for (int x = 0; x < count; x++) {
+            if (split(temps[x]) < 0)
+                continue;
+            Interval before = null;
+            for (Interval p : pieces[x]) {
+                int start = p.start();
+                boolean joined = before != null && before.end() == start - 1;
+                if (p.register >= 0 && !entry[start / 2]) {
+                    if ((start & 1) == 1) {
+                        if (joined)
+                            throw new Error("Piece of " + temps[x] + " starts within an instruction");
+                    } else if (!joined) {
+                        load(start, p, null);
+                    } else if (before.register != p.register) {
+                        load(start, p, before.register >= 0 ? before : null);
+                    }
+                }
+                before = p;
+            }
+        }
+        for (Node<Instr> node : fg.nodes()) {
+            int i = node.getKey();
+            if (!entry[i])
+                continue;
+            // Load what comes in from somewhere else at the end of where it
+            // comes from, or if that goes elsewhere too, just after the label
+            for (Temp t : liveness.liveOut(node)) {
+                int x = split(t);
+                Interval p = x >= 0 ? pieceAt(x, 2 * i) : null;
+                if (p == null || p.register < 0)
+                    continue;
+                boolean afterLabel = false;
+                for (Node<Instr> pred : node.pred())
+                    if (pred.outDegree() > 1 && !in(x, p.register, pred))
+                        afterLabel = true;
+                if (afterLabel) {
+                    load(2 * i + 1, p, null);
+                    continue;
+                }
+                for (Node<Instr> pred : node.pred()) {
+                    int j = pred.getKey();
+                    if (!in(x, p.register, pred))
+                        load(instrs[j].jumps() != null ? 2 * j : 2 * j + 1, p, null);
+                }
+            }
+        }
+        loadKeys = Arrays.copyOf(loadKeys, loads);
+        Arrays.sort(loadKeys);
+
+        // A move whose register is loaded at the same time loads instead
+        boolean[] loaded = new boolean[k];
+        boolean[] reloaded = new boolean[count];
+        for (int e = 0; e < loads; ) {
+            int key = (int) (loadKeys[e] >>> 32);
+            int last = e;
+            while (last < loads && (int) (loadKeys[last] >>> 32) == key)
+                loaded[loadInto[(int) loadKeys[last++] & 0x7fffffff].register] = true;
+            for (int l = e; l < last; l++) {
+                int i = (int) loadKeys[l] & 0x7fffffff;
+                if (loadFrom[i] != null && loaded[loadFrom[i].register])
+                    loadFrom[i] = null;
+                if (loadFrom[i] == null)
+                    reloaded[loadInto[i].temp] = true;
+            }
+            for (int l = e; l < last; l++)
+                loaded[loadInto[(int) loadKeys[l] & 0x7fffffff].register] = false;
+            e = last;
+        }
+        assignSpillSlots(reloaded);
+
+        // The pieces of a Temp in the same register share a Temp, so that
+        // it is the same one on both ends of a jump that doesn't load it
+        Temp[] inRegister = new Temp[k];
+        for (int x = 0; x < count; x++) {
+            Temp t = temps[x];
+            for (Interval p : pieces[x]) {
+                if (p.register < 0)
+                    continue;
+                if (inRegister[p.register] == null) {
+                    inRegister[p.register] = t != null ? t : new Temp();
+                    inRegister[p.register].paint(colors[p.register]);
+                    t = null;
+                }
+                p.piece = inRegister[p.register];
+            }
+            Arrays.fill(inRegister, null);
+        }
+        boolean split = false;
+        for (int x = 0; x < count; x++)
+            split |= split(temps[x]) >= 0;
+        if (!split)
+            return;
+
+        List<Instr> out = List.empty();
+        int e = 0;
+        for (int i = 0; i < instrs.length; i++) {
+            e = emitLoads(out, e, 2 * i);
+            rewrite(out, i);
+            e = emitLoads(out, e, 2 * i + 1);
+        }
+        proc.setAsm(out);
+    }
+
+    /**
+     * Add the loads with a key, which come next.
+     *
+     * @return the index of the first load after them.
+     */
+    private int emitLoads(List<Instr> out, int e, int key) {
+        for (; e < loads && (int) (loadKeys[e] >>> 32) == key; e++) {
+            int i = (int) loadKeys[e] & 0x7fffffff;
+            Interval into = loadInto[i];
+            Color slot = slots[into.temp];
+            if (loadFrom[i] != null)
+                out.add(new A_MOVE("movq    `s0, `d0", into.piece, loadFrom[i].piece));
+            else if (slot instanceof ConstantColor)
+                out.add(((ConstantColor) slot).load(into.piece));
+            else
+                out.add(Rewriter.load(into.piece, (SpillColor) slot));
+        }
+        return e;
+    }
+
+    /**
+     * Add an instruction with the pieces of the split Temps it reads and
+     * writes, and store those it writes that are ever loaded again.
+     */
+    private void rewrite(List<Instr> out, int i) {
+        Instr instr = instrs[i];
+        List<Temp> oldt = List.empty();
+        List<Temp> newt = List.empty();
+        List<Instr> stores = List.empty();
+        for (Temp t : instr.def()) {
+            int x = split(t);
+            if (x < 0)
+                continue;
+            Interval p = pieceAt(x, 2 * i + 1);
+            if (p.register < 0) {
+                if (!(instr instanceof A_CONST))
+                    throw new Error(t + " is defined in memory by " + instr);
+                return;
+            }
+            oldt.add(t);
+            newt.add(p.piece);
+            Interval after = pieceAt(x, 2 * i + 2);
+            if (slots[x] instanceof SpillColor && after != null && after.contains(2 * i + 2))
+                stores.add(Rewriter.store(p.piece, (SpillColor) slots[x]));
+        }
+        for (Temp t : instr.use()) {
+            int x = split(t);
+            if (x < 0)
+                continue;
+            Interval p = pieceAt(x, 2 * i);
+            if (p == null || p.register < 0)
+                throw new Error(t + " is read in memory by " + instr);
+            if (oldt.contains(t)) {
+                if (p != pieceAt(x, 2 * i + 1))
+                    throw new Error(t + " is read and written in different pieces by " + instr);
+                continue;
+            }
+            oldt.add(t);
+            newt.add(p.piece);
+        }
+        out.add(oldt.isEmpty() ? instr : instr.clone(oldt, newt));
+        for (Instr store : stores)
+            out.add(store);
+    }
+
+    /**
+     * Give the Temps that are loaded from memory somewhere slots in the
+     * frame, in the order their intervals start, taking a slot whose last
+     * interval has ended if there is one. Constants take no slot, since they
+     * are computed again where they are loaded.
+     */
+    private void assignSpillSlots(boolean[] reloaded) {
+        slots = new Color[count];
+        int n = 0;
+        long[] order = new long[count];
+        for (int x = 0; x < count; x++) {
+            if (!reloaded[x])
+                continue;
+            ConstantColor constant = costs.constant(temps[x]);
+            if (constant != null)
+                slots[x] = constant;
+            else
+                order[n++] = ((long) pieces[x][0].start() << 32) | x;
+        }
+        order = Arrays.copyOf(order, n);
+        Arrays.sort(order);
+        SpillColor[] spills = new SpillColor[n];
+        int[] spillEnd = new int[n];
+        int spillCount = 0;
+        for (long o : order) {
+            int x = (int) o;
+            int s = 0;
+            while (s < spillCount && spillEnd[s] >= pieces[x][0].start())
+                s++;
+            if (s == spillCount)
+                spills[spillCount++] = new SpillColor(frame);
+            spillEnd[s] = pieces[x][pieces[x].length - 1].end();
+            slots[x] = spills[s];
+        }
+    }
+
+    @Override
+    public void dump(IndentingWriter out) {
+        out.println(proc.getLabel() + ":");
+        out.indent();
+        for (Instr instr : body)
+            out.println(instr);
+        out.outdent();
+        out.println("Intervals {");
+        out.indent();
+        for (int x = 0; x < count; x++) {
+            out.print(temps[x].toString());
+            for (Interval p : pieces[x]) {
+                out.print(" ");
+                for (int i = 0; i < p.rangeLength; i += 2)
+                    out.print("[" + p.ranges[i] + ", " + p.ranges[i + 1] + "]");
+                out.print(" ");
+                out.print(p.register >= 0 ? colors[p.register].toString() : slots[x] != null ? slots[x].toString() : "memory");
+            }
+            out.println();
+        }
+        out.outdent();
+        out.println("}");
+    }
+
+    @Override
+    public String getTrace() {
+        return toString();
+    }
+}
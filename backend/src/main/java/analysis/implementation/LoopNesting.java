@@ -0,0 +1,127 @@
+package analysis.implementation;
+
+import java.util.Arrays;
+
+import util.List;
+
+import analysis.util.graph.Graph;
+import analysis.util.graph.Node;
+
+/**
+ * How deep in loops each node of a flow graph is.
+ * <p>
+ * The loops are found from the back edges of a depth first search, which
+ * are the edges to a node still on the search stack. The loop of such an
+ * edge is its target, the header, and every node that reaches its source
+ * without going through the header. All the back edges to a header make one
+ * loop, and a node is as deep as the number of loops it is in.
+ * <p>
+ * The code we generate only makes loops with a single entry, for which this
+ * finds the same loops as dominators would. Any other loop is still
+ * counted, only with more nodes in it than it should have.
+ */
+public class LoopNesting<N> {
+
+    private final Node<N>[] byKey;
+
+    /**
+     * The depth of each node by its key.
+     */
+    private final int[] depth;
+
+    @SuppressWarnings("unchecked")
+    public LoopNesting(Graph<N> g) {
+        int keys = 0;
+        for (Node<N> node : g.nodes())
+            keys = Math.max(keys, node.getKey() + 1);
+        byKey = new Node[keys];
+        for (Node<N> node : g.nodes())
+            byKey[node.getKey()] = node;
+        depth = new int[keys];
+
+        boolean[][] backEdges = findBackEdges(g);
+        int[] mark = new int[keys];
+        Arrays.fill(mark, -1);
+        int[] stack = new int[keys];
+        for (int h = 0; h < keys; h++) {
+            if (backEdges[h] == null)
+                continue;
+            // Go back from the sources of the back edges, stopping at the header
+            mark[h] = h;
+            depth[h]++;
+            int top = 0;
+            for (Node<N> pred : byKey[h].pred()) {
+                int p = pred.getKey();
+                if (backEdges[h][p] && mark[p] != h) {
+                    mark[p] = h;
+                    stack[top++] = p;
+                }
+            }
+            while (top > 0) {
+                int n = stack[--top];
+                depth[n]++;
+                for (Node<N> pred : byKey[n].pred()) {
+                    int p = pred.getKey();
+                    if (mark[p] != h) {
+                        mark[p] = h;
+                        stack[top++] = p;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Search the graph depth first, without recursion, from each node not
+     * yet seen, the first one first.
+     *
+     * @return for each header by its key, whether a node goes back to it, by
+     * the key of the node; null for the other nodes.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean[][] findBackEdges(Graph<N> g) {
+        int keys = byKey.length;
+        boolean[][] backEdges = new boolean[keys][];
+        boolean[] seen = new boolean[keys], onStack = new boolean[keys];
+        int[] stack = new int[keys];
+        // The successors each node on the stack has left to go to
+        List<Node<N>>[] left = new List[keys];
+        for (Node<N> root : g.nodes()) {
+            int r = root.getKey();
+            if (seen[r])
+                continue;
+            int top = 0;
+            stack[top++] = r;
+            seen[r] = onStack[r] = true;
+            left[r] = root.succ();
+            while (top > 0) {
+                int n = stack[top - 1];
+                if (left[n].isEmpty()) {
+                    onStack[n] = false;
+                    top--;
+                    continue;
+                }
+                Node<N> succ = left[n].head();
+                left[n] = left[n].tail();
+                int s = succ.getKey();
+                if (onStack[s]) {
+                    if (backEdges[s] == null)
+                        backEdges[s] = new boolean[keys];
+                    backEdges[s][n] = true;
+                } else if (!seen[s]) {
+                    seen[s] = onStack[s] = true;
+                    left[s] = succ.succ();
+                    stack[top++] = s;
+                }
+            }
+        }
+        return backEdges;
+    }
+
+    /**
+     * @return how many loops the node is in.
+     */
+    public int depth(Node<N> node) {
+        return depth[node.getKey()];
+    }
+}
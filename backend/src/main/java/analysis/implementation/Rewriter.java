@@ -2,7 +2,8 @@ package analysis.implementation;
 
 import static util.List.list;
 
-import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
 
 import util.List;
 import codegen.AssemProc;
@@ -10,8 +11,11 @@ import codegen.assem.A_OPER;
 import codegen.assem.Instr;
 import ir.temp.Color;
 import ir.temp.Temp;
+import ir.temp.TempMap;
 import ir.frame.x86_64.InFrame;
 import ir.frame.x86_64.X86_64Frame;
+import x86_64sim.instruction.MoveM2R;
+import x86_64sim.instruction.MoveR2M;
 
 public class Rewriter {
     AssemProc proc;
@@ -32,37 +36,95 @@ public class Rewriter {
         collect = collect.reverse();
     }
 
-    public List<Instr> rewrite(List<Temp> spilled, Map<Temp, Color> map) {
+    private static boolean mentions(List<Temp> temps, Set<Temp> spilled) {
+        for (Temp t : temps)
+            if (spilled.contains(t))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return whether an instruction defines a spilled constant, which it
+     * can only do by loading the constant and nothing else.
+     */
+    private static boolean definesConstant(List<Temp> def, TempMap<Color> map) {
+        for (Temp t : def)
+            if (map.get(t) instanceof ConstantColor)
+                return true;
+        return false;
+    }
+
+    /**
+     * @return an instruction that loads t from a spill slot.
+     */
+    static Instr load(Temp t, SpillColor slot) {
+        int ofs = ((InFrame) slot.access).offset;
+        String offset = Integer.toString(ofs);
+        return new A_OPER("movq    " + ofs + "(`s0), `d0", list(t), list(X86_64Frame.FP),
+                (out, d, s) -> out.add(new MoveM2R(offset, s[0], d[0])));
+    }
+
+    /**
+     * @return an instruction that stores t in a spill slot.
+     */
+    static Instr store(Temp t, SpillColor slot) {
+        int ofs = ((InFrame) slot.access).offset;
+        String offset = Integer.toString(ofs);
+        return new A_OPER("movq    `s0, " + ofs + "(`s1)", Instr.notemps, list(t, X86_64Frame.FP),
+                (out, d, s) -> out.add(new MoveR2M(offset, s[0], s[1])));
+    }
+
+    /**
+     * Rewrite the body so that each spilled Temp is loaded from its spill
+     * slot into a new Temp just before each instruction that uses it, and
+     * stored there just after each that defines it. Spilled Temps painted
+     * with a {@link ConstantColor} are computed again before each use
+     * instead, and what defined them is left out.
+     */
+    public List<Instr> rewrite(List<Temp> spilled, TempMap<Color> map) {
         if (beVerbose) System.out.println("Rewriting: " + proc + "\nFixing: ");
         for (Temp t : spilled) {
             if (beVerbose) System.out.println(t + " -> " + map.get(t));
         }
+        Set<Temp> isSpilled = new HashSet<Temp>();
+        for (Temp t : spilled)
+            isSpilled.add(t);
         for (Instr instr : proc.getBody()) {
             List<Temp> def = instr.def();
             List<Temp> use = instr.use();
+            if (!mentions(def, isSpilled) && !mentions(use, isSpilled)) {
+                // No changes necessary, and no need to look for each spill
+                collect(instr);
+                continue;
+            }
             if (beVerbose) System.out.println("Rewriting: " + instr);
+            if (definesConstant(def, map)) {
+                // The constant is loaded again where it is used instead
+                continue;
+            }
             List<Temp> oldtemp = List.empty();
             List<Temp> newtemp = List.empty();
             List<Instr> flush = List.empty();
             for (Temp t : spilled) {
                 boolean di = def.contains(t);
                 boolean ui = use.contains(t);
-                int ofs = 0;
-                Temp base = null;
+                if (!ui && !di)
+                    continue;
                 Temp newt = null;
-                if (ui || di) {
-                    Color c = map.get(t);
-                    SpillColor sc = (SpillColor) c;
-                    ofs = ((InFrame) sc.access).offset;
-                    base = X86_64Frame.FP;
+                if (ui && map.get(t) instanceof ConstantColor) {
+                    newt = new Temp();
+                    oldtemp = List.cons(t, oldtemp);
+                    newtemp = List.cons(newt, newtemp);
+                    collect(((ConstantColor) map.get(t)).load(newt));
+                    continue;
                 }
+                SpillColor slot = (SpillColor) map.get(t);
                 if (ui) {
                     // We need to load this temp into a reg before the instruction
                     newt = new Temp();
                     oldtemp = List.cons(t, oldtemp);
                     newtemp = List.cons(newt, newtemp);
-                    Instr load = new A_OPER("movq    " + ofs + "(`s0), `d0", list(newt), list(base));
-                    collect(load);
+                    collect(load(newt, slot));
                 }
                 if (di) {
                     // We need to write this temp into the spill location after the instruction
@@ -72,8 +134,7 @@ public class Rewriter {
                         oldtemp = List.cons(t, oldtemp);
                         newtemp = List.cons(newt, newtemp);
                     }
-                    Instr store = new A_OPER("movq    `s0, " + ofs + "(`s1)", Instr.notemps, list(newt, base));
-                    flush = List.cons(store, flush);
+                    flush = List.cons(store(newt, slot), flush);
                 }
             }
             if (oldtemp.isEmpty()) {
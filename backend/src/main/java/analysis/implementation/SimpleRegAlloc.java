@@ -3,12 +3,11 @@ package analysis.implementation;
 import ir.frame.Frame;
 import ir.temp.Color;
 import ir.temp.Temp;
+import ir.temp.TempMap;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.Map;
 
 import util.IndentingWriter;
 import util.List;
@@ -19,18 +18,22 @@ import codegen.assem.Instr;
 import analysis.FlowGraph;
 import analysis.InterferenceGraph;
 import analysis.RegAlloc;
+import analysis.util.graph.BitMatrixGraph;
 import analysis.util.graph.Node;
 
 public class SimpleRegAlloc extends RegAlloc {
 
     private AssemProc proc;
-    private String trace = "";
+    /**
+     * The body as it was to allocate, for the trace.
+     */
+    private List<Instr> body;
     private FlowGraph<Instr> fg;
     private InterferenceGraph ig;
     private Frame frame;
     private static final boolean generateDotFiles = false;
 
-    private Map<Temp, Color> colorMap = new HashMap<Temp, Color>();
+    private TempMap<Color> colorMap = new TempMap<Color>();
     private List<Temp> registers;
     private List<Color> colors;
     private List<Color> spillColors = List.empty();
@@ -42,12 +45,25 @@ public class SimpleRegAlloc extends RegAlloc {
      */
     private List<Temp> spilled = List.empty();
 
+    /**
+     * The trace is only made when it is asked for, since it prints the whole
+     * procedure, flow graph and interference graph. The colors it shows are
+     * those of this allocation, even if the Temps have been painted since.
+     */
     @Override
     public void dump(IndentingWriter out) {
-        out.println(trace);
+        out.println(proc.getLabel() + ":");
+        out.indent();
+        for (Instr instr : body)
+            out.println(instr);
+        out.outdent();
+        out.println();
+        out.println("Flow graph:");
+        out.print(fg.toString());
+        out.println(ig.toString());
         out.println("Coloring {");
         out.indent();
-        for (Temp temp : colorMap.keySet()) {
+        for (Temp temp : colorMap.keys()) {
             out.print(temp);
             out.print(" : ");
             out.println(colorMap.get(temp));
@@ -55,7 +71,8 @@ public class SimpleRegAlloc extends RegAlloc {
             for (Node<Temp> interferes : ig.nodeFor(temp).succ()) {
                 out.print(interferes);
                 out.print(":");
-                out.print(getColor(interferes));
+                Color color = colorMap.get(interferes.wrappee());
+                out.print(color != null ? color : getColor(interferes));
                 out.print(" ");
             }
             out.println();
@@ -74,7 +91,7 @@ public class SimpleRegAlloc extends RegAlloc {
     public SimpleRegAlloc(AssemProc proc, int iteration) {
         this.proc = proc;
         this.iteration = iteration;
-        this.trace += proc.toString();
+        this.body = proc.getBody();
         this.frame = proc.getFrame();
         this.registers = frame.registers();
 
@@ -83,36 +100,39 @@ public class SimpleRegAlloc extends RegAlloc {
             colors.add(reg.getColor());
 
         build();
-        this.trace += "\n" + "Flow graph:\n" + fg.toString();
-        this.trace += ig.toString();
 
         List<Temp> ordering = simplify();
 
-        build(); // must rebuild the graph, since simplify should destroy it.
-        color(ordering);
+        color(ordering); // simplify put the graph back as it was
+
     }
 
     private void color(List<Temp> toColor) {
-        if (toColor.isEmpty()) return;
-        Temp t = toColor.head();
-        boolean success;
-
-        // Try to color using a register
-        success = tryToColor(t, colors);
-
-        if (!success) {
-            // Try to spill using an existing spill slot.
-            spilled.add(t);
-            success = tryToColor(t, spillColors);
-        }
+        for (Temp t : toColor) {
+            boolean success;
+
+            // Try to color using a register
+            success = tryToColor(t, colors);
+
+            if (!success) {
+                spilled.add(t);
+                // A constant is loaded again where it is used.
+                Color constant = ig.spillColor(ig.nodeFor(t));
+                if (constant != null) {
+                    setColor(t, constant);
+                    continue;
+                }
+                // Try to spill using an existing spill slot.
+                success = tryToColor(t, spillColors);
+            }
 
-        if (!success) {
-            //Create a new spill slot and use that.
-            SpillColor color = new SpillColor(frame);
-            spillColors.add(color);
-            setColor(t, color);
+            if (!success) {
+                //Create a new spill slot and use that.
+                SpillColor color = new SpillColor(frame);
+                spillColors.add(color);
+                setColor(t, color);
+            }
         }
-        color(toColor.tail());
     }
 
     private boolean tryToColor(Temp t, List<Color> colors) {
@@ -144,38 +164,52 @@ public class SimpleRegAlloc extends RegAlloc {
      * Returns a List of Temp's (a stack really) which suggest the order
      * in which nodes should be assigned colors.
      * <p>
-     * This version just returns an arbitrary order.
+     * Nodes with fewer neighbours than there are registers are taken out of
+     * the graph first, since there is always a register left for them once
+     * their neighbours are colored. When there are none, the node with the
+     * most neighbours for its spill cost is taken out, as a potential spill.
+     * All of them are put back in the end, so the graph is as it was.
      */
     private List<Temp> simplify() {
-        List<Node<Temp>> toColor = List.empty();
+        BitMatrixGraph matrix = ig.matrix();
+        int k = registers.size();
+        int n = matrix.size();
         List<Temp> ordering = List.empty();
-        List<Node<Temp>> maybeSpills = List.empty();
 
-        int simplified = 0;
+        int[] removed = new int[n];
+        int removedCount = 0;
+        int[] lowDegree = new int[n];
+        int lowCount = 0;
+        int remaining = 0;
+        for (int i = 0; i < n; i++) {
+            if (isColored(ig.node(i)))
+                continue;
+            remaining++;
+            if (matrix.degree(i) < k)
+                lowDegree[lowCount++] = i;
+        }
 
-        // Separate pre-colored nodes from other nodes & separates into two lists:
-        // List 1: nodes degree < k colors
-        // List 2: nodes degree >= k colors
-        for (Node<Temp> node : ig.nodes()) {
-            if (!isColored(node) && node.degree() < colorMap.size()) {
-                toColor.add(node);
+        int simplified = 0;
+        while (remaining > 0) {
+            int node;
+            if (lowCount > 0) {
+                node = lowDegree[--lowCount];
+                if (matrix.isRemoved(node))
+                    continue;
+            } else {
+                node = spillCandidate(matrix);
             }
-            else if (!isColored(node)) {
-                maybeSpills.add(node);
+            matrix.remove(node);
+            removed[removedCount++] = node;
+            remaining--;
+            ordering = List.cons(ig.node(node).wrappee(), ordering);
+            // Neighbours whose degree just went below k
+            int[] adjacent = matrix.adjacent(node);
+            for (int i = matrix.adjacentCount(node) - 1; i >= 0; i--) {
+                int m = adjacent[i];
+                if (!matrix.isRemoved(m) && matrix.degree(m) == k - 1 && !isColored(ig.node(m)))
+                    lowDegree[lowCount++] = m;
             }
-        }
-//        for (Node<Temp> node : ig.nodes()){
-//            if (!isColored(node)) {
-//                toColor.add(node);
-//            }
-//
-//        }
-
-        while (!toColor.isEmpty()) {
-            Node<Temp> node = toColor.head();
-            toColor = toColor.delete(node);
-            ordering = List.cons(node.wrappee(), ordering);
-            // this.ig.rmNode(node);
             if (generateDotFiles) {
                 File out = new File("simplify-" + incarnation + "-" + simplified + ".dot");
                 try {
@@ -189,27 +223,28 @@ public class SimpleRegAlloc extends RegAlloc {
             simplified++;
         }
 
-        while (!maybeSpills.isEmpty()) {
-            Node<Temp> node = maybeSpills.head();
-            maybeSpills = maybeSpills.delete(node);
-            ordering = List.cons(node.wrappee(), ordering);
-            // this.ig.rmNode(node);
-            if (generateDotFiles) {
-                File out = new File("simplify-" + incarnation + "-" + simplified + ".dot");
-                try {
-                    PrintStream outb = new PrintStream(out);
-                    outb.print(ig.dotString(registers.size(), null));
-                    outb.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            simplified++;
-        }
+        for (int i = removedCount - 1; i >= 0; i--)
+            matrix.restore(removed[i]);
         incarnation++;
         return ordering;
     }
 
+    private int spillCandidate(BitMatrixGraph matrix) {
+        int best = -1;
+        double bestRatio = 0;
+        for (int i = 0; i < matrix.size(); i++) {
+            Node<Temp> node = ig.node(i);
+            if (matrix.isRemoved(i) || isColored(node))
+                continue;
+            double ratio = matrix.degree(i) / ig.spillCost(node);
+            if (best < 0 || ratio > bestRatio) {
+                best = i;
+                bestRatio = ratio;
+            }
+        }
+        return best;
+    }
+
     private boolean isColored(Node<Temp> node) {
         return getColor(node) != null;
     }
@@ -239,7 +274,7 @@ public class SimpleRegAlloc extends RegAlloc {
         return spilled;
     }
 
-    public Map<Temp, Color> getColorMap() {
+    public TempMap<Color> getColorMap() {
         return colorMap;
     }
 
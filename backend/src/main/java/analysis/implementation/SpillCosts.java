@@ -0,0 +1,83 @@
+package analysis.implementation;
+
+import ir.temp.Temp;
+
+import codegen.assem.Instr;
+
+import analysis.FlowGraph;
+import analysis.util.graph.Node;
+
+/**
+ * What it costs to spill each Temp of a flow graph: the number of
+ * instructions that define or use it, each weighted by how deep in loops it
+ * is, taking an instruction in a loop to run {@link #LOOP_WEIGHT} times for
+ * each time the loop is entered.
+ * <p>
+ * A Temp whose definitions all load the same constant or label address is
+ * computed again where it is used, rather than spilled to the frame, which
+ * does away with the definitions. It costs as much as any other Temp all the
+ * same: most constants are used right where they are loaded, and spilling
+ * those doesn't make room for anything.
+ */
+public class SpillCosts<N> {
+
+    /**
+     * What each loop an instruction is in multiplies its weight by.
+     */
+    public static final double LOOP_WEIGHT = 3;
+
+    /**
+     * The weighted defs and uses of each Temp by its id.
+     */
+    private final double[] occurrences;
+    /**
+     * The constant each Temp holds by its id, if it is one.
+     */
+    private final ConstantColor[] constants;
+
+    public SpillCosts(FlowGraph<N> fg) {
+        LoopNesting<N> loops = new LoopNesting<N>(fg);
+        int ids = 0;
+        for (Node<N> node : fg.nodes()) {
+            for (Temp t : fg.def(node))
+                ids = Math.max(ids, t.getId() + 1);
+            for (Temp t : fg.use(node))
+                ids = Math.max(ids, t.getId() + 1);
+        }
+        occurrences = new double[ids];
+        constants = new ConstantColor[ids];
+        boolean[] notConstant = new boolean[ids];
+        for (Node<N> node : fg.nodes()) {
+            double weight = Math.pow(LOOP_WEIGHT, loops.depth(node));
+            ConstantColor constant = null;
+            if (node.wrappee() instanceof Instr)
+                constant = ConstantColor.of((Instr) node.wrappee());
+            for (Temp t : fg.def(node)) {
+                int id = t.getId();
+                occurrences[id] += weight;
+                if (notConstant[id])
+                    continue;
+                if (constant == null || (constants[id] != null && !constants[id].sameAs(constant))) {
+                    notConstant[id] = true;
+                    constants[id] = null;
+                } else {
+                    constants[id] = constant;
+                }
+            }
+            for (Temp t : fg.use(node))
+                occurrences[t.getId()] += weight;
+        }
+    }
+
+    public double cost(Temp t) {
+        return occurrences[t.getId()];
+    }
+
+    /**
+     * @return the color to paint the Temp with if it is spilled and is a
+     * constant, or null.
+     */
+    public ConstantColor constant(Temp t) {
+        return constants[t.getId()];
+    }
+}
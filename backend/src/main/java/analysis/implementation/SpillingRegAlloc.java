@@ -2,10 +2,10 @@ package analysis.implementation;
 
 import ir.temp.Color;
 import ir.temp.Temp;
-
-import java.util.Map.Entry;
+import ir.temp.TempMap;
 
 import util.IndentingWriter;
+import util.List;
 
 import codegen.AssemProc;
 
@@ -17,8 +17,9 @@ import analysis.RegAlloc;
  * deals with spilled temps by rewriting the procedure body and trying again.
  */
 public class SpillingRegAlloc extends RegAlloc {
-    // Records the result of each iteration: for debugging.
-    private String trace = "";
+    // Records the result of each iteration: for debugging. Their traces
+    // are only printed when asked for.
+    private List<SimpleRegAlloc> iterations = List.empty();
 
     public SpillingRegAlloc(AssemProc proc) {
         SimpleRegAlloc simple = new SimpleRegAlloc(proc, 1);
@@ -28,11 +29,11 @@ public class SpillingRegAlloc extends RegAlloc {
         while (!simple.getSpilled().isEmpty()) {
             // If we have more spills this time than last time, we aren't making good progress
             if (simple.getSpilled().size() >= lastSpilled && sameSize > 5) {
-                System.out.println(trace);
+                System.out.println(getTrace());
                 System.out.println(simple);
                 throw new Error("No fewer spilled registers this time (" + simple.getSpilled().size() + ") than last time (" + lastSpilled + ")");
             }
-            trace += "Register allocation iteration " + iteration + "\n" + simple.toString();
+            iterations.add(simple);
             iteration++;
             proc.setAsm(new Rewriter(proc).rewrite(simple.getSpilled(), simple.getColorMap()));
             simple = new SimpleRegAlloc(proc, iteration);
@@ -40,18 +41,23 @@ public class SpillingRegAlloc extends RegAlloc {
 
         // The last allocation should be good, with no spills!
         // Paint the Temps in permanent paint now.
-        for (Entry<Temp, Color> entry : simple.getColorMap().entrySet()) {
-            entry.getKey().paint(entry.getValue());
+        TempMap<Color> colors = simple.getColorMap();
+        for (Temp t : colors.keys()) {
+            t.paint(colors.get(t));
         }
-        trace += "Register allocation iteration " + iteration + "\n" + simple.toString();
+        iterations.add(simple);
     }
 
     @Override
     public void dump(IndentingWriter out) {
-        out.println(trace);
+        int iteration = 1;
+        for (SimpleRegAlloc simple : iterations) {
+            out.println("Register allocation iteration " + iteration++);
+            out.print(simple.toString());
+        }
     }
 
     public String getTrace() {
-        return trace;
+        return toString();
     }
 }
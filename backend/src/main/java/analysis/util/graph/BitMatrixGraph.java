@@ -0,0 +1,151 @@
+package analysis.util.graph;
+
+import java.util.Arrays;
+
+/**
+ * An undirected graph on the nodes 0 to size-1, made for interference graphs,
+ * which are built once, asked a great many times whether two nodes are
+ * adjacent, and then taken apart node by node while simplifying.
+ * <p>
+ * The edges are kept twice: in a triangular bit matrix, so that testing for
+ * an edge takes constant time, and in a vector of adjacent nodes for each
+ * node, to go through them in time proportional to the degree.
+ * <p>
+ * Nodes can be removed and restored again without changing either: a
+ * removed node only stops counting towards the degree of the nodes it is
+ * adjacent to, which is kept up to date as nodes come and go.
+ */
+public class BitMatrixGraph {
+
+    private static final int[] NONE = new int[0];
+
+    private final int size;
+    private final long[] bits;
+
+    private final int[][] adjacent;
+    private final int[] adjacentCount;
+
+    /**
+     * The number of adjacent nodes that aren't removed, for the nodes that
+     * aren't removed.
+     */
+    private final int[] degree;
+    private final boolean[] removed;
+
+    public BitMatrixGraph(int size) {
+        this.size = size;
+        long pairs = (long) size * (size - 1) / 2;
+        if (pairs > (long) Integer.MAX_VALUE * 64)
+            throw new Error("Too many nodes for a bit matrix: " + size);
+        bits = new long[(int) ((pairs + 63) >> 6)];
+        adjacent = new int[size][];
+        adjacentCount = new int[size];
+        degree = new int[size];
+        removed = new boolean[size];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static long bit(int a, int b) {
+        if (a < b)
+            return (long) b * (b - 1) / 2 + a;
+        return (long) a * (a - 1) / 2 + b;
+    }
+
+    public boolean hasEdge(int a, int b) {
+        if (a == b)
+            return false;
+        long i = bit(a, b);
+        return (bits[(int) (i >> 6)] & (1L << i)) != 0;
+    }
+
+    /**
+     * Add an edge, unless it is already there or would go from a node to
+     * itself. Neither node may be removed.
+     *
+     * @return whether the edge was added.
+     */
+    public boolean addEdge(int a, int b) {
+        if (a == b)
+            return false;
+        long i = bit(a, b);
+        int word = (int) (i >> 6);
+        long mask = 1L << i;
+        if ((bits[word] & mask) != 0)
+            return false;
+        if (removed[a] || removed[b])
+            throw new Error("BitMatrixGraph.addEdge to a removed node");
+        bits[word] |= mask;
+        append(a, b);
+        append(b, a);
+        return true;
+    }
+
+    private void append(int a, int b) {
+        int[] adj = adjacent[a];
+        int n = adjacentCount[a];
+        if (adj == null)
+            adj = adjacent[a] = new int[4];
+        else if (n == adj.length)
+            adj = adjacent[a] = Arrays.copyOf(adj, n * 2);
+        adj[n] = b;
+        adjacentCount[a] = n + 1;
+        degree[a]++;
+    }
+
+    /**
+     * The nodes adjacent to a node, removed or not, are the first
+     * {@link #adjacentCount(int)} elements of this array, which must not be
+     * changed.
+     */
+    public int[] adjacent(int node) {
+        int[] adj = adjacent[node];
+        return adj == null ? NONE : adj;
+    }
+
+    public int adjacentCount(int node) {
+        return adjacentCount[node];
+    }
+
+    /**
+     * @return the number of adjacent nodes that aren't removed.
+     */
+    public int degree(int node) {
+        return degree[node];
+    }
+
+    public boolean isRemoved(int node) {
+        return removed[node];
+    }
+
+    public void remove(int node) {
+        if (removed[node])
+            throw new Error("BitMatrixGraph.remove of a removed node");
+        removed[node] = true;
+        int[] adj = adjacent[node];
+        for (int i = adjacentCount[node] - 1; i >= 0; i--)
+            if (!removed[adj[i]])
+                degree[adj[i]]--;
+    }
+
+    /**
+     * Put a removed node back, adjacent again to the nodes it was adjacent
+     * to that aren't removed.
+     */
+    public void restore(int node) {
+        if (!removed[node])
+            throw new Error("BitMatrixGraph.restore of a node that isn't removed");
+        removed[node] = false;
+        int[] adj = adjacent[node];
+        int d = 0;
+        for (int i = adjacentCount[node] - 1; i >= 0; i--) {
+            if (!removed[adj[i]]) {
+                degree[adj[i]]++;
+                d++;
+            }
+        }
+        degree[node] = d;
+    }
+}
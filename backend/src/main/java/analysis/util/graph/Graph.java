@@ -92,6 +92,17 @@ public class Graph<N> extends DefaultIndentable {
         from.succs = cons(to, from.succs);
     }
 
+    /**
+     * Add an edge that the caller knows isn't there yet, without looking
+     * through the successors of from for it.
+     */
+    protected void addNewEdge(Node<N> from, Node<N> to) {
+        check(from);
+        check(to);
+        to.preds = cons(from, to.preds);
+        from.succs = cons(to, from.succs);
+    }
+
     public void rmEdge(Node<N> from, Node<N> to) {
         to.preds = to.preds.delete(from);
         from.succs = from.succs.delete(to);
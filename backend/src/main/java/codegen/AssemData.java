@@ -10,6 +10,7 @@ import codegen.x86_64.X86_64Muncher;
 import translate.DataFragment;
 import util.IndentingWriter;
 import util.List;
+import x86_64sim.ProgramBuilder;
 
 public class AssemData extends AssemFragment {
 
@@ -31,6 +32,14 @@ public class AssemData extends AssemFragment {
         out.outdent();
     }
 
+    @Override
+    public void lower(ProgramBuilder out) {
+        out.data();
+        for (Instr instr : getBody()) {
+            instr.lower(out);
+        }
+    }
+
     public Label getLabel() {
         return dataIR.getBody().getLabel();
     }
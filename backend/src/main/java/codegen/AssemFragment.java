@@ -1,7 +1,15 @@
 package codegen;
 
 import util.DefaultIndentable;
+import x86_64sim.ProgramBuilder;
 
 public abstract class AssemFragment extends DefaultIndentable {
 
+    /**
+     * Hand this fragment to the simulator. This produces the same program as
+     * dumping the fragment and parsing it back, but without the round trip
+     * through text.
+     */
+    public abstract void lower(ProgramBuilder out);
+
 }
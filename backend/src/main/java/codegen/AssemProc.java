@@ -8,14 +8,24 @@ import static util.List.list;
 import static util.List.cons;
 
 import util.Utils;
+import x86_64sim.ProgramBuilder;
+import x86_64sim.instruction.AddI2R;
+import x86_64sim.instruction.Leave;
+import x86_64sim.instruction.MoveR2R;
+import x86_64sim.instruction.Push;
+import x86_64sim.instruction.Ret;
+import x86_64sim.instruction.SubI2R;
+
 import ir.frame.Frame;
 import ir.frame.x86_64.X86_64Frame;
+import ir.temp.CompilationContext;
 import ir.temp.Label;
 import ir.temp.Temp;
 import ir.tree.IRStm;
 import codegen.assem.A_LABEL;
 import codegen.assem.A_OPER;
 import codegen.assem.Instr;
+import codegen.assem.Lowering;
 import codegen.muncher.Muncher;
 import codegen.x86_64.X86_64Muncher;
 
@@ -36,9 +46,16 @@ public class AssemProc extends AssemFragment {
     private ProcFragment procIR;
     private List<Instr> asmBody;
 
+    /**
+     * The context of the IR, which the Temps of the assembly code are made
+     * in too.
+     */
+    private final CompilationContext context;
+
     public AssemProc(ProcFragment procIR) {
         this.frame = procIR.getFrame();
         this.procIR = procIR;
+        this.context = procIR.getContext();
         rewrite(); // Actually not "re" writing, but writing for the first time :-)
     }
 
@@ -63,6 +80,28 @@ public class AssemProc extends AssemFragment {
         out.outdent();
     }
 
+    @Override
+    public void lower(ProgramBuilder out) {
+        X86_64Frame frame = (X86_64Frame) this.frame;
+        out.text();
+        out.label(getLabel().toString());
+        // The same entry and exit sequences as the frame prints
+        if (frame.savesFramePointer()) {
+            out.add(new Push("%rbp"));
+            out.add(new MoveR2R("%rsp", "%rbp"));
+        }
+        if (frame.stackAdjustment() > 0)
+            out.add(new SubI2R(Integer.toString(frame.stackAdjustment()), "%rsp"));
+        for (Instr instr : getBody()) {
+            instr.lower(out);
+        }
+        if (frame.savesFramePointer())
+            out.add(new Leave());
+        else if (frame.stackAdjustment() > 0)
+            out.add(new AddI2R(Integer.toString(frame.stackAdjustment()), "%rsp"));
+        out.add(new Ret());
+    }
+
     public void remove(Instr instr) {
         // Should check that this doesn't break things horribly
         asmBody = asmBody.delete(instr);
@@ -88,6 +127,10 @@ public class AssemProc extends AssemFragment {
         return frame;
     }
 
+    public CompilationContext getContext() {
+        return context;
+    }
+
     /**
      * After doing register allocation with spilled registers. You can use
      * this method to rewrite the instructions in the body from the IR.
@@ -103,7 +146,7 @@ public class AssemProc extends AssemFragment {
 
     public List<Instr> procEntryExit2(List<Instr> asmBody) {
         List<Temp> returnSink = cons(X86_64Frame.RV, X86_64Frame.special.append(X86_64Frame.calleeSave));
-        asmBody.add(new A_OPER("# return sink", list(new Temp[0]), returnSink));
+        asmBody.add(new A_OPER("# return sink", list(new Temp[0]), returnSink, Lowering.NOTHING));
         return asmBody;
     }
 
@@ -113,11 +156,13 @@ public class AssemProc extends AssemFragment {
 
     public void rewrite() {
         List<IRStm> body = procIR.getTraceScheduledBody();
-        Muncher m = newMuncher();
-        for (IRStm stm : body) {
-            m.munch(stm);
-        }
-        this.asmBody = procEntryExit2(m.getInstructions());
+        context.run(() -> {
+            Muncher m = newMuncher();
+            for (IRStm stm : body) {
+                m.munch(stm);
+            }
+            this.asmBody = procEntryExit2(m.getInstructions());
+        });
     }
 
     public void setAsm(List<Instr> body) {
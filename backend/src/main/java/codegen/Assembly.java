@@ -6,6 +6,8 @@ import util.DefaultIndentable;
 import util.IndentingWriter;
 import util.List;
 import util.Utils;
+import x86_64sim.Program;
+import x86_64sim.ProgramBuilder;
 
 
 /**
@@ -29,6 +31,18 @@ public class Assembly extends DefaultIndentable implements Iterable<AssemFragmen
         out.outdent();
     }
 
+    /**
+     * @return a simulator program for this assembly code, built directly from
+     * the instructions rather than by printing and parsing them.
+     */
+    public Program toProgram() {
+        ProgramBuilder out = new ProgramBuilder();
+        for (AssemFragment f : fragments) {
+            f.lower(out);
+        }
+        return out.build();
+    }
+
     public void add(AssemFragment code) {
         fragments.add(code);
     }
@@ -24,14 +24,16 @@ public class CodeGenerator {
      */
     public Assembly apply(Fragments ir_fragments) {
         Assembly assembly = new Assembly();
-        for (Fragment fragment : ir_fragments) {
-            if (fragment instanceof ProcFragment) {
-                assembly.add(apply((ProcFragment) fragment));
-            } else if (fragment instanceof DataFragment) {
-                assembly.add(apply((DataFragment) fragment));
-            } else
-                throw new Error("Code generator doesn't know about fragments of this type");
-        }
+        ir_fragments.getContext().run(() -> {
+            for (Fragment fragment : ir_fragments) {
+                if (fragment instanceof ProcFragment) {
+                    assembly.add(apply((ProcFragment) fragment));
+                } else if (fragment instanceof DataFragment) {
+                    assembly.add(apply((DataFragment) fragment));
+                } else
+                    throw new Error("Code generator doesn't know about fragments of this type");
+            }
+        });
         return assembly;
     }
 
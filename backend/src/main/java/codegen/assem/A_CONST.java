@@ -0,0 +1,91 @@
+package codegen.assem;
+
+import static util.List.list;
+
+import util.List;
+import x86_64sim.instruction.Lea;
+import x86_64sim.instruction.MoveI2R;
+import x86_64sim.instruction.XorR2R;
+import ir.temp.Label;
+import ir.temp.Temp;
+
+/**
+ * Loads a constant, or the address of a label, into a Temp and does nothing
+ * else, so that the value can be loaded again anywhere else.
+ */
+public class A_CONST extends A_OPER {
+
+    /**
+     * The constant, if there is no label.
+     */
+    private final int value;
+    /**
+     * The label whose address is loaded, or null.
+     */
+    private final Label label;
+    /**
+     * Whether zero is loaded with xorq, which is shorter than movq but sets
+     * the flags.
+     */
+    private final boolean xor;
+
+    private A_CONST(List<Temp> d, int value, Label label, boolean xor) {
+        super(label != null ? "leaq    " + label + "(%rip), `d0"
+                        : xor ? "xorq    `d0, `d0"
+                        : "movq    $" + value + ", `d0",
+                d, Instr.notemps, lowering(value, label, xor));
+        this.value = value;
+        this.label = label;
+        this.xor = xor;
+    }
+
+    private static Lowering lowering(int value, Label label, boolean xor) {
+        if (label != null)
+            return (out, d, s) -> out.add(new Lea(label.toString(), d[0]));
+        if (xor)
+            return (out, d, s) -> out.add(new XorR2R(d[0], d[0]));
+        return (out, d, s) -> out.add(new MoveI2R(Integer.toString(value), d[0]));
+    }
+
+    public A_CONST(Temp d, int value) {
+        this(list(d), value, null, false);
+    }
+
+    public A_CONST(Temp d, Label label) {
+        this(list(d), 0, label, false);
+    }
+
+    /**
+     * @return an instruction that loads zero into d with xorq.
+     */
+    public static A_CONST zero(Temp d) {
+        return new A_CONST(list(d), 0, null, true);
+    }
+
+    /**
+     * @return an instruction that loads the same value into d and leaves the
+     * flags alone, so it can go anywhere.
+     */
+    public A_CONST reload(Temp d) {
+        return new A_CONST(list(d), value, label, false);
+    }
+
+    /**
+     * @return whether the other instruction loads the same value.
+     */
+    public boolean sameValue(A_CONST other) {
+        return value == other.value && (label == null ? other.label == null : label.equals(other.label));
+    }
+
+    /**
+     * @return the value as an operand, the way it is printed.
+     */
+    public String operand() {
+        return label != null ? label + "(%rip)" : "$" + value;
+    }
+
+    @Override
+    public Instr clone(List<Temp> oldt, List<Temp> newt) {
+        return new A_CONST(Instr.translate(dst, oldt, newt), value, label, xor);
+    }
+}
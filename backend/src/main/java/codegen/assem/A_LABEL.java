@@ -5,6 +5,7 @@ import util.List;
 import ir.temp.Label;
 import ir.temp.Temp;
 import ir.tree.LABEL;
+import x86_64sim.ProgramBuilder;
 
 /**
  * Represents an assembly language LABEL.
@@ -50,6 +51,11 @@ public class A_LABEL extends Instr {
         out.indent();
     }
 
+    @Override
+    public void lower(ProgramBuilder out) {
+        out.label(label.toString());
+    }
+
     @Override
     public Instr clone(List<Temp> oldt, List<Temp> newt) {
         return this;
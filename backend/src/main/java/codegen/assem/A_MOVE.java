@@ -4,6 +4,8 @@ import static util.List.list;
 
 import util.IndentingWriter;
 import util.List;
+import x86_64sim.ProgramBuilder;
+import x86_64sim.instruction.MoveR2R;
 import ir.temp.Label;
 import ir.temp.Temp;
 
@@ -37,6 +39,13 @@ public class A_MOVE extends Instr {
         super.dump(out);
     }
 
+    @Override
+    public void lower(ProgramBuilder out) {
+        if (dst.getColor() != null && dst.getColor().equals(src.getColor()))
+            return; // dump comments out this redundant move
+        out.add(new MoveR2R(register(src), register(dst)));
+    }
+
     @Override
     public Instr clone(List<Temp> oldtemps, List<Temp> newtemps) {
         Temp news = src;
@@ -1,6 +1,7 @@
 package codegen.assem;
 
 import util.List;
+import x86_64sim.ProgramBuilder;
 import ir.temp.Label;
 import ir.temp.Temp;
 
@@ -13,16 +14,30 @@ public class A_OPER extends Instr {
     public List<Temp> dst;
     public List<Temp> src;
     public List<Label> jump;
+    /**
+     * How to add the instruction to a simulator program, or null if it can
+     * only be printed.
+     */
+    private final Lowering lowering;
 
-    public A_OPER(String a, List<Temp> d, List<Temp> s, List<Label> j) {
+    public A_OPER(String a, List<Temp> d, List<Temp> s, List<Label> j, Lowering lowering) {
         super(a);
         dst = d;
         src = s;
         jump = j;
+        this.lowering = lowering;
+    }
+
+    public A_OPER(String a, List<Temp> d, List<Temp> s, Lowering lowering) {
+        this(a, d, s, null, lowering);
+    }
+
+    public A_OPER(String a, List<Temp> d, List<Temp> s, List<Label> j) {
+        this(a, d, s, j, null);
     }
 
     public A_OPER(String a, List<Temp> d, List<Temp> s) {
-        this(a, d, s, null);
+        this(a, d, s, null, null);
     }
 
     @Override
@@ -40,10 +55,17 @@ public class A_OPER extends Instr {
         return jump;
     }
 
+    @Override
+    public void lower(ProgramBuilder out) {
+        if (lowering == null)
+            throw new Error("Can't build simulator instructions from: " + format());
+        lowering.lower(out, registers(dst), registers(src));
+    }
+
     @Override
     public Instr clone(List<Temp> oldt, List<Temp> newt) {
         List<Temp> newdst = Instr.translate(dst, oldt, newt);
         List<Temp> newsrc = Instr.translate(src, oldt, newt);
-        return new A_OPER(assem, newdst, newsrc, jump);
+        return new A_OPER(assem, newdst, newsrc, jump, lowering);
     }
 }
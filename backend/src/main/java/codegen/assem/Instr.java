@@ -3,6 +3,7 @@ package codegen.assem;
 import util.DefaultIndentable;
 import util.IndentingWriter;
 import util.List;
+import x86_64sim.ProgramBuilder;
 import ir.temp.Color;
 import ir.temp.Label;
 import ir.temp.Temp;
@@ -110,6 +111,29 @@ public abstract class Instr extends DefaultIndentable {
         out.print(this.format());
     }
 
+    /**
+     * Add this instruction to a simulator program.
+     */
+    public abstract void lower(ProgramBuilder out);
+
+    /**
+     * @return the name of the register a Temp is in, which is the Temp's own
+     * name until registers are allocated; the simulator has as many
+     * registers as it is asked for.
+     */
+    protected static String register(Temp temp) {
+        Color color = temp.getColor();
+        return color != null ? color.toString() : temp.getName();
+    }
+
+    protected static String[] registers(List<Temp> temps) {
+        String[] result = new String[temps.size()];
+        int i = 0;
+        for (Temp t : temps)
+            result[i++] = register(t);
+        return result;
+    }
+
     abstract public Instr clone(List<Temp> oldt, List<Temp> newt);
 
     public static List<Temp> translate(List<Temp> t, List<Temp> oldtemps, List<Temp> newtemps) {
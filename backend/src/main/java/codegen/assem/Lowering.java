@@ -0,0 +1,21 @@
+package codegen.assem;
+
+import x86_64sim.ProgramBuilder;
+
+/**
+ * How an {@link A_OPER} is added to a simulator program: the simulator
+ * instructions it stands for, made from the registers its Temps are in.
+ */
+public interface Lowering {
+
+    /**
+     * @param d the registers of the instruction's `d operands, in order.
+     * @param s the registers of its `s operands, in order.
+     */
+    void lower(ProgramBuilder out, String[] d, String[] s);
+
+    /**
+     * For instructions that only show up in the printed assembly.
+     */
+    Lowering NOTHING = (out, d, s) -> { };
+}
@@ -31,6 +31,7 @@ import ir.tree.IR;
 import ir.tree.IRExp;
 import ir.tree.IRStm;
 import ir.tree.CJUMP.RelOp;
+import codegen.assem.A_CONST;
 import codegen.assem.A_LABEL;
 import codegen.assem.A_MOVE;
 import codegen.assem.A_OPER;
@@ -41,6 +42,24 @@ import codegen.muncher.MuncherRules;
 import codegen.patterns.Matched;
 import codegen.patterns.Pat;
 import codegen.patterns.Wildcard;
+import x86_64sim.instruction.AddI2R;
+import x86_64sim.instruction.AddR2R;
+import x86_64sim.instruction.CJmp;
+import x86_64sim.instruction.CMovR2R;
+import x86_64sim.instruction.CQTO;
+import x86_64sim.instruction.Call;
+import x86_64sim.instruction.CmpI2R;
+import x86_64sim.instruction.CmpM2R;
+import x86_64sim.instruction.CmpR2R;
+import x86_64sim.instruction.DivR;
+import x86_64sim.instruction.Inc;
+import x86_64sim.instruction.Jmp;
+import x86_64sim.instruction.MoveI2M;
+import x86_64sim.instruction.MoveM2R;
+import x86_64sim.instruction.MoveR2M;
+import x86_64sim.instruction.MoveR2R;
+import x86_64sim.instruction.MulR2R;
+import x86_64sim.instruction.SubR2R;
 
 /**
  * This Muncher implements the munching rules for a subset
@@ -287,7 +306,8 @@ public class X86_64Muncher extends Muncher {
                 left = m.munch(children.get(_e_));
                 int i = children.get(_i_);
                 // move constant into memory at src0
-                m.emit(new A_OPER("movq    $" + i + ", (`s0)" , noTemps, list(left)));
+                m.emit(new A_OPER("movq    $" + i + ", (`s0)" , noTemps, list(left),
+                        (out, d, s) -> out.add(new MoveI2M("0", Integer.toString(i), s[0]))));
                 return null;
             }
         });
@@ -341,7 +361,7 @@ public class X86_64Muncher extends Muncher {
                 int i = children.get(_i_);
 //                m.emit(A_MOV(right, i));
 //                m.emit(A_CMP(m.munch(children.get(_l_)), left));
-                m.emit(new A_OPER("cmpq      $" + i + ", `s0", noTemps, list(left)));
+                m.emit(A_CMP(left, i));
                 m.emit(A_CMOV(children.get(_relOp_), children.get(_t_), m.munch(children.get(_e_))));
                 return null;
             }
@@ -353,7 +373,7 @@ public class X86_64Muncher extends Muncher {
             protected Void trigger(Muncher m, Matched children) {
                 Temp left;
                 left = m.munch(children.get(_l_));
-                m.emit(new A_OPER("cmpq     (`s1), `s0", noTemps, list(left,m.munch(children.get(_r_)))));
+                m.emit(A_CMP_MEM(left, m.munch(children.get(_r_))));
                 m.emit(A_CMOV(children.get(_relOp_), children.get(_t_), m.munch(children.get(_e_))));
                 return null;
             }
@@ -365,7 +385,7 @@ public class X86_64Muncher extends Muncher {
             protected Void trigger(Muncher m, Matched children) {
                 Temp right;
                 right = m.munch(children.get(_r_));
-                m.emit(new A_OPER("cmpq     (`s1), `s0", noTemps, list(right,m.munch(children.get(_l_)))));
+                m.emit(A_CMP_MEM(right, m.munch(children.get(_l_))));
                 m.emit(A_CNMOV(children.get(_relOp_), children.get(_t_), m.munch(children.get(_e_))));
                 return null;
             }
@@ -410,11 +430,13 @@ public class X86_64Muncher extends Muncher {
 
                 m.emit(A_MOV(t, m.munch(children.get(_e_))));
                 if (i == 1) {
-                    m.emit(new A_OPER("incq     `d0", list(t), list(t)));
+                    m.emit(new A_OPER("incq     `d0", list(t), list(t),
+                            (out, d, s) -> out.add(new Inc(d[0]))));
                     return t;
                 }
                 else {
-                    m.emit(new A_OPER("addq    $" + i + ", `d0", list(t), list(t)));
+                    m.emit(new A_OPER("addq    $" + i + ", `d0", list(t), list(t),
+                            (out, d, s) -> out.add(new AddI2R(Integer.toString(i), d[0]))));
                     return t;
                 }
             }
@@ -433,7 +455,7 @@ public class X86_64Muncher extends Muncher {
                 // cmp $dst, src
 
                 // Null pointer if the immediate is on the rhs, so dst and src swap
-                m.emit(new A_OPER("cmpq    $" + i + ", `s0" , noTemps, list(t)));
+                m.emit(A_CMP(t, i));
 //                m.emit(new A_OPER("cmpq    `d0" +  ", $" + i , list(t), noTemps));
 
                 // Since lhs is rhs and rhs is lhs, need to change the condition to reflect this.
@@ -453,7 +475,7 @@ public class X86_64Muncher extends Muncher {
                 int i = children.get(_i_);
                 // A_CMP takes two temps, this A_OPER takes a const and a temp..
                 // cmp $dst, src
-                m.emit(new A_OPER("cmpq    $" + i + ", `s0" , noTemps, list(t)));
+                m.emit(A_CMP(t, i));
 //                m.emit(new A_OPER("cmpq    `d0" +  ", $" + i , list(t), noTemps));
 
                 // Using CJUMP since dst and src are
@@ -470,7 +492,7 @@ public class X86_64Muncher extends Muncher {
 
 
         // Comparisons with an address and register/address/immediate
-        // cmpq    `(d0), `s0
+        // cmpq    (`s0), `s1
         sm.add(new MunchRule<IRStm, Void>(CJUMP(_relOp_, MEM(_e_), _r_, _thn_, _els_)) {
             @Override
             protected Void trigger(Muncher m, Matched children) {
@@ -478,7 +500,8 @@ public class X86_64Muncher extends Muncher {
                 right = m.munch(children.get(_r_));
                 left = m.munch(children.get(_e_));
 
-                m.emit(new A_OPER("cmpq    (`d0), `s0" , list(left), list(right)));
+                m.emit(new A_OPER("cmpq    (`s0), `s1" , noTemps, list(left, right),
+                        (out, d, s) -> out.add(new CmpM2R("0", s[0], s[1]))));
 
                 m.emit(A_CJUMP(children.get(_relOp_),children.get(_thn_),children.get(_els_)));
 
@@ -487,7 +510,7 @@ public class X86_64Muncher extends Muncher {
         });
 
         // Left child is a register/address/immediate
-        // cmpq    (`d0), (s0)
+        // cmpq    (`s0), `s1
         sm.add(new MunchRule<IRStm, Void>(CJUMP(_relOp_, _l_, MEM(_e_), _thn_, _els_)) {
             @Override
             protected Void trigger(Muncher m, Matched children) {
@@ -496,7 +519,8 @@ public class X86_64Muncher extends Muncher {
                 right = m.munch(children.get(_e_));
 
 
-                m.emit(new A_OPER("cmpq    (`d0), `s0" , list(right), list(left)));
+                m.emit(new A_OPER("cmpq    (`s0), `s1" , noTemps, list(right, left),
+                        (out, d, s) -> out.add(new CmpM2R("0", s[0], s[1]))));
 
                 m.emit(A_CJUMP(children.get(_relOp_),children.get(_thn_),children.get(_els_)));
 
@@ -515,7 +539,8 @@ public class X86_64Muncher extends Muncher {
                 left = m.munch(children.get(_e_));
 
 
-                m.emit(new A_OPER("cmpq    (`d0), `s0" , list(left), list(right)));
+                m.emit(new A_OPER("cmpq    (`s0), `s1" , noTemps, list(left, right),
+                        (out, d, s) -> out.add(new CmpM2R("0", s[0], s[1]))));
 
                 m.emit(A_CNJUMP(children.get(_relOp_),children.get(_thn_),children.get(_els_)));
 
@@ -545,17 +570,20 @@ public class X86_64Muncher extends Muncher {
     ///////// Helper methods to generate X86 assembly instructions //////////////////////////////////////
 
     private static Instr A_QUAD(int i) {
-        return new A_OPER(".quad    " + i, noTemps, noTemps);
+        return new A_OPER(".quad    " + i, noTemps, noTemps,
+                (out, d, s) -> out.quad(Integer.toString(i)));
     }
 
     private static Instr A_QUAD(Label l) {
-        return new A_OPER(".quad    " + l, noTemps, noTemps);
+        return new A_OPER(".quad    " + l, noTemps, noTemps,
+                (out, d, s) -> out.quad(l.toString()));
     }
 
     private static Instr A_ADD(Temp dst, Temp src) {
         return new A_OPER("addq    `s0, `d0",
                 list(dst),
-                list(src, dst));
+                list(src, dst),
+                (out, d, s) -> out.add(new AddR2R(s[0], d[0])));
     }
 
     private static Instr A_CALL(Label fun, int nargs) {
@@ -563,7 +591,8 @@ public class X86_64Muncher extends Muncher {
         for (int i = 0; i < Math.min(arguments.size(), nargs); ++i) {
             args.add(arguments.get(i));
         }
-        return new A_OPER("call    " + fun, callerSave.append(arguments), special.append(args));
+        return new A_OPER("call    " + fun, callerSave.append(arguments), special.append(args),
+                (out, d, s) -> out.add(new Call(fun.toString())));
     }
 
     private static Instr A_CJUMP(RelOp relOp, Label thn, Label els) {
@@ -602,7 +631,7 @@ public class X86_64Muncher extends Muncher {
             default:
                 throw new Error("Missing case?");
         }
-        return new A_OPER(opCode + "     `j0", noTemps, noTemps, list(thn, els));
+        return A_JCC(opCode, thn, els);
     }
 
 
@@ -650,17 +679,38 @@ public class X86_64Muncher extends Muncher {
             default:
                 throw new Error("Missing case?");
         }
-        return new A_OPER(opCode + "     `j0", noTemps, noTemps, list(thn, els));
+        return A_JCC(opCode, thn, els);
+    }
+
+    private static Instr A_JCC(String opCode, Label thn, Label els) {
+        String condition = opCode.trim().substring(1);
+        return new A_OPER(opCode + "     `j0", noTemps, noTemps, list(thn, els),
+                (out, d, s) -> out.add(new CJmp(condition, thn.toString())));
     }
 
     private static Instr A_CMP(Temp l, Temp r) {
-        return new A_OPER("cmpq    `s1, `s0", noTemps, list(l, r));
+        return new A_OPER("cmpq    `s1, `s0", noTemps, list(l, r),
+                (out, d, s) -> out.add(new CmpR2R(s[1], s[0])));
+    }
+
+    private static Instr A_CMP(Temp l, int r) {
+        return new A_OPER("cmpq    $" + r + ", `s0", noTemps, list(l),
+                (out, d, s) -> out.add(new CmpI2R(Integer.toString(r), s[0])));
+    }
+
+    /**
+     * Compares l with what r points to.
+     */
+    private static Instr A_CMP_MEM(Temp l, Temp r) {
+        return new A_OPER("cmpq    (`s1), `s0", noTemps, list(l, r),
+                (out, d, s) -> out.add(new CmpM2R("0", s[1], s[0])));
     }
 
     private static Instr A_IMUL(Temp dst, Temp src) {
         return new A_OPER("imulq   `s0, `d0",
                 list(dst),
-                list(src, dst));
+                list(src, dst),
+                (out, d, s) -> out.add(new MulR2R(s[0], d[0])));
     }
 
     private static Instr A_IDIV(Temp dst, Temp src) {
@@ -669,11 +719,18 @@ public class X86_64Muncher extends Muncher {
                 "   idivq   `s0\n" +
                 "   movq    %rax, `d0",
                 list(dst, RAX, RDX),
-                list(src, dst));
+                list(src, dst),
+                (out, d, s) -> {
+                    out.add(new MoveR2R(d[0], "%rax"));
+                    out.add(new CQTO());
+                    out.add(new DivR(s[0]));
+                    out.add(new MoveR2R("%rax", d[0]));
+                });
     }
 
     private static Instr A_JMP(Label target) {
-        return new A_OPER("jmp     `j0", noTemps, noTemps, List.list(target));
+        return new A_OPER("jmp     `j0", noTemps, noTemps, List.list(target),
+                (out, d, s) -> out.add(new Jmp(target.toString())));
     }
 
     private static Instr A_LABEL(Label name) {
@@ -682,16 +739,16 @@ public class X86_64Muncher extends Muncher {
 
     private static Instr A_MOV(Temp t, int value) {
         if (value == 0)
-            return new A_OPER("xorq    `d0, `d0", list(t), noTemps);
+            return A_CONST.zero(t);
         else
-            return new A_OPER("movq    $" + value + ", `d0", list(t), noTemps);
+            return new A_CONST(t, value);
     }
 
     private static Instr A_MOV(Temp d, Temp s) {
         return new A_MOVE("movq    `s0, `d0", d, s);
     }
 
-    private static Instr A_CMOV(RelOp relOp, Temp d, Temp s) {
+    private static Instr A_CMOV(RelOp relOp, Temp dst, Temp src) {
         String opCode;
         switch (relOp) {
             case EQ:
@@ -728,11 +785,11 @@ public class X86_64Muncher extends Muncher {
                 throw new Error("Missing case?");
         }
 
-        return new A_OPER(opCode + "    `s0, `d0", list(d), list(s, d));
+        return A_CMOVCC(opCode, dst, src);
     }
 
     // Similar to A_CNJUMP this allows CMOV with swapped terms
-    private static Instr A_CNMOV(RelOp relOp, Temp d, Temp s) {
+    private static Instr A_CNMOV(RelOp relOp, Temp dst, Temp src) {
         String opCode;
         switch (relOp) {
             case EQ:
@@ -769,25 +826,34 @@ public class X86_64Muncher extends Muncher {
                 throw new Error("Missing case?");
         }
 
-        return new A_OPER(opCode + "    `s0, `d0", list(d), list(s, d));
+        return A_CMOVCC(opCode, dst, src);
+    }
+
+    private static Instr A_CMOVCC(String opCode, Temp dst, Temp src) {
+        String condition = opCode.trim().substring(4);
+        return new A_OPER(opCode + "    `s0, `d0", list(dst), list(src, dst),
+                (out, d, s) -> out.add(new CMovR2R(condition, s[0], d[0])));
     }
 
-    private static Instr A_MOV(Temp d, Label l) {
-        return new A_OPER("leaq    " + l + "(%rip), `d0", list(d), noTemps);
+    private static Instr A_MOV(Temp t, Label l) {
+        return new A_CONST(t, l);
     }
 
-    private static Instr A_MOV_TO_MEM(Temp ptr, Temp s) {
-        return new A_OPER("movq    `s1, (`s0)", noTemps, list(ptr, s));
+    private static Instr A_MOV_TO_MEM(Temp ptr, Temp value) {
+        return new A_OPER("movq    `s1, (`s0)", noTemps, list(ptr, value),
+                (out, d, s) -> out.add(new MoveR2M("0", s[1], s[0])));
     }
 
-    private static Instr A_MOV_FROM_MEM(Temp d, Temp ptr) {
-        return new A_OPER("movq    (`s0), `d0", list(d), list(ptr));
+    private static Instr A_MOV_FROM_MEM(Temp t, Temp ptr) {
+        return new A_OPER("movq    (`s0), `d0", list(t), list(ptr),
+                (out, d, s) -> out.add(new MoveM2R("0", s[0], d[0])));
     }
 
     private static Instr A_SUB(Temp dst, Temp src) {
         return new A_OPER("subq    `s0, `d0",
                 list(dst),
-                list(src, dst));
+                list(src, dst),
+                (out, d, s) -> out.add(new SubR2R(s[0], d[0])));
     }
 
     public static void dumpRules() {
@@ -34,6 +34,13 @@ public class Compiler {
         return X86_64Frame.factory;
     }
 
+    /**
+     * This determines the register allocator.
+     */
+    protected RegAlloc.Allocator getAllocator() {
+        return RegAlloc.DEFAULT;
+    }
+
     /**
      * Given a source file, compile it and write assembly code into
      * another file.
@@ -53,7 +60,7 @@ public class Compiler {
 
     private void compileIR(File assemOut, Fragments irCode) throws IOException {
         Assembly assembly = codegenerator.apply(irCode);
-        RegAlloc.doit(assembly);
+        RegAlloc.doit(assembly, getAllocator());
         IndentingWriter out = new IndentingWriter(assemOut);
         try {
             assembly.dump(out);
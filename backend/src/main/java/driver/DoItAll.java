@@ -1,13 +1,17 @@
 package driver;
 
+import ir.canon.BlockProfile;
 import ir.frame.Frame;
 import ir.frame.x86_64.X86_64Frame;
 import ir.interp.Interp;
 import ir.interp.InterpMode;
 import ir.temp.Color;
+import ir.temp.CompilationContext;
 import ir.temp.Temp;
 
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.ArrayList;
@@ -71,6 +75,32 @@ public class DoItAll {
         return result;
     }
 
+    private static BlockProfile readProfile(File file) {
+        try {
+            FileReader in = new FileReader(file);
+            try {
+                return BlockProfile.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new Error("Can't read profile " + file, e);
+        }
+    }
+
+    private static void writeProfile(BlockProfile profile, File file) {
+        try {
+            FileWriter out = new FileWriter(file);
+            try {
+                profile.write(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new Error("Can't write profile " + file, e);
+        }
+    }
+
     private void checkAnswer(String output) {
         System.out.print("Checking answer ...");
         File outfile = new File(Utils.changeSuffix(file, "out"));
@@ -133,7 +163,15 @@ public class DoItAll {
         setup();
     }
 
+    /**
+     * Compile a program, in a {@link CompilationContext} of its own so that
+     * its names don't depend on what was compiled before.
+     */
     public void go(String input) {
+        new CompilationContext().run(() -> compile(input));
+    }
+
+    private void compile(String input) {
         Program program = null;
         TypeCheckerImplementation tc = null;
         TypeChecked typechecked = null;
@@ -172,6 +210,17 @@ public class DoItAll {
         flags = args.get("translate");
         if (flags != null) {
             frags = new TranslateImplementation(architecture, typechecked).translate();
+            if (args.containsKey("profile")) {
+                frags.setProfile(readProfile(new File(args.get("profile"))));
+            } else if (flags.contains("profile")) {
+                System.out.println("Profiling IR code (basic):");
+                BlockProfile profile = new BlockProfile();
+                Interp interp = new Interp(frags, InterpMode.BASIC_BLOCKS);
+                interp.setProfile(profile);
+                runInterp(interp);
+                writeProfile(profile, new File(Utils.changeSuffix(file, "profile")));
+                frags.setProfile(profile);
+            }
             if (flags.contains("verbose")) {
                 StringWriter sout = new StringWriter();
                 IndentingWriter out = new IndentingWriter(sout);
@@ -344,10 +393,11 @@ public class DoItAll {
         }
         flags = args.get("simulate");
         if (flags != null) {
-            String sProgram = assembly.toString();
-            if (flags.contains("verbose"))
+            if (flags.contains("verbose")) {
                 System.out.println("Simulating X86_64 code");
-            String output = Sim.ulate(sProgram, flags.contains("verbose")).result;
+                System.out.print(assembly);
+            }
+            String output = Sim.ulate(assembly.toProgram(), flags.contains("verbose")).result;
             System.out.println("Program output:\n" + output);
             checkAnswer(output);
         }
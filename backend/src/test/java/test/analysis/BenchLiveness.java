@@ -0,0 +1,77 @@
+package test.analysis;
+
+import util.List;
+
+import codegen.assem.Instr;
+import analysis.FlowGraph;
+import analysis.Liveness;
+import analysis.implementation.BitsetLiveness;
+import analysis.implementation.LivenessImplementation;
+import analysis.util.graph.Node;
+
+/**
+ * Measures how {@link LivenessImplementation} and {@link BitsetLiveness}
+ * scale with the number of instructions in a method, asking for the live
+ * Temps of every node as the interference graph does. Not a test, run it by
+ * hand:
+ *
+ * <pre>
+ * java -cp ... test.analysis.BenchLiveness [largest size]
+ * </pre>
+ * <p>
+ * It runs on a thread with a big stack, so that the ActiveSets get through
+ * the large methods too.
+ */
+public class BenchLiveness {
+
+    private static final int REPEAT = 3;
+
+    /**
+     * @return the best time of a few runs, in milliseconds.
+     */
+    private static double time(FlowGraph<Instr> flowGraph, boolean bitsets) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < REPEAT; i++) {
+            long start = System.nanoTime();
+            Liveness<Instr> liveness = bitsets
+                    ? new BitsetLiveness<Instr>(flowGraph)
+                    : new LivenessImplementation<Instr>(flowGraph);
+            int live = 0;
+            for (Node<Instr> node : flowGraph.nodes())
+                live += liveness.liveOut(node).size();
+            best = Math.min(best, System.nanoTime() - start);
+            if (live < 0)
+                throw new Error("Can't happen");
+        }
+        return best / 1e6;
+    }
+
+    private static void run(int largest) {
+        System.out.printf("%12s %12s %12s %8s%n", "instructions", "lists ms", "bitsets ms", "speedup");
+        // Warm up both
+        FlowGraph<Instr> warm = FlowGraph.build(new TestBitsetLiveness.Generator(0).method(2000));
+        for (int i = 0; i < 10; i++) {
+            time(warm, false);
+            time(warm, true);
+        }
+        for (int n = 1000; n <= largest; n *= 2) {
+            List<Instr> body = new TestBitsetLiveness.Generator(n).method(n);
+            FlowGraph<Instr> flowGraph = FlowGraph.build(body);
+            double lists = time(flowGraph, false);
+            double bitsets = time(flowGraph, true);
+            System.out.printf("%12d %12.2f %12.2f %8.2f%n", body.size(), lists, bitsets, lists / bitsets);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final int largest = args.length > 0 ? Integer.parseInt(args[0]) : 32000;
+        Thread t = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                BenchLiveness.run(largest);
+            }
+        }, "bench", 1L << 30);
+        t.start();
+        t.join();
+    }
+}
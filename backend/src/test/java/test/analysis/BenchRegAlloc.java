@@ -0,0 +1,155 @@
+package test.analysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Random;
+
+import util.SampleCode;
+import ir.frame.x86_64.X86_64Frame;
+import ir.temp.CompilationContext;
+import translate.Fragments;
+import translate.Translator;
+import x86_64sim.CostModel;
+import x86_64sim.Program;
+import x86_64sim.State;
+
+import codegen.Assembly;
+import codegen.CodeGenerator;
+import analysis.RegAlloc;
+
+/**
+ * Compares the register allocators: how long they take on methods of growing
+ * size, and how much code they leave in the sample programs, counted as
+ * instructions generated and executed by the simulator, and as the cycles its
+ * {@link CostModel} puts on the run, which the loads and stores of spilled
+ * Temps add to. Not a test, run it by hand from the backend directory, where
+ * the samples are:
+ *
+ * <pre>
+ * java -cp ... test.analysis.BenchRegAlloc [largest size]
+ * </pre>
+ */
+public class BenchRegAlloc {
+
+    private static final int REPEAT = 3;
+
+    private static final RegAlloc.Allocator[] ALLOCATORS = RegAlloc.Allocator.values();
+
+    /**
+     * @return a program with a method of n locals, each computed from a few of
+     * the ones before it, with a loop now and then.
+     */
+    private static String method(int n) {
+        Random random = new Random(n);
+        StringBuilder sb = new StringBuilder();
+        sb.append("class Main { public static void main(String[] a) { System.out.println(new Big().run(3)); } }\n");
+        sb.append("class Big {\n  public int run(int x) {\n");
+        for (int i = 0; i < n; i++)
+            sb.append("    int v" + i + ";\n");
+        sb.append("    v0 = x;\n");
+        for (int i = 1; i < n; i++) {
+            int j = Math.max(0, i - 1 - random.nextInt(20));
+            int k = Math.max(0, i - 1 - random.nextInt(20));
+            if (i % 50 == 0)
+                sb.append("    while (v" + j + " < 0) { v" + j + " = v" + j + " + 1; }\n");
+            sb.append("    v" + i + " = v" + j + " + v" + k + " * " + (1 + random.nextInt(5)) + ";\n");
+        }
+        sb.append("    return v" + (n - 1) + ";\n  }\n}\n");
+        return sb.toString();
+    }
+
+    private static Fragments translate(File program) throws Exception {
+        return Translator.translate(X86_64Frame.factory, program, new CompilationContext());
+    }
+
+    /**
+     * @return the program translated and turned into assembly code afresh,
+     * since the allocator paints its Temps.
+     */
+    private static Assembly generate(File program) throws Exception {
+        return new CodeGenerator().apply(translate(program));
+    }
+
+    /**
+     * @return the best time of a few runs, in milliseconds.
+     */
+    private static double time(File program, RegAlloc.Allocator allocator) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < REPEAT; i++) {
+            Assembly assembly = generate(program);
+            long start = System.nanoTime();
+            RegAlloc.doit(assembly, allocator);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1e6;
+    }
+
+    private static void timing(int largest) throws Exception {
+        System.out.printf("%8s", "locals");
+        for (RegAlloc.Allocator allocator : ALLOCATORS)
+            System.out.printf(" %14s", allocator + " ms");
+        System.out.println();
+        for (int n = 250; n <= largest; n *= 2) {
+            File program = File.createTempFile("bench", ".java");
+            try {
+                Writer out = new FileWriter(program);
+                out.write(method(n));
+                out.close();
+                System.out.printf("%8d", n);
+                for (RegAlloc.Allocator allocator : ALLOCATORS)
+                    System.out.printf(" %14.1f", time(program, allocator));
+                System.out.println();
+            } finally {
+                program.delete();
+            }
+        }
+    }
+
+    private static void quality() throws Exception {
+        long[] generated = new long[ALLOCATORS.length];
+        long[] executed = new long[ALLOCATORS.length];
+        long[] cycles = new long[ALLOCATORS.length];
+        for (File program : SampleCode.sampleFiles("java")) {
+            try {
+                translate(program);
+            } catch (Throwable e) {
+                continue; // Samples the frontend doesn't take
+            }
+            for (int a = 0; a < ALLOCATORS.length; a++) {
+                Assembly assembly = generate(program);
+                RegAlloc.doit(assembly, ALLOCATORS[a]);
+                Program p = assembly.toProgram();
+                State state = new State(p);
+                state.out = new PrintStream(new ByteArrayOutputStream());
+                CostModel model = state.startCostModel(new CostModel());
+                state.runForResult();
+                generated[a] += p.countInstructions();
+                executed[a] += state.instructionsExecuted;
+                cycles[a] += model.getCycles();
+            }
+        }
+        System.out.printf("%12s %12s %12s %12s%n", "allocator", "generated", "executed", "cycles");
+        for (int a = 0; a < ALLOCATORS.length; a++)
+            System.out.printf("%12s %12d %12d %12d%n", ALLOCATORS[a], generated[a], executed[a], cycles[a]);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final int largest = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        Thread t = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    quality();
+                    timing(largest);
+                } catch (Exception e) {
+                    throw new Error(e);
+                }
+            }
+        }, "bench", 1L << 30);
+        t.start();
+        t.join();
+    }
+}
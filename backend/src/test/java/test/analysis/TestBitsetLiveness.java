@@ -0,0 +1,142 @@
+package test.analysis;
+
+import ir.temp.Label;
+import ir.temp.Temp;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import util.List;
+
+import codegen.AssemProc;
+import codegen.assem.A_LABEL;
+import codegen.assem.A_MOVE;
+import codegen.assem.A_OPER;
+import codegen.assem.Instr;
+import analysis.FlowGraph;
+import analysis.Liveness;
+import analysis.implementation.BitsetLiveness;
+import analysis.implementation.LivenessImplementation;
+import analysis.util.graph.Node;
+
+/**
+ * Checks that {@link BitsetLiveness} finds the same live Temps as
+ * {@link LivenessImplementation}, for all the TestTranslate programs and for
+ * random methods with loops.
+ */
+public class TestBitsetLiveness extends TestFlowGraphs {
+
+    /**
+     * Makes random method bodies, for this test and {@link BenchLiveness}.
+     */
+    static class Generator {
+        private static final List<Temp> noTemps = List.empty();
+        private static final int NEAR = 12;
+
+        private final Random random;
+
+        Generator(long seed) {
+            random = new Random(seed);
+        }
+
+        /**
+         * @return a body of about n instructions, in blocks that fall
+         * through, jump or branch to blocks near by, and mostly use Temps
+         * that blocks near by use too. It returns a Temp that nothing
+         * defines.
+         */
+        List<Instr> method(int n) {
+            Temp[] temps = new Temp[Math.max(8, n / 16)];
+            for (int i = 0; i < temps.length; i++)
+                temps[i] = new Temp();
+            Label[] labels = new Label[Math.max(1, n / 6)];
+            for (int i = 0; i < labels.length; i++)
+                labels[i] = Label.gen();
+            List<Instr> body = List.empty();
+            for (int b = 0; b < labels.length; b++) {
+                body.add(new A_LABEL(labels[b] + ":", labels[b]));
+                int near = (int) ((long) b * temps.length / labels.length);
+                for (int i = random.nextInt(8); i > 0; i--) {
+                    Temp d = temps[(near + random.nextInt(NEAR)) % temps.length];
+                    Temp s = temps[(near + random.nextInt(NEAR)) % temps.length];
+                    if (random.nextInt(3) == 0)
+                        body.add(new A_MOVE("movq    `s0, `d0", d, s));
+                    else
+                        body.add(new A_OPER("addq    `s0, `d0", List.list(d), List.list(s, d)));
+                }
+                if (b == labels.length - 1)
+                    break;
+                int to = b + random.nextInt(2 * NEAR + 1) - NEAR;
+                Label target = labels[Math.max(0, Math.min(labels.length - 1, to))];
+                switch (random.nextInt(3)) {
+                    case 0:
+                        body.add(new A_OPER("jmp     `j0", noTemps, noTemps, List.list(target)));
+                        break;
+                    case 1:
+                        body.add(new A_OPER("cmpq    `s1, `s0", noTemps,
+                                List.list(temps[(near + random.nextInt(NEAR)) % temps.length], temps[near])));
+                        body.add(new A_OPER("jl      `j0", noTemps, noTemps, List.list(target, labels[b + 1])));
+                        break;
+                    default:
+                        // Falls through
+                }
+            }
+            body.add(new A_OPER("ret", noTemps, List.list(new Temp())));
+            return body;
+        }
+    }
+
+    private static Set<Temp> set(List<Temp> l) {
+        Set<Temp> s = new HashSet<Temp>();
+        for (Temp t : l)
+            s.add(t);
+        return s;
+    }
+
+    private static void assertSameLiveness(FlowGraph<Instr> flowGraph, String name) {
+        Liveness<Instr> expected = new LivenessImplementation<Instr>(flowGraph);
+        Liveness<Instr> actual = new BitsetLiveness<Instr>(flowGraph);
+        for (Node<Instr> node : flowGraph.nodes())
+            Assertions.assertEquals(set(expected.liveOut(node)), set(actual.liveOut(node)),
+                    name + " node " + node + ": " + node.wrappee());
+    }
+
+    @Override
+    protected void test(AssemProc proc) {
+        assertSameLiveness(FlowGraph.build(proc.getBody()), proc.getLabel().toString());
+    }
+
+    @Test
+    public void randomMethods() {
+        for (int seed = 0; seed < 100; seed++) {
+            List<Instr> body = new Generator(seed).method(10 + seed * 3);
+            assertSameLiveness(FlowGraph.build(body), "seed " + seed);
+        }
+    }
+
+    @Test
+    public void largeMethod() {
+        // Large enough that the ActiveSets would overflow the stack
+        List<Instr> body = new Generator(1).method(50000);
+        FlowGraph<Instr> flowGraph = FlowGraph.build(body);
+        Liveness<Instr> liveness = new BitsetLiveness<Instr>(flowGraph);
+        // Nothing defines the Temp returned, so it is live wherever the
+        // return can be reached from
+        Node<Instr> ret = flowGraph.nodes().getLast();
+        Temp returned = ret.wrappee().use().head();
+        Set<Node<Instr>> reaching = new HashSet<Node<Instr>>();
+        java.util.List<Node<Instr>> todo = new java.util.ArrayList<Node<Instr>>();
+        todo.add(ret);
+        while (!todo.isEmpty()) {
+            for (Node<Instr> pred : todo.remove(todo.size() - 1).pred())
+                if (reaching.add(pred))
+                    todo.add(pred);
+        }
+        for (Node<Instr> node : flowGraph.nodes())
+            Assertions.assertEquals(reaching.contains(node), liveness.liveOut(node).contains(returned),
+                    "node " + node);
+    }
+}
@@ -0,0 +1,14 @@
+package test.analysis;
+
+import analysis.RegAlloc;
+
+/**
+ * The same checks as {@link TestRegAlloc}, for the linear-scan allocator.
+ */
+public class TestLinearScanRegAlloc extends TestRegAlloc {
+
+    @Override
+    protected RegAlloc.Allocator allocator() {
+        return RegAlloc.Allocator.LINEAR_SCAN;
+    }
+}
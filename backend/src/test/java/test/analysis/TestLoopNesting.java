@@ -0,0 +1,84 @@
+package test.analysis;
+
+import static util.List.list;
+
+import ir.temp.Label;
+import ir.temp.Temp;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import util.List;
+
+import codegen.assem.A_CONST;
+import codegen.assem.A_LABEL;
+import codegen.assem.A_MOVE;
+import codegen.assem.A_OPER;
+import codegen.assem.Instr;
+import analysis.FlowGraph;
+import analysis.implementation.LoopNesting;
+import analysis.implementation.SpillCosts;
+import analysis.util.graph.Node;
+
+/**
+ * Checks {@link LoopNesting} and the {@link SpillCosts} weighted by it, on a
+ * method with a loop in a loop.
+ */
+public class TestLoopNesting {
+
+    private static final List<Temp> noTemps = List.empty();
+
+    private final Temp c = new Temp(), x = new Temp(), y = new Temp(), z = new Temp();
+    private final Label outer = Label.gen(), inner = Label.gen(), innerExit = Label.gen(), exit = Label.gen();
+
+    /**
+     * The method, with the depth each instruction should have.
+     */
+    private final Object[] method = {
+            new A_CONST(c, 5), 0,
+            new A_MOVE("movq    `s0, `d0", z, c), 0,
+            new A_LABEL(outer + ":", outer), 1,
+            new A_OPER("addq    `s0, `d0", list(x), list(c, x)), 1,
+            new A_LABEL(inner + ":", inner), 2,
+            new A_OPER("addq    `s0, `d0", list(y), list(x, y)), 2,
+            new A_OPER("cmpq    `s1, `s0", noTemps, list(y, x)), 2,
+            new A_OPER("jl      `j0", noTemps, noTemps, list(inner, innerExit)), 2,
+            new A_LABEL(innerExit + ":", innerExit), 1,
+            new A_CONST(z, 5), 1,
+            new A_OPER("cmpq    `s1, `s0", noTemps, list(x, c)), 1,
+            new A_OPER("jl      `j0", noTemps, noTemps, list(outer, exit)), 1,
+            new A_LABEL(exit + ":", exit), 0,
+            new A_OPER("ret", noTemps, list(x, z)), 0,
+    };
+
+    private FlowGraph<Instr> flowGraph() {
+        List<Instr> body = List.empty();
+        for (int i = 0; i < method.length; i += 2)
+            body.add((Instr) method[i]);
+        return FlowGraph.build(body);
+    }
+
+    @Test
+    public void depths() {
+        FlowGraph<Instr> flowGraph = flowGraph();
+        LoopNesting<Instr> loops = new LoopNesting<Instr>(flowGraph);
+        for (Node<Instr> node : flowGraph.nodes()) {
+            int i = 0;
+            while (method[i] != node.wrappee())
+                i += 2;
+            Assertions.assertEquals(method[i + 1], loops.depth(node), node.wrappee().toString());
+        }
+    }
+
+    @Test
+    public void spillCosts() {
+        SpillCosts<Instr> costs = new SpillCosts<Instr>(flowGraph());
+        double w = SpillCosts.LOOP_WEIGHT;
+        Assertions.assertEquals(1 + 1 + w + w, costs.cost(c), 1e-9);
+        Assertions.assertEquals(w + w + w * w + w * w + w + 1, costs.cost(x), 1e-9);
+        Assertions.assertEquals(w * w + w * w + w * w, costs.cost(y), 1e-9);
+        Assertions.assertEquals("$5", String.valueOf(costs.constant(c)));
+        Assertions.assertNull(costs.constant(x));
+        // Defined by a move as well as by the constant
+        Assertions.assertNull(costs.constant(z));
+    }
+}
@@ -14,6 +14,10 @@ import static util.List.*;
 
 public class TestRegAlloc extends TestFlowGraphs {
 
+    protected RegAlloc.Allocator allocator() {
+        return RegAlloc.DEFAULT;
+    }
+
     protected void test(AssemProc proc) {
 
         //To verify the coloring, let's make a list of the allowed colors.
@@ -26,7 +30,7 @@ public class TestRegAlloc extends TestFlowGraphs {
         }
 
         //Let's do register allocation and dump out the result.
-        RegAlloc alloc = RegAlloc.doit(proc);
+        RegAlloc alloc = RegAlloc.doit(proc, allocator());
         System.out.println("RegAlloc ");
         System.out.println(alloc);
 
@@ -0,0 +1,15 @@
+package test.analysis;
+
+import analysis.RegAlloc;
+
+/**
+ * The same checks as {@link TestRegAlloc}, for the allocator that doesn't
+ * coalesce.
+ */
+public class TestSimpleRegAlloc extends TestRegAlloc {
+
+    @Override
+    protected RegAlloc.Allocator allocator() {
+        return RegAlloc.Allocator.SIMPLE;
+    }
+}
@@ -0,0 +1,88 @@
+package test.analysis.util;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import analysis.util.graph.BitMatrixGraph;
+
+/**
+ * Checks {@link BitMatrixGraph} against a plain boolean matrix, as nodes are
+ * removed and restored again the way the register allocator does it.
+ */
+public class TestBitMatrixGraph {
+
+    private static void assertDegrees(BitMatrixGraph g, boolean[][] edges, boolean[] removed) {
+        for (int a = 0; a < g.size(); a++) {
+            if (removed[a])
+                continue;
+            int degree = 0;
+            for (int b = 0; b < g.size(); b++)
+                if (edges[a][b] && !removed[b])
+                    degree++;
+            Assertions.assertEquals(degree, g.degree(a), "degree of " + a);
+        }
+    }
+
+    @Test
+    public void edges() {
+        BitMatrixGraph g = new BitMatrixGraph(5);
+        Assertions.assertTrue(g.addEdge(0, 4));
+        Assertions.assertFalse(g.addEdge(4, 0));
+        Assertions.assertFalse(g.addEdge(2, 2));
+        Assertions.assertTrue(g.hasEdge(4, 0));
+        Assertions.assertFalse(g.hasEdge(0, 3));
+        Assertions.assertEquals(1, g.adjacentCount(0));
+        Assertions.assertEquals(4, g.adjacent(0)[0]);
+        Assertions.assertEquals(0, g.adjacentCount(2));
+        Assertions.assertEquals(0, g.adjacent(2).length);
+    }
+
+    @Test
+    public void removeAndRestore() {
+        Random random = new Random(0);
+        int n = 200;
+        BitMatrixGraph g = new BitMatrixGraph(n);
+        boolean[][] edges = new boolean[n][n];
+        for (int i = 0; i < 3000; i++) {
+            int a = random.nextInt(n), b = random.nextInt(n);
+            Assertions.assertEquals(a != b && !edges[a][b], g.addEdge(a, b));
+            if (a != b)
+                edges[a][b] = edges[b][a] = true;
+        }
+        for (int a = 0; a < n; a++)
+            for (int b = 0; b < n; b++)
+                Assertions.assertEquals(edges[a][b], g.hasEdge(a, b));
+
+        boolean[] removed = new boolean[n];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            int node;
+            do
+                node = random.nextInt(n);
+            while (removed[node]);
+            g.remove(node);
+            removed[node] = true;
+            order[i] = node;
+            Assertions.assertTrue(g.isRemoved(node));
+            if (i % 20 == 0)
+                assertDegrees(g, edges, removed);
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            g.restore(order[i]);
+            removed[order[i]] = false;
+            if (i % 20 == 0)
+                assertDegrees(g, edges, removed);
+        }
+        assertDegrees(g, edges, removed);
+    }
+
+    @Test
+    public void removeTwice() {
+        BitMatrixGraph g = new BitMatrixGraph(2);
+        g.remove(1);
+        Assertions.assertThrows(Error.class, () -> g.remove(1));
+        Assertions.assertThrows(Error.class, () -> g.addEdge(0, 1));
+    }
+}
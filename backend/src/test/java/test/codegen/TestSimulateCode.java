@@ -11,8 +11,11 @@ import typechecker.TypeCheckerException;
 import util.Utils;
 import x86_64sim.Sim;
 import x86_64sim.State;
+import x86_64sim.parser.SimParser;
 
+import codegen.Assembly;
 import codegen.CodeGenerator;
+import org.junit.jupiter.api.Assertions;
 
 
 /**
@@ -68,7 +71,10 @@ public class TestSimulateCode extends TestTranslate {
 
     protected String test(Fragments ir_fragments) {
         CodeGenerator cogen = new CodeGenerator();
-        String program = cogen.apply(ir_fragments).toString();
+        Assembly assembly = cogen.apply(ir_fragments);
+        String program = assembly.toString();
+        // Lowering the assembly directly must give the same program as parsing its text.
+        Assertions.assertEquals(SimParser.parse(program).dump(), assembly.toProgram().dump());
         String result = "";
         State state = null;
         try {
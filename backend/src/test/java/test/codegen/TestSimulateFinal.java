@@ -5,13 +5,16 @@ import ir.interp.InterpMode;
 import java.io.File;
 
 import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
 import test.translate.TestTranslate;
 import translate.Fragments;
 import typechecker.TypeCheckerException;
 import util.IndentingWriter;
 import util.Utils;
+import x86_64sim.Program;
 import x86_64sim.Sim;
 import x86_64sim.State;
+import x86_64sim.parser.SimParser;
 
 import codegen.Assembly;
 import codegen.CodeGenerator;
@@ -46,6 +49,22 @@ public class TestSimulateFinal extends TestTranslate {
         assert(expected.equals(result));
     }
 
+    /**
+     * The register allocator to compile with, so that subclasses can run the
+     * same programs through another one.
+     */
+    protected RegAlloc.Allocator getAllocator() {
+        return RegAlloc.DEFAULT;
+    }
+
+    /**
+     * Run the program and return the State it ends in, so that subclasses can
+     * run it some other way.
+     */
+    protected State simulate(Program program) {
+        return Sim.ulate(program, false);
+    }
+
     @Override
     protected InterpMode getSimulationMode() {
         return null; // means don't simulate IR code.
@@ -81,19 +100,21 @@ public class TestSimulateFinal extends TestTranslate {
     protected String test(Fragments ir_fragments) {
         CodeGenerator cogen = new CodeGenerator();
         Assembly assembly = cogen.apply(ir_fragments);
-        RegAlloc.doit(assembly);
-        String program = assembly.toString();
+        RegAlloc.doit(assembly, getAllocator());
+        Program program = assembly.toProgram();
+        // What is simulated must be the program the assembly prints
+        Assertions.assertEquals(SimParser.parse(assembly.toString()).dump(), program.dump());
         State state = null;
         String result;
         try {
-            state = Sim.ulate(program, false);
+            state = simulate(program);
             result = state.result;
         } catch (Error e) {
             result = e.getMessage();
             e.printStackTrace();
         }
         System.out.println("Program:");
-        System.out.print(program);
+        System.out.print(assembly);
         System.out.println("Static: " + state.p.countInstructions() + " instructions generated");
         System.out.println("Dynamic: " + state.instructionsExecuted + " instructions executed");
         System.out.println("Output:");
@@ -0,0 +1,26 @@
+package test.codegen;
+
+import org.junit.jupiter.api.Assertions;
+import x86_64sim.ExecutionMode;
+import x86_64sim.Program;
+import x86_64sim.State;
+
+/**
+ * Simulates all the programs of {@link TestSimulateFinal} again, compiling
+ * every function on its first call, and checks that they print and execute
+ * the same as in the interpreter.
+ */
+public class TestSimulateJit extends TestSimulateFinal {
+
+    @Override
+    protected State simulate(Program program) {
+        State interpreted = super.simulate(program);
+        State compiled = new State(program);
+        compiled.mode = ExecutionMode.JIT;
+        compiled.jitThreshold = 0;
+        compiled.runForResult();
+        Assertions.assertEquals(interpreted.result, compiled.result);
+        Assertions.assertEquals(interpreted.instructionsExecuted, compiled.instructionsExecuted);
+        return compiled;
+    }
+}
@@ -0,0 +1,15 @@
+package test.codegen;
+
+import analysis.RegAlloc;
+
+/**
+ * Simulates all the programs of {@link TestSimulateFinal} again, with
+ * registers allocated by linear scan.
+ */
+public class TestSimulateLinearScan extends TestSimulateFinal {
+
+    @Override
+    protected RegAlloc.Allocator getAllocator() {
+        return RegAlloc.Allocator.LINEAR_SCAN;
+    }
+}
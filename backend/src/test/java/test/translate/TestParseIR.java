@@ -0,0 +1,73 @@
+package test.translate;
+
+import ir.parser.ParseException;
+import ir.parser.Parser;
+import ir.temp.Label;
+import ir.tree.CJUMP;
+import ir.tree.IRStm;
+import ir.tree.LABEL;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import translate.Fragment;
+import translate.Fragments;
+import translate.ProcFragment;
+import util.SampleCode;
+
+/**
+ * Parses the IR of the samples, more than once, and checks that each parse
+ * has labels of its own, which are the same label if and only if they have
+ * the same name, counting the labels trace scheduling makes.
+ */
+public class TestParseIR {
+
+    private static void checkLabels(Fragments program) {
+        Map<String, Label> byName = new HashMap<String, Label>();
+        Map<Label, String> names = new HashMap<Label, String>();
+        for (Fragment fragment : program) {
+            if (!(fragment instanceof ProcFragment))
+                continue;
+            for (IRStm stm : ((ProcFragment) fragment).getTraceScheduledBody()) {
+                Label[] labels;
+                if (stm instanceof LABEL)
+                    labels = new Label[]{((LABEL) stm).getLabel()};
+                else if (stm instanceof CJUMP)
+                    labels = new Label[]{((CJUMP) stm).getTrueLabel(), ((CJUMP) stm).getFalseLabel()};
+                else
+                    continue;
+                for (Label l : labels) {
+                    Label named = byName.get(l.getName());
+                    if (named == null) {
+                        Assertions.assertNull(names.put(l, l.getName()), "Two names for " + l);
+                        byName.put(l.getName(), l);
+                    } else {
+                        Assertions.assertSame(named, l, l.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parseTwice() throws Exception {
+        int parsed = 0;
+        for (File sample : SampleCode.sampleFiles("ir")) {
+            Fragments first, second;
+            try {
+                first = Parser.parse(sample);
+            } catch (ParseException e) {
+                continue; // Samples with IR the parser doesn't take
+            }
+            second = Parser.parse(sample);
+            parsed++;
+            Assertions.assertNotSame(first.getContext(), second.getContext());
+            checkLabels(first);
+            checkLabels(second);
+        }
+        Assertions.assertTrue(parsed > 10);
+    }
+}
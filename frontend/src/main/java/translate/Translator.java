@@ -1,6 +1,7 @@
 package translate;
 
 import ir.frame.Frame;
+import ir.temp.CompilationContext;
 import ir.temp.Label;
 import translate.implementation.TranslateImplementation;
 import typechecker.TypeChecked;
@@ -24,14 +25,30 @@ import java.io.File;
  */
 public class Translator {
 
+    /**
+     * Translate a program in a new {@link CompilationContext} of its own.
+     */
     public static Fragments translate(Frame frameFactory, String program) throws TypeCheckerException, Exception {
-        TypeChecked typechecked = TypeChecker.parseAndCheck(program);
-        return new TranslateImplementation(frameFactory, typechecked).translate();
+        return translate(frameFactory, program, new CompilationContext());
     }
 
     public static Fragments translate(Frame frameFactory, File program) throws TypeCheckerException, Exception {
+        return translate(frameFactory, program, new CompilationContext());
+    }
+
+    /**
+     * Translate a program, making its Temps and labels in a given context.
+     * Programs translated in different contexts may be translated at the
+     * same time, by different threads.
+     */
+    public static Fragments translate(Frame frameFactory, String program, CompilationContext context) throws TypeCheckerException, Exception {
+        TypeChecked typechecked = TypeChecker.parseAndCheck(program);
+        return context.run(() -> new TranslateImplementation(frameFactory, typechecked).translate());
+    }
+
+    public static Fragments translate(Frame frameFactory, File program, CompilationContext context) throws TypeCheckerException, Exception {
         TypeChecked typechecked = TypeChecker.parseAndCheck(program);
-        return new TranslateImplementation(frameFactory, typechecked).translate();
+        return context.run(() -> new TranslateImplementation(frameFactory, typechecked).translate());
     }
 
     /**
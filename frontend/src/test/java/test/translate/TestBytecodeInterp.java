@@ -0,0 +1,69 @@
+package test.translate;
+
+import ir.interp.Interp;
+import ir.interp.InterpMode;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import translate.Translator;
+
+/**
+ * This runs all the same tests as the TestTranslate and TestUnboxedInterp test suite.
+ * <p>
+ * The difference is that the whole program is compiled to a JVM class, with
+ * ir.interp.BytecodeCompiler, and run by the JVM.
+ * <p>
+ * If the tests pass in TestUnboxedInterp but not here, the bug is in
+ * ir.interp.BytecodeCompiler or ir.interp.JvmProgram.
+ */
+public class TestBytecodeInterp extends TestTranslate {
+
+    @Override
+    protected InterpMode getSimulationMode() {
+        return InterpMode.BYTECODE;
+    }
+
+    /**
+     * @return a program with a method of n ifs, which prints how many of them
+     * x is below less how many it isn't.
+     */
+    private static String manyIfs(int n, int x) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("class Main { public static void main(String[] a) { System.out.println(new Big().run(" + x + ")); } }\n");
+        sb.append("class Big {\n  public int run(int x) {\n    int s;\n    s = 0;\n");
+        for (int i = 0; i < n; i++)
+            sb.append("    if (x < " + i + ") s = s + 1; else s = s - 1;\n");
+        sb.append("    return s;\n  }\n}\n");
+        return sb.toString();
+    }
+
+    private static String run(String program, InterpMode mode) throws Exception {
+        return new Interp(Translator.translate(architecture, program), mode).run();
+    }
+
+    @Test
+    public void largeProcedures() throws Throwable {
+        final Throwable[] failure = new Throwable[1];
+        // Trace scheduling recurses for each block
+        Thread t = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Too far for 16 bit jumps, then too big for a JVM method at all
+                    for (int n : new int[]{1500, 3000}) {
+                        String program = manyIfs(n, 8);
+                        String expected = (n - 18) + "\n";
+                        Assertions.assertEquals(expected, TestBytecodeInterp.run(program, InterpMode.UNBOXED));
+                        Assertions.assertEquals(expected, TestBytecodeInterp.run(program, InterpMode.BYTECODE));
+                    }
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        }, "largeProcedures", 1L << 28);
+        t.start();
+        t.join();
+        if (failure[0] != null)
+            throw failure[0];
+    }
+}
@@ -0,0 +1,21 @@
+package test.translate;
+
+import ir.interp.InterpMode;
+
+/**
+ * This runs all the same tests as the TestTranslate and TestTraceSchedule test suite.
+ * <p>
+ * The difference is that the trace scheduled IR of each method is compiled
+ * into closures the first time it is called, rather than interpreted
+ * statement by statement.
+ * <p>
+ * If the tests pass in TestTraceSchedule but not here, the bug is in
+ * ir.interp.CompiledProc.
+ */
+public class TestCompiledInterp extends TestTranslate {
+
+    @Override
+    protected InterpMode getSimulationMode() {
+        return InterpMode.COMPILED;
+    }
+}
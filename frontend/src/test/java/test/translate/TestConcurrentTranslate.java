@@ -0,0 +1,77 @@
+package test.translate;
+
+import ir.frame.Frame;
+import ir.frame.x86_64.X86_64Frame;
+import ir.interp.Interp;
+import ir.interp.InterpMode;
+import ir.temp.CompilationContext;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import translate.Fragments;
+import translate.Translator;
+import util.SampleCode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles and runs the same programs on several threads at once, each in a
+ * {@link CompilationContext} of its own, which must give exactly the IR and
+ * the output that compiling them one after the other does.
+ */
+public class TestConcurrentTranslate {
+
+    private static final Frame architecture = X86_64Frame.factory;
+
+    private static final String[] SAMPLES = {
+            "BinarySearch", "BinaryTree", "BubbleSort", "Factorial",
+            "LinearSearch", "LinkedList", "QuickSort", "TreeVisitor"
+    };
+
+    private static final int THREADS = 4;
+
+    /**
+     * @return the trace scheduled IR of a program, and what it prints.
+     */
+    private static String compileAndRun(File program) throws Exception {
+        Fragments translated = Translator.translate(architecture, program, new CompilationContext());
+        String ir = translated.toString();
+        return ir + "\n" + new Interp(translated, InterpMode.TRACE_SCHEDULE).run();
+    }
+
+    @Test
+    public void sameResultsConcurrently() throws Exception {
+        List<File> files = new ArrayList<File>();
+        for (String name : SAMPLES)
+            files.add(new File(SampleCode.sample_dir, name + ".java"));
+        List<String> expected = new ArrayList<String>();
+        for (File f : files)
+            expected.add(compileAndRun(f));
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < THREADS; i++) {
+                for (final File f : files) {
+                    results.add(pool.submit(new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            return compileAndRun(f);
+                        }
+                    }));
+                }
+            }
+            for (int i = 0; i < results.size(); i++)
+                Assertions.assertEquals(expected.get(i % files.size()), results.get(i).get(),
+                        files.get(i % files.size()).getName());
+        } finally {
+            pool.shutdown();
+        }
+        Assertions.assertSame(CompilationContext.SHARED, CompilationContext.current());
+    }
+}
@@ -0,0 +1,115 @@
+package test.translate;
+
+import ir.canon.BlockProfile;
+import ir.interp.Interp;
+import ir.interp.InterpMode;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import translate.Fragments;
+import translate.Translator;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * This runs all the same tests as the TestTraceSchedule test suite.
+ * <p>
+ * The difference is that each program is first run in BASIC_BLOCKS mode to
+ * record a profile of its blocks, which then guides the trace scheduling.
+ * <p>
+ * If the tests pass in TestTraceSchedule but not here, the bug is in the
+ * profile guided parts of ir.canon.TraceSchedule.
+ */
+public class TestProfileGuidedSchedule extends TestTranslate {
+
+    @Override
+    protected InterpMode getSimulationMode() {
+        return InterpMode.TRACE_SCHEDULE;
+    }
+
+    @Override
+    protected Interp newInterp(Fragments translated) {
+        translated.setProfile(profile(translated));
+        return super.newInterp(translated);
+    }
+
+    private static BlockProfile profile(Fragments translated) {
+        Interp interp = new Interp(translated, InterpMode.BASIC_BLOCKS);
+        BlockProfile profile = new BlockProfile();
+        interp.setProfile(profile);
+        try {
+            interp.run();
+        } catch (Error e) {
+            // A program that fails still leaves a profile of how it got there
+        }
+        return profile;
+    }
+
+    /**
+     * @return how many jumps the trace scheduled program executes.
+     */
+    private static long jumps(Fragments translated) {
+        Interp interp = new Interp(translated, InterpMode.TRACE_SCHEDULE);
+        BlockProfile profile = new BlockProfile();
+        interp.setProfile(profile);
+        interp.run();
+        return profile.getJumps();
+    }
+
+    @Test
+    public void fewerJumpsInHotLoop() throws Exception {
+        // The else branch is the hot one, which trace scheduling without a
+        // profile puts out of line.
+        Fragments translated = Translator.translate(architecture,
+                "class Main {\n" +
+                        "  public static void main(String[] args) {\n" +
+                        "      System.out.println(new Loop().run(1000));\n" +
+                        "  }\n" +
+                        "}\n" +
+                        "class Loop {\n" +
+                        "   public int run(int n) {\n" +
+                        "      int i;\n" +
+                        "      int sum;\n" +
+                        "      i = 0;\n" +
+                        "      sum = 0;\n" +
+                        "      while (i < n) {\n" +
+                        "         if (i < 3) sum = sum + 100;\n" +
+                        "         else sum = sum + i;\n" +
+                        "         i = i + 1;\n" +
+                        "      }\n" +
+                        "      return sum;\n" +
+                        "   }\n" +
+                        "}");
+        long unguided = jumps(translated);
+        translated.setProfile(profile(translated));
+        long guided = jumps(translated);
+        System.out.println("Jumps executed: " + unguided + " without a profile, " + guided + " with one");
+        Assertions.assertTrue(guided < unguided);
+        Assertions.assertEquals("499797\n", new Interp(translated, InterpMode.TRACE_SCHEDULE).run());
+    }
+
+    @Test
+    public void profileReadsBack() throws Exception {
+        Fragments translated = Translator.translate(architecture,
+                "class Main {\n" +
+                        "  public static void main(String[] args) {\n" +
+                        "      System.out.println(new Loop().run(10));\n" +
+                        "  }\n" +
+                        "}\n" +
+                        "class Loop {\n" +
+                        "   public int run(int n) {\n" +
+                        "      int i;\n" +
+                        "      i = 0;\n" +
+                        "      while (i < n) i = i + 1;\n" +
+                        "      return i;\n" +
+                        "   }\n" +
+                        "}");
+        BlockProfile profile = profile(translated);
+        StringWriter out = new StringWriter();
+        profile.write(out);
+        StringWriter again = new StringWriter();
+        translated.getContext().run(() -> BlockProfile.read(new StringReader(out.toString())).write(again));
+        Assertions.assertEquals(out.toString(), again.toString());
+        Assertions.assertTrue(profile.getJumps() > 10);
+    }
+}
@@ -985,11 +985,18 @@ public class TestTranslate {
         return translated;
     }
 
+    /**
+     * Create the interpreter the tests run the translated program with.
+     */
+    protected Interp newInterp(Fragments translated) {
+        return new Interp(translated, getSimulationMode());
+    }
+
     protected String run(Fragments translated) {
         String result = null;
         if (getSimulationMode() != null) {
             System.out.println("Simulating IR code:");
-            Interp interp = new Interp(translated, getSimulationMode());
+            Interp interp = newInterp(translated);
 
             try {
                 result = interp.run();
@@ -1042,7 +1049,7 @@ public class TestTranslate {
         }
         if (getSimulationMode() != null) {
             System.out.println("Simulating IR code:");
-            Interp interp = new Interp(translated, getSimulationMode());
+            Interp interp = newInterp(translated);
             String result = interp.run();
             System.out.print(result);
             Assertions.assertEquals(expected, result);
@@ -0,0 +1,20 @@
+package test.translate;
+
+import ir.interp.InterpMode;
+
+/**
+ * This runs all the same tests as the TestTranslate and TestCompiledInterp test suite.
+ * <p>
+ * The difference is that the compiled code computes with unboxed words, in
+ * the flat heap of ir.interp.FlatHeap, rather than with Word objects.
+ * <p>
+ * If the tests pass in TestCompiledInterp but not here, the bug is in
+ * ir.interp.FlatProc or ir.interp.FlatHeap.
+ */
+public class TestUnboxedInterp extends TestTranslate {
+
+    @Override
+    protected InterpMode getSimulationMode() {
+        return InterpMode.UNBOXED;
+    }
+}
@@ -0,0 +1,149 @@
+package ir.canon;
+
+import ir.temp.Label;
+import ir.tree.CJUMP;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How often the blocks of a program ran, and how control got from one to the
+ * next, as recorded by the IR interpreter (see
+ * {@link ir.interp.Interp#setProfile(BlockProfile)}) and used by
+ * {@link TraceSchedule} to lay out the hot paths as fall-throughs.
+ * <p>
+ * Blocks are known by the labels they start with, so a profile recorded in
+ * BASIC_BLOCKS mode describes exactly the blocks trace scheduling works on.
+ * Labels are remembered by name, which makes a profile written to a file
+ * good for any later compilation of the same program by the same compiler.
+ */
+public class BlockProfile {
+
+    private final Map<Label, Long> counts = new HashMap<Label, Long>();
+    private final Map<Label, Map<Label, Long>> edges = new HashMap<Label, Map<Label, Long>>();
+    private long jumps;
+
+    /**
+     * Record that control went from the block starting at from (null when a
+     * procedure starts) to the block starting at to.
+     *
+     * @param jumped whether it got there by a jump, rather than by falling
+     *               through to the next label.
+     */
+    public void enter(Label from, Label to, boolean jumped) {
+        add(counts, to, 1);
+        if (from != null) {
+            Map<Label, Long> out = edges.get(from);
+            if (out == null) {
+                out = new HashMap<Label, Long>();
+                edges.put(from, out);
+            }
+            add(out, to, 1);
+        }
+        if (jumped)
+            jumps++;
+    }
+
+    private static void add(Map<Label, Long> map, Label key, long n) {
+        Long old = map.get(key);
+        map.put(key, old == null ? n : old + n);
+    }
+
+    /**
+     * @return how many times the block starting at a label ran.
+     */
+    public long getCount(Label block) {
+        Long count = counts.get(block);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return how many times control went from one block straight to another.
+     */
+    public long getEdgeCount(Label from, Label to) {
+        Map<Label, Long> out = edges.get(from);
+        Long count = out == null ? null : out.get(to);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return the fraction of the times a block ending with a CJUMP ran that
+     * the branch went to its true label, or NaN if the block never ran.
+     */
+    public double getTakenRatio(Label block, CJUMP cjump) {
+        long t = getEdgeCount(block, cjump.getTrueLabel());
+        long f = getEdgeCount(block, cjump.getFalseLabel());
+        return t + f == 0 ? Double.NaN : (double) t / (t + f);
+    }
+
+    /**
+     * @return how many of the recorded transfers of control were jumps (the
+     * rest fell through).
+     */
+    public long getJumps() {
+        return jumps;
+    }
+
+    /**
+     * Write the profile, one line per block and one per edge, for
+     * {@link #read(Reader)}.
+     */
+    public void write(Writer out) {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (Map.Entry<Label, Long> e : counts.entrySet())
+            lines.add("block " + e.getKey().getName() + " " + e.getValue());
+        for (Map.Entry<Label, Map<Label, Long>> from : edges.entrySet())
+            for (Map.Entry<Label, Long> to : from.getValue().entrySet())
+                lines.add("edge " + from.getKey().getName() + " " + to.getKey().getName() + " " + to.getValue());
+        // Sorted, so that profiles of the same run are the same text
+        Collections.sort(lines);
+        PrintWriter w = new PrintWriter(out);
+        w.println("jumps " + jumps);
+        for (String line : lines)
+            w.println(line);
+        w.flush();
+    }
+
+    /**
+     * Read a profile {@link #write(Writer)} wrote. The labels are found with
+     * {@link Label#get(String)}, so this should run in the
+     * {@link ir.temp.CompilationContext} of the program the profile is for.
+     */
+    public static BlockProfile read(Reader in) {
+        BlockProfile profile = new BlockProfile();
+        BufferedReader r = new BufferedReader(in);
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 2 && parts[0].equals("jumps"))
+                    profile.jumps += Long.parseLong(parts[1]);
+                else if (parts.length == 3 && parts[0].equals("block"))
+                    add(profile.counts, Label.get(parts[1]), Long.parseLong(parts[2]));
+                else if (parts.length == 4 && parts[0].equals("edge")) {
+                    Label from = Label.get(parts[1]);
+                    Map<Label, Long> out = profile.edges.get(from);
+                    if (out == null) {
+                        out = new HashMap<Label, Long>();
+                        profile.edges.put(from, out);
+                    }
+                    add(out, Label.get(parts[2]), Long.parseLong(parts[3]));
+                } else if (!parts[0].isEmpty())
+                    throw new Error("Bad line in block profile: " + line);
+            }
+        } catch (IOException e) {
+            throw new Error(e);
+        } catch (NumberFormatException e) {
+            throw new Error("Bad count in block profile: " + e.getMessage());
+        }
+        return profile;
+    }
+
+}
@@ -128,10 +128,15 @@ public class Canon {
         else return new SEQ(a, b);
     }
 
+    /**
+     * @return whether b may be evaluated after a rather than before,
+     * see {@link Effects}.
+     */
     static boolean commute(IRStm a, IRExp b) {
         return isNop(a)
                 || b instanceof NAME
-                || b instanceof CONST;
+                || b instanceof CONST
+                || new Effects(a).commutesWith(b);
     }
 
     static IRStm do_stm(SEQ s) {
@@ -232,7 +237,22 @@ public class Canon {
         else return List.cons(s, l);
     }
 
+    /**
+     * Turn a procedure body into a list of statements without SEQ or ESEQ,
+     * with calls only at the top of a MOVE to a TEMP or of an EXP. This is
+     * done by a {@link Linearizer}, which gives the same result as
+     * {@link #linearizeByTheBook(IRStm)} but doesn't recurse.
+     */
     static public List<IRStm> linearize(IRStm s) {
+        return new Linearizer().linearize(s);
+    }
+
+    /**
+     * The book's recursive algorithm, which recurses at least once for each
+     * statement of the body. Kept to check and measure
+     * {@link #linearize(IRStm)} against.
+     */
+    static public List<IRStm> linearizeByTheBook(IRStm s) {
         return linear(do_stm(s), nullStmList);
     }
 }
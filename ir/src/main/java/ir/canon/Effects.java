@@ -0,0 +1,216 @@
+package ir.canon;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import ir.temp.Label;
+import ir.temp.Temp;
+import ir.tree.BINOP;
+import ir.tree.CALL;
+import ir.tree.CJUMP;
+import ir.tree.CMOVE;
+import ir.tree.CONST;
+import ir.tree.EXP;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+import ir.tree.JUMP;
+import ir.tree.LABEL;
+import ir.tree.MEM;
+import ir.tree.MOVE;
+import ir.tree.NAME;
+import ir.tree.SEQ;
+import ir.tree.TEMP;
+import translate.TranslatorLabels;
+
+/**
+ * What a sequence of canonical statements may do that an expression
+ * evaluated before them could notice, for {@link Canon#commute(IRStm, IRExp)}:
+ * which Temps they write, which memory they write, whether they call
+ * procedures that may write any memory, and whether they do anything the
+ * outside world can see.
+ * <p>
+ * An expression commutes with the statements, so that it may be evaluated
+ * after them instead of before, if
+ * <ul>
+ * <li>none of the Temps it reads are written by them (nor any register,
+ * if they call anything, since calls don't keep registers),</li>
+ * <li>none of its memory reads may alias their memory writes, and they call
+ * nothing that may write memory, and</li>
+ * <li>if it may fail (it reads memory or divides), they do nothing visible
+ * that it would no longer fail before.</li>
+ * </ul>
+ * Whether two addresses may alias is only decided for the simple cases:
+ * addresses off the same Temp, which isn't written, or off the same label
+ * are different if their constant offsets are a word or more apart, and
+ * addresses off different labels are always different.
+ * <p>
+ * This expects the statements to be canonical, with calls only at the top
+ * of an EXP or of a MOVE to a TEMP.
+ */
+class Effects {
+
+    private static final int WORD_SIZE = 8;
+
+    /**
+     * How a call to a label changes things.
+     */
+    private enum Call {
+        /**
+         * Only writes memory it allocates, which nothing could read before.
+         */
+        ALLOCATES,
+        /**
+         * Writes no memory, but the outside world sees it.
+         */
+        VISIBLE,
+        /**
+         * May do anything.
+         */
+        ANYTHING
+    }
+
+    private final HashSet<Temp> written = new HashSet<Temp>();
+    private final ArrayList<IRExp> writtenMemory = new ArrayList<IRExp>();
+    private boolean calls;
+    private boolean writesAnyMemory;
+    private boolean visible;
+
+    Effects() {
+    }
+
+    /**
+     * The effects of a statement, which may be a SEQ of canonical
+     * statements.
+     */
+    Effects(IRStm s) {
+        add(s);
+    }
+
+    private static Call call(CALL call) {
+        if (call.func instanceof NAME) {
+            Label l = ((NAME) call.func).getLabel();
+            if (l == TranslatorLabels.L_NEW_OBJECT || l == TranslatorLabels.L_NEW_ARRAY)
+                return Call.ALLOCATES;
+            if (l == TranslatorLabels.L_PRINT || l == TranslatorLabels.L_ERROR)
+                return Call.VISIBLE;
+        }
+        return Call.ANYTHING;
+    }
+
+    private void add(CALL c) {
+        calls = true;
+        switch (call(c)) {
+            case ALLOCATES:
+                break;
+            case VISIBLE:
+                visible = true;
+                break;
+            default:
+                visible = true;
+                writesAnyMemory = true;
+        }
+    }
+
+    private void write(IRExp dst) {
+        if (dst instanceof TEMP)
+            written.add(((TEMP) dst).temp);
+        else if (dst instanceof MEM)
+            writtenMemory.add(((MEM) dst).exp);
+        else
+            writesAnyMemory = true;
+    }
+
+    void add(IRStm s) {
+        if (s instanceof SEQ) {
+            add(((SEQ) s).left);
+            add(((SEQ) s).right);
+        } else if (s instanceof MOVE) {
+            MOVE move = (MOVE) s;
+            write(move.dst);
+            if (move.src instanceof CALL)
+                add((CALL) move.src);
+        } else if (s instanceof EXP) {
+            IRExp e = ((EXP) s).exp;
+            if (e instanceof CALL)
+                add((CALL) e);
+        } else if (s instanceof CMOVE) {
+            write(((CMOVE) s).dst);
+        } else if (!(s instanceof LABEL || s instanceof JUMP || s instanceof CJUMP)) {
+            // Don't know what it does
+            calls = true;
+            visible = true;
+            writesAnyMemory = true;
+        }
+    }
+
+    /**
+     * @return whether an expression may be evaluated after the statements
+     * rather than before.
+     */
+    boolean commutesWith(IRExp e) {
+        if (e instanceof CONST || e instanceof NAME)
+            return true;
+        if (e instanceof TEMP) {
+            Temp t = ((TEMP) e).temp;
+            return !written.contains(t) && !(calls && isRegister(t));
+        }
+        if (e instanceof MEM) {
+            IRExp address = ((MEM) e).exp;
+            if (visible || writesAnyMemory)
+                return false;
+            for (IRExp w : writtenMemory)
+                if (mayAlias(address, w))
+                    return false;
+            return commutesWith(address);
+        }
+        if (e instanceof BINOP) {
+            BINOP b = (BINOP) e;
+            if (b.binop == BINOP.Op.DIV && visible)
+                return false;
+            return commutesWith(b.left) && commutesWith(b.right);
+        }
+        return false;
+    }
+
+    private static boolean isRegister(Temp t) {
+        return t.getContext() == null;
+    }
+
+    private boolean mayAlias(IRExp a, IRExp b) {
+        IRExp baseA = base(a), baseB = base(b);
+        if (baseA instanceof NAME && baseB instanceof NAME) {
+            if (((NAME) baseA).getLabel() != ((NAME) baseB).getLabel())
+                return false;
+        } else if (baseA instanceof TEMP && baseB instanceof TEMP) {
+            Temp t = ((TEMP) baseA).temp;
+            if (t != ((TEMP) baseB).temp || written.contains(t))
+                return true;
+        } else
+            return true;
+        return Math.abs(offset(a) - offset(b)) < WORD_SIZE;
+    }
+
+    /**
+     * @return the Temp or label an address is a constant offset from, or
+     * null.
+     */
+    private static IRExp base(IRExp address) {
+        if (address instanceof TEMP || address instanceof NAME)
+            return address;
+        if (address instanceof BINOP) {
+            BINOP b = (BINOP) address;
+            if ((b.binop == BINOP.Op.PLUS || b.binop == BINOP.Op.MINUS) && b.right instanceof CONST)
+                return base(b.left);
+        }
+        return null;
+    }
+
+    private static long offset(IRExp address) {
+        if (address instanceof BINOP) {
+            BINOP b = (BINOP) address;
+            long k = ((CONST) b.right).getValue();
+            return offset(b.left) + (b.binop == BINOP.Op.PLUS ? k : -k);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,299 @@
+package ir.canon;
+
+import java.util.Arrays;
+
+import ir.temp.Temp;
+import ir.tree.CALL;
+import ir.tree.CONST;
+import ir.tree.ESEQ;
+import ir.tree.EXP;
+import ir.tree.IRExp;
+import ir.tree.IRNode;
+import ir.tree.IRStm;
+import ir.tree.MOVE;
+import ir.tree.NAME;
+import ir.tree.SEQ;
+import ir.tree.TEMP;
+import util.List;
+
+/**
+ * Linearizes a procedure body for {@link Canon#linearize(IRStm)}, giving
+ * exactly what the book's recursive algorithm ({@link Canon#linearizeByTheBook(IRStm)})
+ * gives: the same statements in the same order, with the same Temps made in
+ * the same order. But it doesn't recurse, so the size of a body is not
+ * limited by the Java stack, and it puts the statements straight into an
+ * array rather than building SEQ trees to flatten afterwards.
+ * <p>
+ * The work to do is kept on a stack of tasks: a statement to linearize, an
+ * expression to linearize the statements out of, or a {@link Frame} that is
+ * part way through the kids of a node.
+ * <p>
+ * When an expression of a list of kids isn't a constant, the book moves its
+ * value to a new Temp if the kids after it have any statements that might
+ * change it (see {@link Canon#commute(IRStm, IRExp)}). This is only known once
+ * they are done, so a slot for that move is kept in the output, filled in or
+ * dropped when the whole list is done.
+ */
+class Linearizer {
+
+    /**
+     * What is done with the kids of a Frame once they are linearized.
+     */
+    private static final int BUILD_STM = 0, BUILD_EXP = 1, MOVE_CALL = 2, EXP_CALL = 3, CALL_EXP = 4;
+
+    /**
+     * A node whose kids are being linearized, one after the other.
+     */
+    private static final class Frame {
+        int kind;
+        IRNode node;
+
+        /**
+         * Where a call's result goes, for MOVE_CALL and CALL_EXP.
+         */
+        TEMP temp;
+
+        IRExp[] kids = new IRExp[4];
+
+        /**
+         * The linearized kids.
+         */
+        IRExp[] values = new IRExp[4];
+
+        /**
+         * Where the move of each kid's value to a Temp may go, or -1.
+         */
+        int[] slots = new int[4];
+
+        /**
+         * How many statements there were when each slot was kept.
+         */
+        int[] emittedAt = new int[4];
+
+        int size, next;
+
+        void reset(int kind, IRNode node, TEMP temp, List<IRExp> kids) {
+            this.kind = kind;
+            this.node = node;
+            this.temp = temp;
+            int n = kids.size();
+            if (n > this.kids.length) {
+                int length = Math.max(n, this.kids.length * 2);
+                this.kids = new IRExp[length];
+                values = new IRExp[length];
+                slots = new int[length];
+                emittedAt = new int[length];
+            }
+            int i = 0;
+            for (IRExp k : kids)
+                this.kids[i++] = k;
+            size = n;
+            next = 0;
+        }
+
+        List<IRExp> values() {
+            List<IRExp> l = List.empty();
+            for (int i = 0; i < size; i++)
+                l.add(values[i]);
+            return l;
+        }
+    }
+
+    private IRStm[] out = new IRStm[64];
+    private int size;
+
+    /**
+     * How many statements there are in out, not counting the slots that
+     * aren't filled.
+     */
+    private int emitted;
+
+    /**
+     * The last statement that did nothing, which is what the book's
+     * algorithm gives if all statements do nothing.
+     */
+    private IRStm lastNop;
+
+    private Object[] tasks = new Object[64];
+    private int top;
+
+    private Frame[] frames = new Frame[16];
+    private int depth;
+
+    List<IRStm> linearize(IRStm body) {
+        push(body);
+        while (top > 0) {
+            Object task = tasks[--top];
+            tasks[top] = null;
+            if (task instanceof IRStm)
+                stm((IRStm) task);
+            else if (task instanceof IRExp)
+                exp((IRExp) task);
+            else
+                resume((Frame) task);
+        }
+        if (emitted == 0)
+            return List.list(lastNop);
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            if (out[i] != null)
+                out[n++] = out[i];
+        return List.list(Arrays.copyOf(out, n));
+    }
+
+    private void push(Object task) {
+        if (top == tasks.length)
+            tasks = Arrays.copyOf(tasks, top * 2);
+        tasks[top++] = task;
+    }
+
+    private void append(IRStm s) {
+        if (size == out.length)
+            out = Arrays.copyOf(out, size * 2);
+        out[size++] = s;
+    }
+
+    private void emit(IRStm s) {
+        if (Canon.isNop(s)) {
+            lastNop = s;
+        } else {
+            append(s);
+            emitted++;
+        }
+    }
+
+    private void stm(IRStm s) {
+        if (s instanceof SEQ) {
+            push(((SEQ) s).right);
+            push(((SEQ) s).left);
+        } else if (s instanceof MOVE) {
+            MOVE move = (MOVE) s;
+            if (move.dst instanceof TEMP && move.src instanceof CALL) {
+                open(MOVE_CALL, move.src, (TEMP) move.dst, move.src.kids());
+            } else if (move.dst instanceof ESEQ) {
+                ESEQ dst = (ESEQ) move.dst;
+                push(new MOVE(dst.exp, move.src));
+                push(dst.stm);
+            } else
+                open(BUILD_STM, s, null, s.kids());
+        } else if (s instanceof EXP && ((EXP) s).exp instanceof CALL) {
+            CALL call = (CALL) ((EXP) s).exp;
+            open(EXP_CALL, call, null, call.kids());
+        } else
+            open(BUILD_STM, s, null, s.kids());
+    }
+
+    /**
+     * Linearize an expression, and give its value to the frame it is a kid
+     * of.
+     */
+    private void exp(IRExp e) {
+        if (e instanceof ESEQ) {
+            push(((ESEQ) e).exp);
+            push(((ESEQ) e).stm);
+        } else if (e instanceof CALL) {
+            TEMP t = new TEMP(new Temp());
+            open(CALL_EXP, e, t, e.kids());
+        } else {
+            List<IRExp> kids = e.kids();
+            if (kids.isEmpty())
+                give(e.build(kids));
+            else
+                open(BUILD_EXP, e, null, kids);
+        }
+    }
+
+    private void open(int kind, IRNode node, TEMP temp, List<IRExp> kids) {
+        if (depth == frames.length)
+            frames = Arrays.copyOf(frames, depth * 2);
+        Frame f = frames[depth];
+        if (f == null)
+            f = frames[depth] = new Frame();
+        depth++;
+        f.reset(kind, node, temp, kids);
+        push(f);
+    }
+
+    /**
+     * Go on with the next kid of a frame, or finish it if they are all done.
+     */
+    private void resume(Frame f) {
+        if (f.next < f.size) {
+            push(f);
+            IRExp kid = f.kids[f.next];
+            if (kid instanceof CALL) {
+                // The book puts the call's value in a Temp first
+                TEMP t = new TEMP(new Temp());
+                push(t);
+                open(MOVE_CALL, kid, t, kid.kids());
+            } else
+                push(kid);
+            return;
+        }
+        // The effects of the statements after the slot of kid i, gathered
+        // from the end back to the slot
+        Effects after = null;
+        int from = size;
+        for (int i = f.size - 1; i >= 0; i--) {
+            int slot = f.slots[i];
+            if (slot < 0)
+                continue;
+            if (emitted > f.emittedAt[i]) {
+                if (after == null)
+                    after = new Effects();
+                for (int j = slot + 1; j < from && j < size; j++)
+                    if (out[j] != null)
+                        after.add(out[j]);
+                // Next time up to the slot too, for the move if there is one
+                from = slot + 1;
+            }
+            if (emitted > f.emittedAt[i] && !after.commutesWith(f.values[i])) {
+                TEMP t = new TEMP(new Temp());
+                out[slot] = new MOVE(t, f.values[i]);
+                f.values[i] = t;
+                emitted++;
+            } else if (slot == size - 1) {
+                size--;
+            }
+        }
+        depth--;
+        switch (f.kind) {
+            case BUILD_STM:
+                emit(((IRStm) f.node).build(f.values()));
+                break;
+            case BUILD_EXP:
+                give(((IRExp) f.node).build(f.values()));
+                break;
+            case MOVE_CALL:
+                emit(new MOVE(f.temp, ((CALL) f.node).build(f.values())));
+                break;
+            case EXP_CALL:
+                emit(new EXP(((CALL) f.node).build(f.values())));
+                break;
+            case CALL_EXP:
+                emit(new MOVE(f.temp, ((CALL) f.node).build(f.values())));
+                give(f.temp);
+                break;
+            default:
+                throw new Error("Unknown kind of frame " + f.kind);
+        }
+        f.node = null;
+        f.temp = null;
+    }
+
+    /**
+     * Give the value of a kid to the frame that is waiting for it.
+     */
+    private void give(IRExp value) {
+        Frame f = frames[depth - 1];
+        int i = f.next++;
+        f.values[i] = value;
+        if (value instanceof NAME || value instanceof CONST) {
+            f.slots[i] = -1;
+        } else {
+            f.slots[i] = size;
+            append(null);
+            f.emittedAt[i] = emitted;
+        }
+    }
+}
@@ -14,6 +14,20 @@ import java.util.Map;
 import util.List;
 
 
+/**
+ * Puts the basic blocks of a procedure back together so that as many jumps as
+ * possible become fall-throughs, by following traces of blocks.
+ * <p>
+ * Traces start at the blocks in the order they come in. Without a profile, a
+ * CJUMP is followed by its true target if it can be. With a
+ * {@link BlockProfile}, a CJUMP is followed by the target it went to most
+ * often, so traces grow along the hottest edges, and where neither target can
+ * follow, the likely one is the one branched to rather than jumped to.
+ * <p>
+ * Traces are not started at the hottest blocks first: that breaks up the
+ * fall-throughs from blocks into their hot successors, and costs more jumps
+ * than it saves.
+ */
 public class TraceSchedule {
 
     /**
@@ -24,7 +38,17 @@ public class TraceSchedule {
     private Map<Label, List<IRStm>> table = new HashMap<Label, List<IRStm>>();
     private Label doneLabel;
 
+    /**
+     * The profile guiding the choice of traces, or null.
+     */
+    private final BlockProfile profile;
+
     public TraceSchedule(BasicBlocks bb) {
+        this(bb, null);
+    }
+
+    public TraceSchedule(BasicBlocks bb, BlockProfile profile) {
+        this.profile = profile;
         List<List<IRStm>> theBlocks = bb.blocks;
         this.doneLabel = bb.doneLabel;
         //First we build a map to easily find a block corresponding to
@@ -49,6 +73,15 @@ public class TraceSchedule {
 
     }
 
+    /**
+     * @return whether the profile says a CJUMP at the end of a block went to
+     * its true label more often than to its false label.
+     */
+    private boolean likelyTrue(Label block, CJUMP cjump) {
+        return profile.getEdgeCount(block, cjump.getTrueLabel())
+                > profile.getEdgeCount(block, cjump.getFalseLabel());
+    }
+
     /**
      * Follow a trace starting at a given block, adding all the instructions
      * covered by the trace into the program.
@@ -78,7 +111,20 @@ public class TraceSchedule {
                 CJUMP cjump = (CJUMP) last;
                 Label falseTarget = cjump.getFalseLabel();
                 Label trueTarget = cjump.getTrueLabel();
-                if (table.containsKey(trueTarget)) {
+                if (profile != null && table.containsKey(falseTarget)
+                        && (!table.containsKey(trueTarget) || !likelyTrue(startAt, cjump))) {
+                    getProgram().add(cjump);
+                    trace(falseTarget);
+                } else if (profile != null && !table.containsKey(falseTarget) && !table.containsKey(trueTarget)
+                        && !likelyTrue(startAt, cjump)) {
+                    // Neither can follow: branch to the likely false target
+                    // and jump to the other.
+                    Label newFalseLabel = Label.gen();
+                    CJUMP flipped = cjump.flip();
+                    getProgram().add(flipped.changeFalseLabel(newFalseLabel));
+                    getProgram().add(LABEL(newFalseLabel));
+                    getProgram().add(JUMP(trueTarget));
+                } else if (table.containsKey(trueTarget)) {
                     getProgram().add(cjump.flip());
                     trace(trueTarget);
                 } else if (table.containsKey(falseTarget)) {
@@ -4,6 +4,7 @@ import util.DefaultIndentable;
 import util.IndentingWriter;
 import util.List;
 import ir.interp.Interp;
+import ir.interp.TempSlots;
 import ir.interp.Word;
 import ir.interp.X86_64SimFrame;
 import ir.temp.Label;
@@ -74,8 +75,17 @@ public abstract class Frame extends DefaultIndentable {
     /**
      * Create an object to simulate the contents of this Frame, used by the
      * IR interpreter to simulate the execution of IR code for testing purposes.
+     *
+     * @param slots made by {@link #newTempSlots()}, usually shared by all the
+     *              frames of a procedure.
      */
-    public abstract X86_64SimFrame newSimFrame(Interp interp, List<Word> args);
+    public abstract X86_64SimFrame newSimFrame(Interp interp, TempSlots slots, List<Word> args);
+
+    /**
+     * Create the numbering of temps that simulated frames of this kind keep
+     * their temps by.
+     */
+    public abstract TempSlots newTempSlots();
 
     //////////////////////////////////////////////////////////////////////
     /// Chapter 9 additions: (for codegeneration phase)
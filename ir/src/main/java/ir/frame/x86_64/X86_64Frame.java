@@ -11,6 +11,7 @@ import ir.frame.Access;
 import ir.frame.Frame;
 import ir.frame.x86_64.InArg;
 import ir.interp.Interp;
+import ir.interp.TempSlots;
 import ir.interp.Word;
 import ir.interp.X86_64SimFrame;
 import ir.temp.Label;
@@ -186,8 +187,13 @@ public class X86_64Frame extends Frame {
     }
 
     @Override
-    public X86_64SimFrame newSimFrame(Interp interp, List<Word> args) {
-        return new X86_64SimFrame(interp, this, args);
+    public X86_64SimFrame newSimFrame(Interp interp, TempSlots slots, List<Word> args) {
+        return new X86_64SimFrame(interp, this, slots, args);
+    }
+
+    @Override
+    public TempSlots newTempSlots() {
+        return X86_64SimFrame.newTempSlots();
     }
 
     //////////////////////////////////
@@ -249,25 +255,40 @@ public class X86_64Frame extends Frame {
      */
     @Override
     public void entrySequence(IndentingWriter out) {
-        int localsSpace = localsSpace();
-        if (localsSpace % 16 != 0)
-            localsSpace += 8;
-        if (localsSpace > 0 || inArgsOnStack()) {
+        if (savesFramePointer()) {
             out.println("pushq  %rbp");
             out.println("movq   %rsp, %rbp");
-            if (localsSpace > 0)
-                out.println("subq   $" + localsSpace + ", %rsp");
-        } else if (maxOutArgs > 0) {
-            out.println("subq   $8, %rsp");
         }
+        if (stackAdjustment() > 0)
+            out.println("subq   $" + stackAdjustment() + ", %rsp");
     }
 
     @Override
     public void exitSequence(IndentingWriter out) {
-        if (localsSpace() > 0 || inArgsOnStack())
+        if (savesFramePointer())
             out.println("leave");
-        else if (maxOutArgs > 0)
-            out.println("addq   $8, %rsp");
+        else if (stackAdjustment() > 0)
+            out.println("addq   $" + stackAdjustment() + ", %rsp");
         out.println("ret");
     }
+
+    /**
+     * @return whether the entry sequence pushes %rbp and points it at the
+     * frame, which the exit sequence undoes with leave.
+     */
+    public boolean savesFramePointer() {
+        return localsSpace() > 0 || inArgsOnStack();
+    }
+
+    /**
+     * @return how far the entry sequence moves %rsp down after that, so
+     * that it stays 16 byte aligned at calls.
+     */
+    public int stackAdjustment() {
+        if (savesFramePointer()) {
+            int localsSpace = localsSpace();
+            return localsSpace % 16 != 0 ? localsSpace + 8 : localsSpace;
+        }
+        return maxOutArgs > 0 ? 8 : 0;
+    }
 }
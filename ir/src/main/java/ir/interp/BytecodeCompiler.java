@@ -0,0 +1,524 @@
+package ir.interp;
+
+import ir.frame.x86_64.X86_64Frame;
+import ir.temp.Label;
+import ir.temp.Temp;
+import ir.tree.BINOP;
+import ir.tree.CALL;
+import ir.tree.CJUMP;
+import ir.tree.CJUMP.RelOp;
+import ir.tree.CMOVE;
+import ir.tree.CONST;
+import ir.tree.EXP;
+import ir.tree.IRData;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+import ir.tree.JUMP;
+import ir.tree.LABEL;
+import ir.tree.MEM;
+import ir.tree.MOVE;
+import ir.tree.NAME;
+import ir.tree.TEMP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import translate.DataFragment;
+import translate.Fragment;
+import translate.Fragments;
+import translate.ProcFragment;
+import translate.TranslatorLabels;
+import util.ClassFile;
+import util.List;
+
+import static util.ClassFile.*;
+
+/**
+ * Compiles a whole program, from the trace scheduled IR code of its
+ * procedures, to a JVM class, so that HotSpot can run it at close to native
+ * speed. See {@link JvmProgram} for how the words of the IR are represented.
+ * <p>
+ * Each procedure becomes a method taking its arguments and returning its
+ * result as ints. Its temps are JVM locals and its frame is a block on the
+ * stack in memory, laid out as by {@link X86_64SimFrame}. A call to a label
+ * is a direct call of the method, or of a helper in {@link JvmProgram} for the
+ * runtime's labels, and a call to any other address goes through a switch over
+ * the procedures that take that many arguments.
+ * <p>
+ * A procedure too long for 16 bit jump offsets is compiled again with wide
+ * jumps. One too long for a JVM method can't be compiled at all, and then
+ * {@link Interp} runs the whole program in UNBOXED mode instead.
+ */
+class BytecodeCompiler {
+
+    private static final String BASE = "ir/interp/JvmProgram";
+
+    // The locals of each generated method, after this and its arguments
+    private static final int THIS = 0;
+
+    private static final AtomicInteger compiled = new AtomicInteger();
+
+    private final String name = "ir/interp/Program" + compiled.incrementAndGet();
+    private final ClassFile classFile = new ClassFile(name, BASE);
+
+    private final ArrayList<ProcFragment> procs = new ArrayList<ProcFragment>();
+    private final Map<Label, Integer> procIndex = new HashMap<Label, Integer>();
+    private final Map<Label, Integer> addresses = new HashMap<Label, Integer>();
+    private int nextCodeAddress = JvmProgram.CODE_BASE;
+    private long[] data;
+
+    /**
+     * For each number of arguments that calls to addresses pass, the
+     * procedures taking that many.
+     */
+    private final Map<Integer, ArrayList<Integer>> dispatchers = new TreeMap<Integer, ArrayList<Integer>>();
+
+    // The method being compiled
+    private ClassFile.Code c;
+    private TempSlots slots;
+    private int firstTempLocal;
+    private Map<Label, Integer> labels;
+    private int maxStack;
+
+    BytecodeCompiler(Fragments program) {
+        ArrayList<IRData> datas = new ArrayList<IRData>();
+        for (Fragment fragment : program) {
+            if (fragment instanceof ProcFragment) {
+                ProcFragment proc = (ProcFragment) fragment;
+                procIndex.put(proc.getLabel(), procs.size());
+                procs.add(proc);
+                addresses.put(proc.getLabel(), nextCodeAddress);
+                nextCodeAddress += 8;
+            } else if (fragment instanceof DataFragment) {
+                datas.add(((DataFragment) fragment).getBody());
+            } else {
+                throw new Error("Bytecode compiler doesn't know about fragments of this type: " + fragment.getClass());
+            }
+        }
+        if (!procIndex.containsKey(TranslatorLabels.L_MAIN))
+            throw new Error("No main procedure");
+        // The data goes after a null word
+        int words = 1;
+        for (IRData d : datas) {
+            addresses.put(d.getLabel(), words * 8);
+            for (IRExp e : d)
+                words++;
+        }
+        data = new long[words];
+        int at = 1;
+        for (IRData d : datas) {
+            for (IRExp e : d) {
+                if (e instanceof CONST)
+                    data[at++] = ((CONST) e).getValue();
+                else if (e instanceof NAME)
+                    data[at++] = address(((NAME) e).getLabel());
+                else
+                    throw new Error("Data can only be constants or labels: " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the address of a label, making up a code address for labels
+     * that are neither procedures nor data.
+     */
+    private int address(Label label) {
+        Integer address = addresses.get(label);
+        if (address == null) {
+            address = nextCodeAddress;
+            nextCodeAddress += 8;
+            addresses.put(label, address);
+        }
+        return address;
+    }
+
+    private static String descriptor(int args) {
+        StringBuilder d = new StringBuilder("(");
+        for (int i = 0; i < args; i++)
+            d.append('I');
+        return d.append(")I").toString();
+    }
+
+    private static int arity(ProcFragment proc) {
+        return proc.getFrame().getFormals().size();
+    }
+
+    /**
+     * @return the compiled program, or null if one of its procedures is too
+     * big for a JVM method.
+     */
+    JvmProgram compile(int stackWords) {
+        for (int i = 0; i < procs.size(); i++) {
+            compileProc(i, false);
+            // Only a body this long can have a jump too far for a 16 bit offset
+            if (c.size() > Short.MAX_VALUE)
+                compileProc(i, true);
+            if (c.size() > MAX_CODE_LENGTH)
+                return null;
+            addProc(i);
+        }
+        for (Map.Entry<Integer, ArrayList<Integer>> e : dispatchers.entrySet())
+            compileDispatcher(e.getKey(), e.getValue());
+        // The other modes call main without arguments, so any formals it has are 0
+        int mainIndex = procIndex.get(TranslatorLabels.L_MAIN);
+        int mainArgs = arity(procs.get(mainIndex));
+        ClassFile.Code main = classFile.new Code();
+        main.load(ALOAD, THIS);
+        for (int i = 0; i < mainArgs; i++)
+            main.pushInt(0);
+        main.invoke(INVOKEVIRTUAL, name, "p" + mainIndex, descriptor(mainArgs));
+        main.op(POP);
+        main.op(RETURN);
+        classFile.addMethod("runMain", "()V", main, mainArgs + 1, 1);
+
+        byte[] bytes = classFile.toBytes();
+        try {
+            Class<?> cls = new Loader(JvmProgram.class.getClassLoader()).define(name.replace('/', '.'), bytes);
+            JvmProgram program = (JvmProgram) cls.newInstance();
+            program.load(data, stackWords);
+            return program;
+        } catch (ReflectiveOperationException e) {
+            throw new Error("Can't load compiled program", e);
+        }
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private int local(Temp t) {
+        return firstTempLocal + slots.slot(t);
+    }
+
+    private int label(Label l) {
+        Integer label = labels.get(l);
+        if (label == null)
+            throw new Error("Jump to " + l + " outside of its procedure");
+        return label;
+    }
+
+    /**
+     * Compile a procedure into c, to be added to the class by
+     * {@link #addProc(int)}.
+     */
+    private void compileProc(int index, boolean wideJumps) {
+        ProcFragment proc = procs.get(index);
+        X86_64Frame frame = (X86_64Frame) proc.getFrame();
+        int args = arity(proc);
+        List<IRStm> body = proc.getTraceScheduledBody();
+        c = classFile.new Code();
+        if (wideJumps)
+            c.useWideJumps();
+        slots = frame.newTempSlots();
+        slots.addAll(body);
+        firstTempLocal = 1 + args;
+        labels = new HashMap<Label, Integer>();
+        for (IRStm stm : body)
+            if (stm instanceof LABEL)
+                labels.put(((LABEL) stm).getLabel(), c.newLabel());
+
+        // The temps start as 0, which also keeps the verifier happy
+        for (int slot = 0; slot < slots.size(); slot++) {
+            c.pushInt(0);
+            c.store(ISTORE, firstTempLocal + slot);
+        }
+        int registerArgs = X86_64Frame.arguments.size();
+        int frameWords = (args < registerArgs ? 0 : args - registerArgs) + 2 + frame.numLocals();
+        c.load(ALOAD, THIS);
+        c.pushInt(frameWords);
+        c.invoke(INVOKEVIRTUAL, BASE, "pushFrame", "(I)I");
+        c.pushInt(frame.numLocals() * frame.wordSize());
+        c.op(IADD);
+        c.store(ISTORE, local(X86_64Frame.FP));
+        for (int i = 0; i < args; i++) {
+            if (i < registerArgs) {
+                c.load(ILOAD, 1 + i);
+                c.store(ISTORE, local(X86_64Frame.arguments.get(i)));
+            } else {
+                memory();
+                c.load(ILOAD, local(X86_64Frame.FP));
+                c.pushInt(X86_64Frame.FIRST_FORMAL_OFFSET + (i - registerArgs) * X86_64Frame.FORMAL_INCREMENT);
+                c.op(IADD);
+                index();
+                c.load(ILOAD, 1 + i);
+                c.op(I2L);
+                c.op(LASTORE);
+            }
+        }
+
+        maxStack = 6;
+        for (List<IRStm> stms = body; !stms.isEmpty(); stms = stms.tail()) {
+            IRStm next = stms.tail().isEmpty() ? null : stms.tail().head();
+            compile(stms.head(), next);
+            maxStack = Math.max(maxStack, need(stms.head()) + 2);
+        }
+
+        c.load(ALOAD, THIS);
+        c.pushInt(frameWords);
+        c.invoke(INVOKEVIRTUAL, BASE, "popFrame", "(I)V");
+        c.load(ILOAD, local(X86_64Frame.RV));
+        c.op(IRETURN);
+    }
+
+    private void addProc(int index) {
+        classFile.addMethod("p" + index, descriptor(arity(procs.get(index))), c, maxStack, firstTempLocal + slots.size());
+    }
+
+    /**
+     * Push the memory array.
+     */
+    private void memory() {
+        c.load(ALOAD, THIS);
+        c.field(GETFIELD, BASE, "memory", "[J");
+    }
+
+    /**
+     * Turn the address on top of the stack into an index in memory.
+     */
+    private void index() {
+        c.pushInt(3);
+        c.op(ISHR);
+    }
+
+    private void compile(IRStm stm, IRStm next) {
+        if (stm instanceof LABEL) {
+            c.mark(labels.get(((LABEL) stm).getLabel()));
+        } else if (stm instanceof MOVE) {
+            MOVE move = (MOVE) stm;
+            if (move.dst instanceof TEMP) {
+                compile(move.src);
+                c.store(ISTORE, local(((TEMP) move.dst).temp));
+            } else if (move.dst instanceof MEM) {
+                memory();
+                compile(((MEM) move.dst).exp);
+                index();
+                compile(move.src);
+                c.op(I2L);
+                c.op(LASTORE);
+            } else
+                throw new Error("This IR " + move.dst + " is not legal as the LHS of a MOVE.");
+        } else if (stm instanceof EXP) {
+            compile(((EXP) stm).exp);
+            c.op(POP);
+        } else if (stm instanceof JUMP) {
+            IRExp exp = ((JUMP) stm).getExp();
+            if (!(exp instanceof NAME))
+                throw new Error("Can't compile a jump to a computed address: " + stm);
+            c.jump(GOTO, label(((NAME) exp).getLabel()));
+        } else if (stm instanceof CJUMP) {
+            CJUMP cjump = (CJUMP) stm;
+            int iftrue = label(cjump.getTrueLabel()), iffalse = label(cjump.getFalseLabel());
+            compileCondition(cjump.getOp(), cjump.getLeft(), cjump.getRight(), iftrue);
+            if (!(next instanceof LABEL && ((LABEL) next).getLabel() == cjump.getFalseLabel()))
+                c.jump(GOTO, iffalse);
+        } else if (stm instanceof CMOVE) {
+            CMOVE cmove = (CMOVE) stm;
+            switch (cmove.relop) {
+                case LT:
+                case NE:
+                case EQ:
+                case GT:
+                case GE:
+                case LE:
+                    break;
+                default:
+                    throw new Error("Missing case? " + cmove.relop);
+            }
+            int skip = c.newLabel();
+            compileCondition(cmove.relop.not(), cmove.left, cmove.right, skip);
+            compile(new MOVE(cmove.dst, cmove.src), null);
+            c.mark(skip);
+        } else {
+            throw new Error("Can't compile " + stm.getClass().getSimpleName() + ", the IR is not linearized");
+        }
+    }
+
+    /**
+     * Jump to the label if the condition holds, else fall through.
+     */
+    private void compileCondition(RelOp op, IRExp l, IRExp r, int label) {
+        compile(l);
+        compile(r);
+        switch (op) {
+            case EQ:
+                c.jump(IF_ICMPEQ, label);
+                break;
+            case NE:
+                c.jump(IF_ICMPNE, label);
+                break;
+            case LT:
+                c.jump(IF_ICMPLT, label);
+                break;
+            case GE:
+                c.jump(IF_ICMPGE, label);
+                break;
+            case GT:
+                c.jump(IF_ICMPGT, label);
+                break;
+            case LE:
+                c.jump(IF_ICMPLE, label);
+                break;
+            case ULT:
+                c.invoke(INVOKESTATIC, BASE, "isULT", "(II)Z");
+                c.jump(IFNE, label);
+                break;
+            case UGE:
+                c.invoke(INVOKESTATIC, BASE, "isULT", "(II)Z");
+                c.jump(IFEQ, label);
+                break;
+            default:
+                throw new Error("Missing case? " + op);
+        }
+    }
+
+    private void compile(IRExp exp) {
+        if (exp instanceof CONST) {
+            c.pushInt(((CONST) exp).getValue());
+        } else if (exp instanceof TEMP) {
+            c.load(ILOAD, local(((TEMP) exp).temp));
+        } else if (exp instanceof NAME) {
+            c.pushInt(address(((NAME) exp).getLabel()));
+        } else if (exp instanceof MEM) {
+            memory();
+            compile(((MEM) exp).exp);
+            index();
+            c.op(LALOAD);
+            c.op(L2I);
+        } else if (exp instanceof BINOP) {
+            BINOP binop = (BINOP) exp;
+            compile(binop.getLeft());
+            compile(binop.getRight());
+            switch (binop.getOp()) {
+                case PLUS:
+                    c.op(IADD);
+                    break;
+                case MINUS:
+                    c.op(ISUB);
+                    break;
+                case MUL:
+                    c.op(IMUL);
+                    break;
+                case DIV:
+                    c.op(IDIV);
+                    break;
+                case ARSHIFT:
+                    c.op(ISHR);
+                    break;
+                default:
+                    throw new Error("Binop case missing? " + binop.getOp());
+            }
+        } else if (exp instanceof CALL) {
+            compile((CALL) exp);
+        } else {
+            throw new Error("Can't compile " + exp.getClass().getSimpleName() + ", the IR is not linearized");
+        }
+    }
+
+    private void compile(CALL call) {
+        List<IRExp> args = call.getArgs();
+        IRExp func = call.getFunc();
+        Label target = func instanceof NAME ? ((NAME) func).getLabel() : null;
+        String helper = null;
+        if (TranslatorLabels.L_PRINT.equals(target))
+            helper = "print";
+        else if (TranslatorLabels.L_NEW_OBJECT.equals(target))
+            helper = "newObject";
+        else if (TranslatorLabels.L_NEW_ARRAY.equals(target))
+            helper = "newArray";
+        else if (TranslatorLabels.L_ERROR.equals(target))
+            helper = "error";
+        c.load(ALOAD, THIS);
+        if (helper != null) {
+            compileArgs(args);
+            c.invoke(INVOKEVIRTUAL, BASE, helper, descriptor(args.size()));
+        } else if (target != null && procIndex.containsKey(target)
+                && arity(procs.get(procIndex.get(target))) == args.size()) {
+            compileArgs(args);
+            c.invoke(INVOKEVIRTUAL, name, "p" + procIndex.get(target), descriptor(args.size()));
+        } else {
+            compile(func);
+            compileArgs(args);
+            if (!dispatchers.containsKey(args.size())) {
+                ArrayList<Integer> callees = new ArrayList<Integer>();
+                for (int i = 0; i < procs.size(); i++)
+                    if (arity(procs.get(i)) == args.size())
+                        callees.add(i);
+                dispatchers.put(args.size(), callees);
+            }
+            c.invoke(INVOKEVIRTUAL, name, "call" + args.size(), descriptor(args.size() + 1));
+        }
+    }
+
+    private void compileArgs(List<IRExp> args) {
+        for (IRExp arg : args)
+            compile(arg);
+    }
+
+    /**
+     * A method calling the procedure at an address, for the procedures taking
+     * some number of arguments.
+     */
+    private void compileDispatcher(int args, ArrayList<Integer> callees) {
+        ClassFile.Code d = classFile.new Code();
+        int fail = d.newLabel();
+        int[] keys = new int[callees.size()];
+        int[] targets = new int[callees.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = addresses.get(procs.get(callees.get(i)).getLabel());
+            targets[i] = d.newLabel();
+        }
+        d.load(ILOAD, 1);
+        d.lookupswitch(fail, keys, targets);
+        for (int i = 0; i < keys.length; i++) {
+            d.mark(targets[i]);
+            d.load(ALOAD, THIS);
+            for (int a = 0; a < args; a++)
+                d.load(ILOAD, 2 + a);
+            d.invoke(INVOKEVIRTUAL, name, "p" + callees.get(i), descriptor(args));
+            d.op(IRETURN);
+        }
+        d.mark(fail);
+        d.load(ALOAD, THIS);
+        d.load(ILOAD, 1);
+        d.invoke(INVOKEVIRTUAL, BASE, "badCall", "(I)Ljava/lang/Error;");
+        d.op(ATHROW);
+        classFile.addMethod("call" + args, descriptor(args + 1), d, args + 2, args + 2);
+    }
+
+    /**
+     * @return a bound on the operand stack the code for a statement needs,
+     * counting each long as two.
+     */
+    private static int need(IRStm stm) {
+        int need = 0;
+        for (IRExp kid : stm.kids())
+            need = Math.max(need, need(kid));
+        // A store into memory has the array and the index below its value
+        return need + 3;
+    }
+
+    private static int need(IRExp exp) {
+        if (exp instanceof CALL) {
+            // this and the address, then the arguments one above the other
+            int need = 2, i = 2;
+            for (IRExp arg : ((CALL) exp).getArgs())
+                need = Math.max(need, i++ + need(arg));
+            return need;
+        }
+        int need = 2;
+        int i = 0;
+        for (IRExp kid : exp.kids())
+            need = Math.max(need, i++ + need(kid));
+        // Loads from memory have the array below the address
+        return need + 1;
+    }
+}
@@ -0,0 +1,261 @@
+package ir.interp;
+
+import ir.temp.Label;
+import ir.tree.BINOP;
+import ir.tree.CALL;
+import ir.tree.CJUMP;
+import ir.tree.CONST;
+import ir.tree.EXP;
+import ir.tree.IRData;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+import ir.tree.JUMP;
+import ir.tree.LABEL;
+import ir.tree.MEM;
+import ir.tree.MOVE;
+import ir.tree.NAME;
+import ir.tree.TEMP;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import translate.ProcFragment;
+import util.List;
+
+/**
+ * A procedure that is simulated by compiling its trace scheduled IR code into
+ * a tree of Java closures the first time it is called, rather than by
+ * walking the IR on every execution like {@link SimProc} does.
+ * <p>
+ * Compilation does all the lookups that only depend on the code: labels
+ * become indices into the array of compiled statements, and NAMEs of
+ * procedures and data become the values they refer to, so calls bind
+ * directly to their {@link Callable}. Anything that isn't worth compiling
+ * specially is compiled into a closure that calls the tree's own interp
+ * method, so both ways of simulating always agree.
+ */
+public class CompiledProc extends Callable {
+
+    private interface Exp {
+        Word eval(X86_64SimFrame frame);
+    }
+
+    /**
+     * A compiled statement, returning the index of the one to execute next.
+     */
+    private interface Stm {
+        int exec(X86_64SimFrame frame);
+    }
+
+    private final ProcFragment frag;
+
+    /**
+     * The index of the statement following each label.
+     */
+    private final Map<Label, Integer> labels = new HashMap<Label, Integer>();
+
+    private Stm[] code;
+
+    private TempSlots slots;
+
+    public CompiledProc(ProcFragment methodFrag) {
+        this.frag = methodFrag;
+    }
+
+    @Override
+    public Word call(Interp interp, List<Word> args) {
+        if (code == null)
+            compile(interp);
+        Stm[] code = this.code;
+        X86_64SimFrame frame = frag.getFrame().newSimFrame(interp, slots, args);
+        interp.enterCall();
+        int pc = 0;
+        while (pc < code.length)
+            pc = code[pc].exec(frame);
+        interp.leaveCall();
+        return frame.getReturnValue();
+    }
+
+    /**
+     * The trace scheduled code ends with the done label, so that running off
+     * the end of the compiled statements is how a procedure returns.
+     */
+    private void compile(Interp interp) {
+        List<IRStm> body = frag.getTraceScheduledBody();
+        slots = frag.getFrame().newTempSlots();
+        slots.addAll(body);
+        int size = 0;
+        for (IRStm stm : body) {
+            if (stm instanceof LABEL) {
+                Label l = ((LABEL) stm).getLabel();
+                assert (!labels.containsKey(l)) :
+                        "Duplicate label in IR code: " + l;
+                labels.put(l, size);
+            } else
+                size++;
+        }
+        Stm[] compiled = new Stm[size];
+        int pc = 0;
+        for (IRStm stm : body) {
+            if (!(stm instanceof LABEL)) {
+                compiled[pc] = compile(stm, pc + 1, interp);
+                pc++;
+            }
+        }
+        code = compiled;
+    }
+
+    private int target(Label label) {
+        Integer index = labels.get(label);
+        if (index == null)
+            throw new Error("Jump to " + label + " outside of " + frag.getLabel());
+        return index;
+    }
+
+    private Stm compile(final IRStm stm, final int next, Interp interp) {
+        if (stm instanceof MOVE) {
+            MOVE move = (MOVE) stm;
+            final Exp src = compile(move.src, interp);
+            if (move.dst instanceof TEMP) {
+                final int slot = slots.slot(((TEMP) move.dst).temp);
+                return frame -> {
+                    frame.setTemp(slot, src.eval(frame));
+                    return next;
+                };
+            } else if (move.dst instanceof MEM) {
+                final Exp address = compile(((MEM) move.dst).exp, interp);
+                return frame -> {
+                    Word value = src.eval(frame);
+                    ((Ptr) address.eval(frame)).set(value);
+                    return next;
+                };
+            }
+        } else if (stm instanceof EXP) {
+            final Exp exp = compile(((EXP) stm).exp, interp);
+            return frame -> {
+                exp.eval(frame);
+                return next;
+            };
+        } else if (stm instanceof JUMP) {
+            IRExp exp = ((JUMP) stm).getExp();
+            if (exp instanceof NAME && labels.containsKey(((NAME) exp).getLabel())) {
+                final int to = labels.get(((NAME) exp).getLabel());
+                return frame -> to;
+            }
+        } else if (stm instanceof CJUMP) {
+            Stm cjump = compile((CJUMP) stm, interp);
+            if (cjump != null)
+                return cjump;
+        }
+        return frame -> {
+            Label jumpTo = stm.interp(frame);
+            return jumpTo == null ? next : target(jumpTo);
+        };
+    }
+
+    private Stm compile(CJUMP cjump, Interp interp) {
+        if (!labels.containsKey(cjump.getTrueLabel()) || !labels.containsKey(cjump.getFalseLabel()))
+            return null;
+        final Exp l = compile(cjump.getLeft(), interp);
+        final Exp r = compile(cjump.getRight(), interp);
+        final int iftrue = labels.get(cjump.getTrueLabel());
+        final int iffalse = labels.get(cjump.getFalseLabel());
+        switch (cjump.getOp()) {
+            case LT:
+                return frame -> l.eval(frame).isLT(r.eval(frame)) ? iftrue : iffalse;
+            case GE:
+                return frame -> l.eval(frame).isLT(r.eval(frame)) ? iffalse : iftrue;
+            case ULT:
+                return frame -> l.eval(frame).isULT(r.eval(frame)) ? iftrue : iffalse;
+            case UGE:
+                return frame -> l.eval(frame).isULT(r.eval(frame)) ? iffalse : iftrue;
+            case NE:
+                return frame -> l.eval(frame).isEQ(r.eval(frame)) ? iffalse : iftrue;
+            case EQ:
+                return frame -> l.eval(frame).isEQ(r.eval(frame)) ? iftrue : iffalse;
+            default:
+                return null;
+        }
+    }
+
+    private Exp compile(final IRExp exp, Interp interp) {
+        if (exp instanceof CONST) {
+            final Word value = new Int(((CONST) exp).getValue());
+            return frame -> value;
+        } else if (exp instanceof TEMP) {
+            final int slot = slots.slot(((TEMP) exp).temp);
+            return frame -> frame.getTemp(slot);
+        } else if (exp instanceof NAME) {
+            final Word value = resolve(((NAME) exp).getLabel(), interp);
+            return frame -> value;
+        } else if (exp instanceof MEM) {
+            final Exp address = compile(((MEM) exp).exp, interp);
+            return frame -> ((Ptr) address.eval(frame)).get();
+        } else if (exp instanceof BINOP) {
+            BINOP binop = (BINOP) exp;
+            final Exp l = compile(binop.getLeft(), interp);
+            final Exp r = compile(binop.getRight(), interp);
+            switch (binop.getOp()) {
+                case PLUS:
+                    return frame -> l.eval(frame).add(r.eval(frame));
+                case MINUS:
+                    return frame -> l.eval(frame).minus(r.eval(frame));
+                case MUL:
+                    return frame -> l.eval(frame).mul(r.eval(frame));
+                case DIV:
+                    return frame -> l.eval(frame).div(r.eval(frame));
+                case ARSHIFT:
+                    return frame -> l.eval(frame).arshift(r.eval(frame));
+                default:
+                    break;
+            }
+        } else if (exp instanceof CALL) {
+            return compile((CALL) exp, interp);
+        }
+        return frame -> exp.interp(frame);
+    }
+
+    private Exp compile(CALL call, final Interp interp) {
+        final Exp[] args = new Exp[call.getArgs().size()];
+        int i = 0;
+        for (IRExp arg : call.getArgs())
+            args[i++] = compile(arg, interp);
+        IRExp func = call.getFunc();
+        Word target = func instanceof NAME ? resolve(((NAME) func).getLabel(), interp) : null;
+        if (target instanceof Callable) {
+            final Callable callee = (Callable) target;
+            return frame -> callee.call(interp, evalAll(args, frame));
+        }
+        final Exp f = compile(func, interp);
+        return frame -> {
+            Callable callee = (Callable) f.eval(frame);
+            return callee.call(interp, evalAll(args, frame));
+        };
+    }
+
+    private static List<Word> evalAll(Exp[] args, X86_64SimFrame frame) {
+        Word[] values = new Word[args.length];
+        for (int i = 0; i < args.length; i++)
+            values[i] = args[i].eval(frame);
+        return List.list(values);
+    }
+
+    /**
+     * The compile time version of {@link X86_64SimFrame#getLabel(Label)}.
+     */
+    private static Word resolve(Label label, Interp interp) {
+        Callable proc = interp.getProcLabel(label);
+        if (proc != null)
+            return proc;
+        IRData d = IRData.find(label);
+        if (d != null)
+            return d.interpAsValue();
+        return new LabelPtr(label);
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledProc(" + frag.getLabel() + ")";
+    }
+
+}
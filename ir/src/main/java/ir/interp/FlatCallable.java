@@ -0,0 +1,11 @@
+package ir.interp;
+
+/**
+ * What a {@link Callable} is in {@link InterpMode#UNBOXED} mode: a procedure
+ * taking and returning words of a {@link FlatHeap}.
+ */
+interface FlatCallable {
+
+    long call(long[] args);
+
+}
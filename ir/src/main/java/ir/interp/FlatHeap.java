@@ -0,0 +1,277 @@
+package ir.interp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The memory of the IR interpreter in {@link InterpMode#UNBOXED} mode, where
+ * words are tagged longs rather than {@link Word} objects.
+ * <p>
+ * The top two bits of a word say what it is:
+ * <ul>
+ * <li>an Int, with its value in the low 32 bits;</li>
+ * <li>a pointer, with the block it points into in the middle bits and its
+ * offset in bytes from the start of that block in the low 32 bits;</li>
+ * <li>an object, such as a procedure, with its index in a table of them;</li>
+ * <li>or an uninitialized word.</li>
+ * </ul>
+ * All blocks are kept in one growable long[], with a side table of where each
+ * block starts and how big it is. Since a pointer remembers its block, an
+ * access through a pointer that has strayed outside its block is caught, the
+ * same as with {@link Array}. Stack frames are kept the same way, in a
+ * separate long[] that shrinks again when a procedure returns.
+ * <p>
+ * The operations on words do the same checks, and fail with the same
+ * messages, as the corresponding methods of {@link Word}.
+ */
+public class FlatHeap {
+
+    public static final long UNINITIALIZED = 3L << 62;
+
+    private static final long TAG = 3L << 62, PTR = 1L << 62, OBJECT = 2L << 62;
+
+    /**
+     * Set in pointers to blocks on the stack.
+     */
+    private static final long STACK = 1L << 61;
+
+    private static final int MAX_BLOCKS = 1 << 29;
+
+    private static final int WORD_SIZE = 8;
+
+    /**
+     * A growable array of words, divided into blocks.
+     */
+    private static class Region {
+        private final long stackBit;
+        long[] words = new long[1024];
+        int top;
+        int[] start = new int[64];
+        int[] size = new int[64];
+        int blocks;
+
+        Region(long stackBit) {
+            this.stackBit = stackBit;
+        }
+
+        long allocate(int numWords, long fill) {
+            if (blocks == MAX_BLOCKS)
+                throw new Error("Out of memory: too many blocks");
+            if (blocks == start.length) {
+                start = Arrays.copyOf(start, blocks * 2);
+                size = Arrays.copyOf(size, blocks * 2);
+            }
+            if (top + numWords > words.length)
+                words = Arrays.copyOf(words, Math.max(words.length * 2, top + numWords));
+            Arrays.fill(words, top, top + numWords, fill);
+            start[blocks] = top;
+            size[blocks] = numWords;
+            top += numWords;
+            return PTR | stackBit | (long) blocks++ << 32;
+        }
+    }
+
+    private final Region heap = new Region(0), stack = new Region(STACK);
+
+    private final ArrayList<Object> objects = new ArrayList<Object>();
+    private final Map<Object, Long> objectWords = new IdentityHashMap<Object, Long>();
+
+    public static long ofInt(int value) {
+        return value & 0xFFFFFFFFL;
+    }
+
+    public static boolean isInt(long w) {
+        return (w & TAG) == 0;
+    }
+
+    private static boolean isPtr(long w) {
+        return (w & TAG) == PTR;
+    }
+
+    /**
+     * Allocate a block of words in the heap.
+     *
+     * @return a pointer to its first word.
+     */
+    public long allocate(int numWords, long fill) {
+        if (numWords < 0)
+            throw new Error("Can't allocate " + numWords + " words");
+        return heap.allocate(numWords, fill);
+    }
+
+    /**
+     * Allocate a block on the stack, which lives until the matching
+     * {@link #popFrame()}.
+     */
+    public long pushFrame(int numWords) {
+        return stack.allocate(numWords, UNINITIALIZED);
+    }
+
+    public void popFrame() {
+        stack.top = stack.start[--stack.blocks];
+    }
+
+    /**
+     * @return the word standing for an object, always the same one for the
+     * same object.
+     */
+    public long object(Object o) {
+        Long w = objectWords.get(o);
+        if (w == null) {
+            w = OBJECT | objects.size();
+            objects.add(o);
+            objectWords.put(o, w);
+        }
+        return w;
+    }
+
+    /**
+     * @return the object a word stands for, or null if it isn't an object.
+     */
+    public Object asObject(long w) {
+        return (w & TAG) == OBJECT ? objects.get((int) w) : null;
+    }
+
+    public int asInt(long w) {
+        if (!isInt(w))
+            throw new Error("Not an Int");
+        return (int) w;
+    }
+
+    /**
+     * @return the index in its region's words of the word a pointer points at.
+     */
+    private int index(long ptr, Region r) {
+        if (!isPtr(ptr))
+            throw new Error("Not a pointer: " + toString(ptr));
+        int block = (int) (ptr >>> 32) & (MAX_BLOCKS - 1);
+        int offset = (int) ptr;
+        if (block >= r.blocks)
+            throw new Error("Pointer into a frame that is gone: " + toString(ptr));
+        if ((offset & (WORD_SIZE - 1)) != 0 || offset < 0 || offset >= r.size[block] * WORD_SIZE)
+            throw new Error("Out of bounds: " + toString(ptr) + " in a block of " + r.size[block] + " words");
+        return r.start[block] + offset / WORD_SIZE;
+    }
+
+    public long load(long ptr) {
+        Region r = (ptr & STACK) == 0 ? heap : stack;
+        return r.words[index(ptr, r)];
+    }
+
+    public void store(long ptr, long value) {
+        Region r = (ptr & STACK) == 0 ? heap : stack;
+        r.words[index(ptr, r)] = value;
+    }
+
+    /**
+     * Add a number of bytes to a word, as in {@link Word#add(int)}.
+     */
+    public long add(long w, int value) {
+        if (isInt(w))
+            return ofInt((int) w + value);
+        if (isPtr(w))
+            return (w & ~0xFFFFFFFFL) | ofInt((int) w + value);
+        if (w == UNINITIALIZED)
+            throw new Error("Operation performed on an unitialized word!");
+        throw new Error("add -- doesn't make sense on code addresses " + toString(w));
+    }
+
+    public long add(long l, long r) {
+        if (isInt(l))
+            return add(r, (int) l);
+        else if (isInt(r))
+            return add(l, (int) r);
+        else
+            throw new Error("add -- at least one of the operands must be an Int");
+    }
+
+    public long minus(long l, long r) {
+        if (isInt(r))
+            return add(l, -(int) r);
+        else
+            throw new Error("minus -- operand types not supported " + toString(l) + " " + toString(r));
+    }
+
+    public long mul(long l, long r) {
+        if (!isInt(l))
+            throw new Error("mul -- only supported on Int");
+        return ofInt((int) l * asInt(r));
+    }
+
+    public long div(long l, long r) {
+        if (!isInt(l))
+            throw new Error("div -- only supported on Int");
+        return ofInt((int) l / asInt(r));
+    }
+
+    public long arshift(long l, long r) {
+        if (!isInt(l))
+            throw new Error("arshift -- only supported on Int");
+        return ofInt((int) l >> asInt(r));
+    }
+
+    public boolean isLT(long l, long r) {
+        if (!isInt(l))
+            throw new Error("lessThan -- not supported for " + toString(l) + " " + toString(r));
+        return (int) l < asInt(r);
+    }
+
+    public boolean isGT(long l, long r) {
+        if (!isInt(l))
+            throw new Error("greaterThan -- not supported for " + toString(l) + " " + toString(r));
+        return (int) l > asInt(r);
+    }
+
+    public boolean isGE(long l, long r) {
+        if (!isInt(l))
+            throw new Error("greaterOrEqualTo -- not supported for " + toString(l) + " " + toString(r));
+        return (int) l >= asInt(r);
+    }
+
+    public boolean isLE(long l, long r) {
+        if (!isInt(l))
+            throw new Error("lesserOrEqualTo -- not supported for " + toString(l) + " " + toString(r));
+        return (int) l <= asInt(r);
+    }
+
+    public boolean isULT(long l, long r) {
+        if (!isInt(l))
+            throw new Error("unsignedLessThan -- not supported for " + toString(l) + " " + toString(r));
+        return (int) l < 0 ? false : (int) l < asInt(r);
+    }
+
+    /**
+     * Like {@link Word#isEQ(Word)}: Ints compare to Ints, pointers to
+     * pointers, and a pointer only to the Int 0, which it never equals.
+     */
+    public boolean isEQ(long l, long r) {
+        if (isInt(l) && isInt(r) || isPtr(l) && isPtr(r))
+            return l == r;
+        if (isPtr(l) && isInt(r) || isInt(l) && isPtr(r)) {
+            if ((int) (isInt(l) ? l : r) == 0)
+                return false;
+            throw new Error("EQ on " + toString(l) + " only works to compare to 0, not " + toString(r));
+        }
+        throw new Error("EQ -- not supported for " + toString(l) + " " + toString(r));
+    }
+
+    public String toString(long w) {
+        if (isInt(w))
+            return "" + (int) w;
+        if (isPtr(w))
+            return ((w & STACK) == 0 ? "#block" : "#frame") + ((w >>> 32) & (MAX_BLOCKS - 1)) + "+" + (int) w;
+        if (w == UNINITIALIZED)
+            return "?";
+        return "" + asObject(w);
+    }
+
+    /**
+     * @return the number of words in use in the heap, not counting frames.
+     */
+    public int getHeapSize() {
+        return heap.top;
+    }
+
+}
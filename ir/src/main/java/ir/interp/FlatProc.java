@@ -0,0 +1,339 @@
+package ir.interp;
+
+import ir.frame.x86_64.X86_64Frame;
+import ir.temp.Label;
+import ir.tree.BINOP;
+import ir.tree.CALL;
+import ir.tree.CJUMP;
+import ir.tree.CMOVE;
+import ir.tree.CONST;
+import ir.tree.ESEQ;
+import ir.tree.EXP;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+import ir.tree.JUMP;
+import ir.tree.LABEL;
+import ir.tree.MEM;
+import ir.tree.MOVE;
+import ir.tree.NAME;
+import ir.tree.TEMP;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import translate.ProcFragment;
+import util.List;
+
+/**
+ * A procedure of {@link InterpMode#UNBOXED} mode. Like {@link CompiledProc}
+ * it compiles its trace scheduled IR code into closures the first time it is
+ * called, but its closures compute with the tagged long words of a
+ * {@link FlatHeap}, so running them allocates nothing but each call's frame.
+ * <p>
+ * A frame is a long[] of temps, indexed by their {@link TempSlots}, and a
+ * block on the heap's stack laid out as by {@link X86_64SimFrame}.
+ */
+class FlatProc implements FlatCallable {
+
+    private interface Exp {
+        long eval(long[] temps);
+    }
+
+    /**
+     * A compiled statement, returning the index of the one to execute next.
+     */
+    private interface Stm {
+        int exec(long[] temps);
+    }
+
+    /**
+     * A compiled destination of a move.
+     */
+    private interface Dst {
+        void set(long[] temps, long value);
+    }
+
+    private final ProcFragment frag;
+    private final Interp interp;
+    private final FlatHeap heap;
+
+    /**
+     * The index of the statement following each label.
+     */
+    private final Map<Label, Integer> labels = new HashMap<Label, Integer>();
+
+    private Stm[] code;
+
+    private TempSlots slots;
+
+    FlatProc(ProcFragment methodFrag, Interp interp, FlatHeap heap) {
+        this.frag = methodFrag;
+        this.interp = interp;
+        this.heap = heap;
+    }
+
+    @Override
+    public long call(long[] args) {
+        if (code == null)
+            compile();
+        Stm[] code = this.code;
+        X86_64Frame frame = (X86_64Frame) frag.getFrame();
+        long[] temps = new long[slots.size()];
+        Arrays.fill(temps, FlatHeap.UNINITIALIZED);
+
+        int registerArgs = X86_64Frame.arguments.size();
+        long framePtr = heap.pushFrame((args.length < registerArgs ? 0 : args.length - registerArgs) + 2 + frame.numLocals());
+        framePtr = heap.add(framePtr, frame.numLocals() * frame.wordSize());
+        long currentFormal = heap.add(framePtr, X86_64Frame.FIRST_FORMAL_OFFSET);
+        for (int i = 0; i < args.length; i++) {
+            if (i < registerArgs) {
+                temps[X86_64SimFrame.FIRST_ARG_SLOT + i] = args[i];
+            } else {
+                heap.store(currentFormal, args[i]);
+                currentFormal = heap.add(currentFormal, X86_64Frame.FORMAL_INCREMENT);
+            }
+        }
+        temps[X86_64SimFrame.FP_SLOT] = framePtr;
+
+        interp.enterCall();
+        int pc = 0;
+        while (pc < code.length)
+            pc = code[pc].exec(temps);
+        interp.leaveCall();
+        heap.popFrame();
+        return temps[X86_64SimFrame.RV_SLOT];
+    }
+
+    private void compile() {
+        assert (frag.wordSize() == 8) : "The flat heap only has 8 byte words";
+        List<IRStm> body = frag.getTraceScheduledBody();
+        slots = frag.getFrame().newTempSlots();
+        slots.addAll(body);
+        int size = 0;
+        for (IRStm stm : body) {
+            if (stm instanceof LABEL) {
+                Label l = ((LABEL) stm).getLabel();
+                assert (!labels.containsKey(l)) :
+                        "Duplicate label in IR code: " + l;
+                labels.put(l, size);
+            } else
+                size++;
+        }
+        Stm[] compiled = new Stm[size];
+        int pc = 0;
+        for (IRStm stm : body) {
+            if (!(stm instanceof LABEL)) {
+                compiled[pc] = compile(stm, pc + 1);
+                pc++;
+            }
+        }
+        code = compiled;
+    }
+
+    private int target(Label label) {
+        Integer index = labels.get(label);
+        if (index == null)
+            throw new Error("Jump to " + label + " outside of " + frag.getLabel());
+        return index;
+    }
+
+    private Stm compile(final IRStm stm, final int next) {
+        if (stm instanceof MOVE) {
+            MOVE move = (MOVE) stm;
+            final Exp src = compile(move.src);
+            final Dst dst = compileDst(move.dst);
+            return temps -> {
+                dst.set(temps, src.eval(temps));
+                return next;
+            };
+        } else if (stm instanceof EXP) {
+            final Exp exp = compile(((EXP) stm).exp);
+            return temps -> {
+                exp.eval(temps);
+                return next;
+            };
+        } else if (stm instanceof JUMP) {
+            IRExp exp = ((JUMP) stm).getExp();
+            if (exp instanceof NAME && labels.containsKey(((NAME) exp).getLabel())) {
+                final int to = labels.get(((NAME) exp).getLabel());
+                return temps -> to;
+            }
+            final Exp to = compile(exp);
+            return temps -> {
+                Object label = heap.asObject(to.eval(temps));
+                if (!(label instanceof LabelPtr))
+                    throw new Error("Not a code address: " + label);
+                return target(((LabelPtr) label).getLabel());
+            };
+        } else if (stm instanceof CJUMP) {
+            return compile((CJUMP) stm);
+        } else if (stm instanceof CMOVE) {
+            return compile((CMOVE) stm, next);
+        }
+        return temps -> {
+            throw new Error("interp -- should only be called on atomic Stms \n " +
+                    "    -- Linearized IR should not have " + stm.getClass().getSimpleName() + "!");
+        };
+    }
+
+    private Stm compile(final CJUMP cjump) {
+        final Exp l = compile(cjump.getLeft());
+        final Exp r = compile(cjump.getRight());
+        final Label t = cjump.getTrueLabel(), f = cjump.getFalseLabel();
+        if (!labels.containsKey(t) || !labels.containsKey(f)) {
+            return temps -> {
+                throw new Error("Jump to " + t + " or " + f + " outside of " + frag.getLabel());
+            };
+        }
+        final int iftrue = labels.get(t);
+        final int iffalse = labels.get(f);
+        switch (cjump.getOp()) {
+            case LT:
+                return temps -> heap.isLT(l.eval(temps), r.eval(temps)) ? iftrue : iffalse;
+            case GE:
+                return temps -> heap.isLT(l.eval(temps), r.eval(temps)) ? iffalse : iftrue;
+            case ULT:
+                return temps -> heap.isULT(l.eval(temps), r.eval(temps)) ? iftrue : iffalse;
+            case UGE:
+                return temps -> heap.isULT(l.eval(temps), r.eval(temps)) ? iffalse : iftrue;
+            case NE:
+                return temps -> heap.isEQ(l.eval(temps), r.eval(temps)) ? iffalse : iftrue;
+            case EQ:
+                return temps -> heap.isEQ(l.eval(temps), r.eval(temps)) ? iftrue : iffalse;
+            default:
+                final CJUMP.RelOp op = cjump.getOp();
+                return temps -> {
+                    throw new Error("Missing case? " + op);
+                };
+        }
+    }
+
+    private Stm compile(CMOVE cmove, final int next) {
+        final Exp l = compile(cmove.left);
+        final Exp r = compile(cmove.right);
+        final Exp src = compile(cmove.src);
+        final Dst dst = compileDst(cmove.dst);
+        final CJUMP.RelOp op = cmove.relop;
+        return temps -> {
+            long lv = l.eval(temps), rv = r.eval(temps);
+            boolean move;
+            switch (op) {
+                case LT:
+                    move = heap.isLT(lv, rv);
+                    break;
+                case NE:
+                    move = !heap.isEQ(lv, rv);
+                    break;
+                case EQ:
+                    move = heap.isEQ(lv, rv);
+                    break;
+                case GT:
+                    move = heap.isGT(lv, rv);
+                    break;
+                case GE:
+                    move = heap.isGE(lv, rv);
+                    break;
+                case LE:
+                    move = heap.isLE(lv, rv);
+                    break;
+                default:
+                    throw new Error("Missing case? " + op);
+            }
+            if (move)
+                dst.set(temps, src.eval(temps));
+            return next;
+        };
+    }
+
+    private Dst compileDst(final IRExp dst) {
+        if (dst instanceof TEMP) {
+            final int slot = slots.slot(((TEMP) dst).temp);
+            return (temps, value) -> temps[slot] = value;
+        } else if (dst instanceof MEM) {
+            final Exp address = compile(((MEM) dst).exp);
+            return (temps, value) -> heap.store(address.eval(temps), value);
+        }
+        return (temps, value) -> {
+            throw new Error("This IR " + dst + " is not legal as the LHS of a MOVE.");
+        };
+    }
+
+    private Exp compile(final IRExp exp) {
+        if (exp instanceof CONST) {
+            final long value = FlatHeap.ofInt(((CONST) exp).getValue());
+            return temps -> value;
+        } else if (exp instanceof TEMP) {
+            final int slot = slots.slot(((TEMP) exp).temp);
+            return temps -> temps[slot];
+        } else if (exp instanceof NAME) {
+            final long value = interp.getFlatLabel(((NAME) exp).getLabel());
+            return temps -> value;
+        } else if (exp instanceof MEM) {
+            final Exp address = compile(((MEM) exp).exp);
+            return temps -> heap.load(address.eval(temps));
+        } else if (exp instanceof BINOP) {
+            BINOP binop = (BINOP) exp;
+            final Exp l = compile(binop.getLeft());
+            final Exp r = compile(binop.getRight());
+            switch (binop.getOp()) {
+                case PLUS:
+                    return temps -> heap.add(l.eval(temps), r.eval(temps));
+                case MINUS:
+                    return temps -> heap.minus(l.eval(temps), r.eval(temps));
+                case MUL:
+                    return temps -> heap.mul(l.eval(temps), r.eval(temps));
+                case DIV:
+                    return temps -> heap.div(l.eval(temps), r.eval(temps));
+                case ARSHIFT:
+                    return temps -> heap.arshift(l.eval(temps), r.eval(temps));
+                default:
+                    final BINOP.Op op = binop.getOp();
+                    return temps -> {
+                        throw new Error("Binop case missing? " + op);
+                    };
+            }
+        } else if (exp instanceof CALL) {
+            return compile((CALL) exp);
+        } else if (exp instanceof ESEQ) {
+            return temps -> {
+                throw new Error("ESEQ is not atomic! Can only interp atomic statments!\n" +
+                        "  (linearized IR should not have any ESEQ!)");
+            };
+        }
+        throw new Error("Missing case? " + exp);
+    }
+
+    private Exp compile(CALL call) {
+        final Exp[] args = new Exp[call.getArgs().size()];
+        int i = 0;
+        for (IRExp arg : call.getArgs())
+            args[i++] = compile(arg);
+        IRExp func = call.getFunc();
+        Object target = func instanceof NAME ? heap.asObject(interp.getFlatLabel(((NAME) func).getLabel())) : null;
+        if (target instanceof FlatCallable) {
+            final FlatCallable callee = (FlatCallable) target;
+            return temps -> callee.call(evalAll(args, temps));
+        }
+        final Exp f = compile(func);
+        return temps -> {
+            Object callee = heap.asObject(f.eval(temps));
+            if (!(callee instanceof FlatCallable))
+                throw new Error("Not a procedure: " + callee);
+            return ((FlatCallable) callee).call(evalAll(args, temps));
+        };
+    }
+
+    private static long[] evalAll(Exp[] args, long[] temps) {
+        long[] values = new long[args.length];
+        for (int i = 0; i < args.length; i++)
+            values[i] = args[i].eval(temps);
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "FlatProc(" + frag.getLabel() + ")";
+    }
+
+}
@@ -1,6 +1,12 @@
 package ir.interp;
 
+import ir.canon.BlockProfile;
+import ir.temp.CompilationContext;
 import ir.temp.Label;
+import ir.tree.CONST;
+import ir.tree.IRData;
+import ir.tree.IRExp;
+import ir.tree.NAME;
 
 import java.io.StringWriter;
 import java.util.HashMap;
@@ -34,16 +40,24 @@ import util.List;
  * as described in chapter 8 of the book, and implemented by the
  * minijava.ir.Canon class. The interpreter is also capable of interpreting IR
  * code as produced by the basic blocks algorithm and IR code as produced by the
- * TraceScheduler.
+ * TraceScheduler. The last can also be compiled into closures (see
+ * {@link CompiledProc}), which is much faster for long running programs,
+ * and compiled to run on unboxed words in a flat heap (see {@link FlatHeap}),
+ * which is faster still. Fastest of all, the whole program can be compiled to
+ * JVM bytecode (see {@link JvmProgram}), at the price of most of the checks
+ * the other modes do.
  * <p>
  * You choose which of these types of IR to use by passing in a value of the
  * {@link InterpMode} enumeration to the Interp constructor.
  * <p>
- * Caveats: 1) this interpreter doesn't use an explicit stack. It rather uses
- * the Java stack implicitly (the interpreter recurses when interpreting CALL
- * instructions). Thus some things that would be possible on a "real machine can
- * not be simulated (e.g. code that manipulates the return address on the
- * stack).
+ * Caveats: 1) this interpreter doesn't simulate the machine's stack. In the
+ * LINEARIZED_IR, BASIC_BLOCKS and TRACE_SCHEDULE modes it keeps a stack of
+ * activations on the heap (see {@link SimProc#call(Interp, List)}), so the
+ * depth of calls is only limited by {@link #setMaxCallDepth(int)}; the
+ * compiled modes use the Java stack implicitly (they recurse when
+ * interpreting CALL instructions, or are themselves JVM methods). Either way, some things that would be
+ * possible on a "real machine can not be simulated (e.g. code that
+ * manipulates the return address on the stack).
  * <p>
  * 2) The simulated frame (X86SimFrame class) has no provision for storing local
  * variables other than the formal parameters "in frame". It is assumed that all
@@ -87,16 +101,77 @@ public class Interp {
      */
     private InterpMode simulationMode;
 
+    /**
+     * The number of calls of simulated procedures that haven't returned yet,
+     * and how many there may be.
+     */
+    private int callDepth = 0;
+    private int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+
+    public static final int DEFAULT_MAX_CALL_DEPTH = 1000000;
+
+    /**
+     * In UNBOXED mode, the memory and the procedures of the program, and the
+     * words that labels stand for, as they are looked up.
+     */
+    private FlatHeap heap;
+    private Map<Label, FlatCallable> flatMethods;
+    private Map<Label, Long> flatLabels;
+    private FlatCallable flatMain;
+
+    /**
+     * In BYTECODE mode, the whole program compiled to a JVM class.
+     */
+    private JvmProgram compiled;
+
+    /**
+     * Where to record how often blocks run, or null.
+     */
+    private BlockProfile profile;
+
+    /**
+     * The context of the program, where its data is found.
+     */
+    private final CompilationContext context;
+
     /**
      * Setup the interpreter for running a given program.
      */
     public Interp(Fragments program, InterpMode simMode) {
         this.simulationMode = simMode;
+        this.context = program.getContext();
+        context.run(() -> load(program, simMode));
+    }
+
+    private void load(Fragments program, InterpMode simMode) {
         Label mainLabel = TranslatorLabels.L_MAIN;
+        if (simMode == InterpMode.BYTECODE) {
+            compiled = new BytecodeCompiler(program).compile(JvmProgram.DEFAULT_STACK_WORDS);
+            if (compiled != null)
+                return;
+            // A procedure is too big for a JVM method, and the other procedures
+            // can't share the compiled program's memory with the flat heap.
+            simMode = InterpMode.UNBOXED;
+        }
+        if (simMode == InterpMode.UNBOXED) {
+            heap = new FlatHeap();
+            flatMethods = new HashMap<Label, FlatCallable>();
+            flatLabels = new HashMap<Label, Long>();
+        }
         for (Fragment fragment : program) {
-            if (fragment instanceof ProcFragment) {
+            if (fragment instanceof ProcFragment && heap != null) {
+                ProcFragment methodFrag = (ProcFragment) fragment;
+                FlatProc proc = new FlatProc(methodFrag, this, heap);
+                if (mainLabel.equals(methodFrag.getLabel())) {
+                    wordSize = methodFrag.wordSize();
+                    flatMain = proc;
+                } else
+                    flatMethods.put(methodFrag.getLabel(), proc);
+            } else if (fragment instanceof ProcFragment) {
                 ProcFragment methodFrag = (ProcFragment) fragment;
-                SimProc callable = new SimProc(methodFrag, simulationMode);
+                Callable callable = simulationMode == InterpMode.COMPILED
+                        ? new CompiledProc(methodFrag)
+                        : new SimProc(methodFrag, simulationMode);
                 if (mainLabel.equals(methodFrag.getLabel())) {
                     wordSize = methodFrag.wordSize();
                     main = callable;
@@ -109,7 +184,10 @@ public class Interp {
                 throw new Error("IR Simulator doesn't know about fragments of this type: " + fragment.getClass());
             }
         }
-        defineSystemFunctions();
+        if (heap != null)
+            defineFlatSystemFunctions();
+        else
+            defineSystemFunctions();
     }
 
     private void defineSystemFunctions() {
@@ -178,17 +256,175 @@ public class Interp {
         });
     }
 
+    /**
+     * The system functions of UNBOXED mode, which do the same as the ones in
+     * {@link #defineSystemFunctions()}.
+     */
+    private void defineFlatSystemFunctions() {
+        flatMethods.put(TranslatorLabels.L_PRINT, new FlatCallable() {
+            @Override
+            public long call(long[] args) {
+                out.append("" + heap.asInt(args[0]));
+                out.append("\n");
+                return FlatHeap.UNINITIALIZED;
+            }
+
+            @Override
+            public String toString() {
+                return TranslatorLabels.L_PRINT.toString();
+            }
+        });
+        flatMethods.put(TranslatorLabels.L_NEW_OBJECT, new FlatCallable() {
+            @Override
+            public long call(long[] args) {
+                int numBytes = heap.asInt(args[0]);
+                assert (numBytes % wordSize == 0);
+                return heap.allocate(numBytes / wordSize, FlatHeap.ofInt(0));
+            }
+
+            @Override
+            public String toString() {
+                return TranslatorLabels.L_NEW_OBJECT.toString();
+            }
+        });
+        flatMethods.put(TranslatorLabels.L_NEW_ARRAY, new FlatCallable() {
+            @Override
+            public long call(long[] args) {
+                // Same layout as the other modes, the length is just before element 0.
+                int numElements = heap.asInt(args[0]);
+                long arr = heap.allocate(numElements + 1, FlatHeap.ofInt(0));
+                heap.store(arr, FlatHeap.ofInt(numElements));
+                return heap.add(arr, wordSize);
+            }
+
+            @Override
+            public String toString() {
+                return TranslatorLabels.L_NEW_ARRAY.toString();
+            }
+        });
+        flatMethods.put(TranslatorLabels.L_ERROR, new FlatCallable() {
+            @Override
+            public long call(long[] args) {
+                out.append("MiniJava failure ");
+                out.append("" + heap.asInt(args[0]));
+                out.append("\n");
+                System.out.println(out.toString());
+                throw new Error(out.toString());
+            }
+
+            @Override
+            public String toString() {
+                return TranslatorLabels.L_ERROR.toString();
+            }
+        });
+    }
+
+    /**
+     * Record how often each block runs, and where control goes from it, into
+     * a profile while the program runs. Only the modes that walk the IR
+     * (LINEARIZED_IR, BASIC_BLOCKS and TRACE_SCHEDULE) can do this; to guide
+     * trace scheduling, use BASIC_BLOCKS mode, since its blocks are the ones
+     * trace scheduling works on.
+     */
+    public void setProfile(BlockProfile profile) {
+        switch (simulationMode) {
+            case LINEARIZED_IR:
+            case BASIC_BLOCKS:
+            case TRACE_SCHEDULE:
+                break;
+            default:
+                throw new Error("Can't profile in " + simulationMode + " mode");
+        }
+        this.profile = profile;
+    }
+
+    BlockProfile getProfile() {
+        return profile;
+    }
+
     public String run() {
         assert (out == null) :
                 "You aren't supposed to run the program more than once with the same interpreter";
         out = new StringWriter();
-        main.call(this, List.list(new Word[0]));
+        if (compiled != null)
+            return compiled.run();
+        context.run(() -> {
+            if (flatMain != null)
+                flatMain.call(new long[0]);
+            else
+                main.call(this, List.list(new Word[0]));
+        });
         return out.toString();
     }
 
+    /**
+     * Limit how deep simulated procedures may call each other, before the
+     * simulation fails with a stack overflow.
+     */
+    public void setMaxCallDepth(int maxCallDepth) {
+        this.maxCallDepth = maxCallDepth;
+    }
+
+    public int getMaxCallDepth() {
+        return maxCallDepth;
+    }
+
+    /**
+     * Called by simulated procedures as they are entered.
+     */
+    void enterCall() {
+        if (callDepth >= maxCallDepth)
+            throw new Error("Stack overflow: more than " + maxCallDepth + " nested calls");
+        callDepth++;
+    }
+
+    /**
+     * Called by simulated procedures as they return.
+     */
+    void leaveCall() {
+        callDepth--;
+    }
+
     public Callable getProcLabel(Label label) {
         Callable result = methods.get(label);
         return result;
     }
 
+    /**
+     * The UNBOXED mode version of {@link X86_64SimFrame#getLabel(Label)}: the
+     * word a label stands for, which is a procedure, data copied into the
+     * heap the first time it is asked for, or a code address.
+     */
+    long getFlatLabel(Label label) {
+        Long result = flatLabels.get(label);
+        if (result != null)
+            return result;
+        FlatCallable proc = flatMethods.get(label);
+        IRData d = IRData.find(label);
+        if (proc != null) {
+            result = heap.object(proc);
+        } else if (d != null) {
+            int size = 0;
+            for (IRExp e : d)
+                size++;
+            result = heap.allocate(size, FlatHeap.UNINITIALIZED);
+            // Before filling it in, in case the data mentions itself
+            flatLabels.put(label, result);
+            long p = result;
+            for (IRExp e : d) {
+                if (e instanceof CONST)
+                    heap.store(p, FlatHeap.ofInt(((CONST) e).getValue()));
+                else if (e instanceof NAME)
+                    heap.store(p, getFlatLabel(((NAME) e).getLabel()));
+                else
+                    throw new Error("Data can only be constants or labels: " + e);
+                p = heap.add(p, wordSize);
+            }
+        } else {
+            result = heap.object(new LabelPtr(label));
+        }
+        flatLabels.put(label, result);
+        return result;
+    }
+
 }
@@ -1,13 +1,16 @@
 package ir.interp;
 
 /**
- * There is a choice of three different methods for setting up the IR simulation
+ * There is a choice of six different methods for setting up the IR simulation
  * of methods/procedures.
  */
 public enum InterpMode {
 
     LINEARIZED_IR,    // Simulate execution with linearized IR
     BASIC_BLOCKS,    // Simulate execution with basic blocks
-    TRACE_SCHEDULE    // Simulate execution with the code produced by Trace Scheduling
+    TRACE_SCHEDULE,    // Simulate execution with the code produced by Trace Scheduling
+    COMPILED,    // Like TRACE_SCHEDULE, but each method is compiled once into closures (faster)
+    UNBOXED,    // Like COMPILED, but with words as tagged longs in a flat heap (see FlatHeap)
+    BYTECODE    // The whole program compiled to a JVM class, without checks (fastest, see JvmProgram)
 
 }
@@ -0,0 +1,127 @@
+package ir.interp;
+
+import java.util.Arrays;
+
+/**
+ * A program compiled to JVM bytecode by {@link BytecodeCompiler}, for
+ * {@link InterpMode#BYTECODE} mode. Each procedure is a method of a generated
+ * subclass, which lives in a class loader of its own, so everything it uses
+ * from here is public or protected.
+ * <p>
+ * All words are ints: Ints are themselves, pointers are byte addresses into
+ * one long[] of memory, and procedures and code labels are addresses above
+ * {@link #CODE_BASE}. The memory starts with a null word and the data, then
+ * the stack, growing down, then the heap, which grows as needed. Nothing is
+ * ever freed.
+ * <p>
+ * This is much faster than the other modes, but it doesn't check what they
+ * do: uninitialized words read as 0, and a pointer that strays out of its
+ * block is only caught if it strays out of the memory. It is meant for
+ * programs that are known to run correctly in the other modes.
+ */
+public abstract class JvmProgram {
+
+    /**
+     * The address of the first procedure. Memory must stay below it.
+     */
+    public static final int CODE_BASE = 0x70000000;
+
+    public static final int DEFAULT_STACK_WORDS = 1 << 18;
+
+    private static final int INITIAL_HEAP_WORDS = 1 << 16;
+
+    protected long[] memory;
+
+    /**
+     * The first free byte of the heap, the top of the stack and how far the
+     * stack may grow down.
+     */
+    private int hp, sp, stackLimit;
+
+    private final StringBuilder out = new StringBuilder();
+
+    /**
+     * Runs the main procedure.
+     */
+    protected abstract void runMain();
+
+    /**
+     * Set up the memory before the program runs.
+     *
+     * @param data the null word and the data, as the words at address 0 and up.
+     */
+    void load(long[] data, int stackWords) {
+        int words = data.length + stackWords;
+        memory = Arrays.copyOf(data, words + INITIAL_HEAP_WORDS);
+        stackLimit = data.length * 8;
+        sp = words * 8;
+        hp = sp;
+    }
+
+    public String run() {
+        runMain();
+        return out.toString();
+    }
+
+    protected int print(int value) {
+        out.append(value).append('\n');
+        return 0;
+    }
+
+    private int allocate(int numWords) {
+        if (numWords < 0 || hp + (long) numWords * 8 > CODE_BASE)
+            throw new Error("Out of heap memory allocating " + numWords + " words");
+        int address = hp;
+        hp += numWords * 8;
+        if (hp / 8 > memory.length)
+            memory = Arrays.copyOf(memory, (int) Math.min(Math.max(memory.length * 2L, hp / 8), CODE_BASE / 8));
+        return address;
+    }
+
+    protected int newObject(int numBytes) {
+        return allocate(numBytes / 8);
+    }
+
+    /**
+     * Same layout as in the other modes, the length is just before element 0.
+     */
+    protected int newArray(int numElements) {
+        int address = allocate(numElements + 1);
+        memory[address / 8] = numElements;
+        return address + 8;
+    }
+
+    protected int error(int value) {
+        out.append("MiniJava failure ").append(value).append('\n');
+        System.out.println(out.toString());
+        throw new Error(out.toString());
+    }
+
+    /**
+     * Allocate a procedure's frame on the stack, with its words set to 0.
+     *
+     * @return the address of its first word.
+     */
+    protected int pushFrame(int numWords) {
+        if (sp - numWords * 8 < stackLimit)
+            throw new Error("Stack overflow");
+        sp -= numWords * 8;
+        Arrays.fill(memory, sp / 8, sp / 8 + numWords, 0);
+        return sp;
+    }
+
+    protected void popFrame(int numWords) {
+        sp += numWords * 8;
+    }
+
+    protected Error badCall(int address) {
+        return new Error("Not a procedure: " + address);
+    }
+
+    /**
+     * Like {@link Int#isULT(Word)}.
+     */
+    protected static boolean isULT(int l, int r) {
+        return l < 0 ? false : l < r;
+    }
+}
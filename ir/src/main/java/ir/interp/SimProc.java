@@ -1,10 +1,16 @@
 package ir.interp;
 
 import ir.canon.BasicBlocks;
+import ir.canon.BlockProfile;
 import ir.temp.Label;
+import ir.tree.CALL;
+import ir.tree.EXP;
+import ir.tree.IRExp;
 import ir.tree.IRStm;
 import ir.tree.LABEL;
+import ir.tree.MOVE;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import translate.ProcFragment;
@@ -16,6 +22,7 @@ public class SimProc extends Callable {
     private ProcFragment frag;
     private HashMap<Label, List<IRStm>> labels = new HashMap<Label, List<IRStm>>();
     private List<IRStm> start;
+    private TempSlots slots;
 
     //When using the basic blocks setup, the code should finish by executing a JUMP to
     //this special label:
@@ -23,6 +30,7 @@ public class SimProc extends Callable {
 
     public SimProc(ProcFragment methodFrag, InterpMode setup) {
         this.frag = methodFrag;
+        this.slots = frag.getFrame().newTempSlots();
         switch (setup) {
             case LINEARIZED_IR:
                 init(frag.getLinearizedBody());
@@ -46,11 +54,13 @@ public class SimProc extends Callable {
             //First statement in the basic block should be a label
             Label l = ((LABEL) basicBlock.head()).getLabel();
             putLabel(l, basicBlock.tail());
+            slots.addAll(basicBlock);
         }
     }
 
     private void init(List<IRStm> program) {
         this.start = program;
+        slots.addAll(program);
         for (List<IRStm> stms = start; !stms.isEmpty(); stms = stms.tail()) {
             IRStm currentStm = stms.head();
             if (currentStm instanceof LABEL) {
@@ -66,29 +76,120 @@ public class SimProc extends Callable {
         labels.put(label, tail);
     }
 
+    /**
+     * A call of a SimProc that hasn't returned yet.
+     */
+    private static class Activation {
+        final SimProc proc;
+        final X86_64SimFrame frame;
+        List<IRStm> instructionPtr;
+        /**
+         * The label of the block being executed, when profiling.
+         */
+        Label block;
+        /**
+         * Where the value returned by the procedure this activation is
+         * calling goes, or null if it is dropped.
+         */
+        IRExp resultDst;
+
+        Activation(SimProc proc, X86_64SimFrame frame) {
+            this.proc = proc;
+            this.frame = frame;
+            this.instructionPtr = proc.start;
+        }
+    }
+
+    /**
+     * Runs the procedure, and the procedures it calls, in a loop over a stack
+     * of activations on the heap rather than by recursing, so the depth of
+     * calls is only limited by {@link Interp#setMaxCallDepth(int)}. Only a
+     * call that is not at the top of a MOVE or EXP, which canonical IR doesn't
+     * have, recurses.
+     */
     @Override
     public Word call(Interp interp, List<Word> args) {
-        List<IRStm> instructionPtr = start;
-        X86_64SimFrame frame = frag.getFrame().newSimFrame(interp, args);
-        while (!instructionPtr.isEmpty()) {
-            Label jumpTo = instructionPtr.head().interp(frame);
-            if (jumpTo == null)
-                instructionPtr = instructionPtr.tail();
-            else if (jumpTo == doneLabel)
-                return frame.getReturnValue();
-            else
-                instructionPtr = labels.get(jumpTo);
-        }
-        if (doneLabel == null) {
-            // Not using basic blocks, normal termination is by "getting to the end"
-            return frame.getReturnValue();
-        } else {
-            // since the done label was defined, we expect that "correct" IR code
-            // should use it to jump out of the method body.
-            throw new Error("Simulation of IR procedure/method body ended unexpectedly");
+        ArrayList<Activation> callers = new ArrayList<Activation>();
+        BlockProfile profile = interp.getProfile();
+        interp.enterCall();
+        Activation top = new Activation(this, frag.getFrame().newSimFrame(interp, slots, args));
+        while (true) {
+            SimProc proc = top.proc;
+            X86_64SimFrame frame = top.frame;
+            boolean returning;
+            if (top.instructionPtr.isEmpty()) {
+                if (proc.doneLabel != null) {
+                    // since the done label was defined, we expect that "correct" IR code
+                    // should use it to jump out of the method body.
+                    throw new Error("Simulation of IR procedure/method body ended unexpectedly");
+                }
+                // Not using basic blocks, normal termination is by "getting to the end"
+                returning = true;
+            } else {
+                IRStm stm = top.instructionPtr.head();
+                CALL call = getCall(stm);
+                if (call != null) {
+                    Callable procVal = (Callable) call.getFunc().interp(frame);
+                    List<Word> argVals = List.list();
+                    for (IRExp arg : call.getArgs()) {
+                        argVals.add(arg.interp(frame));
+                    }
+                    IRExp dst = stm instanceof MOVE ? ((MOVE) stm).dst : null;
+                    top.instructionPtr = top.instructionPtr.tail();
+                    if (procVal instanceof SimProc) {
+                        SimProc callee = (SimProc) procVal;
+                        interp.enterCall();
+                        top.resultDst = dst;
+                        callers.add(top);
+                        top = new Activation(callee, callee.frag.getFrame().newSimFrame(interp, callee.slots, argVals));
+                    } else {
+                        Word result = procVal.call(interp, argVals);
+                        if (dst != null)
+                            dst.set(result, frame);
+                    }
+                    continue;
+                }
+                if (profile != null && stm instanceof LABEL) {
+                    Label label = ((LABEL) stm).getLabel();
+                    profile.enter(top.block, label, false);
+                    top.block = label;
+                }
+                Label jumpTo = stm.interp(frame);
+                returning = jumpTo != null && jumpTo == proc.doneLabel;
+                if (jumpTo == null)
+                    top.instructionPtr = top.instructionPtr.tail();
+                else if (!returning) {
+                    top.instructionPtr = proc.labels.get(jumpTo);
+                    if (profile != null) {
+                        profile.enter(top.block, jumpTo, true);
+                        top.block = jumpTo;
+                    }
+                }
+            }
+            if (returning) {
+                Word result = frame.getReturnValue();
+                interp.leaveCall();
+                if (callers.isEmpty())
+                    return result;
+                top = callers.remove(callers.size() - 1);
+                if (top.resultDst != null)
+                    top.resultDst.set(result, top.frame);
+            }
         }
     }
 
+    /**
+     * @return the CALL at the top of a MOVE or EXP statement, if it has one.
+     */
+    private static CALL getCall(IRStm stm) {
+        IRExp exp = null;
+        if (stm instanceof MOVE)
+            exp = ((MOVE) stm).src;
+        else if (stm instanceof EXP)
+            exp = ((EXP) stm).exp;
+        return exp instanceof CALL ? (CALL) exp : null;
+    }
+
     @Override
     public String toString() {
         return "SimProc(" + frag.getLabel() + ")";
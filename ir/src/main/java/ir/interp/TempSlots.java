@@ -0,0 +1,98 @@
+package ir.interp;
+
+import ir.temp.Temp;
+import ir.tree.CMOVE;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+import ir.tree.MOVE;
+import ir.tree.TEMP;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import util.List;
+
+/**
+ * Numbers the Temps of a procedure densely, so that a simulated frame can
+ * keep their values in an array indexed by slot rather than in a map.
+ * <p>
+ * The slots are normally assigned once, by a pass over the procedure's code
+ * before it is run, so that each frame is allocated at its final size.
+ * A Temp that pass didn't see still gets a slot the first time it is asked
+ * for, and frames grow to make room for it.
+ */
+public class TempSlots {
+
+    /**
+     * One more than the slot of each Temp, by id, or 0 if it has none.
+     */
+    private int[] slots = new int[16];
+    private final ArrayList<Temp> temps = new ArrayList<Temp>();
+
+    /**
+     * What reading each slot gives before it was written to.
+     */
+    private final ArrayList<UninitializedWord> uninitialized = new ArrayList<UninitializedWord>();
+
+    /**
+     * @param fixed Temps that get the first slots, in the given order.
+     */
+    public TempSlots(Temp... fixed) {
+        for (Temp t : fixed)
+            slot(t);
+    }
+
+    /**
+     * @return the slot of the Temp, assigning the next free one if it has none yet.
+     */
+    public int slot(Temp t) {
+        int id = t.getId();
+        if (id < slots.length && slots[id] != 0)
+            return slots[id] - 1;
+        if (id >= slots.length)
+            slots = Arrays.copyOf(slots, Math.max(slots.length * 2, id + 1));
+        int slot = temps.size();
+        slots[id] = slot + 1;
+        temps.add(t);
+        uninitialized.add(new UninitializedWord("?" + t));
+        return slot;
+    }
+
+    /**
+     * Assign slots to all the Temps mentioned by some code.
+     */
+    public void addAll(List<IRStm> code) {
+        for (IRStm stm : code)
+            add(stm);
+    }
+
+    private void add(IRStm stm) {
+        // The kids of a move don't include a TEMP it writes to
+        if (stm instanceof MOVE)
+            add(((MOVE) stm).dst);
+        else if (stm instanceof CMOVE)
+            add(((CMOVE) stm).dst);
+        for (IRExp kid : stm.kids())
+            add(kid);
+    }
+
+    private void add(IRExp exp) {
+        if (exp instanceof TEMP)
+            slot(((TEMP) exp).temp);
+        for (IRExp kid : exp.kids())
+            add(kid);
+    }
+
+    public int size() {
+        return temps.size();
+    }
+
+    public Temp getTemp(int slot) {
+        return temps.get(slot);
+    }
+
+    UninitializedWord uninitialized(int slot) {
+        return uninitialized.get(slot);
+    }
+
+}
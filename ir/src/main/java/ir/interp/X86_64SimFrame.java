@@ -1,15 +1,12 @@
 package ir.interp;
 
-import ir.frame.Access;
 import ir.frame.x86_64.X86_64Frame;
 import ir.temp.Label;
 import ir.temp.Temp;
 import ir.tree.IRData;
 import ir.tree.IRExp;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Arrays;
 
 import util.DefaultIndentable;
 import util.IndentingWriter;
@@ -34,7 +31,18 @@ import util.List;
  */
 public class X86_64SimFrame extends DefaultIndentable {
 
-    private Map<Temp, Word> temps = new HashMap<Temp, Word>();
+    /**
+     * The slots every frame starts with, see {@link #newTempSlots()}.
+     */
+    static final int FP_SLOT = 0, RV_SLOT = 1, FIRST_ARG_SLOT = 2;
+
+    /**
+     * The values of the temps, indexed by their slots. A null means the temp
+     * was not written to yet.
+     */
+    private Word[] temps;
+
+    private final TempSlots slots;
 
     /**
      * Compile time counterpart of this frame (has some crucial information such
@@ -54,39 +62,65 @@ public class X86_64SimFrame extends DefaultIndentable {
      */
     private Interp interp;
 
-    public X86_64SimFrame(Interp interp, X86_64Frame frame, List<Word> args) {
+    /**
+     * @return slots for the temps of a procedure, with the ones that frames
+     * are set up with first.
+     */
+    public static TempSlots newTempSlots() {
+        List<Temp> arguments = X86_64Frame.arguments;
+        Temp[] fixed = new Temp[FIRST_ARG_SLOT + arguments.size()];
+        fixed[FP_SLOT] = X86_64Frame.FP;
+        fixed[RV_SLOT] = X86_64Frame.RV;
+        for (int i = 0; i < arguments.size(); i++)
+            fixed[FIRST_ARG_SLOT + i] = arguments.get(i);
+        return new TempSlots(fixed);
+    }
+
+    public X86_64SimFrame(Interp interp, X86_64Frame frame, TempSlots slots, List<Word> args) {
+        assert (slots.getTemp(FP_SLOT) == X86_64Frame.FP) : "Slots not made by newTempSlots()";
         this.interp = interp;
         this.ct_frame = frame;
-        this.frameBytes = new Array((args.size() < X86_64Frame.arguments.size() ? 0 : args.size() - X86_64Frame.arguments.size()) + 2 + frame.numLocals(), frame.wordSize());
-
-        Ptr currentFormal = framePtr().add(X86_64Frame.FIRST_FORMAL_OFFSET);
-        for (int i = 0; i < args.size(); i++) {
-            if (i < X86_64Frame.arguments.size()) {
-                Access reg = /*frame.getFormals().get(i);*/frame.getInArg(i);
-                IRExp reginir = reg.exp(FP());
-                reginir.set(args.get(i), this);
+        this.slots = slots;
+        this.temps = new Word[slots.size()];
+        int registerArgs = X86_64Frame.arguments.size();
+        this.frameBytes = new Array((args.size() < registerArgs ? 0 : args.size() - registerArgs) + 2 + frame.numLocals(), frame.wordSize());
+
+        Ptr framePtr = framePtr();
+        Ptr currentFormal = framePtr.add(X86_64Frame.FIRST_FORMAL_OFFSET);
+        int i = 0;
+        for (Word arg : args) {
+            if (i < registerArgs) {
+                temps[FIRST_ARG_SLOT + i] = arg;
             } else {
-                currentFormal.set(args.get(i));
+                currentFormal.set(arg);
                 currentFormal = currentFormal.add(X86_64Frame.FORMAL_INCREMENT);
             }
+            i++;
         }
-        framePtr().set(FP().interp(this));
-        FP().set(framePtr(), this);
-        framePtr().add(frame.wordSize()).set(new UninitializedWord("?return"));
+        framePtr.set(getTemp(FP_SLOT));
+        temps[FP_SLOT] = framePtr;
+        framePtr.add(frame.wordSize()).set(new UninitializedWord("?return"));
     }
 
     /**
      * Retrieve the value of a given temp variable. If the temp
      * variable was not written to in the course of executing the
-     * method, the UninitializedWord will be returned.
+     * method, an UninitializedWord will be returned.
      *
      * @param name
      * @return
      */
     public Word getTemp(Temp name) {
-        Word result = temps.get(name);
+        return getTemp(slots.slot(name));
+    }
+
+    /**
+     * Like {@link #getTemp(Temp)}, for the temp in a given slot.
+     */
+    public Word getTemp(int slot) {
+        Word result = slot < temps.length ? temps[slot] : null;
         if (result == null) {
-            return new UninitializedWord("?" + name);
+            return slots.uninitialized(slot);
         }
         return result;
     }
@@ -96,8 +130,17 @@ public class X86_64SimFrame extends DefaultIndentable {
      * value (i.e. not a Java null pointer or the UninitializedWord
      */
     public void setTemp(Temp name, Word value) {
+        setTemp(slots.slot(name), value);
+    }
+
+    /**
+     * Like {@link #setTemp(Temp, Word)}, for the temp in a given slot.
+     */
+    public void setTemp(int slot, Word value) {
         assert (value != null);
-        temps.put(name, value);
+        if (slot >= temps.length)
+            temps = Arrays.copyOf(temps, slots.size());
+        temps[slot] = value;
     }
 
     /**
@@ -119,11 +162,7 @@ public class X86_64SimFrame extends DefaultIndentable {
     }
 
     public Word getReturnValue() {
-        return RV().interp(this);
-    }
-
-    private IRExp RV() {
-        return ct_frame.RV();
+        return getTemp(RV_SLOT);
     }
 
     public Interp getInterp() {
@@ -140,9 +179,11 @@ public class X86_64SimFrame extends DefaultIndentable {
 
         out.println("temps : ");
         out.indent();
-        for (Entry<Temp, Word> entry : temps.entrySet()) {
-            out.print(entry.getKey() + " = ");
-            out.println(entry.getValue());
+        for (int slot = 0; slot < temps.length; slot++) {
+            if (temps[slot] != null) {
+                out.print(slots.getTemp(slot) + " = ");
+                out.println(temps[slot]);
+            }
         }
         out.outdent();
 
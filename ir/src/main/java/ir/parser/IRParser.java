@@ -537,13 +537,13 @@ public class IRParser implements IRParserConstants {
                 jj_consume_token(COLON);
                 jj_consume_token(REGISTER);
             {
-                if (true) return new Temp(i.image);
+                if (true) return Temp.get(i.image);
             }
             break;
             case FAKEREGISTER:
                 i = jj_consume_token(FAKEREGISTER);
             {
-                if (true) return new Temp(i.image);
+                if (true) return Temp.get(i.image);
             }
             break;
             default:
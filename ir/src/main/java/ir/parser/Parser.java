@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 
+import ir.temp.CompilationContext;
 import translate.Fragments;
 import translate.ProcFragment;
 
@@ -46,11 +47,13 @@ public class Parser {
 
     /**
      * Read input from a java.io.Reader and parse it into an AST. It is the
-     * caller's responsibility to close the Reader.
+     * caller's responsibility to close the Reader. The program gets a
+     * {@link CompilationContext} of its own, where the names it uses are its
+     * own labels and Temps.
      */
     public static Fragments parse(Reader input) throws ParseException {
         IRParser parser = new IRParser(input);
-        return parser.Fragments();
+        return new CompilationContext().run(parser::Fragments);
     }
 
     /**
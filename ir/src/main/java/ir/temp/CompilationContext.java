@@ -0,0 +1,212 @@
+package ir.temp;
+
+import ir.tree.IRData;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The names made while compiling one program: its generated Temps and
+ * labels, the Temps it named itself (as the IR parser does) and its global
+ * data. Each compilation that has a context of its own numbers its names from
+ * 0, so it makes the same names however many others run before or alongside
+ * it, and everything it made can be garbage collected once the context and
+ * the compiled code are dropped.
+ * <p>
+ * The context names are made in is the one the current thread is
+ * {@link #run(Work) running} work in, or the {@link #SHARED} context if it
+ * isn't running any. The phases that run later, like trace scheduling or
+ * register allocation, run in the context of the fragments they work on
+ * themselves, and the entry points that make a new program, the translator
+ * and the IR parser, make a context for it, so only code that builds IR by
+ * hand ends up in SHARED. To make a program in a context of its own:
+ *
+ * <pre>
+ * Fragments program = new CompilationContext().run(() -> ...);
+ * </pre>
+ * <p>
+ * What doesn't belong to one program is not kept here: the register Temps
+ * ({@link Temp#Temp(String)}), and the labels of the runtime's entry points
+ * (see {@link Label#get(String)}), which are the same in every program.
+ * <p>
+ * A context may be used by more than one thread, but a program is meant to be
+ * compiled by one thread at a time.
+ */
+public class CompilationContext {
+
+    /**
+     * The context of the code that doesn't enter one.
+     */
+    public static final CompilationContext SHARED = new CompilationContext();
+
+    private static final ThreadLocal<CompilationContext> current = new ThreadLocal<CompilationContext>();
+
+    /**
+     * The Temps of this context, by id minus {@link Temp#REGISTERS}.
+     */
+    private final ArrayList<Temp> temps = new ArrayList<Temp>();
+
+    private final Map<String, Temp> namedTemps = new HashMap<String, Temp>();
+
+    private int tempNumbers;
+
+    /**
+     * The numbers in the names of the Temps made with a name that look like
+     * the names of generated Temps.
+     */
+    private final Set<Integer> namedTempNumbers = new HashSet<Integer>();
+
+    /**
+     * The generated labels, by number, with null for the numbers that are
+     * skipped because a label made with a name has taken the name.
+     */
+    private final ArrayList<Label> labels = new ArrayList<Label>();
+
+    /**
+     * The labels made with a name, other than the runtime's, and the numbers
+     * at the end of the names that look like the names of generated labels.
+     */
+    private final Map<String, Label> namedLabels = new HashMap<String, Label>();
+    private final Set<Integer> namedNumbers = new HashSet<Integer>();
+
+    private final Map<Label, IRData> data = new HashMap<Label, IRData>();
+
+    /**
+     * @return the context the current thread makes names in.
+     */
+    public static CompilationContext current() {
+        CompilationContext c = current.get();
+        return c != null ? c : SHARED;
+    }
+
+    /**
+     * Work to do in a context, which returns a value and may throw.
+     */
+    public interface Work<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /**
+     * Do the work with this as the current context of this thread, then put
+     * the context that was current before back.
+     *
+     * @return what the work returns.
+     */
+    public <T, E extends Exception> T run(Work<T, E> work) throws E {
+        CompilationContext previous = current.get();
+        current.set(this);
+        try {
+            return work.run();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    /**
+     * Do the work with this as the current context of this thread, then put
+     * the context that was current before back.
+     */
+    public void run(Runnable work) {
+        CompilationContext previous = current.get();
+        current.set(this);
+        try {
+            work.run();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    private static void restore(CompilationContext previous) {
+        if (previous == null)
+            current.remove();
+        else
+            current.set(previous);
+    }
+
+    synchronized int newTempNumber() {
+        while (namedTempNumbers.contains(tempNumbers))
+            tempNumbers++;
+        return tempNumbers++;
+    }
+
+    /**
+     * @return the id of a new Temp.
+     */
+    synchronized int register(Temp t) {
+        temps.add(t);
+        return Temp.REGISTERS + temps.size() - 1;
+    }
+
+    synchronized Temp getTemp(int id) {
+        return temps.get(id - Temp.REGISTERS);
+    }
+
+    synchronized int tempCount() {
+        return Temp.REGISTERS + temps.size();
+    }
+
+    synchronized Temp findTemp(String name) {
+        return namedTemps.get(name);
+    }
+
+    /**
+     * Keep a Temp made with a name, which looks like the name of the
+     * generated Temp with a number unless that is -1, so that no Temp is
+     * generated with that number from now on.
+     */
+    synchronized void name(Temp t, int number) {
+        namedTemps.put(t.getName(), t);
+        if (number >= tempNumbers)
+            namedTempNumbers.add(number);
+    }
+
+    /**
+     * @return the label with the next number, which the caller makes.
+     */
+    synchronized int newLabelNumber() {
+        // Skip the numbers of names that are taken, whatever the prefix
+        while (namedNumbers.contains(labels.size()))
+            labels.add(null);
+        return labels.size();
+    }
+
+    synchronized void generated(Label label) {
+        labels.add(label);
+    }
+
+    /**
+     * @return the generated label with a number, or null.
+     */
+    synchronized Label getGenerated(int number) {
+        return number < labels.size() ? labels.get(number) : null;
+    }
+
+    synchronized Label findNamed(String name) {
+        return namedLabels.get(name);
+    }
+
+    synchronized int namedLabelCount() {
+        return namedLabels.size();
+    }
+
+    /**
+     * Keep a label made with a name, which ends in a number unless that is
+     * -1, so that no label is generated with that number from now on.
+     */
+    synchronized void named(Label label, int number) {
+        namedLabels.put(label.getName(), label);
+        if (number >= labels.size())
+            namedNumbers.add(number);
+    }
+
+    public synchronized void putData(Label label, IRData d) {
+        data.put(label, d);
+    }
+
+    public synchronized IRData getData(Label label) {
+        return data.get(label);
+    }
+}
@@ -16,42 +16,49 @@ import util.Utils;
  * the Label class without having to change all the code that uses it.
  * Also, it is important to distinguish the "get" from the "generate" method,
  * which would be hard with constructors since they have the same parameter name.
+ * <p>
+ * Labels are equal only if they are the same object, which {@link #get(String)}
+ * makes sure of by returning the existing label with a name, generated or not.
+ * Labels belong to the {@link CompilationContext} they were made in, where
+ * the generated ones are numbered from 0, except for the labels of the
+ * runtime's entry points, which are the same in every program. The names of
+ * generated labels are only built when they are printed.
  */
 public class Label {
 
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + ((name == null) ? 0 : name.hashCode());
-        return result;
+        return id;
     }
 
     @Override
     public boolean equals(Object obj) {
-        if (this == obj)
-            return true;
-        if (obj == null)
-            return false;
-        if (getClass() != obj.getClass())
-            return false;
-        Label other = (Label) obj;
-        if (name == null) {
-            if (other.name != null)
-                return false;
-        } else if (!name.equals(other.name))
-            return false;
-        return true;
+        return this == obj;
+    }
+
+    /**
+     * The entry points of the runtime (see {@link translate.TranslatorLabels}),
+     * which every program calls by the same names. They are made up front, so
+     * that they are the same labels whatever context first asks for them.
+     */
+    private static final Map<String, Label> runtime = new HashMap<String, Label>();
+
+    static {
+        for (String name : new String[]{"cs411main", "cs411println", "cs411newobject", "cs411newarray", "cs411error"})
+            runtime.put(name, new Label(name, -1, runtime.size()));
     }
 
+    private final int id;
+
     /**
-     * A map for use in the fromString method (to return the same Label object if a
-     * label with this name already exists).
+     * The name of a label made with one, or the debug name of a generated
+     * label, whose name is this and its number.
      */
-    private static Map<String, Label> labels = new HashMap<String, Label>();
+    private final String prefix;
+
+    private final int number;
 
     private String name;
-    private static int count;
 
     /**
      * a printable representation of the label, for use in assembly
@@ -60,19 +67,40 @@ public class Label {
     @Override
     public String toString() {
         if (Utils.macOS()) {
-            return "_" + name;
+            return "_" + getName();
         } else {
-            return name;
+            return getName();
         }
     }
 
+    /**
+     * The name of the label, without the prefix toString adds on some
+     * platforms. {@link #get(String)} of it is equal to this label.
+     */
+    public String getName() {
+        if (name == null)
+            name = number < 0 ? prefix : prefix + "_" + number;
+        return name;
+    }
+
+    /**
+     * @return a small number for this label, for hashing: the generated
+     * labels of each context are numbered from 0, and so are the labels made
+     * with a name in each context, and the runtime's labels.
+     */
+    public int getId() {
+        return id;
+    }
+
     /**
      * Makes a new unique label with a generated name.
      * The debugName provided as an argument will be used as part
      * of the generated name, to aid in debugging/reading IR code.
      */
-    private Label(String printsAs) {
-        name = printsAs;
+    private Label(String prefix, int number, int id) {
+        this.id = id;
+        this.prefix = prefix;
+        this.number = number;
     }
 
     /**
@@ -88,19 +116,55 @@ public class Label {
      * debugging).
      */
     public static Label generate(String debugName) {
-        return new Label(debugName + "_" + count++);
+        CompilationContext context = CompilationContext.current();
+        synchronized (context) {
+            int number = context.newLabelNumber();
+            Label label = new Label(debugName, number, number);
+            context.generated(label);
+            return label;
+        }
     }
 
     /**
-     * Retrieve the label with a given name. A new label will be created
-     * only if a label with this name does not yet exist.
+     * Retrieve the label with a given name: one of the runtime's, or else the
+     * label of the current context with this name, generated or not. A new
+     * label will be created only if a label with this name does not yet
+     * exist, and no label generated later in the context will have its name.
      */
     public static Label get(String name) {
-        Label existing = labels.get(name);
+        Label existing = runtime.get(name);
         if (existing != null) return existing;
-        Label newLabel = new Label(name);
-        labels.put(name, newLabel);
-        return newLabel;
+        CompilationContext context = CompilationContext.current();
+        synchronized (context) {
+            int number = numberOf(name);
+            if (number >= 0) {
+                existing = context.getGenerated(number);
+                if (existing != null && existing.getName().equals(name)) return existing;
+            }
+            existing = context.findNamed(name);
+            if (existing != null) return existing;
+            Label newLabel = new Label(name, -1, context.namedLabelCount());
+            context.named(newLabel, number);
+            return newLabel;
+        }
+    }
+
+    /**
+     * @return the number a generated label with this name would have, or -1
+     * if none would have it.
+     */
+    private static int numberOf(String name) {
+        int sep = name.lastIndexOf('_');
+        if (sep < 0 || sep == name.length() - 1)
+            return -1;
+        int number = 0;
+        for (int i = sep + 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9' || number > 100000000)
+                return -1;
+            number = number * 10 + c - '0';
+        }
+        return number;
     }
 
 }
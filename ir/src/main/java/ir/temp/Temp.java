@@ -1,55 +1,93 @@
 package ir.temp;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A Temp is an abstract register: a place to keep a value, which register
+ * allocation later maps to a real register or a spill slot.
+ * <p>
+ * Each Temp has a dense integer id, so that analyses can keep Temps in bitsets
+ * and arrays (see {@link TempSet} and {@link TempMap}) rather than in hash
+ * tables. The registers have the ids below {@link #REGISTERS}, and the other
+ * Temps are numbered from there in the order they are created in their
+ * {@link CompilationContext}. Two Temps are equal only if they are the same
+ * object; the name is only for printing, and is built the first time it is
+ * asked for.
+ */
+public class Temp implements Comparable<Temp> {
 
+    /**
+     * How many ids are kept for the registers, which all programs share.
+     */
+    public static final int REGISTERS = 64;
+
+    /**
+     * The registers, by id. Copied when one is added, so that it can be read
+     * without locking.
+     */
+    private static volatile Temp[] registers = new Temp[0];
+
+    private static final Map<String, Temp> registerNames = new HashMap<String, Temp>();
+
+    protected Color color = null;
+
+    /**
+     * The context this Temp was made in, or null for a register.
+     */
+    private final CompilationContext context;
+
+    private final int id;
+
+    /**
+     * The number of a generated Temp, which its name is made of, or -1 if it
+     * was made with a name.
+     */
+    private final int number;
+
+    private String name;
 
-public class Temp implements Comparable<Temp> {
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + ((name == null) ? 0 : name.hashCode());
-        return result;
+        return id;
     }
 
     @Override
     public boolean equals(Object obj) {
-        if (this == obj)
-            return true;
-        if (obj == null)
-            return false;
-        if (getClass() != obj.getClass())
-            return false;
-        Temp other = (Temp) obj;
-        if (name == null) {
-            if (other.name != null)
-                return false;
-        } else if (!name.equals(other.name))
-            return false;
-        return true;
-    }
-
-    private static int count;
-
-    protected Color color = null;
-
-    private String name;
+        return this == obj;
+    }
 
     private static String ndigit(int n, int digits) {
         String s = Integer.toString(n);
-        while (s.length() < digits) {
-            s = "0" + s;
-        }
-        return s;
+        if (s.length() >= digits)
+            return s;
+        StringBuilder padded = new StringBuilder(digits);
+        for (int i = s.length(); i < digits; i++)
+            padded.append('0');
+        return padded.append(s).toString();
     }
 
     public String toString() {
-        return name;
+        return getName();
     }
 
     public Temp() {
-        name = "t" + ndigit(count++, 3);
+        context = CompilationContext.current();
+        number = context.newTempNumber();
+        id = context.register(this);
+    }
+
+    private Temp(String name, CompilationContext context) {
+        this.name = name;
+        this.number = -1;
+        this.context = context;
+        this.id = context.register(this);
+        context.name(this, numberOf(name));
+        colorRegister();
     }
 
     /**
@@ -60,7 +98,23 @@ public class Temp implements Comparable<Temp> {
      */
     public Temp(String registerName) {
         this.name = registerName;
-        if (registerName.startsWith("%")) {
+        this.number = -1;
+        this.context = null;
+        synchronized (registerNames) {
+            Temp[] old = registers;
+            if (old.length == REGISTERS)
+                throw new Error("More than " + REGISTERS + " registers");
+            this.id = old.length;
+            Temp[] more = Arrays.copyOf(old, old.length + 1);
+            more[id] = this;
+            registers = more;
+            registerNames.put(registerName, this);
+        }
+        colorRegister();
+    }
+
+    private void colorRegister() {
+        if (name.startsWith("%")) {
             this.color = new Color() {
                 @Override
                 public String toString() {
@@ -75,6 +129,78 @@ public class Temp implements Comparable<Temp> {
         }
     }
 
+    /**
+     * Retrieve the register, or else the Temp of the current context, made
+     * with a given name. A new one is made in the current context only if
+     * there is none with this name yet. Generated Temps are never found by
+     * their names, and no Temp is generated later with the name of one made
+     * here.
+     */
+    public static Temp get(String name) {
+        Temp existing;
+        synchronized (registerNames) {
+            existing = registerNames.get(name);
+        }
+        if (existing != null)
+            return existing;
+        CompilationContext c = CompilationContext.current();
+        existing = c.findTemp(name);
+        return existing != null ? existing : new Temp(name, c);
+    }
+
+    /**
+     * @return the number a generated Temp with this name would have, or -1
+     * if none would have it.
+     */
+    private static int numberOf(String name) {
+        if (name.length() < 4 || name.charAt(0) != 't')
+            return -1;
+        int number = 0;
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9' || number > 100000000)
+                return -1;
+            number = number * 10 + c - '0';
+        }
+        return name.equals("t" + ndigit(number, 3)) ? number : -1;
+    }
+
+    /**
+     * @return the register or the Temp of the current context with an id.
+     */
+    public static Temp get(int id) {
+        return get(id, CompilationContext.current());
+    }
+
+    /**
+     * @return the register or the Temp of a context with an id.
+     */
+    public static Temp get(int id, CompilationContext context) {
+        return id < REGISTERS ? registers[id] : context.getTemp(id);
+    }
+
+    /**
+     * @return one more than the largest id in the current context.
+     */
+    public static int count() {
+        return CompilationContext.current().tempCount();
+    }
+
+    /**
+     * @return the context this Temp was made in, or null if it is a
+     * register.
+     */
+    public CompilationContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return a dense number for this Temp, see {@link #get(int)}.
+     */
+    public int getId() {
+        return id;
+    }
+
     public Color getColor() {
         return color;
     }
@@ -93,6 +219,8 @@ public class Temp implements Comparable<Temp> {
     }
 
     public String getName() {
+        if (name == null)
+            name = "t" + ndigit(number, 3);
         return name;
     }
 
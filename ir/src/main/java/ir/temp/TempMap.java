@@ -1,11 +1,133 @@
 package ir.temp;
-//This class is obsolete. It is replaced by
-//allowing Temp's themselves to be painted (see the Temp.paint() and
-//Temp.getColor() method.
-
-//package ir.temp;
-//public interface TempMap {
-//
-//	String tempMap(Temp temp);
-//
-//}
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A map from Temps to values, kept in an array indexed by their ids (see
+ * {@link Temp#getId()}), so that looking a Temp up doesn't hash anything.
+ * Iterating over the keys visits the Temps in the order of their ids.
+ * <p>
+ * Like in a {@link TempSet}, the Temps must all be registers or come from the
+ * same {@link CompilationContext}.
+ */
+public class TempMap<V> {
+
+    private Object[] values = new Object[16];
+    private int size;
+
+    /**
+     * The context of the Temps that aren't registers, once there is one.
+     */
+    private CompilationContext context;
+
+    @SuppressWarnings("unchecked")
+    public V get(Temp t) {
+        int id = t.getId();
+        if (id >= values.length || t.getContext() != context && t.getContext() != null)
+            return null;
+        return (V) values[id];
+    }
+
+    public boolean containsKey(Temp t) {
+        return get(t) != null;
+    }
+
+    /**
+     * @return the value the Temp had before, if any.
+     */
+    public V put(Temp t, V value) {
+        if (value == null)
+            throw new NullPointerException("TempMap has no null values");
+        CompilationContext c = t.getContext();
+        if (c != context && c != null) {
+            if (context != null)
+                throw new Error("Temps of different compilations in one TempMap");
+            context = c;
+        }
+        int id = t.getId();
+        if (id >= values.length)
+            values = Arrays.copyOf(values, Math.max(values.length * 2, id + 1));
+        V old = get(t);
+        values[id] = value;
+        if (old == null)
+            size++;
+        return old;
+    }
+
+    /**
+     * @return the value the Temp had, if any.
+     */
+    public V remove(Temp t) {
+        V old = get(t);
+        if (old != null) {
+            values[t.getId()] = null;
+            size--;
+        }
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return the Temps that have values.
+     */
+    public Iterable<Temp> keys() {
+        return new Iterable<Temp>() {
+            @Override
+            public Iterator<Temp> iterator() {
+                return new Iterator<Temp>() {
+                    private int next = skip(0);
+
+                    private int skip(int id) {
+                        while (id < values.length && values[id] == null)
+                            id++;
+                        return id;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < values.length;
+                    }
+
+                    @Override
+                    public Temp next() {
+                        if (next >= values.length)
+                            throw new NoSuchElementException();
+                        Temp t = Temp.get(next, context);
+                        next = skip(next + 1);
+                        return t;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("{");
+        for (Temp t : keys()) {
+            if (s.length() > 1)
+                s.append(", ");
+            s.append(t).append("=").append(get(t));
+        }
+        return s.append("}").toString();
+    }
+}
@@ -0,0 +1,149 @@
+package ir.temp;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of Temps, kept as a bitset over their ids (see {@link Temp#getId()}),
+ * so that adding, testing and whole set operations don't hash anything.
+ * <p>
+ * The Temps of a set must all be registers or come from the same
+ * {@link CompilationContext}, since ids are only unique within one.
+ */
+public class TempSet implements Iterable<Temp> {
+
+    private final BitSet bits;
+
+    /**
+     * The context of the Temps that aren't registers, once there is one.
+     */
+    private CompilationContext context;
+
+    public TempSet() {
+        bits = new BitSet();
+    }
+
+    public TempSet(TempSet other) {
+        bits = (BitSet) other.bits.clone();
+        context = other.context;
+    }
+
+    public TempSet(Iterable<Temp> temps) {
+        this();
+        for (Temp t : temps)
+            add(t);
+    }
+
+    /**
+     * @return whether the Temp wasn't in the set already.
+     */
+    public boolean add(Temp t) {
+        check(t.getContext());
+        int id = t.getId();
+        if (bits.get(id))
+            return false;
+        bits.set(id);
+        return true;
+    }
+
+    /**
+     * @return whether the Temp was in the set.
+     */
+    public boolean remove(Temp t) {
+        int id = t.getId();
+        if (!contains(t))
+            return false;
+        bits.clear(id);
+        return true;
+    }
+
+    public boolean contains(Temp t) {
+        return bits.get(t.getId()) && (t.getContext() == context || t.getContext() == null);
+    }
+
+    private void check(CompilationContext c) {
+        if (c != context && c != null) {
+            if (context != null)
+                throw new Error("Temps of different compilations in one TempSet");
+            context = c;
+        }
+    }
+
+    /**
+     * @return whether the set changed.
+     */
+    public boolean addAll(TempSet other) {
+        check(other.context);
+        int before = bits.cardinality();
+        bits.or(other.bits);
+        return bits.cardinality() != before;
+    }
+
+    public void removeAll(TempSet other) {
+        bits.andNot(other.bits);
+    }
+
+    public void retainAll(TempSet other) {
+        bits.and(other.bits);
+    }
+
+    public void clear() {
+        bits.clear();
+    }
+
+    public int size() {
+        return bits.cardinality();
+    }
+
+    public boolean isEmpty() {
+        return bits.isEmpty();
+    }
+
+    @Override
+    public Iterator<Temp> iterator() {
+        return new Iterator<Temp>() {
+            private int next = bits.nextSetBit(0);
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public Temp next() {
+                if (next < 0)
+                    throw new NoSuchElementException();
+                Temp t = Temp.get(next, context);
+                next = bits.nextSetBit(next + 1);
+                return t;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof TempSet && bits.equals(((TempSet) obj).bits);
+    }
+
+    @Override
+    public int hashCode() {
+        return bits.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("{");
+        for (Temp t : this) {
+            if (s.length() > 1)
+                s.append(", ");
+            s.append(t);
+        }
+        return s.append("}").toString();
+    }
+}
@@ -1,20 +1,18 @@
 package ir.tree;
 
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 
 import ir.interp.Array;
 import ir.interp.Ptr;
 import ir.interp.Word;
 import ir.interp.X86_64SimFrame;
+import ir.temp.CompilationContext;
 import ir.temp.Label;
 import util.DefaultIndentable;
 import util.IndentingWriter;
 import util.List;
 
 public class IRData extends DefaultIndentable implements Iterable<IRExp> {
-    static Map<Label, IRData> globalData = new HashMap<Label, IRData>();
     Array data = null;
 
     private int wordSize = 8;
@@ -53,12 +51,16 @@ public class IRData extends DefaultIndentable implements Iterable<IRExp> {
                 Ptr p = data.add(i * wordSize);
                 p.set(e.interp(frame));
             }
-            globalData.put(label, this);
+            CompilationContext.current().putData(label, this);
         }
     }
 
+    /**
+     * @return the data of the current context with a label, once it has been
+     * interpreted.
+     */
     public static IRData find(Label label) {
-        return globalData.get(label);
+        return CompilationContext.current().getData(label);
     }
 
     public Label getLabel() {
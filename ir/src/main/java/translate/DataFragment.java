@@ -47,6 +47,6 @@ public class DataFragment extends Fragment {
     }
 
     public void interp(Interp interp) {
-        data.interp(frame.newSimFrame(interp, List.list(new Word[0])));
+        data.interp(frame.newSimFrame(interp, frame.newTempSlots(), List.list(new Word[0])));
     }
 }
@@ -1,6 +1,8 @@
 package translate;
 
+import ir.canon.BlockProfile;
 import ir.frame.Frame;
+import ir.temp.CompilationContext;
 
 import java.util.Iterator;
 
@@ -34,9 +36,16 @@ public class Fragments extends DefaultIndentable implements Iterable<Fragment> {
      */
     private List<Fragment> frags = List.empty();
 
+    /**
+     * The context the translator made the names of this IR in, which later
+     * phases make theirs in too.
+     */
+    private final CompilationContext context;
+
     public Fragments(Frame frameFactory) {
         super();
         this.frameFactory = frameFactory;
+        this.context = CompilationContext.current();
     }
 
     @Override
@@ -64,6 +73,16 @@ public class Fragments extends DefaultIndentable implements Iterable<Fragment> {
         return frags.iterator();
     }
 
+    /**
+     * Have all the procedures trace scheduled following a profile of the
+     * program (see {@link ProcFragment#setProfile(BlockProfile)}).
+     */
+    public void setProfile(BlockProfile profile) {
+        for (Fragment frag : frags)
+            if (frag instanceof ProcFragment)
+                ((ProcFragment) frag).setProfile(profile);
+    }
+
     /**
      * Fetch the (target architecture specific) frame factory that was used to
      * produce this IR.
@@ -72,4 +91,8 @@ public class Fragments extends DefaultIndentable implements Iterable<Fragment> {
         return frameFactory;
     }
 
+    public CompilationContext getContext() {
+        return context;
+    }
+
 }
@@ -3,9 +3,11 @@ package translate;
 import util.IndentingWriter;
 import util.List;
 import ir.canon.BasicBlocks;
+import ir.canon.BlockProfile;
 import ir.canon.Canon;
 import ir.canon.TraceSchedule;
 import ir.frame.Frame;
+import ir.temp.CompilationContext;
 import ir.temp.Label;
 import ir.tree.IRStm;
 import ir.tree.LABEL;
@@ -51,32 +53,58 @@ public class ProcFragment extends Fragment {
      */
     private List<IRStm> traceScheduled;
 
+    /**
+     * The profile that guides trace scheduling, if there is one.
+     */
+    private BlockProfile profile;
+
+    /**
+     * Where the Temps and labels of the later versions of the body are made.
+     */
+    private final CompilationContext context;
+
     public ProcFragment(Frame frame, IRStm body) {
         this.frame = frame;
         this.body = body;
+        this.context = CompilationContext.current();
     }
 
     public List<IRStm> getLinearizedBody() {
         if (linearizedBody == null) {
-            linearizedBody = Canon.linearize(body);
+            linearizedBody = context.run(() -> Canon.linearize(body));
         }
         return linearizedBody;
     }
 
     public BasicBlocks getBasicBlocks() {
         if (blocks == null) {
-            blocks = new BasicBlocks(getLinearizedBody());
+            List<IRStm> linearized = getLinearizedBody();
+            blocks = context.run(() -> new BasicBlocks(linearized));
         }
         return blocks;
     }
 
     public List<IRStm> getTraceScheduledBody() {
         if (traceScheduled == null) {
-            traceScheduled = new TraceSchedule(getBasicBlocks()).getProgram();
+            BasicBlocks bb = getBasicBlocks();
+            traceScheduled = context.run(() -> new TraceSchedule(bb, profile).getProgram());
         }
         return traceScheduled;
     }
 
+    public CompilationContext getContext() {
+        return context;
+    }
+
+    /**
+     * Trace schedule the basic blocks again, following a profile of how they
+     * ran (or without one, if it is null).
+     */
+    public void setProfile(BlockProfile profile) {
+        this.profile = profile;
+        traceScheduled = null;
+    }
+
 
     @Override
     public void dump(IndentingWriter out) {
@@ -0,0 +1,90 @@
+package test;
+
+import ir.canon.Canon;
+import ir.temp.CompilationContext;
+import ir.tree.IRStm;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures how Canon.linearize and the book's recursive algorithm scale with
+ * the number of statements in a method. Not a test, run it by hand:
+ *
+ * <pre>
+ * java -cp ... test.BenchLinearize [largest size]
+ * </pre>
+ * <p>
+ * It runs on a thread with a big stack, so that the book's algorithm gets
+ * through the large methods too.
+ */
+public class BenchLinearize {
+
+    private static final int REPEAT = 5;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * @return how many bytes linearizing a body allocates, in megabytes.
+     */
+    private static double allocated(IRStm body, boolean byTheBook) {
+        return new CompilationContext().run(() -> {
+            long id = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(id);
+            if (byTheBook)
+                Canon.linearizeByTheBook(body);
+            else
+                Canon.linearize(body);
+            return (threads.getThreadAllocatedBytes(id) - before) / 1e6;
+        });
+    }
+
+    /**
+     * @return the best time of a few runs, in milliseconds.
+     */
+    private static double time(IRStm body, boolean byTheBook) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < REPEAT; i++) {
+            long nanos = new CompilationContext().run(() -> {
+                long start = System.nanoTime();
+                if (byTheBook)
+                    Canon.linearizeByTheBook(body);
+                else
+                    Canon.linearize(body);
+                return System.nanoTime() - start;
+            });
+            best = Math.min(best, nanos);
+        }
+        return best / 1e6;
+    }
+
+    private static void run(int largest) {
+        System.out.printf("%10s %12s %12s %8s %12s %12s%n",
+                "statements", "book ms", "iterative ms", "speedup", "book MB", "iterative MB");
+        // Warm up both
+        IRStm warm = new TestLinearize.Generator(0).body(2000, 3);
+        for (int i = 0; i < 20; i++) {
+            time(warm, true);
+            time(warm, false);
+        }
+        for (int n = 1000; n <= largest; n *= 4) {
+            IRStm body = new TestLinearize.Generator(n).body(n, 3);
+            double book = time(body, true);
+            double iterative = time(body, false);
+            System.out.printf("%10d %12.2f %12.2f %8.2f %12.1f %12.1f%n", n, book, iterative, book / iterative,
+                    allocated(body, true), allocated(body, false));
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final int largest = args.length > 0 ? Integer.parseInt(args[0]) : 256000;
+        Thread t = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                BenchLinearize.run(largest);
+            }
+        }, "bench", 1L << 30);
+        t.start();
+        t.join();
+    }
+}
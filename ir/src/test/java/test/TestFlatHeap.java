@@ -0,0 +1,56 @@
+package test;
+
+import ir.interp.FlatHeap;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TestFlatHeap {
+
+    private static void assertFails(Runnable r) {
+        Assertions.assertThrows(Error.class, r::run);
+    }
+
+    @Test
+    public void testInts() {
+        FlatHeap heap = new FlatHeap();
+        long a = FlatHeap.ofInt(-7), b = FlatHeap.ofInt(3);
+        Assertions.assertEquals(-4, heap.asInt(heap.add(a, b)));
+        Assertions.assertEquals(-10, heap.asInt(heap.minus(a, b)));
+        Assertions.assertEquals(-21, heap.asInt(heap.mul(a, b)));
+        Assertions.assertEquals(-2, heap.asInt(heap.div(a, b)));
+        Assertions.assertEquals(-4, heap.asInt(heap.arshift(a, FlatHeap.ofInt(1))));
+        Assertions.assertEquals(Integer.MIN_VALUE, heap.asInt(heap.add(FlatHeap.ofInt(Integer.MAX_VALUE), FlatHeap.ofInt(1))));
+        Assertions.assertTrue(heap.isLT(a, b));
+        Assertions.assertFalse(heap.isULT(a, b));
+        Assertions.assertTrue(heap.isEQ(b, FlatHeap.ofInt(3)));
+        assertFails(() -> heap.add(FlatHeap.UNINITIALIZED, b));
+    }
+
+    @Test
+    public void testPointers() {
+        FlatHeap heap = new FlatHeap();
+        long p = heap.allocate(3, FlatHeap.ofInt(0));
+        long q = heap.allocate(1, FlatHeap.ofInt(0));
+        heap.store(heap.add(p, 16), FlatHeap.ofInt(42));
+        Assertions.assertEquals(42, heap.asInt(heap.load(heap.add(heap.add(p, 24), -8))));
+        Assertions.assertEquals(0, heap.asInt(heap.load(q)));
+        // Pointers that strayed out of their block, even into another one, are caught
+        assertFails(() -> heap.load(heap.add(p, 24)));
+        assertFails(() -> heap.load(heap.add(p, -8)));
+        assertFails(() -> heap.store(heap.add(p, 4), FlatHeap.ofInt(1)));
+        assertFails(() -> heap.mul(p, FlatHeap.ofInt(2)));
+        Assertions.assertFalse(heap.isEQ(p, FlatHeap.ofInt(0)));
+        Assertions.assertFalse(heap.isEQ(p, q));
+        Assertions.assertTrue(heap.isEQ(heap.add(p, 8), heap.add(heap.add(p, 16), -8)));
+    }
+
+    @Test
+    public void testFrames() {
+        FlatHeap heap = new FlatHeap();
+        long f = heap.pushFrame(2);
+        heap.store(f, FlatHeap.ofInt(1));
+        Assertions.assertEquals(FlatHeap.UNINITIALIZED, heap.load(heap.add(f, 8)));
+        heap.popFrame();
+        assertFails(() -> heap.load(f));
+    }
+}
@@ -15,6 +15,7 @@ import ir.tree.IRData;
 import ir.tree.IR;
 import ir.tree.IRExp;
 import ir.tree.IRStm;
+import ir.tree.CJUMP.RelOp;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import translate.DataFragment;
@@ -79,6 +80,44 @@ public class TestIR {
         test("3\n", makeFragments(decl, body));
     }
 
+    /**
+     * A program that prints what a procedure returns when it calls itself n deep.
+     */
+    private static Fragments deepRecursion(int n) {
+        Label down = Label.get("down");
+        Frame frame = architecture.newFrame(down, 1);
+        Temp r = new Temp();
+        Label base = Label.gen(), rec = Label.gen(), done = Label.gen();
+        IRExp arg = frame.getInArg(0).exp(frame.FP());
+        IRStm body = IR.SEQ(
+                IR.CJUMP(RelOp.EQ, arg, IR.CONST(0), base, rec),
+                IR.LABEL(rec),
+                IR.MOVE(r, IR.CALL(down, IR.MINUS(arg, 1))),
+                IR.MOVE(frame.RV(), IR.PLUS(IR.TEMP(r), 1)),
+                IR.JUMP(done),
+                IR.LABEL(base),
+                IR.MOVE(frame.RV(), IR.CONST(0)),
+                IR.LABEL(done));
+        Fragments program = makeFragments(null, IR.EXP(IR.CALL(TranslatorLabels.L_PRINT, IR.CALL(down, IR.CONST(n)))));
+        program.add(new ProcFragment(frame, body));
+        return program;
+    }
+
+    @Test
+    public void testDeepRecursion() throws Exception {
+        // Far deeper than the Java stack would allow if the interpreter recursed
+        Interp interp = new Interp(deepRecursion(200000), getSimulationMode());
+        Assertions.assertEquals("200000\n", interp.run());
+    }
+
+    @Test
+    public void testMaxCallDepth() throws Exception {
+        Interp interp = new Interp(deepRecursion(100), getSimulationMode());
+        interp.setMaxCallDepth(50);
+        Error e = Assertions.assertThrows(Error.class, interp::run);
+        Assertions.assertTrue(e.getMessage().startsWith("Stack overflow"), e.getMessage());
+    }
+
     @Test
     public void testReadIR() throws IOException, ParseException {
         File[] samples = SampleCode.sampleFiles("ir");
@@ -0,0 +1,170 @@
+package test;
+
+import ir.canon.Canon;
+import ir.temp.CompilationContext;
+import ir.temp.Label;
+import ir.temp.Temp;
+import ir.tree.BINOP.Op;
+import ir.tree.CJUMP.RelOp;
+import ir.tree.IR;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import translate.TranslatorLabels;
+import util.List;
+
+import java.util.Random;
+
+/**
+ * Checks that Canon.linearize gives exactly what the book's recursive
+ * algorithm does, Temps and all, on random trees full of ESEQs and calls,
+ * and that it only moves values to new Temps when it must.
+ */
+public class TestLinearize {
+
+    /**
+     * Makes random IR trees, for this test and {@link BenchLinearize}.
+     */
+    static class Generator {
+        private final Random random;
+        private final Temp[] temps = new Temp[4];
+        private final Label[] labels = new Label[4];
+
+        Generator(long seed) {
+            random = new Random(seed);
+            for (int i = 0; i < temps.length; i++) {
+                temps[i] = new Temp();
+                labels[i] = Label.gen();
+            }
+        }
+
+        IRExp exp(int depth) {
+            int choice = depth <= 0 ? random.nextInt(3) : random.nextInt(8);
+            switch (choice) {
+                case 0:
+                    return IR.CONST(random.nextInt(100));
+                case 1:
+                    return IR.TEMP(temps[random.nextInt(temps.length)]);
+                case 2:
+                    return IR.NAME(labels[random.nextInt(labels.length)]);
+                case 3:
+                    return IR.MEM(exp(depth - 1));
+                case 4:
+                case 5:
+                    return IR.BINOP(Op.PLUS, exp(depth - 1), exp(depth - 1));
+                case 6: {
+                    List<IRExp> args = List.empty();
+                    for (int i = random.nextInt(4); i > 0; i--)
+                        args.add(exp(depth - 1));
+                    return IR.CALL(labels[random.nextInt(labels.length)], args);
+                }
+                default:
+                    return IR.ESEQ(stm(depth - 1), exp(depth - 1));
+            }
+        }
+
+        IRStm stm(int depth) {
+            switch (random.nextInt(depth <= 0 ? 3 : 9)) {
+                case 0:
+                    return IR.MOVE(temps[random.nextInt(temps.length)], exp(depth - 1));
+                case 1:
+                    return IR.LABEL(labels[random.nextInt(labels.length)]);
+                case 2:
+                    return IR.EXP(IR.CONST(random.nextInt(3)));
+                case 3:
+                    return IR.MOVE(IR.MEM(exp(depth - 1)), exp(depth - 1));
+                case 4:
+                    return IR.EXP(exp(depth - 1));
+                case 5:
+                    return IR.CJUMP(RelOp.LT, exp(depth - 1), exp(depth - 1), labels[0], labels[1]);
+                case 6:
+                    return IR.CMOVE(RelOp.EQ, exp(depth - 1), exp(depth - 1),
+                            IR.TEMP(temps[0]), exp(depth - 1));
+                case 7:
+                    return IR.MOVE(IR.ESEQ(stm(depth - 1), IR.MEM(exp(depth - 1))), exp(depth - 1));
+                default:
+                    return IR.SEQ(stm(depth - 1), stm(depth - 1));
+            }
+        }
+
+        /**
+         * @return a body of n statements, as the translator would make it.
+         */
+        IRStm body(int n, int depth) {
+            IRStm[] stms = new IRStm[n];
+            for (int i = 0; i < n; i++)
+                stms[i] = stm(depth);
+            return IR.SEQ(stms);
+        }
+    }
+
+    /**
+     * @return the linearized body, made in a context of its own so that the
+     * new Temps have the same names each time.
+     */
+    private static String linearize(IRStm body, boolean byTheBook) {
+        return new CompilationContext().run(() -> {
+            List<IRStm> l = byTheBook ? Canon.linearizeByTheBook(body) : Canon.linearize(body);
+            return l.toString();
+        });
+    }
+
+    @Test
+    public void sameAsTheBook() {
+        for (int seed = 0; seed < 300; seed++) {
+            IRStm body = new Generator(seed).body(1 + seed % 7, 4);
+            Assertions.assertEquals(linearize(body, true), linearize(body, false), "seed " + seed);
+        }
+    }
+
+    @Test
+    public void nothingToDo() {
+        IRStm body = IR.SEQ(IR.EXP(IR.CONST(1)), IR.EXP(IR.ESEQ(IR.EXP(IR.CONST(2)), IR.CONST(3))));
+        Assertions.assertEquals(linearize(body, true), linearize(body, false));
+        Assertions.assertEquals(1, Canon.linearize(body).size());
+    }
+
+    @Test
+    public void veryLongBody() {
+        // Deep enough that the book's algorithm would overflow the stack
+        int n = 200000;
+        IRStm body = new Generator(1).body(n, 0);
+        List<IRStm> l = Canon.linearize(body);
+        Assertions.assertTrue(l.size() > n / 2);
+    }
+
+    /**
+     * @return how many new Temps linearizing a statement that uses a value
+     * after doing something needs.
+     */
+    private static int newTemps(IRExp value, IRStm something) {
+        IRStm body = IR.MOVE(new Temp(), IR.BINOP(Op.PLUS, value, IR.ESEQ(something, IR.CONST(1))));
+        return new CompilationContext().run(() -> {
+            int before = Temp.count();
+            Canon.linearize(body);
+            return Temp.count() - before;
+        });
+    }
+
+    @Test
+    public void commute() {
+        Temp a = new Temp(), b = new Temp();
+        IRStm call = IR.EXP(IR.CALL(Label.get("Foo_bar"), IR.TEMP(b)));
+        IRStm print = IR.EXP(IR.CALL(TranslatorLabels.L_PRINT, IR.TEMP(b)));
+        IRStm allocate = IR.MOVE(b, IR.CALL(TranslatorLabels.L_NEW_OBJECT, IR.CONST(16)));
+        IRExp field = IR.MEM(IR.PLUS(IR.TEMP(a), 8));
+
+        // Temps that aren't written
+        Assertions.assertEquals(0, newTemps(IR.TEMP(a), call));
+        Assertions.assertEquals(1, newTemps(IR.TEMP(b), allocate));
+        // Memory, past calls that may write it or that it might fail before
+        Assertions.assertEquals(1, newTemps(field, call));
+        Assertions.assertEquals(1, newTemps(field, print));
+        Assertions.assertEquals(0, newTemps(field, allocate));
+        // Memory, past stores that may alias it
+        Assertions.assertEquals(0, newTemps(field, IR.MOVE(IR.MEM(IR.PLUS(IR.TEMP(a), 16)), IR.CONST(3))));
+        Assertions.assertEquals(1, newTemps(field, IR.MOVE(IR.MEM(IR.PLUS(IR.TEMP(a), 8)), IR.CONST(3))));
+        Assertions.assertEquals(1, newTemps(field, IR.MOVE(IR.MEM(IR.PLUS(IR.TEMP(b), 16)), IR.CONST(3))));
+    }
+}
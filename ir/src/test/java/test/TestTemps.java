@@ -0,0 +1,123 @@
+package test;
+
+import ir.temp.CompilationContext;
+import ir.temp.Label;
+import ir.temp.Temp;
+import ir.temp.TempMap;
+import ir.temp.TempSet;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import translate.TranslatorLabels;
+
+import java.util.Arrays;
+
+public class TestTemps {
+
+    @Test
+    public void testIdentity() {
+        Temp a = new Temp(), b = new Temp();
+        Assertions.assertNotEquals(a, b);
+        Assertions.assertEquals(a.getId() + 1, b.getId());
+        Assertions.assertSame(a, Temp.get(a.getId()));
+        Assertions.assertSame(Temp.get("%testreg"), Temp.get("%testreg"));
+        Assertions.assertNotEquals(a, Temp.get(a.getName()));
+
+        Label l = Label.gen();
+        Assertions.assertSame(l, Label.get(l.getName()));
+        Assertions.assertSame(Label.get("test_label"), Label.get("test_label"));
+        Assertions.assertNotEquals(l, Label.gen());
+    }
+
+    @Test
+    public void testTempSet() {
+        Temp a = new Temp(), b = new Temp(), c = new Temp();
+        TempSet s = new TempSet();
+        Assertions.assertTrue(s.add(c));
+        Assertions.assertTrue(s.add(a));
+        Assertions.assertFalse(s.add(a));
+        Assertions.assertTrue(s.contains(a));
+        Assertions.assertFalse(s.contains(b));
+        Assertions.assertEquals(2, s.size());
+
+        TempSet t = new TempSet(s);
+        Assertions.assertFalse(t.addAll(s));
+        t.add(b);
+        Assertions.assertTrue(s.addAll(t));
+        Assertions.assertEquals(t, s);
+        StringBuilder order = new StringBuilder();
+        for (Temp x : s)
+            order.append(x == a ? "a" : x == b ? "b" : "c");
+        Assertions.assertEquals("abc", order.toString());
+
+        s.removeAll(new TempSet(Arrays.asList(a, c)));
+        Assertions.assertTrue(s.remove(b));
+        Assertions.assertTrue(s.isEmpty());
+    }
+
+    @Test
+    public void testTempMap() {
+        Temp a = new Temp(), b = new Temp();
+        TempMap<String> m = new TempMap<String>();
+        Assertions.assertNull(m.put(b, "B"));
+        Assertions.assertNull(m.put(a, "A"));
+        Assertions.assertEquals("A", m.put(a, "AA"));
+        Assertions.assertEquals(2, m.size());
+        Assertions.assertEquals("AA", m.get(a));
+        Assertions.assertNull(m.get(new Temp()));
+        StringBuilder keys = new StringBuilder();
+        for (Temp t : m.keys())
+            keys.append(m.get(t));
+        Assertions.assertEquals("AAB", keys.toString());
+        Assertions.assertEquals("B", m.remove(b));
+        Assertions.assertFalse(m.containsKey(b));
+        Assertions.assertEquals(1, m.size());
+    }
+
+    @Test
+    public void testContexts() {
+        CompilationContext one = new CompilationContext(), two = new CompilationContext();
+        Temp a = one.run(() -> new Temp());
+        Temp named = one.run(() -> Temp.get("x"));
+        Label l = one.run(() -> Label.gen());
+        one.run(() -> {
+            Assertions.assertSame(one, CompilationContext.current());
+            Assertions.assertSame(l, Label.get(l.getName()));
+        });
+        Temp b = two.run(() -> new Temp());
+        Label m = two.run(() -> Label.gen());
+        two.run(() -> {
+            Assertions.assertNotSame(named, Temp.get("x"));
+            Assertions.assertSame(m, Label.get(l.getName()));
+            Assertions.assertSame(b, Temp.get(a.getId()));
+        });
+        Assertions.assertSame(CompilationContext.SHARED, CompilationContext.current());
+        // Each context names its Temps and labels from the start
+        Assertions.assertEquals(a.getName(), b.getName());
+        Assertions.assertEquals(Temp.REGISTERS, a.getId());
+        Assertions.assertEquals(l.getName(), m.getName());
+        Assertions.assertNotEquals(l, m);
+        Assertions.assertSame(Label.get("test_label"), Label.get("test_label"));
+        Assertions.assertNotSame(Label.get("test_label"), one.run(() -> Label.get("test_label")));
+        // Only the runtime's labels are the same in every context
+        Assertions.assertSame(TranslatorLabels.L_PRINT, one.run(() -> Label.get("cs411println")));
+        // A name that looks generated is never generated as well
+        CompilationContext three = new CompilationContext();
+        three.run(() -> {
+            Label l0 = Label.get("L_0");
+            Assertions.assertNotEquals(l0.getName(), Label.gen().getName());
+            Assertions.assertSame(l0, Label.get("L_0"));
+            Temp t1 = Temp.get("t001"), t3 = Temp.get("t003");
+            for (int i = 0; i < 5; i++) {
+                String name = new Temp().getName();
+                Assertions.assertNotEquals(t1.getName(), name);
+                Assertions.assertNotEquals(t3.getName(), name);
+            }
+            Assertions.assertSame(t1, Temp.get("t001"));
+        });
+
+        TempSet set = new TempSet();
+        set.add(a);
+        Assertions.assertFalse(set.contains(b));
+        Assertions.assertThrows(Error.class, () -> set.add(b));
+    }
+}
@@ -0,0 +1,342 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a JVM class file writer for the compilers to JVM bytecode in
+ * x86_64sim and ir: one class with a constant pool, a default constructor and
+ * methods made of raw bytecode.
+ * <p>
+ * Classes are written as version 49 (Java 5), which the JVM verifies by type
+ * inference, so no stack map frames are needed.
+ */
+public class ClassFile {
+    // The opcodes used by the compilers
+    public static final int ICONST_0 = 0x03, LCONST_0 = 0x09, LCONST_1 = 0x0a;
+    public static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14;
+    public static final int ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19;
+    public static final int ISTORE = 0x36, LSTORE = 0x37, ASTORE = 0x3a;
+    public static final int LALOAD = 0x2f, LASTORE = 0x50;
+    public static final int LADD = 0x61, LSUB = 0x65, LMUL = 0x69, LDIV = 0x6d, LREM = 0x71;
+    public static final int LSHR = 0x7b, LXOR = 0x83, I2L = 0x85, LCMP = 0x94;
+    public static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+    public static final int GOTO = 0xa7, GOTO_W = 0xc8, LOOKUPSWITCH = 0xab, LRETURN = 0xad, RETURN = 0xb1;
+    public static final int GETFIELD = 0xb4, PUTFIELD = 0xb5;
+    public static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+    public static final int ATHROW = 0xbf;
+    public static final int IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6c, ISHR = 0x7a, L2I = 0x88;
+    public static final int IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2;
+    public static final int IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, IRETURN = 0xac, POP = 0x57;
+
+    private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final Map<String, Integer> constants = new HashMap<String, Integer>();
+    private int poolSize = 1;
+    private final String name, superName;
+    private final List<byte[]> methods = new ArrayList<byte[]>();
+
+    public ClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+        Code init = new Code();
+        init.load(ALOAD, 0);
+        init.invoke(INVOKESPECIAL, superName, "<init>", "()V");
+        init.op(RETURN);
+        addMethod("<init>", "()V", init, 1, 1);
+    }
+
+    private int constant(String key, int slots, byte[] entry) {
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        index = poolSize;
+        pool.write(entry, 0, entry.length);
+        poolSize += slots;
+        constants.put(key, index);
+        return index;
+    }
+
+    private static byte[] bytes(int tag, Object... parts) {
+        try {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(b);
+            out.writeByte(tag);
+            for (Object part : parts) {
+                if (part instanceof String)
+                    out.writeUTF((String) part);
+                else if (part instanceof Long)
+                    out.writeLong((Long) part);
+                else if (part instanceof Integer)
+                    out.writeInt((Integer) part);
+                else
+                    out.writeShort((Short) part);
+            }
+            return b.toByteArray();
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    public int utf8(String s) {
+        return constant("U" + s, 1, bytes(1, s));
+    }
+
+    public int classRef(String internalName) {
+        return constant("C" + internalName, 1, bytes(7, (short) utf8(internalName)));
+    }
+
+    public int longConstant(long value) {
+        return constant("J" + value, 2, bytes(5, value));
+    }
+
+    public int intConstant(int value) {
+        return constant("I" + value, 1, bytes(3, value));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return constant("N" + name + ":" + descriptor, 1,
+                bytes(12, (short) utf8(name), (short) utf8(descriptor)));
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+        return constant("F" + owner + "." + name + ":" + descriptor, 1,
+                bytes(9, (short) classRef(owner), (short) nameAndType(name, descriptor)));
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        return constant("M" + owner + "." + name + ":" + descriptor, 1,
+                bytes(10, (short) classRef(owner), (short) nameAndType(name, descriptor)));
+    }
+
+    /**
+     * The most bytes of code a method may have.
+     */
+    public static final int MAX_CODE_LENGTH = 65535;
+
+    /**
+     * A method body under construction. Jumps are to labels, which are patched
+     * once the whole body is known.
+     */
+    public class Code {
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private boolean wideJumps;
+        private final List<Integer> labelAt = new ArrayList<Integer>();
+        // For each jump: where its offset goes, the address it is relative to, its label and width
+        private final List<int[]> fixups = new ArrayList<int[]>();
+        private final List<int[]> handlers = new ArrayList<int[]>();
+
+        public int size() {
+            return code.size();
+        }
+
+        public int newLabel() {
+            labelAt.add(-1);
+            return labelAt.size() - 1;
+        }
+
+        public void mark(int label) {
+            labelAt.set(label, code.size());
+        }
+
+        public void op(int opcode) {
+            code.write(opcode);
+        }
+
+        private void u2(int value) {
+            code.write(value >> 8);
+            code.write(value);
+        }
+
+        private void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        public void load(int opcode, int local) {
+            wide(opcode, local);
+        }
+
+        public void store(int opcode, int local) {
+            wide(opcode, local);
+        }
+
+        private void wide(int opcode, int local) {
+            if (local < 256) {
+                op(opcode);
+                code.write(local);
+            } else {
+                op(0xc4); // wide
+                op(opcode);
+                u2(local);
+            }
+        }
+
+        public void pushInt(int value) {
+            if (value >= -1 && value <= 5)
+                op(ICONST_0 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                code.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                u2(value);
+            } else {
+                op(LDC_W);
+                u2(intConstant(value));
+            }
+        }
+
+        public void pushLong(long value) {
+            if (value == 0)
+                op(LCONST_0);
+            else if (value == 1)
+                op(LCONST_1);
+            else {
+                op(LDC2_W);
+                u2(longConstant(value));
+            }
+        }
+
+        public void field(int opcode, String owner, String name, String descriptor) {
+            op(opcode);
+            u2(fieldRef(owner, name, descriptor));
+        }
+
+        public void invoke(int opcode, String owner, String name, String descriptor) {
+            op(opcode);
+            u2(methodRef(owner, name, descriptor));
+        }
+
+        /**
+         * Make the jumps from now on reach any label, for bodies that may be
+         * longer than a 16 bit offset reaches. A goto becomes a goto_w, and a
+         * conditional branch the opposite branch over a goto_w.
+         */
+        public void useWideJumps() {
+            wideJumps = true;
+        }
+
+        /**
+         * A goto or a conditional branch to a label.
+         */
+        public void jump(int opcode, int label) {
+            if (wideJumps && opcode != GOTO) {
+                // The conditional branches come in pairs of opposites
+                op(((opcode - IFEQ) ^ 1) + IFEQ);
+                u2(8);
+                opcode = GOTO_W;
+            } else if (wideJumps) {
+                opcode = GOTO_W;
+            }
+            int at = code.size();
+            op(opcode);
+            int width = opcode == GOTO_W ? 4 : 2;
+            fixups.add(new int[]{code.size(), at, label, width});
+            if (width == 4)
+                u4(0);
+            else
+                u2(0);
+        }
+
+        public void lookupswitch(int defaultLabel, int[] keys, int[] labels) {
+            int at = code.size();
+            op(LOOKUPSWITCH);
+            while (code.size() % 4 != 0)
+                code.write(0);
+            fixups.add(new int[]{code.size(), at, defaultLabel, 4});
+            u4(0);
+            u4(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                u4(keys[i]);
+                fixups.add(new int[]{code.size(), at, labels[i], 4});
+                u4(0);
+            }
+        }
+
+        /**
+         * Any exception thrown between the labels start and end is handled at handler.
+         */
+        public void catchAll(int start, int end, int handler) {
+            handlers.add(new int[]{start, end, handler});
+        }
+
+        public byte[] bytes() {
+            byte[] b = code.toByteArray();
+            for (int[] f : fixups) {
+                int offset = labelAt.get(f[2]) - f[1];
+                if (f[3] == 2) {
+                    if (offset != (short) offset)
+                        throw new Error("Jump too far in compiled function");
+                    b[f[0]] = (byte) (offset >> 8);
+                    b[f[0] + 1] = (byte) offset;
+                } else {
+                    for (int i = 0; i < 4; i++)
+                        b[f[0] + i] = (byte) (offset >> (24 - 8 * i));
+                }
+            }
+            return b;
+        }
+    }
+
+    public void addMethod(String name, String descriptor, Code code, int maxStack, int maxLocals) {
+        try {
+            byte[] body = code.bytes();
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(b);
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + body.length + 8 * code.handlers.size());
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(code.handlers.size());
+            for (int[] h : code.handlers) {
+                out.writeShort(code.labelAt.get(h[0]));
+                out.writeShort(code.labelAt.get(h[1]));
+                out.writeShort(code.labelAt.get(h[2]));
+                out.writeShort(0);
+            }
+            out.writeShort(0);
+            methods.add(b.toByteArray());
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    public byte[] toBytes() {
+        try {
+            int thisClass = classRef(name);
+            int superClass = classRef(superName);
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(b);
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolSize);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (byte[] m : methods)
+                out.write(m);
+            out.writeShort(0);
+            return b.toByteArray();
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package x86_64sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Simulates many programs at once on a work stealing pool. Each job runs in a
+ * {@link State} of its own, with its own output, instruction budget and
+ * timing, so jobs may share a linked {@link Program}.
+ */
+public class Batch {
+
+    /**
+     * One program to simulate, and how.
+     */
+    public static class Job {
+        public final String name;
+        public final Program program;
+        public ExecutionMode mode = ExecutionMode.INTERPRETER;
+        public long maxInstructions = 10000000;
+        public int jitThreshold = 1000;
+
+        public Job(String name, Program program) {
+            this.name = name;
+            this.program = program;
+        }
+    }
+
+    /**
+     * What a job printed, or the error it stopped with, and what it took. Only
+     * these are kept, not the State with its memory.
+     */
+    public static class Result {
+        public final Job job;
+        public final String result;
+        /**
+         * Whether the program returned from main, and what it left in %rax.
+         */
+        public final boolean finished;
+        public final long exitCode;
+        public final long instructionsExecuted;
+        public final long collections;
+        public final long gcPauseNanos;
+        public final long nanos;
+
+        Result(Job job, State state, String result, long nanos) {
+            this.job = job;
+            this.result = result;
+            this.finished = state != null && state.pc == State.DONE;
+            this.exitCode = finished ? state.getReg("%rax") : 0;
+            this.instructionsExecuted = state == null ? 0 : state.instructionsExecuted;
+            this.collections = state == null ? 0 : state.heap.collections;
+            this.gcPauseNanos = state == null ? 0 : state.heap.pauseNanos;
+            this.nanos = nanos;
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * A batch using all processors.
+     */
+    public Batch() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public Batch(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Runs the jobs and waits for all of them.
+     *
+     * @return the results, in the order of the jobs.
+     */
+    public List<Result> run(List<Job> jobs) {
+        final Result[] results = new Result[jobs.size()];
+        final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+        for (int i = 0; i < results.length; i++) {
+            final int index = i;
+            final Job job = jobs.get(i);
+            tasks.add(ForkJoinTask.adapt(new Runnable() {
+                public void run() {
+                    results[index] = simulate(job);
+                }
+            }));
+        }
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        return Arrays.asList(results);
+    }
+
+    private static Result simulate(Job job) {
+        long start = System.nanoTime();
+        State s = null;
+        try {
+            s = new State(job.program);
+            s.mode = job.mode;
+            s.maxInstructions = job.maxInstructions;
+            s.jitThreshold = job.jitThreshold;
+            s.runForResult();
+            return new Result(job, s, s.result, System.nanoTime() - start);
+        } catch (RuntimeException | Error e) {
+            // Failures runForResult does not turn into a result must not stop the other jobs
+            return new Result(job, s, "Simulator failure: " + e + "\n", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Stops the pool's threads once the jobs running now are done.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,52 @@
+package x86_64sim;
+
+import java.util.Arrays;
+
+/**
+ * A set associative cache with least recently used replacement, for the
+ * {@link CostModel}. It only keeps tags, since the data stays in {@link Memory}.
+ */
+class Cache {
+    private final int ways, lineShift;
+    private final long setMask;
+    // The lines in each set, most recently used first, or -1 for none
+    private final long[] tags;
+    long accesses, misses;
+
+    /**
+     * @param size     in bytes.
+     * @param lineSize in bytes, a power of two.
+     */
+    Cache(int size, int ways, int lineSize) {
+        int sets = size / (ways * lineSize);
+        if (sets <= 0 || Integer.bitCount(sets) != 1 || Integer.bitCount(lineSize) != 1)
+            throw new Error("Bad cache of " + size + " bytes, " + ways + " ways and " + lineSize + " byte lines");
+        this.ways = ways;
+        this.lineShift = Integer.numberOfTrailingZeros(lineSize);
+        this.setMask = sets - 1;
+        this.tags = new long[sets * ways];
+        Arrays.fill(tags, -1L);
+    }
+
+    /**
+     * Looks up the line holding address, bringing it in if it is missing.
+     *
+     * @return whether the line was there.
+     */
+    boolean access(long address) {
+        accesses++;
+        long line = address >>> lineShift;
+        int set = (int) (line & setMask) * ways;
+        int way = 0;
+        while (way < ways && tags[set + way] != line)
+            way++;
+        boolean hit = way < ways;
+        if (!hit) {
+            misses++;
+            way = ways - 1;
+        }
+        System.arraycopy(tags, set, tags, set + 1, way);
+        tags[set] = line;
+        return hit;
+    }
+}
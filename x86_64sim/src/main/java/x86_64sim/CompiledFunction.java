@@ -0,0 +1,30 @@
+package x86_64sim;
+
+/**
+ * A simulated function compiled to JVM bytecode by {@link FunctionCompiler}.
+ * The generated subclasses live in their own class loader, so everything they
+ * use from the simulator is public or reached through the helpers here.
+ */
+public abstract class CompiledFunction {
+
+    private static final Condition[] conditions = Condition.values();
+
+    /**
+     * Runs the function from the instruction at entry until it leaves the
+     * compiled code or would go over max instructions executed. Registers,
+     * condition and instruction count are written back to the state, also
+     * when an instruction fails, in which case state.pc is set as by
+     * {@link State#step()}.
+     *
+     * @return the pc to continue at.
+     */
+    public abstract long run(State state, int entry, long max);
+
+    protected static long[] registers(State state) {
+        return state.registers;
+    }
+
+    protected static boolean holds(int condition, long conditionl, long conditionr) {
+        return conditions[condition].holds(conditionl, conditionr);
+    }
+}
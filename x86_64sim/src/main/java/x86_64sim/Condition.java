@@ -0,0 +1,97 @@
+package x86_64sim;
+
+/**
+ * The condition codes understood by conditional jumps and moves. The operands
+ * are the left and right hand side of the last compare, as recorded in
+ * {@link State#conditionl} and {@link State#conditionr}.
+ */
+public enum Condition {
+    L("l") {
+        public boolean holds(long l, long r) {
+            return l < r;
+        }
+    },
+    E("e") {
+        public boolean holds(long l, long r) {
+            return l == r;
+        }
+    },
+    G("g") {
+        public boolean holds(long l, long r) {
+            return l > r;
+        }
+    },
+    LE("le") {
+        public boolean holds(long l, long r) {
+            return l <= r;
+        }
+    },
+    NE("ne") {
+        public boolean holds(long l, long r) {
+            return l != r;
+        }
+    },
+    GE("ge") {
+        public boolean holds(long l, long r) {
+            return r < 0 || l >= r;
+        }
+    },
+    B("b") {
+        public boolean holds(long l, long r) {
+            return unsignedCompare(l, r) < 0;
+        }
+    },
+    A("a") {
+        public boolean holds(long l, long r) {
+            return unsignedCompare(l, r) > 0;
+        }
+    },
+    BE("be") {
+        public boolean holds(long l, long r) {
+            return unsignedCompare(l, r) <= 0;
+        }
+    },
+    AE("ae") {
+        public boolean holds(long l, long r) {
+            return unsignedCompare(l, r) >= 0;
+        }
+    };
+
+    private final String suffix;
+
+    Condition(String suffix) {
+        this.suffix = suffix;
+    }
+
+    public abstract boolean holds(long conditionl, long conditionr);
+
+    /**
+     * @return the condition for an instruction suffix such as "le", or null if
+     * there is no such condition.
+     */
+    public static Condition get(String suffix) {
+        for (Condition c : values())
+            if (c.suffix.equals(suffix))
+                return c;
+        return null;
+    }
+
+    private static long unsignedCompare(long conditionl, long conditionr) {
+        if (conditionl < 0 && conditionr < 0) {
+            // more negative is smaller unsigned
+            return conditionl - conditionr;
+        } else if (conditionl < 0 && conditionr > 0) {
+            // negative is bigger than any positive
+            return 1;
+        } else if (conditionl > 0 && conditionr < 0) {
+            // negative is still bigger than any positive
+            return -1;
+        } else {
+            return conditionl - conditionr;
+        }
+    }
+
+    public String toString() {
+        return suffix;
+    }
+}
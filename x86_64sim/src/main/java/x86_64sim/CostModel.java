@@ -0,0 +1,249 @@
+package x86_64sim;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import x86_64sim.instruction.CJmp;
+import x86_64sim.instruction.Call;
+import x86_64sim.instruction.DivR;
+import x86_64sim.instruction.Instruction;
+import x86_64sim.instruction.MulI2R;
+import x86_64sim.instruction.MulIR2R;
+import x86_64sim.instruction.MulR2R;
+import x86_64sim.instruction.Ret;
+
+/**
+ * Estimates the cycles a run would take on a simple in-order machine, as a
+ * better measure of the generated code than the number of instructions. Each
+ * instruction costs a latency by its class, plus the latency of every memory
+ * access it makes through an L1 and an L2 cache, plus a penalty if it is a
+ * conditional jump that a bimodal branch predictor gets wrong.
+ * <p>
+ * The latencies and sizes are public so they can be set before the model is
+ * started with {@link State#startCostModel(CostModel)}. A model can only be
+ * used for one run.
+ */
+public class CostModel {
+    public int aluLatency = 1, mulLatency = 3, divLatency = 26, callLatency = 2, branchLatency = 1;
+    public int mispredictPenalty = 15;
+    // Loads wait for the level that has the line. Stores go through a store
+    // buffer, so they only cost storeLatency, but they still fill the caches.
+    public int l1Latency = 4, l2Latency = 12, memoryLatency = 100, storeLatency = 1;
+    public int l1Size = 32 << 10, l1Ways = 8, l2Size = 256 << 10, l2Ways = 8, lineSize = 64;
+    public int predictorEntries = 4096;
+
+    private static final int ALU = 0, MUL = 1, DIV = 2, CALL = 3, BRANCH = 4;
+
+    private Program p;
+    private int[] kind;
+    private Cache l1, l2;
+    // Two bit saturating counters, indexed by pc; taken is predicted from 2 up
+    private byte[] predictor;
+    // Totals for each pc
+    private long[] instructions, cycles, l1Misses, l2Misses, branches, mispredictions;
+    // What the instruction running now has spent in memory so far
+    private long pendingCycles, pendingL1Misses, pendingL2Misses;
+
+    void attach(State state) {
+        if (p != null)
+            throw new Error("A cost model can only be used for one run");
+        if (Integer.bitCount(predictorEntries) != 1)
+            throw new Error("The number of branch predictor entries must be a power of two");
+        p = state.p;
+        int n = p.countInstructions();
+        kind = new int[n];
+        for (int pc = 0; pc < n; pc++)
+            kind[pc] = classify(p.instructions.get(pc));
+        l1 = new Cache(l1Size, l1Ways, lineSize);
+        l2 = new Cache(l2Size, l2Ways, lineSize);
+        predictor = new byte[predictorEntries];
+        instructions = new long[n];
+        cycles = new long[n];
+        l1Misses = new long[n];
+        l2Misses = new long[n];
+        branches = new long[n];
+        mispredictions = new long[n];
+        state.ram = new WatchedMemory(state.ram);
+    }
+
+    private static int classify(Instruction i) {
+        if (i instanceof DivR)
+            return DIV;
+        if (i instanceof MulI2R || i instanceof MulIR2R || i instanceof MulR2R)
+            return MUL;
+        if (i instanceof Call || i instanceof Ret)
+            return CALL;
+        if (i instanceof CJmp)
+            return BRANCH;
+        return ALU;
+    }
+
+    private void access(long address, boolean store) {
+        if (l1.access(address)) {
+            pendingCycles += store ? storeLatency : l1Latency;
+            return;
+        }
+        pendingL1Misses++;
+        if (l2.access(address)) {
+            pendingCycles += store ? storeLatency : l2Latency;
+            return;
+        }
+        pendingL2Misses++;
+        pendingCycles += store ? storeLatency : memoryLatency;
+    }
+
+    /**
+     * Called by the state after it has executed the instruction at pc, and is
+     * about to execute next.
+     */
+    void executed(long pc, long next) {
+        int at = (int) pc;
+        long c = pendingCycles;
+        switch (kind[at]) {
+            case MUL:
+                c += mulLatency;
+                break;
+            case DIV:
+                c += divLatency;
+                break;
+            case CALL:
+                c += callLatency;
+                break;
+            case BRANCH:
+                c += branchLatency;
+                branches[at]++;
+                boolean taken = next != pc + 1;
+                int entry = at & (predictorEntries - 1);
+                int counter = predictor[entry];
+                if (taken != counter >= 2) {
+                    mispredictions[at]++;
+                    c += mispredictPenalty;
+                }
+                predictor[entry] = (byte) (taken ? Math.min(counter + 1, 3) : Math.max(counter - 1, 0));
+                break;
+            default:
+                c += aluLatency;
+        }
+        instructions[at]++;
+        cycles[at] += c;
+        l1Misses[at] += pendingL1Misses;
+        l2Misses[at] += pendingL2Misses;
+        pendingCycles = pendingL1Misses = pendingL2Misses = 0;
+    }
+
+    private static long sum(long[] perPc) {
+        long total = 0;
+        for (long v : perPc)
+            total += v;
+        return total;
+    }
+
+    public long getCycles() {
+        return sum(cycles);
+    }
+
+    public long getInstructions() {
+        return sum(instructions);
+    }
+
+    public long getL1Misses() {
+        return l1.misses;
+    }
+
+    public long getL2Misses() {
+        return l2.misses;
+    }
+
+    public long getBranches() {
+        return sum(branches);
+    }
+
+    public long getMispredictions() {
+        return sum(mispredictions);
+    }
+
+    /**
+     * @return the cycles spent in the code from the function's label up to the next function label.
+     */
+    public long getCycles(String function) {
+        long total = 0;
+        for (int pc = 0; pc < cycles.length; pc++)
+            if (p.getFunctionAt(pc).equals(function))
+                total += cycles[pc];
+        return total;
+    }
+
+    private static String percent(long part, long whole) {
+        return String.format("%6.2f%%", whole == 0 ? 0.0 : 100.0 * part / whole);
+    }
+
+    /**
+     * Writes the totals, then the costs of each function by cycles.
+     */
+    public void writeReport(PrintStream out) {
+        long totalCycles = getCycles(), totalInstructions = getInstructions();
+        out.println("Estimated " + totalCycles + " cycles for " + totalInstructions + " instructions, "
+                + String.format("%.2f", totalInstructions == 0 ? 0.0 : (double) totalCycles / totalInstructions)
+                + " per instruction");
+        out.println("L1: " + l1.accesses + " accesses, " + l1.misses + " misses " + percent(l1.misses, l1.accesses));
+        out.println("L2: " + l2.accesses + " accesses, " + l2.misses + " misses " + percent(l2.misses, l2.accesses));
+        long totalBranches = getBranches(), totalMispredictions = getMispredictions();
+        out.println("Branches: " + totalBranches + ", " + totalMispredictions + " mispredicted "
+                + percent(totalMispredictions, totalBranches));
+        out.println();
+
+        // Per function, by position in the program's function index, with unknown code last
+        int functions = p.countFunctions();
+        final long[][] totals = new long[functions + 1][5];
+        for (int pc = 0; pc < cycles.length; pc++) {
+            int f = p.functionIndex(pc);
+            long[] t = totals[f < 0 ? functions : f];
+            t[0] += cycles[pc];
+            t[1] += instructions[pc];
+            t[2] += l1Misses[pc];
+            t[3] += l2Misses[pc];
+            t[4] += mispredictions[pc];
+        }
+        List<Integer> order = new ArrayList<Integer>();
+        for (int f = 0; f <= functions; f++)
+            if (totals[f][1] > 0)
+                order.add(f);
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(totals[b][0], totals[a][0]);
+            }
+        });
+        out.println("      cycles        %  instructions    CPI   L1 misses   L2 misses  mispredicts  function");
+        for (int f : order) {
+            long[] t = totals[f];
+            out.println(String.format("%12d %s %13d %6.2f %11d %11d %12d  %s", t[0], percent(t[0], totalCycles),
+                    t[1], (double) t[0] / t[1], t[2], t[3], t[4], f == functions ? "unknown" : p.functionName(f)));
+        }
+    }
+
+    /**
+     * The state's memory while the model runs, passing every access that
+     * succeeds through the caches.
+     */
+    private final class WatchedMemory extends Memory {
+        WatchedMemory(Memory shared) {
+            super(shared);
+        }
+
+        @Override
+        public long read(long address) {
+            long value = super.read(address);
+            access(address, false);
+            return value;
+        }
+
+        @Override
+        public void write(long address, long value) {
+            super.write(address, value);
+            access(address, true);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package x86_64sim;
+
+/**
+ * How a {@link State} runs its program.
+ */
+public enum ExecutionMode {
+    /**
+     * Call {@link x86_64sim.instruction.Instruction#execute} for each instruction.
+     */
+    INTERPRETER,
+    /**
+     * Run the program's {@link ThreadedCode}. Verbose states always use the interpreter.
+     */
+    THREADED,
+    /**
+     * Run the program's {@link ThreadedCode}, compiling functions that are called
+     * often to JVM bytecode.
+     */
+    JIT
+}
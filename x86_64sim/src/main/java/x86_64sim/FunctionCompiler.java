@@ -0,0 +1,682 @@
+package x86_64sim;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.ClassFile;
+import x86_64sim.instruction.Instruction;
+
+import static util.ClassFile.*;
+import static x86_64sim.ThreadedCode.*;
+
+/**
+ * Compiles one simulated function from its {@link ThreadedCode} to a JVM class,
+ * so that HotSpot can compile it further. The function is the code reachable from
+ * its first instruction without following calls or returns.
+ * <p>
+ * Registers and temps used by the function live in JVM locals. Memory accesses
+ * call {@link Memory} directly. Calls, returns and instructions without an opcode
+ * leave the compiled code, and are run by the threaded code engine; the
+ * instruction after a call is an entry point, so the function is re-entered
+ * when the call returns.
+ * <p>
+ * Each basic block checks that the whole block fits in the instruction budget
+ * before it starts, and the instruction count is kept per instruction, so counts
+ * stay exact.
+ */
+class FunctionCompiler {
+    // Functions are only compiled if they are at most this big.
+    static final int MAX_INSTRUCTIONS = 1000;
+    // HotSpot does not compile methods with more bytecode than this.
+    static final int MAX_CODE_SIZE = 8000;
+
+    private static final String STATE = "x86_64sim/State";
+    private static final String MEMORY = "x86_64sim/Memory";
+    private static final String BASE = "x86_64sim/CompiledFunction";
+
+    // The locals of the generated run(State, int, long) method
+    private static final int STATE_LOCAL = 1, ENTRY = 2, MAX = 3, REGISTERS = 5, RAM = 6;
+    private static final int COUNT = 7, CL = 9, CR = 11, NEXT = 13, SCRATCH = 15;
+    private static final int FAIL_PC = 17, EXCEPTION = 18, FIRST_REGISTER = 19;
+
+    private static final AtomicInteger compiled = new AtomicInteger();
+
+    private final int start;
+    private final int[] op, ra, rb, rc;
+    private final long[] ka, kb;
+    private final int size;
+
+    private boolean[] reachable, leader;
+    // The local holding each register slot, or -1 if the function does not use it
+    private int[] local;
+    private boolean[] written;
+    private final List<Integer> entries = new ArrayList<Integer>();
+
+    private ClassFile classFile;
+    private ClassFile.Code c;
+    private int[] label;
+    private int exit;
+
+    FunctionCompiler(ThreadedCode code, int start) {
+        this.start = start;
+        this.op = code.op;
+        this.ra = code.ra;
+        this.rb = code.rb;
+        this.rc = code.rc;
+        this.ka = code.ka;
+        this.kb = code.kb;
+        this.size = code.size;
+    }
+
+    /**
+     * @return the pcs at which the compiled function can be entered.
+     */
+    List<Integer> getEntries() {
+        return entries;
+    }
+
+    private static boolean leaves(int opcode) {
+        return opcode == CALL || opcode == RET || opcode == FALLBACK;
+    }
+
+    private boolean inCode(long pc) {
+        return pc >= 0 && pc < size;
+    }
+
+    private boolean findBlocks() {
+        reachable = new boolean[size];
+        leader = new boolean[size];
+        Deque<Integer> work = new ArrayDeque<Integer>();
+        work.push(start);
+        reachable[start] = true;
+        int count = 0;
+        while (!work.isEmpty()) {
+            int k = work.pop();
+            if (++count > MAX_INSTRUCTIONS)
+                return false;
+            List<Long> next = new ArrayList<Long>(2);
+            switch (op[k]) {
+                case JMP:
+                    next.add(ka[k]);
+                    break;
+                case JCC:
+                    next.add(ka[k]);
+                    next.add(k + 1L);
+                    break;
+                case RET:
+                    break;
+                default:
+                    next.add(k + 1L);
+            }
+            if (op[k] == JMP || op[k] == JCC) {
+                if (inCode(ka[k]))
+                    leader[(int) ka[k]] = true;
+                if (inCode(k + 1))
+                    leader[k + 1] = true;
+            }
+            if (leaves(op[k])) {
+                leader[k] = true;
+                if (inCode(k + 1))
+                    leader[k + 1] = true;
+            }
+            for (long n : next)
+                if (inCode(n) && !reachable[(int) n]) {
+                    reachable[(int) n] = true;
+                    work.push((int) n);
+                }
+        }
+        leader[start] = true;
+        // A call often lands past the push at the start of the function
+        if (inCode(start + 1))
+            leader[start + 1] = true;
+        for (int k = 0; k < size; k++)
+            if (reachable[k] && leader[k] && !leaves(op[k]))
+                entries.add(k);
+        return true;
+    }
+
+    private void use(int slot, boolean write) {
+        if (slot < 0)
+            return;
+        if (slot >= local.length) {
+            int[] bigger = new int[slot + 1];
+            Arrays.fill(bigger, -1);
+            System.arraycopy(local, 0, bigger, 0, local.length);
+            local = bigger;
+            written = Arrays.copyOf(written, slot + 1);
+        }
+        written[slot] |= write;
+        local[slot] = 0;
+    }
+
+    private void findRegisters() {
+        local = new int[Register.COUNT];
+        Arrays.fill(local, -1);
+        written = new boolean[Register.COUNT];
+        for (int k = 0; k < size; k++) {
+            if (!reachable[k])
+                continue;
+            switch (op[k]) {
+                case ADD_I: case SUB_I: case MUL_I: case SAR_I: case INC: case DEC: case MOV_I:
+                    use(ra[k], true);
+                    break;
+                case ADD_R: case SUB_R: case MUL_R: case XOR_R: case MUL_IR: case MOV_R: case MOV_M2R:
+                    use(ra[k], true);
+                    use(rb[k], false);
+                    break;
+                case MOV_IM2R: case LEA:
+                    use(ra[k], true);
+                    use(rb[k], false);
+                    use(rc[k], false);
+                    break;
+                case MOV_R2M: case CMP_R: case CMP_M2R: case CMP_R2M:
+                    use(ra[k], false);
+                    use(rb[k], false);
+                    break;
+                case MOV_R2IM:
+                    use(ra[k], false);
+                    use(rb[k], false);
+                    use(rc[k], false);
+                    break;
+                case MOV_I2M: case CMP_I: case CMP_I2M:
+                    use(ra[k], false);
+                    break;
+                case DIV:
+                    use(rb[k], false);
+                    use(Instruction.AX_REG, true);
+                    use(Instruction.DX_REG, true);
+                    break;
+                case CQTO:
+                    use(Instruction.AX_REG, false);
+                    use(Instruction.DX_REG, true);
+                    break;
+                case PUSH:
+                    use(ra[k], false);
+                    use(Instruction.SP_REG, true);
+                    break;
+                case LEAVE:
+                    use(Instruction.BP_REG, true);
+                    use(Instruction.SP_REG, true);
+                    break;
+            }
+        }
+        int next = FIRST_REGISTER;
+        for (int slot = 0; slot < local.length; slot++)
+            if (local[slot] == 0) {
+                local[slot] = next;
+                next += 2;
+            }
+    }
+
+    private int maxLocals() {
+        int max = FIRST_REGISTER;
+        for (int l : local)
+            max = Math.max(max, l + 2);
+        return max;
+    }
+
+    /**
+     * @return the compiled function, or null if it is too big to compile.
+     */
+    CompiledFunction compile() {
+        if (!inCode(start) || !findBlocks())
+            return null;
+        findRegisters();
+        String name = "x86_64sim/jit/Function" + start + "_" + compiled.getAndIncrement();
+        classFile = new ClassFile(name, BASE);
+        c = classFile.new Code();
+        label = new int[size];
+        for (int k = 0; k < size; k++)
+            if (reachable[k] && leader[k])
+                label[k] = c.newLabel();
+        exit = c.newLabel();
+        int bodyStart = c.newLabel(), bodyEnd = c.newLabel(), handler = c.newLabel();
+
+        prologue();
+        c.mark(bodyStart);
+        for (int k = 0; k < size; k++)
+            if (reachable[k] && leader[k])
+                block(k);
+        c.mark(bodyEnd);
+        c.catchAll(bodyStart, bodyEnd, handler);
+
+        c.mark(exit);
+        writeBack();
+        c.load(LLOAD, NEXT);
+        c.op(LRETURN);
+
+        c.mark(handler);
+        c.store(ASTORE, EXCEPTION);
+        writeBack();
+        c.load(ALOAD, STATE_LOCAL);
+        c.load(ILOAD, FAIL_PC);
+        c.op(I2L);
+        c.field(PUTFIELD, STATE, "pc", "J");
+        c.load(ALOAD, EXCEPTION);
+        c.op(ATHROW);
+
+        if (c.size() > MAX_CODE_SIZE)
+            return null;
+        classFile.addMethod("run", "(L" + STATE + ";IJ)J", c, 16, maxLocals());
+        byte[] bytes = classFile.toBytes();
+        try {
+            Class<?> cls = new Loader(CompiledFunction.class.getClassLoader()).define(name.replace('/', '.'), bytes);
+            return (CompiledFunction) cls.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new Error("Can't load compiled function", e);
+        }
+    }
+
+    /**
+     * Each compiled function gets a class loader of its own, so that it can be
+     * unloaded with its program.
+     */
+    private static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private void prologue() {
+        c.load(ALOAD, STATE_LOCAL);
+        c.invoke(INVOKESTATIC, BASE, "registers", "(L" + STATE + ";)[J");
+        c.store(ASTORE, REGISTERS);
+        c.load(ALOAD, STATE_LOCAL);
+        c.field(GETFIELD, STATE, "ram", "L" + MEMORY + ";");
+        c.store(ASTORE, RAM);
+        c.load(ALOAD, STATE_LOCAL);
+        c.field(GETFIELD, STATE, "instructionsExecuted", "J");
+        c.store(LSTORE, COUNT);
+        c.load(ALOAD, STATE_LOCAL);
+        c.field(GETFIELD, STATE, "conditionl", "J");
+        c.store(LSTORE, CL);
+        c.load(ALOAD, STATE_LOCAL);
+        c.field(GETFIELD, STATE, "conditionr", "J");
+        c.store(LSTORE, CR);
+        c.pushInt(0);
+        c.store(ISTORE, FAIL_PC);
+        c.pushLong(0);
+        c.store(LSTORE, NEXT);
+        for (int slot = 0; slot < local.length; slot++)
+            if (local[slot] >= 0) {
+                c.load(ALOAD, REGISTERS);
+                c.pushInt(slot);
+                c.op(LALOAD);
+                c.store(LSTORE, local[slot]);
+            }
+        int[] keys = new int[entries.size()];
+        int[] labels = new int[entries.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = entries.get(i);
+            labels[i] = label[keys[i]];
+        }
+        int unknown = c.newLabel();
+        c.load(ILOAD, ENTRY);
+        c.lookupswitch(unknown, keys, labels);
+        c.mark(unknown);
+        c.load(ILOAD, ENTRY);
+        c.op(I2L);
+        c.store(LSTORE, NEXT);
+        c.jump(GOTO, exit);
+    }
+
+    private void writeBack() {
+        for (int slot = 0; slot < local.length; slot++)
+            if (local[slot] >= 0 && written[slot]) {
+                c.load(ALOAD, REGISTERS);
+                c.pushInt(slot);
+                c.load(LLOAD, local[slot]);
+                c.op(LASTORE);
+            }
+        c.load(ALOAD, STATE_LOCAL);
+        c.load(LLOAD, COUNT);
+        c.field(PUTFIELD, STATE, "instructionsExecuted", "J");
+        c.load(ALOAD, STATE_LOCAL);
+        c.load(LLOAD, CL);
+        c.field(PUTFIELD, STATE, "conditionl", "J");
+        c.load(ALOAD, STATE_LOCAL);
+        c.load(LLOAD, CR);
+        c.field(PUTFIELD, STATE, "conditionr", "J");
+    }
+
+    private void exitTo(long pc) {
+        c.pushLong(pc);
+        c.store(LSTORE, NEXT);
+        c.jump(GOTO, exit);
+    }
+
+    private void goTo(long pc) {
+        if (inCode(pc) && reachable[(int) pc])
+            c.jump(GOTO, label[(int) pc]);
+        else
+            exitTo(pc);
+    }
+
+    private void block(int first) {
+        c.mark(label[first]);
+        if (leaves(op[first])) {
+            // Leave it to the threaded code
+            exitTo(first);
+            return;
+        }
+        int last = first;
+        while (op[last] != JMP && op[last] != JCC && last + 1 < size
+                && reachable[last + 1] && !leader[last + 1])
+            last++;
+        // Only start the block if all of it fits in the budget
+        int fits = c.newLabel();
+        c.load(LLOAD, MAX);
+        c.load(LLOAD, COUNT);
+        c.op(LSUB);
+        c.pushLong(last - first + 1);
+        c.op(LCMP);
+        c.jump(IFGE, fits);
+        exitTo(first);
+        c.mark(fits);
+        List<long[]> stubs = new ArrayList<long[]>();
+        for (int k = first; k <= last; k++)
+            instruction(k, stubs);
+        if (op[last] != JMP)
+            goTo(last + 1);
+        for (long[] stub : stubs) {
+            c.mark((int) stub[0]);
+            exitTo(stub[1]);
+        }
+    }
+
+    private void load(int slot) {
+        c.load(LLOAD, local[slot]);
+    }
+
+    private void store(int slot) {
+        c.store(LSTORE, local[slot]);
+    }
+
+    private void count() {
+        c.load(LLOAD, COUNT);
+        c.pushLong(1);
+        c.op(LADD);
+        c.store(LSTORE, COUNT);
+    }
+
+    // Instructions that may throw record where, for the exception handler.
+    private void mayFail(int k) {
+        c.pushInt(k + 1);
+        c.store(ISTORE, FAIL_PC);
+    }
+
+    private void address(int base, long offset) {
+        c.load(ALOAD, RAM);
+        load(base);
+        c.pushLong(offset);
+        c.op(LADD);
+    }
+
+    private void address(int base, long offset, int index, long scale) {
+        address(base, offset);
+        load(index);
+        c.pushLong(scale);
+        c.op(LMUL);
+        c.op(LADD);
+    }
+
+    private void read() {
+        c.invoke(INVOKEVIRTUAL, MEMORY, "read", "(J)J");
+    }
+
+    private void write() {
+        c.invoke(INVOKEVIRTUAL, MEMORY, "write", "(JJ)V");
+    }
+
+    private void arithmetic(int k, int opcode, boolean immediate) {
+        load(ra[k]);
+        if (immediate)
+            c.pushLong(ka[k]);
+        else
+            load(rb[k]);
+        c.op(opcode);
+        store(ra[k]);
+    }
+
+    private void instruction(int k, List<long[]> stubs) {
+        int a = ra[k], b = rb[k], x = rc[k];
+        long k1 = ka[k], k2 = kb[k];
+        switch (op[k]) {
+            case ADD_I: arithmetic(k, LADD, true); break;
+            case ADD_R: arithmetic(k, LADD, false); break;
+            case SUB_I: arithmetic(k, LSUB, true); break;
+            case SUB_R: arithmetic(k, LSUB, false); break;
+            case MUL_I: arithmetic(k, LMUL, true); break;
+            case MUL_R: arithmetic(k, LMUL, false); break;
+            case XOR_R: arithmetic(k, LXOR, false); break;
+            case MUL_IR:
+                load(b);
+                c.pushLong(k1);
+                c.op(LMUL);
+                store(a);
+                break;
+            case SAR_I:
+                load(a);
+                c.pushInt((int) k1);
+                c.op(LSHR);
+                store(a);
+                break;
+            case INC:
+            case DEC:
+                load(a);
+                c.pushLong(1);
+                c.op(op[k] == INC ? LADD : LSUB);
+                store(a);
+                break;
+            case DIV:
+                mayFail(k);
+                load(Instruction.AX_REG);
+                load(b);
+                c.op(LREM);
+                c.store(LSTORE, SCRATCH);
+                load(Instruction.AX_REG);
+                load(b);
+                c.op(LDIV);
+                store(Instruction.AX_REG);
+                c.load(LLOAD, SCRATCH);
+                store(Instruction.DX_REG);
+                break;
+            case CQTO: {
+                int negative = c.newLabel(), done = c.newLabel();
+                load(Instruction.AX_REG);
+                c.pushLong(0);
+                c.op(LCMP);
+                c.jump(IFLE, negative);
+                c.pushLong(0);
+                c.jump(GOTO, done);
+                c.mark(negative);
+                c.pushLong(-1);
+                c.mark(done);
+                store(Instruction.DX_REG);
+                break;
+            }
+            case MOV_I:
+                c.pushLong(k1);
+                store(a);
+                break;
+            case MOV_R:
+                load(b);
+                store(a);
+                break;
+            case MOV_M2R:
+                mayFail(k);
+                address(b, k1);
+                read();
+                store(a);
+                break;
+            case MOV_IM2R:
+                mayFail(k);
+                address(b, k1, x, k2);
+                read();
+                store(a);
+                break;
+            case MOV_R2M:
+                mayFail(k);
+                address(a, k1);
+                load(b);
+                write();
+                break;
+            case MOV_R2IM:
+                mayFail(k);
+                address(a, k1, x, k2);
+                load(b);
+                write();
+                break;
+            case MOV_I2M:
+                mayFail(k);
+                address(a, k1);
+                c.pushLong(k2);
+                write();
+                break;
+            case LEA:
+                c.pushLong(k1);
+                if (b >= 0) {
+                    load(b);
+                    c.op(LADD);
+                }
+                if (x >= 0) {
+                    load(x);
+                    c.pushLong(k2);
+                    c.op(LMUL);
+                    c.op(LADD);
+                }
+                store(a);
+                break;
+            case CMP_I:
+                c.pushLong(k1);
+                c.store(LSTORE, CR);
+                load(a);
+                c.store(LSTORE, CL);
+                break;
+            case CMP_R:
+                load(b);
+                c.store(LSTORE, CR);
+                load(a);
+                c.store(LSTORE, CL);
+                break;
+            case CMP_M2R:
+                mayFail(k);
+                address(b, k1);
+                read();
+                c.store(LSTORE, CR);
+                load(a);
+                c.store(LSTORE, CL);
+                break;
+            case CMP_R2M:
+                mayFail(k);
+                address(a, k1);
+                read();
+                c.store(LSTORE, CL);
+                load(b);
+                c.store(LSTORE, CR);
+                break;
+            case CMP_I2M:
+                mayFail(k);
+                c.pushLong(k2);
+                c.store(LSTORE, CR);
+                address(a, k1);
+                read();
+                c.store(LSTORE, CL);
+                break;
+            case PUSH:
+                mayFail(k);
+                load(Instruction.SP_REG);
+                c.pushLong(Memory.SIZEOF_LONG);
+                c.op(LSUB);
+                c.store(LSTORE, SCRATCH);
+                c.load(ALOAD, RAM);
+                c.load(LLOAD, SCRATCH);
+                load(a);
+                write();
+                c.load(LLOAD, SCRATCH);
+                store(Instruction.SP_REG);
+                break;
+            case LEAVE:
+                mayFail(k);
+                load(Instruction.BP_REG);
+                c.store(LSTORE, SCRATCH);
+                c.load(ALOAD, RAM);
+                c.load(LLOAD, SCRATCH);
+                read();
+                store(Instruction.BP_REG);
+                c.load(LLOAD, SCRATCH);
+                c.pushLong(Memory.SIZEOF_LONG);
+                c.op(LADD);
+                store(Instruction.SP_REG);
+                break;
+            case JMP:
+                count();
+                goTo(k1);
+                return;
+            case JCC: {
+                count();
+                int taken;
+                if (inCode(k1) && reachable[(int) k1]) {
+                    taken = label[(int) k1];
+                } else {
+                    taken = c.newLabel();
+                    stubs.add(new long[]{taken, k1});
+                }
+                branch(a, taken);
+                return;
+            }
+            default:
+                throw new Error("Can't compile opcode " + op[k]);
+        }
+        count();
+    }
+
+    private void compare() {
+        c.load(LLOAD, CL);
+        c.load(LLOAD, CR);
+        c.op(LCMP);
+    }
+
+    /**
+     * Branch to taken if the condition holds. The plain signed comparisons
+     * are done inline; anything else asks {@link Condition#holds}.
+     */
+    private void branch(int condition, int taken) {
+        switch (Condition.values()[condition]) {
+            case L:
+                compare();
+                c.jump(IFLT, taken);
+                break;
+            case E:
+                compare();
+                c.jump(IFEQ, taken);
+                break;
+            case G:
+                compare();
+                c.jump(IFGT, taken);
+                break;
+            case LE:
+                compare();
+                c.jump(IFLE, taken);
+                break;
+            case NE:
+                compare();
+                c.jump(IFNE, taken);
+                break;
+            default:
+                c.pushInt(condition);
+                c.load(LLOAD, CL);
+                c.load(LLOAD, CR);
+                c.invoke(INVOKESTATIC, BASE, "holds", "(IJJ)Z");
+                c.jump(IFNE, taken);
+        }
+    }
+}
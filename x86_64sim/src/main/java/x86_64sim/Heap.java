@@ -0,0 +1,241 @@
+package x86_64sim;
+
+import java.util.Arrays;
+
+import x86_64sim.instruction.Instruction;
+
+/**
+ * The part of the simulated heap above the static data, where the runtime
+ * routines allocate objects and arrays. Every block starts with a hidden
+ * header word holding its size in bytes, with the low bit set if the block is
+ * free, so the heap can be walked from start to top.
+ * <p>
+ * When an allocation does not fit, unreachable blocks are reclaimed by a
+ * conservative mark and sweep collector. Objects carry no type information, so
+ * any word in a register, a saved frame, the stack, the static data or a
+ * reachable block that points into a block keeps that block alive. Nothing is
+ * moved. Like the C runtime, allocation hands out zeroed memory, so freed
+ * blocks are cleared when they are swept.
+ */
+public class Heap {
+    private static final long FREE = 1L;
+    private static final int HEADER = Memory.SIZEOF_LONG;
+    private static final long MIN_BLOCK = 2 * Memory.SIZEOF_LONG;
+    // Free blocks of fewer words than this are kept in lists by exact size
+    private static final int BINS = 64;
+
+    private final State state;
+    private final Memory ram;
+    private final long start, limit;
+    private long top;
+    private final Blocks[] bins = new Blocks[BINS];
+    private final Blocks large = new Blocks();
+
+    public long collections;
+    public long bytesReclaimed;
+    public long pauseNanos;
+
+    Heap(State state, long start, long limit) {
+        this.state = state;
+        this.ram = state.ram;
+        this.start = start;
+        this.limit = limit;
+        this.top = start;
+        for (int i = 0; i < BINS; i++)
+            bins[i] = new Blocks();
+    }
+
+    /**
+     * @return the end of the part of the heap in use.
+     */
+    public long getTop() {
+        return top;
+    }
+
+    /**
+     * @return the address of size bytes of zeroed memory.
+     */
+    public long allocate(long size) {
+        if (size < 0 || size > limit - start)
+            throw outOfMemory(size);
+        long block = Math.max(MIN_BLOCK, (HEADER + size + Memory.SIZEOF_LONG - 1) & -Memory.SIZEOF_LONG);
+        long b = take(block);
+        if (b < 0) {
+            collect();
+            b = take(block);
+            if (b < 0)
+                throw outOfMemory(size);
+        }
+        return b + HEADER;
+    }
+
+    private static Error outOfMemory(long size) {
+        return new Error("Out of heap memory allocating " + size + " bytes");
+    }
+
+    /**
+     * Takes a block of the given size from the free lists or the top of the
+     * heap and writes its header.
+     *
+     * @return the block, or -1 if there is no room.
+     */
+    private long take(long block) {
+        int words = (int) (block / Memory.SIZEOF_LONG);
+        if (words < BINS && bins[words].size > 0) {
+            long b = bins[words].pop();
+            ram.write(b, block);
+            return b;
+        }
+        for (int i = 0; i < large.size; i++) {
+            long b = large.at[i];
+            long size = ram.read(b) & ~FREE;
+            if (size == block || size >= block + MIN_BLOCK) {
+                large.remove(i);
+                if (size > block)
+                    release(b + block, size - block);
+                ram.write(b, block);
+                return b;
+            }
+        }
+        if (top + block <= limit) {
+            long b = top;
+            top += block;
+            ram.write(b, block);
+            return b;
+        }
+        return -1;
+    }
+
+    /**
+     * Puts the cleared memory from b on a free list as one block.
+     */
+    private void release(long b, long size) {
+        ram.write(b, size | FREE);
+        long words = size / Memory.SIZEOF_LONG;
+        if (words < BINS)
+            bins[(int) words].push(b);
+        else
+            large.push(b);
+    }
+
+    public void collect() {
+        long startTime = System.nanoTime();
+        collections++;
+        // The allocated blocks in address order
+        Blocks blocks = new Blocks();
+        for (long b = start; b < top; b += blockSize(b))
+            if ((ram.read(b) & FREE) == 0)
+                blocks.push(b);
+        boolean[] marked = new boolean[blocks.size];
+        int[] work = new int[blocks.size];
+        int pending = 0;
+
+        // Roots
+        long[] registers = state.registers;
+        for (long v : registers)
+            pending = mark(v, blocks, marked, work, pending);
+        for (int d = 0; d < state.callDepth; d++)
+            for (long v : state.registerstack[d])
+                pending = mark(v, blocks, marked, work, pending);
+        long sp = registers[Instruction.SP_REG] & -Memory.SIZEOF_LONG;
+        for (long a = Math.max(sp, limit + Memory.PAGE_SIZE); a < state.stackBase; a += Memory.SIZEOF_LONG)
+            pending = mark(ram.read(a), blocks, marked, work, pending);
+        for (long a = State.HEAP_BASE; a < start; a += Memory.SIZEOF_LONG)
+            pending = mark(ram.read(a), blocks, marked, work, pending);
+
+        while (pending > 0) {
+            long b = blocks.at[work[--pending]];
+            long end = b + blockSize(b);
+            for (long a = b + HEADER; a < end; a += Memory.SIZEOF_LONG)
+                pending = mark(ram.read(a), blocks, marked, work, pending);
+        }
+
+        sweep(marked);
+        pauseNanos += System.nanoTime() - startTime;
+    }
+
+    private long blockSize(long b) {
+        long size = ram.read(b) & ~FREE;
+        if (size < MIN_BLOCK || b + size > top)
+            throw new Error("Heap corrupted at address " + b);
+        return size;
+    }
+
+    /**
+     * Marks the block v points into, if any, and queues it to be scanned.
+     *
+     * @return the new number of queued blocks.
+     */
+    private int mark(long v, Blocks blocks, boolean[] marked, int[] work, int pending) {
+        if (v <= start || v >= top)
+            return pending;
+        // The last block starting below v
+        int i = Arrays.binarySearch(blocks.at, 0, blocks.size, v);
+        i = i >= 0 ? i - 1 : -i - 2;
+        if (i < 0 || marked[i])
+            return pending;
+        long b = blocks.at[i];
+        if (v >= b + (ram.read(b) & ~FREE))
+            return pending;
+        marked[i] = true;
+        work[pending] = i;
+        return pending + 1;
+    }
+
+    /**
+     * Frees the unmarked blocks, merging neighbouring free blocks, and lowers
+     * the top if the heap ends in free memory.
+     */
+    private void sweep(boolean[] marked) {
+        for (Blocks bin : bins)
+            bin.size = 0;
+        large.size = 0;
+        long run = -1;
+        int i = 0;
+        for (long b = start; b < top; ) {
+            long header = ram.read(b);
+            long size = header & ~FREE;
+            if ((header & FREE) == 0 && marked[i++]) {
+                if (run >= 0)
+                    release(run, b - run);
+                run = -1;
+            } else {
+                if ((header & FREE) == 0) {
+                    bytesReclaimed += size;
+                    ram.clear(b + HEADER, b + size);
+                }
+                if (run < 0)
+                    run = b;
+                else
+                    ram.write(b, 0L);
+            }
+            b += size;
+        }
+        if (run >= 0) {
+            ram.write(run, 0L);
+            top = run;
+        }
+    }
+
+    /**
+     * A growable list of block addresses.
+     */
+    private static final class Blocks {
+        long[] at = new long[16];
+        int size;
+
+        void push(long b) {
+            if (size == at.length)
+                at = Arrays.copyOf(at, size * 2);
+            at[size++] = b;
+        }
+
+        long pop() {
+            return at[--size];
+        }
+
+        void remove(int i) {
+            at[i] = at[--size];
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package x86_64sim;
+
+import x86_64sim.instruction.Instruction;
+
+/**
+ * The MiniJava runtime routines. Calls to these are not simulated instruction
+ * by instruction but are carried out directly by the simulator. A call binds
+ * to its intrinsic once, when the program is linked.
+ */
+public enum Intrinsic {
+    PRINTLN("cs411println") {
+        public void invoke(State state) {
+            state.out.print(state.getReg(Instruction.ARG1_REG) + "\n");
+        }
+    },
+    NEW_OBJECT("cs411newobject") {
+        public void invoke(State state) {
+            state.setReg(Instruction.AX_REG, state.alloc(state.getReg(Instruction.ARG1_REG)));
+        }
+    },
+    NEW_ARRAY("cs411newarray") {
+        public void invoke(State state) {
+            state.setReg(Instruction.AX_REG, state.allocArray(state.getReg(Instruction.ARG1_REG)));
+        }
+    },
+    ERROR("cs411error") {
+        public void invoke(State state) {
+            throw new Error("MiniJava failure " + state.getReg(Instruction.ARG1_REG) + "\n");
+        }
+    };
+
+    private final String name;
+
+    Intrinsic(String name) {
+        this.name = name;
+    }
+
+    public abstract void invoke(State state);
+
+    /**
+     * @return the intrinsic called by a label, with or without the leading
+     * underscore some platforms add, or null if the label is not a runtime routine.
+     */
+    public static Intrinsic get(String label) {
+        String name = label.startsWith("_") ? label.substring(1) : label;
+        for (Intrinsic i : values())
+            if (i.name.equals(name))
+                return i;
+        return null;
+    }
+}
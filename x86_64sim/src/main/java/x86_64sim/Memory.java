@@ -1,56 +1,126 @@
 package x86_64sim;
 
+import java.util.Arrays;
+
+/**
+ * The simulated address space: one flat range of words starting at base,
+ * stored in pages that are only allocated once they are written. Pages that
+ * have never been written read as zero. Guard pages, such as the one between
+ * heap and stack, fail on any access.
+ */
 public class Memory {
-    long[] heap, stack;
-    long minheap;
-    public long maxheap;
-    long minstack, maxstack;
     public static final int SIZEOF_LONG = 8;
+    static final int PAGE_SHIFT = 13; // in words, so a page is 64KB
+    static final int PAGE_WORDS = 1 << PAGE_SHIFT;
+    public static final long PAGE_SIZE = (long) PAGE_WORDS * SIZEOF_LONG;
+    private static final int PAGE_MASK = PAGE_WORDS - 1;
+    // Shared by all pages that have not been written yet, so never written itself
+    private static final long[] ZERO = new long[PAGE_WORDS];
+    private static final long[] GUARD = new long[0];
+
+    private final long base;
+    private final long words;
+    private final long[][] pages;
+
+    /**
+     * @param base the lowest address, which must be aligned.
+     * @param size the number of bytes, rounded up to whole pages.
+     */
+    Memory(long base, long size) {
+        long npages = (size + PAGE_SIZE - 1) / PAGE_SIZE;
+        if (base % SIZEOF_LONG != 0 || size < 0 || npages > Integer.MAX_VALUE)
+            throw new Error("Bad simulated memory of " + size + " bytes at " + base);
+        this.base = base;
+        this.words = npages * PAGE_WORDS;
+        this.pages = new long[(int) npages][];
+        Arrays.fill(pages, ZERO);
+    }
+
+    /**
+     * A view of the same words as shared, for subclasses that watch accesses.
+     */
+    Memory(Memory shared) {
+        this.base = shared.base;
+        this.words = shared.words;
+        this.pages = shared.pages;
+    }
+
+    /**
+     * Makes the pages from address from up to address to fail on any access.
+     * Both must be page aligned relative to the base.
+     */
+    void guard(long from, long to) {
+        for (long a = from; a < to; a += PAGE_SIZE)
+            pages[(int) ((a - base) / PAGE_SIZE)] = GUARD;
+    }
 
-    Memory(long minheap, long maxheap, long minstack, long maxstack) {
-        this.minheap = minheap;
-        this.maxheap = maxheap;
-        this.heap = new long[(int) ((maxheap - minheap) / SIZEOF_LONG)];
-        this.minstack = minstack;
-        this.maxstack = maxstack;
-        this.stack = new long[(int) ((maxstack - minstack) / SIZEOF_LONG)];
+    public long getBase() {
+        return base;
     }
 
-    private boolean inHeap(long address) {
-        return minheap <= address && address <= maxheap;
+    public long getLimit() {
+        return base + words * SIZEOF_LONG;
     }
 
-    private boolean inStack(long address) {
-        return minstack <= address && address <= maxstack;
+    /**
+     * The number of bytes actually backed by pages, as opposed to reserved.
+     */
+    public long getResidentSize() {
+        long resident = 0;
+        for (long[] page : pages)
+            if (page != ZERO && page != GUARD)
+                resident += PAGE_SIZE;
+        return resident;
     }
 
     public long read(long address) {
-        if (address % SIZEOF_LONG != 0) {
-            throw new Error("Read at address " + address + " fails, bad alignment");
-        }
-        if (inHeap(address)) {
-            int arrayindex = (int) ((address - minheap) / SIZEOF_LONG);
-            return heap[arrayindex];
-        } else if (inStack(address)) {
-            int arrayindex = (int) ((address - minstack) / SIZEOF_LONG);
-            return stack[arrayindex];
-        } else {
-            throw new Error("Read at address " + address + " out of bounds");
+        long offset = address - base;
+        // Out of range or misaligned offsets, including negative ones, in one test
+        if ((offset >>> 3) >= words || (offset & (SIZEOF_LONG - 1)) != 0)
+            throw fault("Read", address);
+        long word = offset >>> 3;
+        try {
+            return pages[(int) (word >>> PAGE_SHIFT)][(int) word & PAGE_MASK];
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw fault("Read", address);
         }
     }
 
     public void write(long address, long value) {
-        if (address % SIZEOF_LONG != 0) {
-            throw new Error("Write at address " + address + " fails, bad alignment");
+        long offset = address - base;
+        if ((offset >>> 3) >= words || (offset & (SIZEOF_LONG - 1)) != 0)
+            throw fault("Write", address);
+        long word = offset >>> 3;
+        int p = (int) (word >>> PAGE_SHIFT);
+        long[] page = pages[p];
+        if (page == ZERO) {
+            page = new long[PAGE_WORDS];
+            pages[p] = page;
         }
-        if (inHeap(address)) {
-            int arrayindex = (int) ((address - minheap) / SIZEOF_LONG);
-            heap[arrayindex] = value;
-        } else if (inStack(address)) {
-            int arrayindex = (int) ((address - minstack) / SIZEOF_LONG);
-            stack[arrayindex] = value;
-        } else {
-            throw new Error("Write at address " + address + " out of bounds");
+        try {
+            page[(int) word & PAGE_MASK] = value;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw fault("Write", address);
         }
     }
+
+    /**
+     * Zeroes the words from address from up to address to, which must be in range.
+     */
+    void clear(long from, long to) {
+        for (long word = (from - base) >>> 3, end = (to - base) >>> 3; word < end; ) {
+            long[] page = pages[(int) (word >>> PAGE_SHIFT)];
+            int i = (int) word & PAGE_MASK;
+            int n = (int) Math.min(PAGE_WORDS - i, end - word);
+            if (page != ZERO)
+                Arrays.fill(page, i, i + n, 0L);
+            word += n;
+        }
+    }
+
+    private static Error fault(String access, long address) {
+        if (address % SIZEOF_LONG != 0)
+            return new Error(access + " at address " + address + " fails, bad alignment");
+        return new Error(access + " at address " + address + " out of bounds");
+    }
 }
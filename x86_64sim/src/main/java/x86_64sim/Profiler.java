@@ -0,0 +1,315 @@
+package x86_64sim;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import x86_64sim.instruction.CJmp;
+import x86_64sim.instruction.Call;
+import x86_64sim.instruction.Instruction;
+import x86_64sim.instruction.Jmp;
+import x86_64sim.instruction.Ret;
+
+/**
+ * Counts what a {@link State} executes while it is being profiled: how often
+ * each instruction runs and how many instructions run in each calling
+ * context, that is each chain of calls from the first function. Basic block
+ * counts, exclusive and inclusive function counts and collapsed stacks for
+ * flame graphs are all derived from those when a report is written.
+ * <p>
+ * Functions are found with the program's sorted index of function labels, once
+ * per call rather than once per instruction.
+ */
+public class Profiler {
+    private static final int TOP = 20;
+
+    private final Program p;
+    private final long[] counts;
+    private long total;
+
+    // The calling context tree. A node's parent always has a smaller index.
+    private int[] parent = new int[64];
+    private int[] function = new int[64];
+    private long[] self = new long[64];
+    private int nodes;
+    // The child of each node for each function it calls, in an open addressed
+    // table keyed by node << 32 | function. 0 marks a free slot, since the
+    // root is no node's child.
+    private long[] childKeys = new long[64];
+    private int[] children = new int[64];
+    private final long[] calls;
+    private int node;
+    private int depth;
+
+    Profiler(Program p, long pc, int depth) {
+        this.p = p;
+        this.counts = new long[p.countInstructions()];
+        this.calls = new long[p.countFunctions() + 1];
+        this.depth = depth;
+        parent[0] = -1;
+        function[0] = functionId(pc);
+        nodes = 1;
+    }
+
+    // Function ids are positions in the program's function index plus one, with 0 for unknown
+    private int functionId(long pc) {
+        return p.functionIndex(pc) + 1;
+    }
+
+    private String functionName(int id) {
+        return id == 0 ? "unknown" : p.functionName(id - 1);
+    }
+
+    /**
+     * Called by the state after it has executed the instruction at pc, leaving
+     * it at the given call depth and about to execute next.
+     */
+    void count(long pc, int callDepth, long next) {
+        counts[(int) pc]++;
+        self[node]++;
+        total++;
+        if (callDepth > depth) {
+            int f = functionId(next);
+            calls[f]++;
+            node = child(node, f);
+        } else if (callDepth < depth && parent[node] >= 0) {
+            node = parent[node];
+        }
+        depth = callDepth;
+    }
+
+    private int child(int node, int f) {
+        long key = ((long) node << 32) | f;
+        int i = slot(childKeys, children, key);
+        if (children[i] != 0)
+            return children[i];
+        if (nodes == parent.length) {
+            parent = Arrays.copyOf(parent, nodes * 2);
+            function = Arrays.copyOf(function, nodes * 2);
+            self = Arrays.copyOf(self, nodes * 2);
+        }
+        parent[nodes] = node;
+        function[nodes] = f;
+        childKeys[i] = key;
+        children[i] = nodes;
+        // Keep the table at most half full
+        if (2 * nodes >= children.length)
+            rehash();
+        return nodes++;
+    }
+
+    /**
+     * @return the slot of the key in the table, or the free slot it would go in.
+     */
+    private static int slot(long[] keys, int[] values, long key) {
+        int mask = keys.length - 1;
+        int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        while (values[i] != 0 && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void rehash() {
+        long[] keys = new long[childKeys.length * 2];
+        int[] values = new int[children.length * 2];
+        for (int j = 0; j < children.length; j++) {
+            if (children[j] == 0)
+                continue;
+            int i = slot(keys, values, childKeys[j]);
+            keys[i] = childKeys[j];
+            values[i] = children[j];
+        }
+        childKeys = keys;
+        children = values;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getCount(int pc) {
+        return counts[pc];
+    }
+
+    public long getCalls(String name) {
+        int f = lookup(name);
+        return f < 0 ? 0 : calls[f];
+    }
+
+    /**
+     * @return the instructions executed in the function itself.
+     */
+    public long getExclusive(String name) {
+        int f = lookup(name);
+        return f < 0 ? 0 : exclusive()[f];
+    }
+
+    /**
+     * @return the instructions executed in the function and everything it calls.
+     */
+    public long getInclusive(String name) {
+        int f = lookup(name);
+        return f < 0 ? 0 : inclusive()[f];
+    }
+
+    private int lookup(String name) {
+        for (int f = 0; f < calls.length; f++)
+            if (functionName(f).equals(name))
+                return f;
+        return -1;
+    }
+
+    private long[] exclusive() {
+        long[] exclusive = new long[calls.length];
+        for (int n = 0; n < nodes; n++)
+            exclusive[function[n]] += self[n];
+        return exclusive;
+    }
+
+    /**
+     * Adds up each context and its callees, counting a context only for the
+     * outermost occurrence of its function, so that recursion counts once.
+     */
+    private long[] inclusive() {
+        long[] subtree = Arrays.copyOf(self, nodes);
+        for (int n = nodes - 1; n > 0; n--)
+            subtree[parent[n]] += subtree[n];
+        // Children lists, to walk the tree depth first
+        int[] first = new int[nodes], next = new int[nodes];
+        Arrays.fill(first, -1);
+        for (int n = nodes - 1; n > 0; n--) {
+            next[n] = first[parent[n]];
+            first[parent[n]] = n;
+        }
+        long[] inclusive = new long[calls.length];
+        int[] active = new int[calls.length];
+        int[] stack = new int[nodes];
+        int[] cursor = new int[nodes];
+        int sp = 0;
+        stack[sp] = 0;
+        cursor[sp++] = first[0];
+        if (active[function[0]]++ == 0)
+            inclusive[function[0]] += subtree[0];
+        while (sp > 0) {
+            int c = cursor[sp - 1];
+            if (c < 0) {
+                active[function[stack[--sp]]]--;
+                continue;
+            }
+            cursor[sp - 1] = next[c];
+            if (active[function[c]]++ == 0)
+                inclusive[function[c]] += subtree[c];
+            stack[sp] = c;
+            cursor[sp++] = first[c];
+        }
+        return inclusive;
+    }
+
+    private String percent(long count) {
+        return String.format("%6.2f", total == 0 ? 0.0 : 100.0 * count / total);
+    }
+
+    /**
+     * Writes the functions by exclusive count, then the hottest basic blocks
+     * and instructions.
+     */
+    public void writeReport(PrintStream out) {
+        out.println("Profile of " + total + " instructions executed");
+        out.println();
+        final long[] exclusive = exclusive();
+        long[] inclusive = inclusive();
+        List<Integer> functions = new ArrayList<Integer>();
+        for (int f = 0; f < calls.length; f++)
+            if (inclusive[f] > 0)
+                functions.add(f);
+        Collections.sort(functions, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(exclusive[b], exclusive[a]);
+            }
+        });
+        out.println("   exclusive      %    inclusive      %        calls  function");
+        for (int f : functions)
+            out.println(String.format("%12d %s %12d %s %12d  %s", exclusive[f], percent(exclusive[f]),
+                    inclusive[f], percent(inclusive[f]), calls[f], functionName(f)));
+
+        out.println();
+        out.println("    executed      %        count   from     to  function");
+        List<long[]> blocks = basicBlocks();
+        Collections.sort(blocks, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return Long.compare(b[2], a[2]);
+            }
+        });
+        for (long[] b : blocks.subList(0, Math.min(TOP, blocks.size())))
+            out.println(String.format("%12d %s %12d %6d %6d  %s", b[2], percent(b[2]),
+                    counts[(int) b[0]], b[0], b[1], p.getFunctionAt(b[0])));
+
+        out.println();
+        out.println("       count      %     pc  instruction");
+        Integer[] pcs = new Integer[counts.length];
+        for (int pc = 0; pc < pcs.length; pc++)
+            pcs[pc] = pc;
+        Arrays.sort(pcs, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(counts[b], counts[a]);
+            }
+        });
+        for (int i = 0; i < Math.min(TOP, pcs.length) && counts[pcs[i]] > 0; i++)
+            out.println(String.format("%12d %s %6d %s", counts[pcs[i]], percent(counts[pcs[i]]),
+                    pcs[i], p.instructions.get(pcs[i])));
+    }
+
+    /**
+     * @return for each basic block that ran, its first and last pc and the
+     * number of instructions executed in it.
+     */
+    private List<long[]> basicBlocks() {
+        int n = counts.length;
+        boolean[] leader = new boolean[n + 1];
+        leader[0] = true;
+        for (long addr : p.labels.values())
+            if (addr < n)
+                leader[(int) addr] = true;
+        for (int pc = 0; pc < n; pc++) {
+            Instruction i = p.instructions.get(pc);
+            if (i instanceof Jmp || i instanceof CJmp || i instanceof Ret || i instanceof Call)
+                leader[pc + 1] = true;
+        }
+        List<long[]> blocks = new ArrayList<long[]>();
+        for (int from = 0; from < n; ) {
+            int to = from;
+            long executed = counts[from];
+            while (!leader[to + 1]) {
+                to++;
+                executed += counts[to];
+            }
+            if (executed > 0)
+                blocks.add(new long[]{from, to, executed});
+            from = to + 1;
+        }
+        return blocks;
+    }
+
+    /**
+     * Writes one line per calling context, the functions from the outermost
+     * separated by semicolons followed by the instructions executed in it, as
+     * read by flamegraph.pl and similar tools.
+     */
+    public void writeCollapsedStacks(PrintStream out) {
+        List<String> path = new ArrayList<String>();
+        for (int n = 0; n < nodes; n++) {
+            if (self[n] == 0)
+                continue;
+            path.clear();
+            for (int c = n; c >= 0; c = parent[c])
+                path.add(functionName(function[c]));
+            StringBuilder line = new StringBuilder();
+            for (int i = path.size() - 1; i >= 0; i--)
+                line.append(path.get(i)).append(i > 0 ? ";" : " ");
+            out.println(line.append(self[n]));
+        }
+    }
+}
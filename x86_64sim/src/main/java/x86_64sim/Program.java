@@ -1,20 +1,36 @@
 package x86_64sim;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.TreeMap;
 import java.util.regex.Pattern;
 
 import x86_64sim.instruction.Instruction;
 
+/**
+ * A simulated program. It is built up by the parser or a {@link ProgramBuilder}
+ * and then linked, after which it no longer changes: everything derived from it,
+ * such as the threaded code and the function index, is built by link(). A
+ * linked program can be run by any number of {@link State}s at once, on any
+ * threads.
+ */
 public class Program {
     List<Instruction> instructions;
     Map<String, Long> labels;
     Map<Long, Long> staticData = new HashMap<Long, Long>();
     Map<Long, String> relocationData = new HashMap<Long, String>();
+    Map<String, Integer> registerIndex = new HashMap<String, Integer>();
+    List<String> registerNames = new ArrayList<String>();
     boolean inText = true;
+    // Set last by link(), so that a thread that sees it set sees the whole linked program
+    private volatile boolean linked = false;
+    private ThreadedCode threadedCode;
+    // The function labels sorted by address, for getFunctionAt
+    private long[] functionStarts;
+    private String[] functionNames;
     long pc;
     long dc = State.HEAP_BASE;
 
@@ -22,17 +38,88 @@ public class Program {
         instructions = new ArrayList<Instruction>();
         labels = new HashMap<String, Long>();
         pc = 0;
+        for (Register r : Register.values())
+            register(r.getName());
+    }
+
+    /**
+     * Returns the register file slot of a register or temp, allocating a new
+     * slot the first time a temp name is seen.
+     */
+    public int register(String name) {
+        Integer index = registerIndex.get(name);
+        if (index == null) {
+            index = registerNames.size();
+            registerIndex.put(name, index);
+            registerNames.add(name);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the register file slot of a register or temp, or -1 if the
+     * program never mentions it.
+     */
+    public int lookupRegister(String name) {
+        Integer index = registerIndex.get(name);
+        return index == null ? -1 : index;
+    }
+
+    public String registerName(int index) {
+        return registerNames.get(index);
+    }
+
+    public int countRegisters() {
+        return registerNames.size();
     }
 
     public long getLabel(String label) {
         return labels.get(label);
     }
 
+    /**
+     * @return the address of a label, or -1 if the program does not define it.
+     */
+    public long resolveLabel(String label) {
+        Long addr = labels.get(label);
+        return addr == null ? -1 : addr;
+    }
+
+    /**
+     * Binds every instruction's labels, conditions and runtime calls, once the
+     * whole program has been parsed. Linking a program twice does nothing.
+     */
+    public synchronized void link() {
+        if (linked)
+            return;
+        for (Instruction i : instructions)
+            i.link(this);
+        indexFunctions();
+        threadedCode = new ThreadedCode(instructions);
+        linked = true;
+    }
+
+    private void checkNotLinked() {
+        if (linked)
+            throw new Error("Can't change a program once it is linked");
+    }
+
+    /**
+     * @return the pre-decoded form of the program. The program is linked first.
+     */
+    public ThreadedCode getThreadedCode() {
+        if (!linked)
+            link();
+        return threadedCode;
+    }
+
     public void doData() {
+        checkNotLinked();
         inText = false;
     }
 
     public void doText() {
+        checkNotLinked();
         inText = true;
     }
 
@@ -40,12 +127,11 @@ public class Program {
         assert (value.equals("4"));
     }
 
-    Pattern numberPattern = Pattern.compile("-?[0-9]+");
-    Matcher numberMatcher = numberPattern.matcher("");
+    private static final Pattern numberPattern = Pattern.compile("-?[0-9]+");
 
     public void doQuad(String value) {
-        numberMatcher.reset(value);
-        if (numberMatcher.matches())
+        checkNotLinked();
+        if (numberPattern.matcher(value).matches())
             staticData.put(dc, Long.parseLong(value));
         else if (labels.containsKey(value))
             staticData.put(dc, labels.get(value));
@@ -55,6 +141,7 @@ public class Program {
     }
 
     public void add(String label) {
+        checkNotLinked();
         if (inText)
             labels.put(label, pc);
         else
@@ -62,6 +149,8 @@ public class Program {
     }
 
     public void add(Instruction i) {
+        checkNotLinked();
+        i.resolveRegisters(this);
         instructions.add(i);
         pc++;
     }
@@ -75,24 +164,53 @@ public class Program {
         return null;
     }
 
-    Pattern boringLabel = Pattern.compile(".*_[0-9]+$");
-    Matcher m = boringLabel.matcher("");
+    private static final Pattern boringLabel = Pattern.compile(".*_[0-9]+$");
 
     public String getFunctionAt(long pc) {
-        String closestLabel = null;
-        long closestAddr = -1;
-        if (pc == 99999999999999L)
+        if (pc == State.DONE)
             return "__start";
+        int f = functionIndex(pc);
+        return f < 0 ? "unknown" : functionNames[f];
+    }
+
+    /**
+     * @return the position in the function index of the nearest function label
+     * at or below pc, or -1 if there is none.
+     */
+    int functionIndex(long pc) {
+        if (!linked)
+            link();
+        int i = Arrays.binarySearch(functionStarts, pc);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    String functionName(int index) {
+        return functionNames[index];
+    }
+
+    int countFunctions() {
+        if (!linked)
+            link();
+        return functionStarts.length;
+    }
+
+    /**
+     * Sorts the labels that are not local to a function by address. Of several
+     * such labels at one address, the first one seen names the function.
+     */
+    private void indexFunctions() {
+        TreeMap<Long, String> functions = new TreeMap<Long, String>();
         for (String label : labels.keySet()) {
-            m.reset(label);
-            if (m.matches()) continue;
-            Long addr = labels.get(label);
-            if (addr <= pc && addr > closestAddr) {
-                closestAddr = addr;
-                closestLabel = label;
-            }
+            if (!boringLabel.matcher(label).matches() && !functions.containsKey(labels.get(label)))
+                functions.put(labels.get(label), label);
+        }
+        functionStarts = new long[functions.size()];
+        functionNames = new String[functions.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> e : functions.entrySet()) {
+            functionStarts[i] = e.getKey();
+            functionNames[i++] = e.getValue();
         }
-        return closestLabel == null ? "unknown" : closestLabel;
     }
 
     public String dump() {
@@ -0,0 +1,42 @@
+package x86_64sim;
+
+import x86_64sim.instruction.Instruction;
+
+/**
+ * Builds a {@link Program} from labels, data and instructions made by the
+ * caller, without going through the JavaCC parser. This lets a code generator
+ * hand its instructions to the simulator directly instead of printing the
+ * whole program and parsing it back.
+ */
+public class ProgramBuilder {
+
+    private final Program p = new Program();
+
+    public void text() {
+        p.doText();
+    }
+
+    public void data() {
+        p.doData();
+    }
+
+    public void label(String name) {
+        p.add(name);
+    }
+
+    public void quad(String value) {
+        p.doQuad(value);
+    }
+
+    public void add(Instruction i) {
+        p.add(i);
+    }
+
+    /**
+     * @return the linked program.
+     */
+    public Program build() {
+        p.link();
+        return p;
+    }
+}
@@ -0,0 +1,33 @@
+package x86_64sim;
+
+/**
+ * The machine registers of the simulator. A register's ordinal is its slot in
+ * the register file held by {@link State}. Temporaries (t000, t001, ...) that
+ * appear in unallocated code are numbered by the {@link Program} after these.
+ */
+public enum Register {
+    RAX("%rax"), RBX("%rbx"), RCX("%rcx"), RDX("%rdx"),
+    RSI("%rsi"), RDI("%rdi"), RSP("%rsp"), RBP("%rbp"),
+    R8("%r8"), R9("%r9"), R10("%r10"), R11("%r11"),
+    R12("%r12"), R13("%r13"), R14("%r14"), R15("%r15");
+
+    public static final int COUNT = values().length;
+
+    private final String name;
+
+    Register(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int index() {
+        return ordinal();
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -1,5 +1,9 @@
 package x86_64sim;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+
 import x86_64sim.parser.SimParser;
 
 public class Sim {
@@ -19,11 +23,54 @@ public class Sim {
         }
         //			System.out.println("Program:");
         //			System.out.println(p.dump());
+        return ulate(p, beVerbose);
+    }
+
+    /**
+     * Simulate a program that has already been parsed, or built directly with a
+     * {@link ProgramBuilder}.
+     */
+    public static State ulate(Program p, boolean beVerbose) {
         State s = new State(p);
         s.beVerbose = beVerbose;
         String result = s.runForResult().result;
         System.out.println("Static: " + p.countInstructions() + " instructions generated");
         System.out.println("Dynamic: " + s.instructionsExecuted + " instructions executed");
+        System.out.println("GC: " + s.heap.collections + " collections, "
+                + s.heap.bytesReclaimed + " bytes reclaimed, "
+                + String.format("%.3f", s.heap.pauseNanos / 1e6) + " ms paused");
+        return s;
+    }
+
+    /**
+     * Simulate a program in the interpreter, counting what it executes, and
+     * write a flat profile to report and collapsed stacks for flame graphs to
+     * stacks.
+     */
+    public static State profile(Program p, File report, File stacks) throws FileNotFoundException {
+        State s = new State(p);
+        Profiler profiler = s.startProfiling();
+        s.runForResult();
+        PrintStream out = new PrintStream(report);
+        profiler.writeReport(out);
+        out.close();
+        out = new PrintStream(stacks);
+        profiler.writeCollapsedStacks(out);
+        out.close();
+        return s;
+    }
+
+    /**
+     * Simulate a program in the interpreter with the default {@link CostModel},
+     * and write its estimate to report.
+     */
+    public static State estimate(Program p, File report) throws FileNotFoundException {
+        State s = new State(p);
+        CostModel model = s.startCostModel(new CostModel());
+        s.runForResult();
+        PrintStream out = new PrintStream(report);
+        model.writeReport(out);
+        out.close();
         return s;
     }
 }
@@ -4,128 +4,138 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
 import x86_64sim.instruction.Instruction;
 
 
 public class State {
-    public static final long HEAP_BASE = 0x1000L, HEAP_SIZE = 0x1000L;
-    public static final long STACK_BASE = 0x8000L, STACK_SIZE = 0x1000L;
+    // The heap starts at HEAP_BASE, followed by a guard page and then the stack,
+    // which grows down from stackBase. Memory is only backed where it is written.
+    public static final long HEAP_BASE = 0x1000L;
+    public static final long DEFAULT_HEAP_SIZE = 256L << 20, DEFAULT_STACK_SIZE = 16L << 20;
     static final long DONE = 99999999999999L;
     public boolean beVerbose = false;
     public long maxInstructions = 10000000;
-    final static String[] regs = {Instruction.AX /*"%rax"*/, "%rbx", "%rcx", Instruction.DX /*"%rdx"*/, "%rsi", Instruction.ARG1 /*"%rdi"*/, Instruction.SP, Instruction.BP,
-            "%r8", "%r9", "%r10", "%r11", "%r12", "%r13", "%r14", "%r15"};
-
-    static {
-        assert (HEAP_BASE + HEAP_SIZE < STACK_BASE - STACK_SIZE);
-    }
+    // THREADED and JIT are faster, but opt-in
+    public ExecutionMode mode = ExecutionMode.INTERPRETER;
+    // In JIT mode, functions are compiled once they have been called this often.
+    public int jitThreshold = 1000;
+    // The instruction limit of the current threaded code run
+    long limit;
+    static final int INITIAL_CALL_DEPTH = 64;
 
     public Program p;
     public Memory ram;
-    Map<String, Long> registers;
-    List<Map<String, Long>> registerstack;
+    // Machine registers occupy the first Register.COUNT slots and are shared by all
+    // activations; the remaining slots hold temps, which are saved across calls.
+    long[] registers;
+    long[][] registerstack;
+    int callDepth;
     public long conditionl;
     public long conditionr;
     public long pc;
-    public long hp;
+    public final Heap heap;
+    public final long heapLimit;
+    public final long stackBase;
     public PrintStream out = System.out;
     public long instructionsExecuted = 0L;
     public String result;
+    public Profiler profiler;
+    public CostModel costModel;
 
     public State(Program p) {
-        ram = new Memory(HEAP_BASE, HEAP_BASE + HEAP_SIZE, STACK_BASE - STACK_SIZE, STACK_BASE);
-        registers = new HashMap<String, Long>();
-        registerstack = new LinkedList<Map<String, Long>>();
+        this(p, DEFAULT_HEAP_SIZE, DEFAULT_STACK_SIZE);
+    }
+
+    /**
+     * @param heapSize  bytes available for static data and allocation, rounded up to whole pages.
+     * @param stackSize bytes available for the stack, rounded up to whole pages.
+     */
+    public State(Program p, long heapSize, long stackSize) {
+        heapLimit = HEAP_BASE + pages(heapSize);
+        stackBase = heapLimit + Memory.PAGE_SIZE + pages(stackSize);
+        ram = new Memory(HEAP_BASE, stackBase - HEAP_BASE);
+        ram.guard(heapLimit, heapLimit + Memory.PAGE_SIZE);
+        p.link();
+        registers = new long[p.countRegisters()];
+        registerstack = new long[INITIAL_CALL_DEPTH][];
+        callDepth = 0;
         pc = p.findMain();
         this.p = p;
-        long sp = STACK_BASE - Memory.SIZEOF_LONG;
+        long sp = stackBase - Memory.SIZEOF_LONG;
         ram.write(sp, DONE);
-        setReg(Instruction.SP, sp);
-        hp = p.writeStatic(ram);
+        setReg(Instruction.SP_REG, sp);
+        heap = new Heap(this, p.writeStatic(ram), heapLimit);
+    }
+
+    private static long pages(long size) {
+        return (size + Memory.PAGE_SIZE - 1) / Memory.PAGE_SIZE * Memory.PAGE_SIZE;
     }
 
     public long alloc(long size) {
-        assert (hp + size <= HEAP_BASE + HEAP_SIZE);
-        long answer = hp;
-        hp += size;
-        return answer;
+        return heap.allocate(size);
     }
 
     public long allocArray(long nElements) {
-        long size = (nElements + 1) * Memory.SIZEOF_LONG;
-        assert (hp + size <= HEAP_BASE + HEAP_SIZE);
-        long answer = hp;
+        long answer = heap.allocate((nElements + 1) * Memory.SIZEOF_LONG);
         ram.write(answer, nElements);
-        hp += size;
         return answer + Memory.SIZEOF_LONG;
     }
 
     public void do_call() {
-        Map<String, Long> newregisters = new HashMap<String, Long>();
-        for (int i = 0; i < regs.length; ++i)
-            newregisters.put(regs[i], registers.get(regs[i]));
-        registerstack.add(0, registers);
-        registers = newregisters;
+        if (callDepth == registerstack.length)
+            registerstack = Arrays.copyOf(registerstack, callDepth * 2);
+        long[] saved = registerstack[callDepth];
+        if (saved == null) {
+            saved = new long[registers.length - Register.COUNT];
+            registerstack[callDepth] = saved;
+        }
+        System.arraycopy(registers, Register.COUNT, saved, 0, saved.length);
+        Arrays.fill(registers, Register.COUNT, registers.length, 0L);
+        callDepth++;
     }
 
     public void do_return() {
         // If there is nothing on the stack, we are returning off the end so do nothing
-        if (registerstack.size() > 0) {
-            Map<String, Long> oldregisters = registerstack.remove(0);
-            for (int i = 0; i < regs.length; ++i)
-                oldregisters.put(regs[i], registers.get(regs[i]));
-            registers = oldregisters;
+        if (callDepth > 0) {
+            callDepth--;
+            long[] saved = registerstack[callDepth];
+            System.arraycopy(saved, 0, registers, Register.COUNT, saved.length);
         }
     }
 
+    public void setReg(int reg, long value) {
+        registers[reg] = value;
+    }
+
+    public long getReg(int reg) {
+        return registers[reg];
+    }
+
     public void setReg(String reg, long value) {
-        registers.put(reg, value);
+        int index = p.lookupRegister(reg);
+        if (index < 0)
+            throw new Error("Unknown register " + reg);
+        registers[index] = value;
     }
 
     public long getReg(String reg) {
-        Long l = registers.get(reg);
-        return (l == null) ? 0 : l;
-    }
-
-    private static long unsignedCompare(long conditionl, long conditionr) {
-        if (conditionl < 0 && conditionr < 0) {
-            // more negative is smaller unsigned
-            return conditionl - conditionr;
-        } else if (conditionl < 0 && conditionr > 0) {
-            // negative is bigger than any positive
-            return 1;
-        } else if (conditionl > 0 && conditionr < 0) {
-            // negative is still bigger than any positive
-            return -1;
-        } else {
-            return conditionl - conditionr;
-        }
+        int index = p.lookupRegister(reg);
+        return (index < 0) ? 0 : registers[index];
     }
 
     public static boolean conditionTrue(String condition, long conditionl, long conditionr) {
-        if (!(condition.equals("l") || condition.equals("e") ||
-                condition.equals("g") || condition.equals("le") ||
-                condition.equals("ne") || condition.equals("ge") ||
-                condition.equals("b") || condition.equals("be") ||
-                condition.equals("a") || condition.equals("ae"))) {
+        Condition c = Condition.get(condition);
+        if (c == null) {
             System.out.println("Illegal condition in branch " + condition);
+            return false;
         }
-        return
-                condition.equals("l") && conditionl < conditionr ||
-                        condition.equals("b") && unsignedCompare(conditionl, conditionr) < 0 ||
-                        condition.equals("e") && conditionl == conditionr ||
-                        condition.equals("g") && conditionl > conditionr ||
-                        condition.equals("a") && unsignedCompare(conditionl, conditionr) > 0 ||
-                        condition.equals("le") && conditionl <= conditionr ||
-                        condition.equals("be") && unsignedCompare(conditionl, conditionr) <= 0 ||
-                        condition.equals("ne") && conditionl != conditionr ||
-                        condition.equals("ge") && (conditionr < 0 || conditionl >= conditionr) ||
-                        condition.equals("ae") && unsignedCompare(conditionl, conditionr) >= 0;
+        return c.holds(conditionl, conditionr);
+    }
+
+    public boolean conditionTrue(Condition condition) {
+        return condition.holds(conditionl, conditionr);
     }
 
     public boolean conditionTrue(String condition) {
@@ -148,16 +158,51 @@ public class State {
         Instruction i = p.instructions.get((int) pc);
         if (beVerbose)
             System.out.println("" + pc + ": " + i);
+        long at = pc;
         pc = pc + 1;
         i.execute(this);
         instructionsExecuted++;
+        if (profiler != null)
+            profiler.count(at, callDepth, pc);
+        if (costModel != null)
+            costModel.executed(at, pc);
+    }
+
+    /**
+     * Counts everything executed from now on, running in the interpreter.
+     */
+    public Profiler startProfiling() {
+        profiler = new Profiler(p, pc, callDepth);
+        return profiler;
+    }
+
+    /**
+     * Estimates the cycles of everything executed from now on with the given
+     * model, running in the interpreter.
+     */
+    public CostModel startCostModel(CostModel model) {
+        model.attach(this);
+        costModel = model;
+        return model;
     }
 
     public String hex(long reg) {
         return "0x" + Long.toString(reg, 16);
     }
 
+    /**
+     * Runs the program in the threaded code engine, unless the mode is the
+     * interpreter or the run is being profiled or costed, until it stops or has
+     * executed max instructions. Whatever is left, such as a jump out of the
+     * code, is then handled by step() as before.
+     */
+    private void runThreaded(long max) {
+        if (mode != ExecutionMode.INTERPRETER && !beVerbose && profiler == null && costModel == null)
+            p.getThreadedCode().run(this, max);
+    }
+
     public void run() {
+        runThreaded(Long.MAX_VALUE);
         while (pc != DONE) {
             step();
         }
@@ -169,6 +214,7 @@ public class State {
         } catch (FileNotFoundException e) {
             // do nothing, use System.out
         }
+        runThreaded(maxInstructions);
         while (pc != DONE && instructionsExecuted < maxInstructions) {
             step();
         }
@@ -182,6 +228,7 @@ public class State {
         os = new ByteArrayOutputStream();
         this.out = new PrintStream(os);
         try {
+            runThreaded(maxInstructions);
             while (pc != DONE && instructionsExecuted < maxInstructions) {
                 step();
             }
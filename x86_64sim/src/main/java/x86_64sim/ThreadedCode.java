@@ -0,0 +1,1072 @@
+package x86_64sim;
+
+import java.util.List;
+
+import x86_64sim.instruction.Instruction;
+
+/**
+ * A pre-decoded form of a linked {@link Program}. Each instruction is first
+ * encoded as an int opcode plus operands (register slots ra, rb, rc and constants
+ * ka, kb), and every opcode is then bound to a small handler object whose operands
+ * are final fields. Running the program is a loop that calls one handler after
+ * another, without the list lookups, verbose checks and operand tests of
+ * {@link State#step()}.
+ * <p>
+ * Common pairs of adjacent instructions are fused into superinstructions. A fused
+ * handler replaces only the first instruction of the pair; the second keeps its own
+ * handler so that jumps into the middle of a pair still work.
+ * <p>
+ * Instructions without an opcode of their own (indirect and runtime calls, cmov,
+ * references to undefined labels, ...) are run through their {@link Instruction#execute}
+ * method, so every instruction behaves exactly as under the interpreter.
+ * <p>
+ * In {@link ExecutionMode#JIT} mode, functions that are called often are handed
+ * to the {@link FunctionCompiler}, and their entry points run the compiled code.
+ */
+public class ThreadedCode {
+
+    public static final int FALLBACK = 0;
+    public static final int ADD_I = 1, ADD_R = 2, SUB_I = 3, SUB_R = 4;
+    public static final int MUL_I = 5, MUL_IR = 6, MUL_R = 7, XOR_R = 8, SAR_I = 9;
+    public static final int INC = 10, DEC = 11, DIV = 12, CQTO = 13;
+    public static final int MOV_I = 14, MOV_R = 15, MOV_M2R = 16, MOV_IM2R = 17;
+    public static final int MOV_R2M = 18, MOV_R2IM = 19, MOV_I2M = 20, LEA = 21;
+    public static final int CMP_I = 22, CMP_R = 23, CMP_M2R = 24, CMP_R2M = 25, CMP_I2M = 26;
+    public static final int JMP = 27, JCC = 28, CALL = 29, RET = 30, PUSH = 31, LEAVE = 32;
+
+    private static final Condition[] conditions = Condition.values();
+
+    int size = 0;
+    final int[] op, ra, rb, rc;
+    final long[] ka, kb;
+    private final Instruction[] instructions;
+    // One handler per instruction; fused has superinstructions where single does not.
+    private final Handler[] single, fused;
+    // The same, with compiled functions patched in, for the JIT mode
+    private final Handler[] jitSingle, jitFused;
+    // How often each function has been called, and whether it has been compiled
+    private final int[] calls;
+    private final boolean[] compiled;
+
+    ThreadedCode(List<Instruction> program) {
+        int n = program.size();
+        op = new int[n];
+        ra = new int[n];
+        rb = new int[n];
+        rc = new int[n];
+        ka = new long[n];
+        kb = new long[n];
+        instructions = program.toArray(new Instruction[n]);
+        for (Instruction i : program)
+            i.encode(this);
+        single = new Handler[n];
+        for (int i = 0; i < n; i++)
+            single[i] = bind(i);
+        fused = single.clone();
+        fuse();
+        jitSingle = single.clone();
+        jitFused = fused.clone();
+        calls = new int[n];
+        compiled = new boolean[n];
+    }
+
+    /**
+     * Emit the decoded form of the next instruction. The meaning of the register
+     * slots ra, rb, rc and of the constants ka, kb depends on the opcode.
+     */
+    public void emit(int opcode, int ra, int rb, int rc, long ka, long kb) {
+        this.op[size] = opcode;
+        this.ra[size] = ra;
+        this.rb[size] = rb;
+        this.rc[size] = rc;
+        this.ka[size] = ka;
+        this.kb[size] = kb;
+        size++;
+    }
+
+    /**
+     * Emit an instruction that is run by calling its execute method.
+     */
+    public void fallback() {
+        emit(FALLBACK, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Run the program from state.pc until it returns off the end, leaves the
+     * code, or has executed max instructions in total. As in {@link State#step()},
+     * state.pc already points past an instruction while it runs, so the state is
+     * up to date also when an instruction fails.
+     */
+    void run(State state, long max) {
+        boolean jit = state.mode == ExecutionMode.JIT;
+        final Handler[] single = jit ? jitSingle : this.single, fused = jit ? jitFused : this.fused;
+        state.limit = max;
+        long pc = state.pc;
+        while (pc >= 0 && pc < size && state.instructionsExecuted < max) {
+            // A superinstruction needs room in the budget for both halves.
+            Handler h = (state.instructionsExecuted + 1 < max ? fused : single)[(int) pc];
+            state.pc = pc + 1;
+            pc = h.run(state);
+            state.instructionsExecuted++;
+        }
+        state.pc = pc;
+    }
+
+    /**
+     * Counts a call to the function at target. Once it has been called
+     * state.jitThreshold times, it is compiled and its entry points run the
+     * compiled code from then on.
+     */
+    void called(State state, long target) {
+        int t = (int) target;
+        if (compiled[t] || ++calls[t] < state.jitThreshold)
+            return;
+        compile(t);
+    }
+
+    /**
+     * States running the same program on other threads share the counts and
+     * the patched handlers. A lost count only delays compiling, and handlers
+     * only have final fields, so they can be patched in without locking the
+     * run loop. Compiling itself happens once.
+     */
+    private synchronized void compile(int t) {
+        if (compiled[t])
+            return;
+        compiled[t] = true;
+        FunctionCompiler compiler = new FunctionCompiler(this, t);
+        CompiledFunction function = compiler.compile();
+        if (function == null)
+            return;
+        for (int entry : compiler.getEntries()) {
+            Handler h = new Compiled(entry, function, single[entry]);
+            jitSingle[entry] = h;
+            jitFused[entry] = h;
+        }
+    }
+
+    private Handler bind(int i) {
+        int a = ra[i], b = rb[i], c = rc[i];
+        long k = ka[i], l = kb[i];
+        switch (op[i]) {
+            case ADD_I: return new AddI(i, a, k);
+            case ADD_R: return new AddR(i, a, b);
+            case SUB_I: return new SubI(i, a, k);
+            case SUB_R: return new SubR(i, a, b);
+            case MUL_I: return new MulI(i, a, k);
+            case MUL_IR: return new MulIR(i, a, b, k);
+            case MUL_R: return new MulR(i, a, b);
+            case XOR_R: return new XorR(i, a, b);
+            case SAR_I: return new SarI(i, a, k);
+            case INC: return new Inc(i, a);
+            case DEC: return new Dec(i, a);
+            case DIV: return new Div(i, b);
+            case CQTO: return new Cqto(i);
+            case MOV_I: return new MovI(i, a, k);
+            case MOV_R: return new MovR(i, a, b);
+            case MOV_M2R: return new MovM2R(i, a, b, k);
+            case MOV_IM2R: return new MovIM2R(i, a, b, c, k, l);
+            case MOV_R2M: return new MovR2M(i, a, b, k);
+            case MOV_R2IM: return new MovR2IM(i, a, b, c, k, l);
+            case MOV_I2M: return new MovI2M(i, a, k, l);
+            case LEA: return new Lea(i, a, b, c, k, l);
+            case CMP_I: return new CmpI(i, a, k);
+            case CMP_R: return new CmpR(i, a, b);
+            case CMP_M2R: return new CmpM2R(i, a, b, k);
+            case CMP_R2M: return new CmpR2M(i, a, b, k);
+            case CMP_I2M: return new CmpI2M(i, a, k, l);
+            case JMP: return new Jmp(i, k);
+            case JCC: return jcc(i, a, k);
+            case CALL: return new Call(this, i, k);
+            case RET: return new Ret(i);
+            case PUSH: return new Push(i, a);
+            case LEAVE: return new Leave(i);
+            default: return new Fallback(i, instructions[i]);
+        }
+    }
+
+    private static Handler jcc(int pc, int condition, long target) {
+        switch (conditions[condition]) {
+            case L: return new Jl(pc, target);
+            case E: return new Je(pc, target);
+            case G: return new Jg(pc, target);
+            case LE: return new Jle(pc, target);
+            case NE: return new Jne(pc, target);
+            default: return new Jcc(pc, conditions[condition], target);
+        }
+    }
+
+    private void fuse() {
+        for (int i = 0; i + 1 < size; i++) {
+            int next = op[i + 1];
+            int a = ra[i], b = rb[i];
+            long k = ka[i];
+            int a2 = ra[i + 1], b2 = rb[i + 1];
+            long k2 = ka[i + 1];
+            switch (op[i]) {
+                case CMP_R:
+                    if (next == JCC) fused[i] = new CmpRJcc(i, a, b, conditions[a2], k2);
+                    break;
+                case CMP_I:
+                    if (next == JCC) fused[i] = new CmpIJcc(i, a, k, conditions[a2], k2);
+                    break;
+                case CMP_M2R:
+                    if (next == JCC) fused[i] = new CmpM2RJcc(i, a, b, k, conditions[a2], k2);
+                    break;
+                case MOV_M2R:
+                    if (next == MOV_R) fused[i] = new MovM2RMovR(i, a, b, k, a2, b2);
+                    else if (next == ADD_I) fused[i] = new MovM2RAddI(i, a, b, k, a2, k2);
+                    else if (next == ADD_R) fused[i] = new MovM2RAddR(i, a, b, k, a2, b2);
+                    break;
+                case MOV_R:
+                    if (next == MOV_R) fused[i] = new MovRMovR(i, a, b, a2, b2);
+                    break;
+                case CALL:
+                    if (k >= 0 && k < size && op[(int) k] == PUSH)
+                        fused[i] = new CallPush(this, i, k, ra[(int) k]);
+                    break;
+            }
+        }
+    }
+
+    private static void push(State s, long value) {
+        long[] r = s.registers;
+        long sp = r[Instruction.SP_REG] - Memory.SIZEOF_LONG;
+        s.ram.write(sp, value);
+        r[Instruction.SP_REG] = sp;
+    }
+
+    private abstract static class Handler {
+        final long next;
+
+        Handler(int pc) {
+            next = pc + 1;
+        }
+
+        /**
+         * @return the pc to continue at.
+         */
+        abstract long run(State s);
+    }
+
+    private static final class Fallback extends Handler {
+        final Instruction i;
+
+        Fallback(int pc, Instruction i) {
+            super(pc);
+            this.i = i;
+        }
+
+        long run(State s) {
+            i.execute(s);
+            return s.pc;
+        }
+    }
+
+    private static final class AddI extends Handler {
+        final int a;
+        final long k;
+
+        AddI(int pc, int a, long k) {
+            super(pc);
+            this.a = a;
+            this.k = k;
+        }
+
+        long run(State s) {
+            s.registers[a] += k;
+            return next;
+        }
+    }
+
+    private static final class AddR extends Handler {
+        final int a, b;
+
+        AddR(int pc, int a, int b) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] += r[b];
+            return next;
+        }
+    }
+
+    private static final class SubI extends Handler {
+        final int a;
+        final long k;
+
+        SubI(int pc, int a, long k) {
+            super(pc);
+            this.a = a;
+            this.k = k;
+        }
+
+        long run(State s) {
+            s.registers[a] -= k;
+            return next;
+        }
+    }
+
+    private static final class SubR extends Handler {
+        final int a, b;
+
+        SubR(int pc, int a, int b) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] -= r[b];
+            return next;
+        }
+    }
+
+    private static final class MulI extends Handler {
+        final int a;
+        final long k;
+
+        MulI(int pc, int a, long k) {
+            super(pc);
+            this.a = a;
+            this.k = k;
+        }
+
+        long run(State s) {
+            s.registers[a] *= k;
+            return next;
+        }
+    }
+
+    private static final class MulIR extends Handler {
+        final int a, b;
+        final long k;
+
+        MulIR(int pc, int a, int b, long k) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+            this.k = k;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] = r[b] * k;
+            return next;
+        }
+    }
+
+    private static final class MulR extends Handler {
+        final int a, b;
+
+        MulR(int pc, int a, int b) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] *= r[b];
+            return next;
+        }
+    }
+
+    private static final class XorR extends Handler {
+        final int a, b;
+
+        XorR(int pc, int a, int b) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] ^= r[b];
+            return next;
+        }
+    }
+
+    private static final class SarI extends Handler {
+        final int a;
+        final long k;
+
+        SarI(int pc, int a, long k) {
+            super(pc);
+            this.a = a;
+            this.k = k;
+        }
+
+        long run(State s) {
+            s.registers[a] >>= k;
+            return next;
+        }
+    }
+
+    private static final class Inc extends Handler {
+        final int a;
+
+        Inc(int pc, int a) {
+            super(pc);
+            this.a = a;
+        }
+
+        long run(State s) {
+            s.registers[a]++;
+            return next;
+        }
+    }
+
+    private static final class Dec extends Handler {
+        final int a;
+
+        Dec(int pc, int a) {
+            super(pc);
+            this.a = a;
+        }
+
+        long run(State s) {
+            s.registers[a]--;
+            return next;
+        }
+    }
+
+    private static final class Div extends Handler {
+        final int b;
+
+        Div(int pc, int b) {
+            super(pc);
+            this.b = b;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            long ax = r[Instruction.AX_REG];
+            long source = r[b];
+            long quot = ax / source;
+            long rem = ax % source;
+            r[Instruction.AX_REG] = quot;
+            r[Instruction.DX_REG] = rem;
+            return next;
+        }
+    }
+
+    private static final class Cqto extends Handler {
+        Cqto(int pc) {
+            super(pc);
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[Instruction.DX_REG] = r[Instruction.AX_REG] > 0 ? 0 : -1;
+            return next;
+        }
+    }
+
+    private static final class MovI extends Handler {
+        final int a;
+        final long k;
+
+        MovI(int pc, int a, long k) {
+            super(pc);
+            this.a = a;
+            this.k = k;
+        }
+
+        long run(State s) {
+            s.registers[a] = k;
+            return next;
+        }
+    }
+
+    private static final class MovR extends Handler {
+        final int a, b;
+
+        MovR(int pc, int a, int b) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] = r[b];
+            return next;
+        }
+    }
+
+    private static final class MovM2R extends Handler {
+        final int a, b;
+        final long k;
+
+        MovM2R(int pc, int a, int b, long k) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+            this.k = k;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] = s.ram.read(r[b] + k);
+            return next;
+        }
+    }
+
+    private static final class MovIM2R extends Handler {
+        final int a, b, c;
+        final long k, l;
+
+        MovIM2R(int pc, int a, int b, int c, long k, long l) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.k = k;
+            this.l = l;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] = s.ram.read(r[b] + k + r[c] * l);
+            return next;
+        }
+    }
+
+    private static final class MovR2M extends Handler {
+        final int a, b;
+        final long k;
+
+        MovR2M(int pc, int a, int b, long k) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+            this.k = k;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            s.ram.write(r[a] + k, r[b]);
+            return next;
+        }
+    }
+
+    private static final class MovR2IM extends Handler {
+        final int a, b, c;
+        final long k, l;
+
+        MovR2IM(int pc, int a, int b, int c, long k, long l) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.k = k;
+            this.l = l;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            s.ram.write(r[a] + k + r[c] * l, r[b]);
+            return next;
+        }
+    }
+
+    private static final class MovI2M extends Handler {
+        final int a;
+        final long k, l;
+
+        MovI2M(int pc, int a, long k, long l) {
+            super(pc);
+            this.a = a;
+            this.k = k;
+            this.l = l;
+        }
+
+        long run(State s) {
+            s.ram.write(s.registers[a] + k, l);
+            return next;
+        }
+    }
+
+    private static final class Lea extends Handler {
+        final int a, b, c;
+        final long k, l;
+
+        Lea(int pc, int a, int b, int c, long k, long l) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.k = k;
+            this.l = l;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] = k + (b < 0 ? 0 : r[b]) + (c < 0 ? 0 : r[c] * l);
+            return next;
+        }
+    }
+
+    private static final class CmpI extends Handler {
+        final int a;
+        final long k;
+
+        CmpI(int pc, int a, long k) {
+            super(pc);
+            this.a = a;
+            this.k = k;
+        }
+
+        long run(State s) {
+            s.conditionr = k;
+            s.conditionl = s.registers[a];
+            return next;
+        }
+    }
+
+    private static final class CmpR extends Handler {
+        final int a, b;
+
+        CmpR(int pc, int a, int b) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            s.conditionr = r[b];
+            s.conditionl = r[a];
+            return next;
+        }
+    }
+
+    private static final class CmpM2R extends Handler {
+        final int a, b;
+        final long k;
+
+        CmpM2R(int pc, int a, int b, long k) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+            this.k = k;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            s.conditionr = s.ram.read(r[b] + k);
+            s.conditionl = r[a];
+            return next;
+        }
+    }
+
+    private static final class CmpR2M extends Handler {
+        final int a, b;
+        final long k;
+
+        CmpR2M(int pc, int a, int b, long k) {
+            super(pc);
+            this.a = a;
+            this.b = b;
+            this.k = k;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            s.conditionl = s.ram.read(r[a] + k);
+            s.conditionr = r[b];
+            return next;
+        }
+    }
+
+    private static final class CmpI2M extends Handler {
+        final int a;
+        final long k, l;
+
+        CmpI2M(int pc, int a, long k, long l) {
+            super(pc);
+            this.a = a;
+            this.k = k;
+            this.l = l;
+        }
+
+        long run(State s) {
+            s.conditionr = l;
+            s.conditionl = s.ram.read(s.registers[a] + k);
+            return next;
+        }
+    }
+
+    private static final class Jmp extends Handler {
+        final long target;
+
+        Jmp(int pc, long target) {
+            super(pc);
+            this.target = target;
+        }
+
+        long run(State s) {
+            return target;
+        }
+    }
+
+    private static final class Jl extends Handler {
+        final long target;
+
+        Jl(int pc, long target) {
+            super(pc);
+            this.target = target;
+        }
+
+        long run(State s) {
+            return s.conditionl < s.conditionr ? target : next;
+        }
+    }
+
+    private static final class Je extends Handler {
+        final long target;
+
+        Je(int pc, long target) {
+            super(pc);
+            this.target = target;
+        }
+
+        long run(State s) {
+            return s.conditionl == s.conditionr ? target : next;
+        }
+    }
+
+    private static final class Jg extends Handler {
+        final long target;
+
+        Jg(int pc, long target) {
+            super(pc);
+            this.target = target;
+        }
+
+        long run(State s) {
+            return s.conditionl > s.conditionr ? target : next;
+        }
+    }
+
+    private static final class Jle extends Handler {
+        final long target;
+
+        Jle(int pc, long target) {
+            super(pc);
+            this.target = target;
+        }
+
+        long run(State s) {
+            return s.conditionl <= s.conditionr ? target : next;
+        }
+    }
+
+    private static final class Jne extends Handler {
+        final long target;
+
+        Jne(int pc, long target) {
+            super(pc);
+            this.target = target;
+        }
+
+        long run(State s) {
+            return s.conditionl != s.conditionr ? target : next;
+        }
+    }
+
+    private static final class Jcc extends Handler {
+        final Condition condition;
+        final long target;
+
+        Jcc(int pc, Condition condition, long target) {
+            super(pc);
+            this.condition = condition;
+            this.target = target;
+        }
+
+        long run(State s) {
+            return condition.holds(s.conditionl, s.conditionr) ? target : next;
+        }
+    }
+
+    private static final class Call extends Handler {
+        final ThreadedCode code;
+        final long target;
+
+        Call(ThreadedCode code, int pc, long target) {
+            super(pc);
+            this.code = code;
+            this.target = target;
+        }
+
+        long run(State s) {
+            if (s.mode == ExecutionMode.JIT)
+                code.called(s, target);
+            push(s, next);
+            s.do_call();
+            return target;
+        }
+    }
+
+    private static final class Ret extends Handler {
+        Ret(int pc) {
+            super(pc);
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            long sp = r[Instruction.SP_REG];
+            long returnAddress = s.ram.read(sp);
+            r[Instruction.SP_REG] = sp + Memory.SIZEOF_LONG;
+            s.do_return();
+            return returnAddress;
+        }
+    }
+
+    private static final class Push extends Handler {
+        final int a;
+
+        Push(int pc, int a) {
+            super(pc);
+            this.a = a;
+        }
+
+        long run(State s) {
+            push(s, s.registers[a]);
+            return next;
+        }
+    }
+
+    private static final class Leave extends Handler {
+        Leave(int pc) {
+            super(pc);
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            long sp = r[Instruction.BP_REG];
+            r[Instruction.BP_REG] = s.ram.read(sp);
+            r[Instruction.SP_REG] = sp + Memory.SIZEOF_LONG;
+            return next;
+        }
+    }
+
+    // Superinstructions. Each counts its first half itself; the run loop counts the second.
+
+    private static final class CmpRJcc extends Handler {
+        final int a, b;
+        final Condition condition;
+        final long target;
+
+        CmpRJcc(int pc, int a, int b, Condition condition, long target) {
+            super(pc + 1);
+            this.a = a;
+            this.b = b;
+            this.condition = condition;
+            this.target = target;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            long cl = r[a], cr = r[b];
+            s.conditionr = cr;
+            s.conditionl = cl;
+            s.instructionsExecuted++;
+            return condition.holds(cl, cr) ? target : next;
+        }
+    }
+
+    private static final class CmpIJcc extends Handler {
+        final int a;
+        final Condition condition;
+        final long k, target;
+
+        CmpIJcc(int pc, int a, long k, Condition condition, long target) {
+            super(pc + 1);
+            this.a = a;
+            this.k = k;
+            this.condition = condition;
+            this.target = target;
+        }
+
+        long run(State s) {
+            long cl = s.registers[a];
+            s.conditionr = k;
+            s.conditionl = cl;
+            s.instructionsExecuted++;
+            return condition.holds(cl, k) ? target : next;
+        }
+    }
+
+    private static final class CmpM2RJcc extends Handler {
+        final int a, b;
+        final Condition condition;
+        final long k, target;
+
+        CmpM2RJcc(int pc, int a, int b, long k, Condition condition, long target) {
+            super(pc + 1);
+            this.a = a;
+            this.b = b;
+            this.k = k;
+            this.condition = condition;
+            this.target = target;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            long cr = s.ram.read(r[b] + k), cl = r[a];
+            s.conditionr = cr;
+            s.conditionl = cl;
+            s.instructionsExecuted++;
+            return condition.holds(cl, cr) ? target : next;
+        }
+    }
+
+    private static final class MovM2RMovR extends Handler {
+        final int a, b, a2, b2;
+        final long k;
+
+        MovM2RMovR(int pc, int a, int b, long k, int a2, int b2) {
+            super(pc + 1);
+            this.a = a;
+            this.b = b;
+            this.k = k;
+            this.a2 = a2;
+            this.b2 = b2;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] = s.ram.read(r[b] + k);
+            s.instructionsExecuted++;
+            r[a2] = r[b2];
+            return next;
+        }
+    }
+
+    private static final class MovM2RAddI extends Handler {
+        final int a, b, a2;
+        final long k, k2;
+
+        MovM2RAddI(int pc, int a, int b, long k, int a2, long k2) {
+            super(pc + 1);
+            this.a = a;
+            this.b = b;
+            this.k = k;
+            this.a2 = a2;
+            this.k2 = k2;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] = s.ram.read(r[b] + k);
+            s.instructionsExecuted++;
+            r[a2] += k2;
+            return next;
+        }
+    }
+
+    private static final class MovM2RAddR extends Handler {
+        final int a, b, a2, b2;
+        final long k;
+
+        MovM2RAddR(int pc, int a, int b, long k, int a2, int b2) {
+            super(pc + 1);
+            this.a = a;
+            this.b = b;
+            this.k = k;
+            this.a2 = a2;
+            this.b2 = b2;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] = s.ram.read(r[b] + k);
+            s.instructionsExecuted++;
+            r[a2] += r[b2];
+            return next;
+        }
+    }
+
+    private static final class MovRMovR extends Handler {
+        final int a, b, a2, b2;
+
+        MovRMovR(int pc, int a, int b, int a2, int b2) {
+            super(pc + 1);
+            this.a = a;
+            this.b = b;
+            this.a2 = a2;
+            this.b2 = b2;
+        }
+
+        long run(State s) {
+            long[] r = s.registers;
+            r[a] = r[b];
+            s.instructionsExecuted++;
+            r[a2] = r[b2];
+            return next;
+        }
+    }
+
+    /**
+     * A call to a function whose first instruction is a push, normally of the
+     * frame pointer.
+     */
+    private static final class CallPush extends Handler {
+        final ThreadedCode code;
+        final long target;
+        final int a;
+
+        CallPush(ThreadedCode code, int pc, long target, int a) {
+            super(pc);
+            this.code = code;
+            this.target = target;
+            this.a = a;
+        }
+
+        long run(State s) {
+            if (s.mode == ExecutionMode.JIT)
+                code.called(s, target);
+            push(s, next);
+            s.do_call();
+            s.instructionsExecuted++;
+            // The push may fail, so first make the state look as if it is running it.
+            s.pc = target + 1;
+            push(s, s.registers[a]);
+            return target + 1;
+        }
+    }
+
+    /**
+     * An entry point of a compiled function.
+     */
+    private static final class Compiled extends Handler {
+        final int entry;
+        final CompiledFunction function;
+        final Handler threaded;
+
+        Compiled(int pc, CompiledFunction function, Handler threaded) {
+            super(pc);
+            this.entry = pc;
+            this.function = function;
+            this.threaded = threaded;
+        }
+
+        long run(State s) {
+            long before = s.instructionsExecuted;
+            long pc = function.run(s, entry, s.limit);
+            if (s.instructionsExecuted == before)
+                return threaded.run(s); // the next block did not fit in the budget
+            s.instructionsExecuted--; // the run loop counts one more
+            return pc;
+        }
+    }
+}
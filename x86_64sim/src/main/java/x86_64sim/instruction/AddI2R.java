@@ -1,22 +1,35 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class AddI2R extends Instruction {
     long source;
     String target;
+    int targetReg;
 
     public AddI2R(String source, String target) {
         this.source = Long.parseLong(source);
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = p.register(target);
+    }
+
     @Override
     public void execute(State state) {
-        long value = state.getReg(target) + source;
+        long value = state.getReg(targetReg) + source;
         if (state.beVerbose)
             System.out.println(target + " <- " + value);
-        state.setReg(target, value);
+        state.setReg(targetReg, value);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.ADD_I, targetReg, 0, 0, source, 0);
     }
 
     @Override
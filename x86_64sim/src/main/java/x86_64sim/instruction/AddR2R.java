@@ -1,21 +1,35 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class AddR2R extends Instruction {
     String target, source;
+    int targetReg, sourceReg;
 
     public AddR2R(String source, String target) {
         this.source = source;
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = p.register(target);
+        sourceReg = p.register(source);
+    }
+
     @Override
     public void execute(State state) {
-        long value = state.getReg(target) + state.getReg(source);
+        long value = state.getReg(targetReg) + state.getReg(sourceReg);
         if (state.beVerbose)
             System.out.println(target + " <- " + value);
-        state.setReg(target, value);
+        state.setReg(targetReg, value);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.ADD_R, targetReg, sourceReg, 0, 0, 0);
     }
 
     @Override
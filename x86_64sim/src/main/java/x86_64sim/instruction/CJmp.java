@@ -1,24 +1,46 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Condition;
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class CJmp extends Instruction {
     String condition, label;
+    Condition cond;
+    long target = -1;
 
     public CJmp(String condition, String label) {
         this.condition = condition;
         this.label = label;
     }
 
+    @Override
+    public void link(Program p) {
+        // An unknown condition is reported when the jump runs, and never holds
+        cond = Condition.get(condition);
+        target = p.resolveLabel(label);
+    }
+
     @Override
     public void execute(State state) {
-        if (state.conditionTrue(condition)) {
+        if (cond != null ? state.conditionTrue(cond) : state.conditionTrue(condition)) {
             if (state.beVerbose)
                 System.out.println("j" + condition + " taken -> " + label);
-            state.jump(label);
+            if (target < 0)
+                throw new Error("Jump to undefined label " + label);
+            state.jump(target);
         }
     }
 
+    @Override
+    public void encode(ThreadedCode code) {
+        if (target >= 0 && cond != null)
+            code.emit(ThreadedCode.JCC, cond.ordinal(), 0, 0, target, 0);
+        else
+            code.fallback();
+    }
+
     @Override
     public String toString() {
         return "\tj" + condition + "\t" + label;
@@ -1,9 +1,13 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Condition;
+import x86_64sim.Program;
 import x86_64sim.State;
 
 public class CMovR2R extends Instruction {
     String condition, target, source;
+    Condition cond;
+    int targetReg, sourceReg;
 
     public CMovR2R(String condition, String source, String target) {
         this.condition = condition;
@@ -11,13 +15,25 @@ public class CMovR2R extends Instruction {
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = p.register(target);
+        sourceReg = p.register(source);
+    }
+
+    @Override
+    public void link(Program p) {
+        // An unknown condition is reported when the move runs, and never holds
+        cond = Condition.get(condition);
+    }
+
     @Override
     public void execute(State state) {
-        if (state.conditionTrue(condition)) {
-            long value = state.getReg(source);
+        if (cond != null ? state.conditionTrue(cond) : state.conditionTrue(condition)) {
+            long value = state.getReg(sourceReg);
             if (state.beVerbose)
                 System.out.println("cmov" + condition + " true " + target + " <- " + value);
-            state.setReg(target, value);
+            state.setReg(targetReg, value);
         }
     }
 
@@ -2,6 +2,7 @@ package x86_64sim.instruction;
 
 import x86_64sim.Memory;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class CQTO extends Instruction {
     public CQTO() {
@@ -9,11 +10,16 @@ public class CQTO extends Instruction {
 
     @Override
     public void execute(State state) {
-        long ax = state.getReg(Instruction.AX);
+        long ax = state.getReg(Instruction.AX_REG);
         long dx = ax > 0 ? 0 : -1;
         if (state.beVerbose)
             System.out.println(DX + " <- " + dx);
-        state.setReg(DX, dx);
+        state.setReg(DX_REG, dx);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.CQTO, 0, 0, 0, 0, 0);
     }
 
     @Override
@@ -1,11 +1,17 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Intrinsic;
 import x86_64sim.Memory;
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class Call extends Instruction {
     String label;
     String register;
+    int targetReg;
+    Intrinsic intrinsic;
+    long address = -1;
 
     public Call(String label) {
         this.label = label;
@@ -15,53 +21,62 @@ public class Call extends Instruction {
         this.register = register;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = register == null ? -1 : p.register(register);
+    }
+
+    @Override
+    public void link(Program p) {
+        if (label != null) {
+            intrinsic = Intrinsic.get(label);
+            if (intrinsic == null)
+                address = p.resolveLabel(label);
+        }
+    }
+
     @Override
     public void execute(State state) {
 
         if (register != null) {
             // An indirect call
             if (state.beVerbose)
-                System.out.println("Call *" + register + "(" + state.getReg(register) + ")");
-            long sp = state.getReg(Instruction.SP) - Memory.SIZEOF_LONG;
+                System.out.println("Call *" + register + "(" + state.getReg(targetReg) + ")");
+            long sp = state.getReg(Instruction.SP_REG) - Memory.SIZEOF_LONG;
             state.ram.write(sp, state.pc);
-            state.setReg(Instruction.SP, sp);
-            long addr = state.getReg(register);
+            state.setReg(Instruction.SP_REG, sp);
+            long addr = state.getReg(targetReg);
             state.do_call();
             state.jump(addr);
         } else {
             if (state.beVerbose)
                 System.out.println("Call " + label);
-            if (label.equals("_cs411println") || label.equals("cs411println")) {
-                // Simulate println
-                state.out.print(state.getReg(Instruction.ARG1) + "\n");
+            if (intrinsic != null) {
+                // Simulate the runtime routine
+                intrinsic.invoke(state);
                 if (state.beVerbose)
                     System.out.println("Return to " + state.pc + " " + state.p.getFunctionAt(state.pc));
-            } else if (label.equals("_cs411newobject") || label.equals("cs411newobject")) {
-                // Simulate new object
-                state.setReg(Instruction.AX, state.alloc(state.getReg(Instruction.ARG1)));
-                if (state.beVerbose)
-                    System.out.println("Return to " + state.pc + " " + state.p.getFunctionAt(state.pc));
-            } else if (label.equals("_cs411newarray") || label.equals("cs411newarray")) {
-                // Simulate new array
-                state.setReg(Instruction.AX, state.allocArray(state.getReg(Instruction.ARG1)));
-                if (state.beVerbose)
-                    System.out.println("Return to " + state.pc + " " + state.p.getFunctionAt(state.pc));
-            } else if (label.equals("_cs411error") || label.equals("cs411error")) {
-                // Simulate error
-                // System.err.println("MiniJava failure " + state.getReg(Instruction.ARG1));
-                throw new Error("MiniJava failure " + state.getReg(Instruction.ARG1) + "\n");
-                // Bail
             } else {
+                if (address < 0)
+                    throw new Error("Call to undefined label " + label);
                 // push ra
-                long sp = state.getReg(Instruction.SP) - Memory.SIZEOF_LONG;
+                long sp = state.getReg(Instruction.SP_REG) - Memory.SIZEOF_LONG;
                 state.ram.write(sp, state.pc);
-                state.setReg(Instruction.SP, sp);
+                state.setReg(Instruction.SP_REG, sp);
                 state.do_call();
-                state.jump(label);
+                state.jump(address);
             }
         }
     }
 
+    @Override
+    public void encode(ThreadedCode code) {
+        if (register == null && intrinsic == null && address >= 0)
+            code.emit(ThreadedCode.CALL, 0, 0, 0, address, 0);
+        else
+            code.fallback();
+    }
+
     @Override
     public String toString() {
         if (label == null)
@@ -1,10 +1,13 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class CmpI2M extends Instruction {
     long source, offset;
     String target;
+    int targetReg;
 
     public CmpI2M(String source, String offset, String target) {
         this.source = Long.parseLong(source);
@@ -12,10 +15,20 @@ public class CmpI2M extends Instruction {
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = p.register(target);
+    }
+
     @Override
     public void execute(State state) {
         state.conditionr = source;
-        state.conditionl = state.ram.read(state.getReg(target) + offset);
+        state.conditionl = state.ram.read(state.getReg(targetReg) + offset);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.CMP_I2M, targetReg, 0, 0, offset, source);
     }
 
     @Override
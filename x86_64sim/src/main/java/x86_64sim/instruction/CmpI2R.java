@@ -1,20 +1,33 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class CmpI2R extends Instruction {
     long source;
     String target;
+    int targetReg;
 
     public CmpI2R(String source, String target) {
         this.source = Long.parseLong(source);
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = p.register(target);
+    }
+
     @Override
     public void execute(State state) {
         state.conditionr = source;
-        state.conditionl = state.getReg(target);
+        state.conditionl = state.getReg(targetReg);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.CMP_I, targetReg, 0, 0, source, 0);
     }
 
     @Override
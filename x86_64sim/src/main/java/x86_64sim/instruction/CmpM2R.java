@@ -1,9 +1,12 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class CmpM2R extends Instruction {
     String target, source;
+    int targetReg, sourceReg;
     long offset;
 
     public CmpM2R(String offset, String source, String target) {
@@ -12,12 +15,23 @@ public class CmpM2R extends Instruction {
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = p.register(target);
+        sourceReg = p.register(source);
+    }
+
     @Override
     public void execute(State state) {
-        long value = state.ram.read(state.getReg(source) + offset);
+        long value = state.ram.read(state.getReg(sourceReg) + offset);
 
         state.conditionr = value;
-        state.conditionl = state.getReg(target);
+        state.conditionl = state.getReg(targetReg);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.CMP_M2R, targetReg, sourceReg, 0, offset, 0);
     }
 
     @Override
@@ -1,9 +1,12 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class CmpR2M extends Instruction {
     String target, source;
+    int targetReg, sourceReg;
     long offset;
 
     public CmpR2M(String source, String offset, String target) {
@@ -12,14 +15,25 @@ public class CmpR2M extends Instruction {
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = p.register(target);
+        sourceReg = p.register(source);
+    }
+
     @Override
     public void execute(State state) {
-        long value = state.ram.read(state.getReg(target) + offset);
+        long value = state.ram.read(state.getReg(targetReg) + offset);
 
-        state.conditionr = state.getReg(source);
+        state.conditionr = state.getReg(sourceReg);
         state.conditionl = value;
     }
 
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.CMP_R2M, targetReg, sourceReg, 0, offset, 0);
+    }
+
     @Override
     public String toString() {
         return "\tcmpq\t" + source + ", " + offset + "(" + target + ")";
@@ -1,19 +1,33 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class CmpR2R extends Instruction {
     String target, source;
+    int targetReg, sourceReg;
 
     public CmpR2R(String source, String target) {
         this.source = source;
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = p.register(target);
+        sourceReg = p.register(source);
+    }
+
     @Override
     public void execute(State state) {
-        state.conditionr = state.getReg(source);
-        state.conditionl = state.getReg(target);
+        state.conditionr = state.getReg(sourceReg);
+        state.conditionl = state.getReg(targetReg);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.CMP_R, targetReg, sourceReg, 0, 0, 0);
     }
 
     @Override
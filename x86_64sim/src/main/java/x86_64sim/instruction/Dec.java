@@ -1,20 +1,33 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class Dec extends Instruction {
     String reg;
+    int slot;
 
     public Dec(String reg) {
         this.reg = reg;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        slot = p.register(reg);
+    }
+
     @Override
     public void execute(State state) {
-        long value = state.getReg(reg) - 1;
+        long value = state.getReg(slot) - 1;
         if (state.beVerbose)
             System.out.println(reg + " <- " + value);
-        state.setReg(reg, value);
+        state.setReg(slot, value);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.DEC, slot, 0, 0, 0, 0);
     }
 
     @Override
@@ -1,24 +1,37 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class DivR extends Instruction {
     String source;
+    int sourceReg;
 
     public DivR(String source) {
         this.source = source;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        sourceReg = p.register(source);
+    }
+
     @Override
     public void execute(State state) {
-        long ax = state.getReg(Instruction.AX);
-        long src = state.getReg(source);
+        long ax = state.getReg(Instruction.AX_REG);
+        long src = state.getReg(sourceReg);
         long quot = ax / src;
         long rem = ax % src;
         if (state.beVerbose)
             System.out.println(Instruction.AX + " <- " + quot + "; " + Instruction.DX + " <- " + rem);
-        state.setReg(Instruction.AX, quot);
-        state.setReg(Instruction.DX, rem);
+        state.setReg(Instruction.AX_REG, quot);
+        state.setReg(Instruction.DX_REG, rem);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.DIV, 0, sourceReg, 0, 0, 0);
     }
 
     @Override
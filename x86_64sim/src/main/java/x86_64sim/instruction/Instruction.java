@@ -1,6 +1,9 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
+import x86_64sim.Register;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public abstract class Instruction {
     public static final String SP = "%rsp";
@@ -9,6 +12,35 @@ public abstract class Instruction {
     public static final String AX = "%rax";
     public static final String DX = "%rdx";
 
+    public static final int SP_REG = Register.RSP.index();
+    public static final int BP_REG = Register.RBP.index();
+    public static final int ARG1_REG = Register.RDI.index();
+    public static final int AX_REG = Register.RAX.index();
+    public static final int DX_REG = Register.RDX.index();
+
+    /**
+     * Called by the {@link Program} when the instruction is added, so that register
+     * operands can be turned into register file slots once, rather than on every
+     * execution.
+     */
+    public void resolveRegisters(Program p) {
+    }
+
+    /**
+     * Called by {@link Program#link()} once all labels are known, so that labels,
+     * conditions and runtime calls are resolved before the program runs.
+     */
+    public void link(Program p) {
+    }
+
+    /**
+     * Emit the decoded form of this instruction for the threaded code engine.
+     * Instructions without a decoded form are run by calling execute.
+     */
+    public void encode(ThreadedCode code) {
+        code.fallback();
+    }
+
     abstract public void execute(State state);
 
     abstract public String toString();
@@ -1,19 +1,37 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class Jmp extends Instruction {
     String label;
+    long target = -1;
 
     public Jmp(String label) {
         this.label = label;
     }
 
+    @Override
+    public void link(Program p) {
+        target = p.resolveLabel(label);
+    }
+
     @Override
     public void execute(State state) {
         if (state.beVerbose)
             System.out.println("jmp -> " + label);
-        state.jump(label);
+        if (target < 0)
+            throw new Error("Jump to undefined label " + label);
+        state.jump(target);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        if (target >= 0)
+            code.emit(ThreadedCode.JMP, 0, 0, 0, target, 0);
+        else
+            code.fallback();
     }
 
     @Override
@@ -1,10 +1,14 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class Lea extends Instruction {
     String base, index, target, id;
+    int baseReg, indexReg, targetReg;
     long offset, scale;
+    long labelAddress = -1;
 
     public Lea(String offset, String base, String target, String index, String scale) {
         this.base = base;
@@ -28,17 +32,42 @@ public class Lea extends Instruction {
         this.scale = 1;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        baseReg = base == null ? -1 : p.register(base);
+        indexReg = index == null ? -1 : p.register(index);
+        targetReg = p.register(target);
+    }
+
+    @Override
+    public void link(Program p) {
+        if (id != null)
+            labelAddress = p.resolveLabel(id);
+    }
+
     @Override
     public void execute(State state) {
         long value;
         if (id != null) {
-            value = state.p.getLabel(id);
+            if (labelAddress < 0)
+                throw new Error("Undefined label " + id);
+            value = labelAddress;
         } else {
-            value = offset + (base == null ? 0 : state.getReg(base)) + (index == null ? 0 : state.getReg(index) * scale);
+            value = offset + (base == null ? 0 : state.getReg(baseReg)) + (index == null ? 0 : state.getReg(indexReg) * scale);
         }
         if (state.beVerbose)
             System.out.println(target + " <- " + value);
-        state.setReg(target, value);
+        state.setReg(targetReg, value);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        if (id == null)
+            code.emit(ThreadedCode.LEA, targetReg, baseReg, indexReg, offset, scale);
+        else if (labelAddress >= 0)
+            code.emit(ThreadedCode.MOV_I, targetReg, 0, 0, labelAddress, 0);
+        else
+            code.fallback();
     }
 
     @Override
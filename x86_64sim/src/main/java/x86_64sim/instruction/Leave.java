@@ -2,6 +2,7 @@ package x86_64sim.instruction;
 
 import x86_64sim.Memory;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class Leave extends Instruction {
     public Leave() {
@@ -9,15 +10,20 @@ public class Leave extends Instruction {
 
     @Override
     public void execute(State state) {
-        long sp = state.getReg(BP);
+        long sp = state.getReg(BP_REG);
         long bp = state.ram.read(sp);
         long newsp = sp + Memory.SIZEOF_LONG;
         if (state.beVerbose) {
             System.out.println(BP + " <- " + state.hex(bp));
             System.out.println(SP + " <- " + state.hex(newsp));
         }
-        state.setReg(BP, bp);
-        state.setReg(SP, newsp);
+        state.setReg(BP_REG, bp);
+        state.setReg(SP_REG, newsp);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.LEAVE, 0, 0, 0, 0, 0);
     }
 
     @Override
@@ -1,13 +1,16 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
 
 public class MoveI2IM extends Instruction {
     long offset, scale;
     String target, index;
+    int targetReg, indexReg;
     boolean isNumber = true;
     long source;
     String id;
+    long labelAddress = -1;
 
     public MoveI2IM(String offset, String source, String target, String index, String scale) {
         this.offset = Long.parseLong(offset);
@@ -23,15 +26,28 @@ public class MoveI2IM extends Instruction {
         this.scale = Long.parseLong(scale);
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = p.register(target);
+        indexReg = p.register(index);
+    }
+
+    @Override
+    public void link(Program p) {
+        if (!isNumber)
+            labelAddress = p.resolveLabel(id);
+    }
+
     @Override
     public void execute(State state) {
-        long address = state.getReg(target) + offset + state.getReg(index) * scale;
+        long address = state.getReg(targetReg) + offset + state.getReg(indexReg) * scale;
         long value;
         if (isNumber)
             value = source;
-        else {
-            value = state.getLabel(id);
-        }
+        else if (labelAddress >= 0)
+            value = labelAddress;
+        else
+            throw new Error("Undefined label " + id);
         if (state.beVerbose)
             System.out.println("M[" + state.hex(address) + "] <- " + value);
 
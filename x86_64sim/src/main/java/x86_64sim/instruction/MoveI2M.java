@@ -1,13 +1,17 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class MoveI2M extends Instruction {
     long offset;
     String target;
+    int targetReg;
     boolean isNumber = true;
     long source;
     String id;
+    long labelAddress = -1;
 
     public MoveI2M(String offset, String source, String target) {
         this.offset = Long.parseLong(offset);
@@ -21,20 +25,42 @@ public class MoveI2M extends Instruction {
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = p.register(target);
+    }
+
+    @Override
+    public void link(Program p) {
+        if (!isNumber)
+            labelAddress = p.resolveLabel(id);
+    }
+
     @Override
     public void execute(State state) {
-        long address = state.getReg(target) + offset;
+        long address = state.getReg(targetReg) + offset;
         long value;
         if (isNumber)
             value = source;
-        else {
-            value = state.getLabel(id);
-        }
+        else if (labelAddress >= 0)
+            value = labelAddress;
+        else
+            throw new Error("Undefined label " + id);
         if (state.beVerbose)
             System.out.println("M[" + state.hex(address) + "] <- " + value);
         state.ram.write(address, value);
     }
 
+    @Override
+    public void encode(ThreadedCode code) {
+        if (isNumber)
+            code.emit(ThreadedCode.MOV_I2M, targetReg, 0, 0, offset, source);
+        else if (labelAddress >= 0)
+            code.emit(ThreadedCode.MOV_I2M, targetReg, 0, 0, offset, labelAddress);
+        else
+            code.fallback();
+    }
+
     @Override
     public String toString() {
         return "\tmovq\t" + source + ", " + (offset == 0 ? "" : offset) + "(" + target + ")";
@@ -1,12 +1,16 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class MoveI2R extends Instruction {
     boolean isNumber = true;
     long source;
     String id;
+    long labelAddress = -1;
     String target;
+    int targetReg;
 
     public MoveI2R(String source, String target) {
         try {
@@ -19,18 +23,40 @@ public class MoveI2R extends Instruction {
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        targetReg = p.register(target);
+    }
+
+    @Override
+    public void link(Program p) {
+        if (!isNumber)
+            labelAddress = p.resolveLabel(id);
+    }
+
     @Override
     public void execute(State state) {
         long value;
         if (isNumber)
             value = source;
-        else {
-            value = state.getLabel(id);
-        }
+        else if (labelAddress >= 0)
+            value = labelAddress;
+        else
+            throw new Error("Undefined label " + id);
         if (state.beVerbose)
             System.out.println(target + " <- " + value);
 
-        state.setReg(target, value);
+        state.setReg(targetReg, value);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        if (isNumber)
+            code.emit(ThreadedCode.MOV_I, targetReg, 0, 0, source, 0);
+        else if (labelAddress >= 0)
+            code.emit(ThreadedCode.MOV_I, targetReg, 0, 0, labelAddress, 0);
+        else
+            code.fallback();
     }
 
     @Override
@@ -1,10 +1,13 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class MoveIM2R extends Instruction {
     long offset, scale;
     String source, target, index;
+    int sourceReg, targetReg, indexReg;
 
     public MoveIM2R(String offset, String source, String target, String index, String scale) {
         this.offset = Long.parseLong(offset);
@@ -14,12 +17,24 @@ public class MoveIM2R extends Instruction {
         this.scale = Long.parseLong(scale);
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        sourceReg = p.register(source);
+        targetReg = p.register(target);
+        indexReg = p.register(index);
+    }
+
     @Override
     public void execute(State state) {
-        long value = state.ram.read(state.getReg(source) + offset + state.getReg(index) * scale);
+        long value = state.ram.read(state.getReg(sourceReg) + offset + state.getReg(indexReg) * scale);
         if (state.beVerbose)
             System.out.println(target + " <- " + value);
-        state.setReg(target, value);
+        state.setReg(targetReg, value);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.MOV_IM2R, targetReg, sourceReg, indexReg, offset, scale);
     }
 
     @Override
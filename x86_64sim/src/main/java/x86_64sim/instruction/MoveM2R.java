@@ -1,10 +1,13 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class MoveM2R extends Instruction {
     long offset;
     String source, target;
+    int sourceReg, targetReg;
 
     public MoveM2R(String offset, String source, String target) {
         this.offset = Long.parseLong(offset);
@@ -12,12 +15,23 @@ public class MoveM2R extends Instruction {
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        sourceReg = p.register(source);
+        targetReg = p.register(target);
+    }
+
     @Override
     public void execute(State state) {
-        long value = state.ram.read(state.getReg(source) + offset);
+        long value = state.ram.read(state.getReg(sourceReg) + offset);
         if (state.beVerbose)
             System.out.println(target + " <- " + value);
-        state.setReg(target, value);
+        state.setReg(targetReg, value);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.MOV_M2R, targetReg, sourceReg, 0, offset, 0);
     }
 
     @Override
@@ -1,10 +1,13 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class MoveR2IM extends Instruction {
     long offset, scale;
     String source, target, index;
+    int sourceReg, targetReg, indexReg;
 
     public MoveR2IM(String offset, String source, String target, String index, String scale) {
         this.offset = Long.parseLong(offset);
@@ -14,16 +17,28 @@ public class MoveR2IM extends Instruction {
         this.scale = Long.parseLong(scale);
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        sourceReg = p.register(source);
+        targetReg = p.register(target);
+        indexReg = p.register(index);
+    }
+
     @Override
     public void execute(State state) {
-        long address = state.getReg(target) + offset + state.getReg(index) * scale;
-        long value = state.getReg(source);
+        long address = state.getReg(targetReg) + offset + state.getReg(indexReg) * scale;
+        long value = state.getReg(sourceReg);
         if (state.beVerbose)
             System.out.println("M[" + state.hex(address) + "] <- " + value);
 
         state.ram.write(address, value);
     }
 
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.MOV_R2IM, targetReg, sourceReg, indexReg, offset, scale);
+    }
+
     @Override
     public String toString() {
         return "\tmovq\t" + source + ", " + (offset == 0 ? "" : offset) + "(" + target + ", " + index + ", " + scale + ")";
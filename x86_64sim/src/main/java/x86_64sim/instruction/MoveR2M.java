@@ -1,10 +1,13 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class MoveR2M extends Instruction {
     long offset;
     String source, target;
+    int sourceReg, targetReg;
 
     public MoveR2M(String offset, String source, String target) {
         this.offset = Long.parseLong(offset);
@@ -12,15 +15,26 @@ public class MoveR2M extends Instruction {
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        sourceReg = p.register(source);
+        targetReg = p.register(target);
+    }
+
     @Override
     public void execute(State state) {
-        long address = state.getReg(target) + offset;
-        long value = state.getReg(source);
+        long address = state.getReg(targetReg) + offset;
+        long value = state.getReg(sourceReg);
         if (state.beVerbose)
             System.out.println("M[" + state.hex(address) + "] <- " + value);
         state.ram.write(address, value);
     }
 
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.MOV_R2M, targetReg, sourceReg, 0, offset, 0);
+    }
+
     @Override
     public String toString() {
         return "\tmovq\t" + source + ", " + (offset == 0 ? "" : offset) + "(" + target + ")";
@@ -1,11 +1,15 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class MulIR2R extends Instruction {
     long immediate;
     String source;
+    int sourceReg;
     String target;
+    int targetReg;
 
     public MulIR2R(String immediate, String source, String target) {
         this.immediate = Long.parseLong(immediate);
@@ -13,12 +17,23 @@ public class MulIR2R extends Instruction {
         this.target = target;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        sourceReg = p.register(source);
+        targetReg = p.register(target);
+    }
+
     @Override
     public void execute(State state) {
-        long value = state.getReg(source) * immediate;
+        long value = state.getReg(sourceReg) * immediate;
         if (state.beVerbose)
             System.out.println(target + " <- " + value);
-        state.setReg(target, value);
+        state.setReg(targetReg, value);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.MUL_IR, targetReg, sourceReg, 0, immediate, 0);
     }
 
     @Override
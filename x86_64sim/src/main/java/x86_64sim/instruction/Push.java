@@ -1,26 +1,39 @@
 package x86_64sim.instruction;
 
 import x86_64sim.Memory;
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class Push extends Instruction {
     String reg;
+    int slot;
 
     public Push(String reg) {
         this.reg = reg;
     }
 
+    @Override
+    public void resolveRegisters(Program p) {
+        slot = p.register(reg);
+    }
+
     @Override
     public void execute(State state) {
-        long sp = state.getReg(SP);
+        long sp = state.getReg(SP_REG);
         long newsp = sp - Memory.SIZEOF_LONG;
-        long value = state.getReg(reg);
+        long value = state.getReg(slot);
         if (state.beVerbose) {
             System.out.println("M[" + state.hex(newsp) + "] <- " + value);
             System.out.println(SP + " <- " + state.hex(newsp));
         }
         state.ram.write(newsp, value);
-        state.setReg(SP, newsp);
+        state.setReg(SP_REG, newsp);
+    }
+
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.PUSH, slot, 0, 0, 0, 0);
     }
 
     @Override
@@ -2,6 +2,7 @@ package x86_64sim.instruction;
 
 import x86_64sim.Memory;
 import x86_64sim.State;
+import x86_64sim.ThreadedCode;
 
 public class Ret extends Instruction {
     public Ret() {
@@ -9,18 +10,23 @@ public class Ret extends Instruction {
 
     @Override
     public void execute(State state) {
-        long sp = state.getReg(SP);
+        long sp = state.getReg(SP_REG);
         long ra = state.ram.read(sp);
         long newsp = sp + Memory.SIZEOF_LONG;
         if (state.beVerbose) {
             System.out.println("Return to " + ra + " " + state.p.getFunctionAt(ra));
             System.out.println(SP + " <- " + state.hex(newsp));
         }
-        state.setReg(SP, newsp);
+        state.setReg(SP_REG, newsp);
         state.do_return();
         state.jump(ra);
     }
 
+    @Override
+    public void encode(ThreadedCode code) {
+        code.emit(ThreadedCode.RET, 0, 0, 0, 0, 0);
+    }
+
     @Override
     public String toString() {
         return "\tret";
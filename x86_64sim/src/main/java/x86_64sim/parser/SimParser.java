@@ -33,7 +33,9 @@ public class SimParser {
      */
     private static Program parse(Reader input) throws ParseException {
         X86_64SimParser parser = new X86_64SimParser(input);
-        return parser.Program();
+        Program p = parser.Program();
+        p.link();
+        return p;
     }
 
     private static String register(Reader input) throws ParseException {
@@ -1,14 +1,32 @@
 package x86_64sim.test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import x86_64sim.Batch;
+import x86_64sim.Condition;
+import x86_64sim.CostModel;
+import x86_64sim.ExecutionMode;
+import x86_64sim.Memory;
+import x86_64sim.Profiler;
 import x86_64sim.Program;
+import x86_64sim.ProgramBuilder;
 import x86_64sim.Sim;
 import x86_64sim.State;
+import x86_64sim.instruction.CJmp;
+import x86_64sim.instruction.CMovR2R;
+import x86_64sim.instruction.Call;
+import x86_64sim.instruction.CmpI2R;
+import x86_64sim.instruction.MoveI2R;
+import x86_64sim.instruction.MoveR2R;
+import x86_64sim.instruction.Ret;
 import x86_64sim.parser.SimParser;
 import util.SampleCode;
 
@@ -120,6 +138,173 @@ public class TestX86_64SimExecute {
                 "ret\n");
     }
 
+    @Test
+    public void testLinkedBranches() throws Exception {
+        State s = accept("main:\n" +
+                "movq    $0, %rax\n" +
+                "movq    $0, t001\n" +
+                "loop:\n" +
+                "addq    t001, %rax\n" +
+                "incq    t001\n" +
+                "cmpq    $10, t001\n" +
+                "jl      loop\n" +
+                "movq    $1, %rdi\n" +
+                "call    _cs411println\n" +
+                "ret\n");
+        Assertions.assertEquals(45L, s.getReg("%rax"));
+        Assertions.assertEquals(10L, s.getReg("t001"));
+    }
+
+    @Test
+    public void testUndefinedLabel() throws Exception {
+        Assertions.assertThrows(Error.class,
+                () -> accept("main:\n" +
+                        "jmp     nowhere\n" +
+                        "ret\n"));
+    }
+
+    private static final String SUM_PROGRAM = ".data\n" +
+            "_n:\n" +
+            ".quad    12\n" +
+            ".text\n" +
+            "main:\n" +
+            "pushq   %rbp\n" +
+            "movq    %rsp, %rbp\n" +
+            "leaq    _n(%rip), t001\n" +
+            "movq    (t001), %rdi\n" +
+            "call    sum\n" +
+            "movq    %rax, %rdi\n" +
+            "call    _cs411println\n" +
+            "leave\n" +
+            "ret\n" +
+            "sum:\n" +
+            "pushq   %rbp\n" +
+            "movq    %rsp, %rbp\n" +
+            "movq    %rdi, t001\n" +
+            "movq    $0, t002\n" +
+            "loop:\n" +
+            "cmpq    $0, t001\n" +
+            "jle     done\n" +
+            "movq    %rdi, -8(%rbp)\n" +
+            "movq    -8(%rbp), t003\n" +
+            "addq    t001, t003\n" +
+            "addq    t003, t002\n" +
+            "decq    t001\n" +
+            "jmp     loop\n" +
+            "done:\n" +
+            "movq    t002, %rax\n" +
+            "leave\n" +
+            "ret\n";
+
+    private static State runIn(ExecutionMode mode, String program, long maxInstructions) throws Exception {
+        State s = new State(SimParser.parse(program));
+        s.mode = mode;
+        s.maxInstructions = maxInstructions;
+        s.jitThreshold = 1;
+        return s.runForResult();
+    }
+
+    private static void assertSameRun(ExecutionMode mode, String program, long max) throws Exception {
+        State interpreted = runIn(ExecutionMode.INTERPRETER, program, max);
+        State other = runIn(mode, program, max);
+        Assertions.assertEquals(interpreted.result, other.result);
+        Assertions.assertEquals(interpreted.instructionsExecuted, other.instructionsExecuted);
+        Assertions.assertEquals(interpreted.pc, other.pc);
+        Assertions.assertEquals(interpreted.conditionl, other.conditionl);
+        Assertions.assertEquals(interpreted.conditionr, other.conditionr);
+        for (String reg : new String[]{"%rax", "%rdi", "%rsp", "%rbp", "t001", "t002", "t003"})
+            Assertions.assertEquals(interpreted.getReg(reg), other.getReg(reg), reg);
+    }
+
+    @Test
+    public void testThreadedMatchesInterpreter() throws Exception {
+        for (long max : new long[]{10000000L, 40L, 41L})
+            assertSameRun(ExecutionMode.THREADED, SUM_PROGRAM, max);
+        Assertions.assertEquals("222\n", runIn(ExecutionMode.THREADED, SUM_PROGRAM, 10000000L).result);
+    }
+
+    @Test
+    public void testJitMatchesInterpreter() throws Exception {
+        for (long max = 1; max < 80; max++)
+            assertSameRun(ExecutionMode.JIT, SUM_PROGRAM, max);
+        assertSameRun(ExecutionMode.JIT, SUM_PROGRAM, 10000000L);
+        Assertions.assertEquals("222\n", runIn(ExecutionMode.JIT, SUM_PROGRAM, 10000000L).result);
+        // A failing memory access inside compiled code
+        assertSameRun(ExecutionMode.JIT, SUM_PROGRAM.replace("-8(%rbp), t003", "-12(%rbp), t003"), 10000000L);
+    }
+
+    /**
+     * @return a program that prints 1 if jumping on the condition after
+     * comparing l to r jumps, else 0; the compare is on two registers, on a
+     * register and an immediate, or apart from the jump. It is done in a
+     * function, so that the JIT compiles it.
+     */
+    private static String conditionProgram(Condition c, long l, long r, int form) {
+        String compare = form == 1 ? "cmpq    $" + r + ", t001\n" : "cmpq    t002, t001\n";
+        return "main:\n" +
+                "call    check\n" +
+                "movq    %rax, %rdi\n" +
+                "call    _cs411println\n" +
+                "ret\n" +
+                "check:\n" +
+                "movq    $" + l + ", t001\n" +
+                "movq    $" + r + ", t002\n" +
+                "movq    $1, %rax\n" +
+                compare +
+                (form == 2 ? "movq    $1, t003\n" : "") +
+                "j" + c + "      taken\n" +
+                "movq    $0, %rax\n" +
+                "taken:\n" +
+                "ret\n";
+    }
+
+    @Test
+    public void testConditionsMatchHolds() throws Exception {
+        long[] values = {-5, -1, 0, 1, 5};
+        for (Condition c : Condition.values())
+            for (long l : values)
+                for (long r : values)
+                    for (int form = 0; form < 3; form++) {
+                        String program = conditionProgram(c, l, r, form);
+                        String expected = c.holds(l, r) ? "1\n" : "0\n";
+                        for (ExecutionMode mode : ExecutionMode.values())
+                            Assertions.assertEquals(expected, runIn(mode, program, 1000).result,
+                                    mode + " j" + c + " " + l + ", " + r);
+                    }
+    }
+
+    /**
+     * The parser only makes known conditions, but a program built directly
+     * can have any. Such a jump or move is reported when it runs, and isn't
+     * taken, as before conditions were looked up when linking.
+     */
+    @Test
+    public void testUnknownConditionNeverHolds() throws Exception {
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            ProgramBuilder b = new ProgramBuilder();
+            b.text();
+            b.label("main");
+            b.add(new Call("check"));
+            b.add(new MoveR2R("%rax", "%rdi"));
+            b.add(new Call("_cs411println"));
+            b.add(new Ret());
+            b.label("check");
+            b.add(new MoveI2R("1", "%rax"));
+            b.add(new MoveI2R("2", "t001"));
+            b.add(new CmpI2R("0", "%rax"));
+            b.add(new CMovR2R("xx", "t001", "%rax"));
+            b.add(new CJmp("xx", "skip"));
+            b.add(new Ret());
+            b.label("skip");
+            b.add(new MoveI2R("3", "%rax"));
+            b.add(new Ret());
+            State s = new State(b.build());
+            s.mode = mode;
+            s.jitThreshold = 1;
+            Assertions.assertEquals("1\n", s.runForResult().result, mode.toString());
+        }
+    }
+
     @Test
     public void testRunRet() throws Exception {
         run("ret\n");
@@ -147,7 +332,7 @@ public class TestX86_64SimExecute {
         assert (s.ram.read(4096L) == 11);
         assert (s.ram.read(4096L + 8L) == 13);
         assert (s.ram.read(4096L + 16L) == 15);
-        for (long a = 4096L + 24; a < s.ram.maxheap; a += 8) {
+        for (long a = 4096L + 24; a < s.heapLimit; a += 8) {
             assert (s.ram.read(a) == 0L);
         }
     }
@@ -176,11 +361,227 @@ public class TestX86_64SimExecute {
         assert (s.ram.read(4096L + 32L) == 13);
         assert (s.ram.read(4096L + 40L) == 11);
         assert (s.ram.read(4096L + 48L) == 15);
-        for (long a = 4096L + 56; a < s.ram.maxheap; a += 8) {
+        for (long a = 4096L + 56; a < s.heapLimit; a += 8) {
             assert (s.ram.read(a) == 0L);
         }
     }
 
+    @Test
+    public void testLargeAddressSpace() throws Exception {
+        State s = new State(SimParser.parse("ret\n"));
+        long high = s.heapLimit - 8;
+        s.ram.write(high, 42L);
+        Assertions.assertEquals(42L, s.ram.read(high));
+        Assertions.assertEquals(0L, s.ram.read(high - (64L << 20)));
+        Assertions.assertTrue(s.ram.getResidentSize() < (1L << 20));
+        // Between heap and stack is a guard page
+        Assertions.assertThrows(Error.class, () -> s.ram.read(s.heapLimit));
+        Assertions.assertThrows(Error.class, () -> s.ram.write(s.stackBase, 1L));
+        Assertions.assertThrows(Error.class, () -> s.alloc(s.heapLimit));
+
+        State small = new State(SimParser.parse("ret\n"), 0x1000L, 0x1000L);
+        small.alloc(0x800L);
+        Assertions.assertThrows(Error.class, () -> small.allocArray(Memory.PAGE_SIZE));
+    }
+
+    @Test
+    public void testGarbageCollection() throws Exception {
+        // Builds a list of 1..100, allocates much more garbage than the heap holds, then sums the list
+        String program = "main:\n" +
+                "pushq   %rbp\n" +
+                "movq    %rsp, %rbp\n" +
+                "movq    $0, t010\n" +
+                "movq    $100, t001\n" +
+                "build:\n" +
+                "movq    $16, %rdi\n" +
+                "call    _cs411newobject\n" +
+                "movq    t010, (%rax)\n" +
+                "movq    t001, 8(%rax)\n" +
+                "movq    %rax, t010\n" +
+                "decq    t001\n" +
+                "cmpq    $0, t001\n" +
+                "jg      build\n" +
+                "movq    $20000, t001\n" +
+                "churn:\n" +
+                "movq    t001, %rdi\n" +
+                "sarq    $12, %rdi\n" +
+                "call    _cs411newarray\n" +
+                "decq    t001\n" +
+                "cmpq    $0, t001\n" +
+                "jg      churn\n" +
+                "movq    $0, t002\n" +
+                "walk:\n" +
+                "cmpq    $0, t010\n" +
+                "je      done\n" +
+                "movq    8(t010), t003\n" +
+                "addq    t003, t002\n" +
+                "movq    (t010), t010\n" +
+                "jmp     walk\n" +
+                "done:\n" +
+                "movq    t002, %rdi\n" +
+                "call    _cs411println\n" +
+                "leave\n" +
+                "ret\n";
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            State s = new State(SimParser.parse(program), 0x10000L, 0x10000L);
+            s.mode = mode;
+            s.runForResult();
+            Assertions.assertEquals("5050\n", s.result, mode.toString());
+            Assertions.assertTrue(s.heap.collections > 0);
+            Assertions.assertTrue(s.heap.bytesReclaimed > 0x10000L);
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        // Many runs of one shared program, compiling it while other runs use it
+        Program shared = SimParser.parse(SUM_PROGRAM);
+        State interpreted = runIn(ExecutionMode.INTERPRETER, SUM_PROGRAM, 10000000L);
+        long expected = interpreted.instructionsExecuted;
+        List<Batch.Job> jobs = new ArrayList<Batch.Job>();
+        for (int i = 0; i < 60; i++) {
+            Batch.Job job = new Batch.Job("sum" + i, shared);
+            job.mode = ExecutionMode.values()[i % 3];
+            job.jitThreshold = 1;
+            jobs.add(job);
+        }
+        Batch.Job bogus = new Batch.Job("bogus", SimParser.parse("movq $1, %rdi\nmovq (%rdi), %rdi\nret\n"));
+        jobs.add(bogus);
+        Batch.Job budget = new Batch.Job("budget", shared);
+        budget.maxInstructions = 20;
+        jobs.add(budget);
+
+        Batch batch = new Batch(4);
+        List<Batch.Result> results = batch.run(jobs);
+        batch.shutdown();
+        Assertions.assertEquals(jobs.size(), results.size());
+        for (int i = 0; i < 60; i++) {
+            Assertions.assertSame(jobs.get(i), results.get(i).job);
+            Assertions.assertEquals("222\n", results.get(i).result);
+            Assertions.assertEquals(expected, results.get(i).instructionsExecuted);
+            Assertions.assertTrue(results.get(i).finished);
+            Assertions.assertEquals(interpreted.getReg("%rax"), results.get(i).exitCode);
+        }
+        Assertions.assertTrue(results.get(60).result.startsWith("Read at address 1 fails"));
+        Assertions.assertFalse(results.get(60).finished);
+        Assertions.assertTrue(results.get(61).result.startsWith("X86_64 simulator exceeded max instructions"));
+        Assertions.assertFalse(results.get(61).finished);
+        Assertions.assertEquals(20L, results.get(61).instructionsExecuted);
+        Assertions.assertThrows(Error.class, () -> shared.add("late"));
+    }
+
+    @Test
+    public void testProfiler() throws Exception {
+        String program = "main:\n" +
+                "movq    $3, %rdi\n" +
+                "call    down\n" +
+                "ret\n" +
+                "down:\n" +
+                "cmpq    $0, %rdi\n" +
+                "je      down_1\n" +
+                "decq    %rdi\n" +
+                "call    down\n" +
+                "down_1:\n" +
+                "ret\n";
+        State s = new State(SimParser.parse(program));
+        Profiler profiler = s.startProfiling();
+        s.runForResult();
+        Assertions.assertEquals(s.instructionsExecuted, profiler.getTotal());
+        Assertions.assertEquals(4L, profiler.getCalls("down"));
+        Assertions.assertEquals(3L, profiler.getExclusive("main"));
+        Assertions.assertEquals(s.instructionsExecuted, profiler.getInclusive("main"));
+        // Recursive calls count once towards the inclusive count
+        Assertions.assertEquals(s.instructionsExecuted - 3, profiler.getInclusive("down"));
+        Assertions.assertEquals(s.instructionsExecuted - 3, profiler.getExclusive("down"));
+        Assertions.assertEquals(4L, profiler.getCount(3));
+        Assertions.assertEquals("down", s.p.getFunctionAt(8));
+
+        ByteArrayOutputStream stacks = new ByteArrayOutputStream();
+        profiler.writeCollapsedStacks(new PrintStream(stacks));
+        Assertions.assertEquals("main 3\nmain;down 5\nmain;down;down 5\nmain;down;down;down 5\n" +
+                "main;down;down;down;down 3\n", stacks.toString());
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        profiler.writeReport(new PrintStream(report));
+        Assertions.assertTrue(report.toString().startsWith("Profile of 21 instructions executed"));
+    }
+
+    @Test
+    public void testProfilerManyContexts() throws Exception {
+        // Recursing 200 deep, twice, to find the contexts of the first time again
+        String program = "main:\n" +
+                "movq    $200, %rdi\n" +
+                "call    down\n" +
+                "movq    $200, %rdi\n" +
+                "call    down\n" +
+                "ret\n" +
+                "down:\n" +
+                "cmpq    $0, %rdi\n" +
+                "je      down_1\n" +
+                "decq    %rdi\n" +
+                "call    down\n" +
+                "down_1:\n" +
+                "ret\n";
+        State s = new State(SimParser.parse(program));
+        Profiler profiler = s.startProfiling();
+        s.runForResult();
+        Assertions.assertEquals(402L, profiler.getCalls("down"));
+        ByteArrayOutputStream stacks = new ByteArrayOutputStream();
+        profiler.writeCollapsedStacks(new PrintStream(stacks));
+        String[] lines = stacks.toString().split("\n");
+        Assertions.assertEquals(202, lines.length);
+        Assertions.assertEquals("main 5", lines[0]);
+        Assertions.assertEquals("main;down 10", lines[1]);
+        Assertions.assertTrue(lines[201].endsWith(";down 6"), lines[201]);
+    }
+
+    private static CostModel estimate(String program, int memoryLatency) throws Exception {
+        State s = new State(SimParser.parse(program));
+        CostModel model = new CostModel();
+        model.memoryLatency = memoryLatency;
+        s.startCostModel(model);
+        s.runForResult();
+        Assertions.assertEquals(s.instructionsExecuted, model.getInstructions());
+        return model;
+    }
+
+    @Test
+    public void testCostModel() throws Exception {
+        // Stores 64 words, then loads them back
+        String program = "main:\n" +
+                "movq    $4096, t001\n" +
+                "movq    $0, t002\n" +
+                "store:\n" +
+                "movq    t002, (t001)\n" +
+                "addq    $8, t001\n" +
+                "incq    t002\n" +
+                "cmpq    $64, t002\n" +
+                "jl      store\n" +
+                "movq    $4096, t001\n" +
+                "movq    $0, t002\n" +
+                "load:\n" +
+                "movq    (t001), t003\n" +
+                "addq    $8, t001\n" +
+                "incq    t002\n" +
+                "cmpq    $64, t002\n" +
+                "jl      load\n" +
+                "ret\n";
+        CostModel model = estimate(program, 100);
+        // The stores miss once per 64 byte line, the loads then hit, and ret misses on the stack
+        Assertions.assertEquals(9L, model.getL1Misses());
+        Assertions.assertEquals(9L, model.getL2Misses());
+        // Each loop branch is mispredicted twice while the predictor warms up, and once at the exit
+        Assertions.assertEquals(128L, model.getBranches());
+        Assertions.assertEquals(6L, model.getMispredictions());
+        Assertions.assertEquals(model.getCycles(), model.getCycles("main") + model.getCycles("store")
+                + model.getCycles("load"));
+        // Only the load by ret waits for memory
+        Assertions.assertEquals(model.getCycles() + 100, estimate(program, 200).getCycles());
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        model.writeReport(new PrintStream(report));
+        Assertions.assertTrue(report.toString().startsWith("Estimated " + model.getCycles() + " cycles"));
+    }
+
     @Test
     public void testExecuteSampleSCode() throws Exception {
         File[] files = SampleCode.sampleSFiles();